@@ -20,11 +20,18 @@ import bdw.csum.entry.InvalidEntryException;
 import bdw.csum.queue.EntryQueue;
 import bdw.csum.entry.MovedEntry;
 import bdw.csum.entry.ChangedEntry;
+import bdw.csum.entry.DirectorySummary;
 import bdw.csum.entry.FileEntry;
+import bdw.csum.hash.DigestAlgorithms;
+import bdw.csum.metrics.Metrics;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * This class takes to EntryQueues, and reports on differences
@@ -39,9 +46,19 @@ import java.util.Set;
  * removed from the old list and added in the new.  As a heuristic to reduce
  * the mistakes there, if there are two files in the new report which
  * have the same checksum, this will ignore them and consider the old one
- * to have been removed and these to be added.
+ * to have been removed and these to be added.  (Hard links to the same file
+ * count as one file here, where the new report notes them, and the old one
+ * is taken to have moved to the first of them.)
  * This also can't detect a file that was
  * moved and changed (which will look like an added and removed file).
+ * <p>
+ * Where both reports are listings with directory summaries, whole
+ * directories that are the same in both can be left out of the reports
+ * beforehand (see findIdenticalDirectories()), so that only the
+ * directories that differ are compared file by file.  The files left out
+ * are then missing from the unchanged set, but from nothing else: no file
+ * can have been added to, removed from, changed in or moved into or out of
+ * a directory whose summary is the same.
  */
 public class Resolver {
 	/**
@@ -68,6 +85,11 @@ public class Resolver {
 	 * Files that appear to be moved and renamed.
 	 */
 	private HashSet<FileEntry> movedOrRenamedSet;
+
+	/**
+	 * Where the time spent comparing is recorded, or null
+	 */
+	private final Metrics metrics;
 	
 	/**
 	 * Constructor.  This extracts entries from the old and new reports
@@ -75,9 +97,35 @@ public class Resolver {
 	 * 
 	 * @param oldReport A queue of old file entries
 	 * @param newReport A queue of new file entries
-	 * @throws InvalidEntryException If an error occurs while retrieving the entries from the queues
+	 * @throws InvalidEntryException If an error occurs while retrieving the entries from the queues,
+	 *		or the two were made with different checksum algorithms or chunk sizes
 	 */
 	public Resolver(EntryQueue oldReport, EntryQueue newReport) throws InvalidEntryException {		
+		this(oldReport, newReport, null);
+	}
+
+	/**
+	 * Constructor.  This extracts entries from the old and new reports
+	 * and builds the set differences, recording the time spent on the
+	 * comparison itself (not that spent getting the entries from the reports).
+	 * 
+	 * @param oldReport A queue of old file entries
+	 * @param newReport A queue of new file entries
+	 * @param metrics Where to record the time spent, or null
+	 * @throws InvalidEntryException If an error occurs while retrieving the entries from the queues,
+	 *		or the two were made with different checksum algorithms or chunk sizes
+	 */
+	public Resolver(EntryQueue oldReport, EntryQueue newReport, Metrics metrics) throws InvalidEntryException {
+		this.metrics = metrics;
+		if (!DigestAlgorithms.sameAlgorithm(oldReport.getAlgorithm(), newReport.getAlgorithm())) {
+			throw new InvalidEntryException("Can not compare a listing made with " + oldReport.getAlgorithm() +
+					" to one made with " + newReport.getAlgorithm());
+		}
+		if (oldReport.getChunkSize() != newReport.getChunkSize()) {
+			throw new InvalidEntryException("Can not compare a listing made with " + describeChunking(oldReport) +
+					" to one made with " + describeChunking(newReport));
+		}
+
 		unchangedSet = new HashSet<FileEntry>();
 		addedSet = new HashSet<FileEntry>();
 		removedSet = new HashSet<FileEntry>();
@@ -87,6 +135,43 @@ public class Resolver {
 		buildSets(oldReport, newReport);
 	}
 
+	/**
+	 * Finds the directories that are the same in two listings, by their
+	 * summaries, leaving out those inside another that is the same.  The
+	 * listings must have been made with the same algorithm.
+	 *
+	 * @param oldSummaries The directory summaries of the old listing, by pathname
+	 * @param newSummaries The directory summaries of the new listing, by pathname
+	 * @return The pathnames of the outermost directories that are the same, in order
+	 */
+	public static List<String> findIdenticalDirectories(Map<String, DirectorySummary> oldSummaries,
+			Map<String, DirectorySummary> newSummaries) {
+		List<String> identical = new ArrayList<String>();
+		String outer = null;
+		// In sorted order, a directory comes right before everything inside it.
+		for (DirectorySummary newSummary : new TreeMap<String, DirectorySummary>(newSummaries).values()) {
+			String pathname = newSummary.getPathname();
+			if ((outer != null) && pathname.startsWith(outer)) {
+				continue;
+			}
+			DirectorySummary oldSummary = oldSummaries.get(pathname);
+			if ((oldSummary != null) && (oldSummary.getFileCount() == newSummary.getFileCount()) &&
+					Arrays.equals(oldSummary.getChecksum(), newSummary.getChecksum())) {
+				identical.add(pathname);
+				outer = pathname;
+			}
+		}
+		return identical;
+	}
+
+	/**
+	 * @param report A queue of entries
+	 * @return How the large files of the report were checksummed, for messages
+	 */
+	private static String describeChunking(EntryQueue report) {
+		return (report.getChunkSize() == 0) ? "whole-file checksums" : report.getChunkSize() + " byte chunks";
+	}
+
 	/**
 	 * @return a list of FileEntries listing files that didn't
 	 *		change between the two reports. (never null)
@@ -137,9 +222,16 @@ public class Resolver {
 	 * @param newMap The mapping of new file entries
 	 */
 	private void buildSets(EntryQueue oldEntries, EntryQueue newEntries) throws InvalidEntryException {
+		long start = System.nanoTime();
+		long reading = 0;
 		HashMap<String, FileEntry> oldMap = new HashMap<String, FileEntry>();
-		while (!oldEntries.isEmpty()) {
-			FileEntry oldEntry = oldEntries.dequeue();
+		while (true) {
+			long readStart = System.nanoTime();
+			FileEntry oldEntry = oldEntries.isEmpty() ? null : oldEntries.dequeue();
+			reading += System.nanoTime() - readStart;
+			if (oldEntry == null) {
+				break;
+			}
 			if (oldMap.containsKey(oldEntry.getPathname())) {
 				throw new InvalidEntryException("One file is in the old list twice: " + oldEntry.getPathname());
 			}
@@ -148,8 +240,13 @@ public class Resolver {
 		
 		// Compute the added, changed and unchanged sets
 		HashMap<String, FileEntry> newMap = new HashMap<String, FileEntry>();
-		while (!newEntries.isEmpty()) {
-			FileEntry newEntry = newEntries.dequeue();
+		while (true) {
+			long readStart = System.nanoTime();
+			FileEntry newEntry = newEntries.isEmpty() ? null : newEntries.dequeue();
+			reading += System.nanoTime() - readStart;
+			if (newEntry == null) {
+				break;
+			}
 			
 			if (newMap.containsKey(newEntry.getPathname())) {
 				throw new InvalidEntryException("One file is in the new list twice: " + newEntry.getPathname());
@@ -179,18 +276,22 @@ public class Resolver {
 		// This isn't as precise a determination as the other sets,
 		// but will be mostly right, which is good enough, and
 		// certainly better than nothing.
+		// Hard links to one file count as one, and the move is to the
+		// first of them listed.
 		Set<FileEntry> removedEntries = new HashSet<FileEntry>();
 		for (FileEntry removedEntry : removedSet) {
-			int numAdded = 0;
+			Set<String> addedFiles = new HashSet<String>();
 			FileEntry theAddedEntry = null;
 			
 			for (FileEntry addedEntry : addedSet) {
 				if (Arrays.equals(addedEntry.getChecksum(), removedEntry.getChecksum())) {
-					numAdded++;
-					theAddedEntry = addedEntry;
+					addedFiles.add((addedEntry.getLinkedTo() != null) ? addedEntry.getLinkedTo() : addedEntry.getPathname());
+					if ((theAddedEntry == null) || isEarlierLink(addedEntry, theAddedEntry)) {
+						theAddedEntry = addedEntry;
+					}
 				}
 			}
-			if (numAdded == 1) {
+			if (addedFiles.size() == 1) {
 				movedOrRenamedSet.add(new MovedEntry(removedEntry, theAddedEntry));
 				removedEntries.add(removedEntry);
 				addedSet.remove(theAddedEntry);
@@ -198,6 +299,22 @@ public class Resolver {
 		}
 		
 		removedSet.removeAll(removedEntries);
+		if (metrics != null) {
+			metrics.add(Metrics.Timer.RESOLVE, System.nanoTime() - start - reading);
+		}
+	}
+
+	/**
+	 * @param entry An entry
+	 * @param other Another, with the same checksum
+	 * @return true if the entry should be taken as the file rather than the
+	 * other: it is the first link to its file, or neither is and it sorts first
+	 */
+	private static boolean isEarlierLink(FileEntry entry, FileEntry other) {
+		if ((entry.getLinkedTo() == null) != (other.getLinkedTo() == null)) {
+			return (entry.getLinkedTo() == null);
+		}
+		return entry.getPathname().compareTo(other.getPathname()) < 0;
 	}
 
 }
\ No newline at end of file
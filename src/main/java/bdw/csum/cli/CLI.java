@@ -16,24 +16,57 @@
 
 package bdw.csum.cli;
 
+import bdw.csum.entry.DirectorySummarizer;
+import bdw.csum.entry.DirectorySummary;
 import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.filter.PathFilter;
+import bdw.csum.hash.DigestAlgorithms;
+import bdw.csum.hash.HashCache;
+import bdw.csum.hash.ReadAheadHasher;
+import bdw.csum.hash.TreeHasher;
+import bdw.csum.io.ArchiveReader;
+import bdw.csum.io.BuilderUtils;
+import bdw.csum.io.ParallelGzipOutputStream;
+import bdw.csum.metrics.Metrics;
+import bdw.csum.metrics.ProgressReporter;
+import bdw.csum.queue.ArchiveConverter;
 import bdw.csum.queue.ArchiveQueue;
+import bdw.csum.queue.ArchiveWriter;
+import bdw.csum.queue.Baseline;
+import bdw.csum.queue.Checkpoint;
+import bdw.csum.queue.Device;
+import bdw.csum.queue.IndexedArchive;
+import bdw.csum.queue.IndexedArchiveWriter;
+import bdw.csum.queue.Throttle;
+import bdw.csum.queue.TreeWalker;
+import bdw.csum.watch.TreeWatcher;
 import bdw.csum.Resolver;
 import bdw.csum.entry.FileEntry;
 import bdw.csum.entry.MovedEntry;
 import bdw.csum.queue.FSQueue;
-import bdw.csum.io.BuilderUtils;
+import bdw.csum.queue.MultiRootQueue;
+import bdw.csum.queue.ResumePoint;
+import bdw.csum.queue.ParallelArchiveQueue;
+import bdw.util.Sizes;
 import bdw.csum.queue.EntryQueue;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -46,9 +79,42 @@ public class CLI {
 	 * Main entry point.
 	 * Arguments:
 	 *		[-a] path  : list all files (even mac special ones) in the specified path
+	 *    to-binary listing binary-listing : turn a text listing into a binary (Version 2) one
+	 *    to-text binary-listing listing : turn a binary listing back into a text one
+	 *    index listing indexed-listing : write a listing sorted by pathname, with an index to look entries up in
+	 *    lookup indexed-listing [--checksum] query... : print the entries of the given pathnames (or of everything
+	 *			under pathnames ending in /), or with --checksum of the given checksums
 	 *    path1 path2:  Report on all changed, added, removed, and moved files between path1 and path 2.
 	 *    [-c] [-a] [-r] [-m] [-s] path1 path2:  if at least one flag is specified,
 	 *			the list the Changed, Added, Removed, Moved, or Same files
+	 *    Either form may also be given:
+	 *    --jobs n : read and checksum files on n threads
+	 *    --since archive : reuse checksums from archive for files whose path, size and date are unchanged
+	 *    --cache file : keep checksums in a persistent cache file, and reuse them for files that haven't changed
+	 *    --algorithm name : checksum with SHA-256 (the default), BLAKE3, XXH64, CRC32C, or any MessageDigest algorithm
+	 *    --device-jobs n : read and checksum files on n threads per device, reporting each device's throughput
+	 *    --list-jobs n : list directories on n threads, ahead of the checksumming
+	 *    --parse-jobs n : when comparing, read each listing file in pieces on n threads
+	 *    --in-flight n : for network file systems, keep up to n listings, stats and reads in flight, each on its own (virtual) thread
+	 *    --inode-order : on spinning disks, read the files of each directory in inode order
+	 *    --hard-links : read each file with several hard links once, noting its other links in the listing
+	 *    --max-bytes-per-second n : read files no faster than this (K, M or G may follow)
+	 *    --max-files-per-second n : look at no more than this many files and directories a second
+	 *    --throttle-file file : take the above from a properties file, checked every second
+	 *    --read-ahead : read files on a separate thread while checksumming them
+	 *    --chunk-size n : checksum files larger than n bytes (K, M or G may follow) as trees of n byte chunks, in parallel
+	 *    --compress : gzip the listing as it is written, on all cores (can't be used with --checkpoint or --watch)
+	 *    --output file : write a listing to file rather than standard output
+	 *    --checkpoint file : with --output, note progress in file every so often, and carry on from it if it is there
+	 *    --checkpoint-interval seconds : take a checkpoint at least this often (60 by default)
+	 *    --checkpoint-bytes n : take a checkpoint after checksumming this much (K, M or G may follow)
+	 *    --watch seconds : with --output, keep watching the directory, bringing the listing up to date this often
+	 *    --root dir : list dir as well, at the same time, into the same listing (may be given many times)
+	 *    --progress seconds : print a line saying how far the run has got this often
+	 *    --metrics file : at the end, write what the run did and where its time went to file as JSON (- for standard error)
+	 *    --exclude glob : leave out files and directories matching glob (see PathFilter; may be given many times)
+	 *    --include glob : bring back files and directories matching glob that an earlier rule left out
+	 *    --exclude-from file : take rules from file, as well as from any .csumignore at the top of the directory
 	 * @param args Command line arguments
 	 * @throws bdw.csum.entry.InvalidEntryException
 	 */
@@ -58,6 +124,34 @@ public class CLI {
 			System.err.println("#  or");
 			System.err.println("# Specify two path to get the differences between them (one or both paths may be to an archive which was written out from the above");
 			System.err.println("#   If specify any of -c (changed), -a (added), -r (removed), -m (moved or renamed), -s (same. that is entirely unchanged) then only those will be shown. If none specified, equivalent to -c -a -r -m");
+			System.err.println("#  or");
+			System.err.println("# Specify to-binary listing binary-listing to turn a listing into a smaller binary one that is quicker to read,");
+			System.err.println("#   or to-text binary-listing listing to turn it back (either form of listing can be compared)");
+			System.err.println("# Specify index listing indexed-listing to write a listing sorted and indexed for looking up,");
+			System.err.println("#   then lookup indexed-listing path... (dir/ for all under dir) or lookup indexed-listing --checksum hex...");
+			System.err.println("# Either may also be given --jobs n to read and checksum files on n threads");
+			System.err.println("#   and --since archive to reuse checksums from an earlier listing for files whose path, size and date haven't changed");
+			System.err.println("#   and --cache file to keep checksums in a cache file shared between runs");
+			System.err.println("#   and --algorithm name to checksum with SHA-256 (the default), BLAKE3, XXH64 or CRC32C");
+			System.err.println("#   and --device-jobs n to read and checksum files on n threads per device (disk)");
+			System.err.println("#   and --list-jobs n to list directories on n threads, for trees with very many directories");
+			System.err.println("#   and --parse-jobs n to read listing files being compared on n threads, for very large listings");
+			System.err.println("#   and --in-flight n to keep up to n file operations in flight at once, for network file systems");
+			System.err.println("#   and --inode-order to read files in inode order on spinning disks");
+			System.err.println("#   and --hard-links to read a file with several hard links only once");
+			System.err.println("#   and --max-bytes-per-second n (e.g. 20M) and --max-files-per-second n to limit the load on the disks");
+			System.err.println("#   and --throttle-file file to take those limits from a file that can be changed while running");
+			System.err.println("#   and --read-ahead to read files on a separate thread while checksumming them");
+			System.err.println("#   and --chunk-size n (e.g. 64M) to checksum files larger than n in n sized chunks, in parallel");
+			System.err.println("#   and --exclude glob, --include glob and --exclude-from file to leave files and directories out");
+			System.err.println("#     (rules are also taken from a .csumignore file at the top of a directory)");
+			System.err.println("# A listing may be given --compress to gzip it (gzipped listings are read as readily as any other)");
+			System.err.println("# A listing may be given --output file to write it to a file, and then --checkpoint file to");
+			System.err.println("#   be able to resume it if it is interrupted (see also --checkpoint-interval and --checkpoint-bytes)");
+			System.err.println("#   or --watch seconds to keep watching the directory and bring the listing up to date that often");
+			System.err.println("# A listing may be given --root dir (many times) to list several directories at once into one listing");
+			System.err.println("# Anything may be given --progress seconds to print how far it has got that often,");
+			System.err.println("#   and --metrics file to write what it did, and where the time went, as JSON at the end (- for standard error)");
 			System.exit(0);
 		}
 		
@@ -65,22 +159,69 @@ public class CLI {
 		
 		// This is really gross.
 		try {
-			if (args.length == 1) {
+			if ((args.length == 3) && (args[0].equals("to-binary") || args[0].equals("to-text"))) {
+				cli.convert(args[0].equals("to-binary"), new File(args[1]), new File(args[2]));
+				System.exit(0);
+			}
+			if ((args.length == 3) && args[0].equals("index")) {
+				cli.index(new File(args[1]), new File(args[2]));
+				System.exit(0);
+			}
+			if ((args.length >= 3) && args[0].equals("lookup")) {
+				boolean byChecksum = args[2].equals("--checksum");
+				List<String> queries = Arrays.asList(args).subList(byChecksum ? 3 : 2, args.length);
 				Writer writer = new OutputStreamWriter(System.out, Charset.forName("UTF-8"));
+				boolean found = cli.lookup(new File(args[1]), byChecksum, queries, writer);
+				writer.flush();
+				System.exit(found ? 0 : 1);
+			}
+			args = cli.parseScanOptions(args);
+			if (!cli.roots.isEmpty()) {
+				boolean all = Arrays.asList(args).contains("-a");
+				List<String> paths = null;
+				try {
+					paths = cli.rootPaths(args);
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					System.exit(1);
+				}
+				if (cli.outputPath != null) {
+					cli.listDirectories(paths, all, new File(cli.outputPath));
+				} else {
+					Writer writer = cli.openListing(System.out);
+					cli.listDirectories(paths, all, writer);
+					writer.flush();
+					writer.close();
+				}
+				cli.finish();
+				System.exit(0);
+			} else if ((cli.watchInterval > 0) && ((args.length == 1) || ((args.length == 2) && args[0].equals("-a")))) {
+				cli.watchDirectory(args[args.length - 1], args.length == 2, new File(cli.outputPath));
+				cli.finish();
+				System.exit(0);
+			} else if ((cli.outputPath != null) && ((args.length == 1) || ((args.length == 2) && args[0].equals("-a")))) {
+				cli.listDirectory(args[args.length - 1], args.length == 2, new File(cli.outputPath));
+				cli.finish();
+				System.exit(0);
+			} else if (args.length == 1) {
+				Writer writer = cli.openListing(System.out);
 				cli.listDirectory(args[0], false, writer);
 				writer.flush();
 				writer.close();
+				cli.finish();
 				System.exit(0);
 			} else if (args.length == 2) {
 				if (args[0].equals("-a")) {
-					Writer writer = new OutputStreamWriter(System.out, Charset.forName("UTF-8"));
-					cli.listDirectory(args[0], true, writer);
+					Writer writer = cli.openListing(System.out);
+					cli.listDirectory(args[1], true, writer);
 					writer.flush();
 					writer.close();
+					cli.finish();
 					System.exit(0);
 				}
 			}
 			cli.prepForCompare(args);
+			cli.finish();
 		} catch (InvalidEntryException e) {
 			e.printStackTrace(System.err);
 		} catch (IOException e) {
@@ -95,6 +236,831 @@ public class CLI {
 	private boolean showSame;
 	private boolean showRemoved;
 
+	/**
+	 * Number of threads to checksum files on when scanning a directory
+	 */
+	private int workerCount = 1;
+
+	/**
+	 * Path to an earlier listing to reuse checksums from, or null
+	 */
+	private String sincePath;
+
+	/**
+	 * The entries read from sincePath, once they have been read
+	 */
+	private Baseline baseline;
+
+	/**
+	 * Path to the persistent checksum cache, or null
+	 */
+	private String cachePath;
+
+	/**
+	 * The checksum cache, once opened
+	 */
+	private HashCache hashCache;
+
+	/**
+	 * The algorithm to checksum with, or null if not chosen (meaning SHA-256,
+	 * or when comparing with an archive, whatever the archive used)
+	 */
+	private String algorithm;
+
+	/**
+	 * Number of threads per device to checksum files on, or 0 to not group by device
+	 */
+	private int deviceWorkerCount;
+
+	/**
+	 * Most file operations in flight at once, or 0 to use worker threads
+	 */
+	private int inFlightLimit;
+
+	/**
+	 * Number of threads to list directories on, or 0 to list them as the walk goes
+	 */
+	private int listingThreadCount;
+
+	/**
+	 * Number of threads to read listing files on when comparing
+	 */
+	private int parseThreadCount = 1;
+
+	/**
+	 * Whether to gzip listings as they are written
+	 */
+	private boolean compress;
+
+	/**
+	 * When to read the files of a directory in inode order
+	 */
+	private TreeWalker.InodeOrder inodeOrder = TreeWalker.InodeOrder.OFF;
+
+	/**
+	 * Whether to read each file with several hard links once
+	 */
+	private boolean hardLinks;
+
+	/**
+	 * The directory scans made, so their device statistics can be reported
+	 */
+	private final List<FSQueue> scans = new ArrayList<FSQueue>();
+
+	/**
+	 * Ceiling on bytes read per second, or 0 for none
+	 */
+	private double maxBytesPerSecond;
+
+	/**
+	 * Ceiling on files and directories looked at per second, or 0 for none
+	 */
+	private double maxFilesPerSecond;
+
+	/**
+	 * Control file for the ceilings, or null
+	 */
+	private String throttlePath;
+
+	/**
+	 * The throttle shared by all scans, once made
+	 */
+	private Throttle throttle;
+
+	/**
+	 * Number of buffers to read ahead into when scanning, or 0 to not read ahead
+	 */
+	private int readAheadBuffers;
+
+	/**
+	 * The chunk size for tree checksums, 0 for whole files, or null if not
+	 * chosen (meaning 0, or when comparing with an archive, whatever the archive used)
+	 */
+	private Long chunkSize;
+
+	/**
+	 * File to write a listing to, or null for standard output
+	 */
+	private String outputPath;
+
+	/**
+	 * File to keep checkpoints of a listing in, or null to not take any
+	 */
+	private String checkpointPath;
+
+	/**
+	 * Most seconds between checkpoints, or 0 for no limit
+	 */
+	private long checkpointInterval = 60;
+
+	/**
+	 * Most bytes checksummed between checkpoints, or 0 for no limit
+	 */
+	private long checkpointBytes;
+
+	/**
+	 * Seconds between bringing a watched listing up to date, or 0 to not watch
+	 */
+	private long watchInterval;
+
+	/**
+	 * Rules for leaving files and directories out of scans, in order, besides
+	 * those of the .csumignore file of the directory scanned
+	 */
+	private final List<String> filterRules = new ArrayList<String>();
+
+	/**
+	 * Directories for main() to list along with any given as an argument
+	 */
+	private final List<String> roots = new ArrayList<String>();
+
+	/**
+	 * Seconds between progress lines, or 0 for none
+	 */
+	private long progressInterval;
+
+	/**
+	 * Where to write the metrics at the end ("-" for standard error), or null
+	 */
+	private String metricsPath;
+
+	/**
+	 * What the run does, once being measured
+	 */
+	private Metrics metrics;
+
+	/**
+	 * Prints the progress lines, once started
+	 */
+	private ProgressReporter progress;
+
+	/**
+	 * Pulls out the options that control how directories are scanned,
+	 * remembering them for later use.
+	 *
+	 * @param args The command line arguments
+	 * @return The arguments that remain once the scan options are removed
+	 */
+	protected String[] parseScanOptions(String[] args) {
+		List<String> remaining = new ArrayList<String>();
+
+		for (int index = 0; index < args.length; index++) {
+			if (args[index].equals("--jobs") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setWorkerCount(Integer.parseInt(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--jobs must be given a positive number, not " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--since") && (index + 1 < args.length)) {
+				index++;
+				setSincePath(args[index]);
+			} else if (args[index].equals("--cache") && (index + 1 < args.length)) {
+				index++;
+				setCachePath(args[index]);
+			} else if (args[index].equals("--algorithm") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setAlgorithm(args[index]);
+				} catch (NoSuchAlgorithmException e) {
+					System.err.println("Unknown checksum algorithm " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--device-jobs") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setDeviceWorkerCount(Integer.parseInt(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--device-jobs must be given a positive number, not " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--max-bytes-per-second") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setMaxBytesPerSecond(Sizes.parse(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--max-bytes-per-second must be given a size, not " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--max-files-per-second") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setMaxFilesPerSecond(Long.parseLong(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--max-files-per-second must be given a number, not " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--throttle-file") && (index + 1 < args.length)) {
+				index++;
+				setThrottlePath(args[index]);
+			} else if (args[index].equals("--in-flight") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setInFlightLimit(Integer.parseInt(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--in-flight must be given a positive number, not " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--list-jobs") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setListingThreadCount(Integer.parseInt(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--list-jobs must be given a positive number, not " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--parse-jobs") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setParseThreadCount(Integer.parseInt(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--parse-jobs must be given a positive number, not " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--output") && (index + 1 < args.length)) {
+				index++;
+				setOutputPath(args[index]);
+			} else if (args[index].equals("--checkpoint") && (index + 1 < args.length)) {
+				index++;
+				setCheckpointPath(args[index]);
+			} else if (args[index].equals("--checkpoint-interval") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setCheckpointInterval(Long.parseLong(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--checkpoint-interval must be given a number of seconds, not " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--checkpoint-bytes") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setCheckpointBytes(Sizes.parse(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--checkpoint-bytes must be given a number, not " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--watch") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setWatchInterval(Long.parseLong(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--watch must be given a positive number of seconds, not " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--progress") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setProgressInterval(Long.parseLong(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--progress must be given a positive number of seconds, not " + args[index]);
+					System.exit(1);
+				}
+			} else if (args[index].equals("--metrics") && (index + 1 < args.length)) {
+				index++;
+				setMetricsPath(args[index]);
+			} else if (args[index].equals("--root") && (index + 1 < args.length)) {
+				index++;
+				roots.add(args[index]);
+			} else if ((args[index].equals("--exclude") || args[index].equals("--include")) && (index + 1 < args.length)) {
+				String rule = (args[index].equals("--include") ? "!" : "") + args[index + 1];
+				index++;
+				try {
+					addFilterRule(rule);
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					System.exit(1);
+				}
+			} else if (args[index].equals("--exclude-from") && (index + 1 < args.length)) {
+				index++;
+				try {
+					addFilterRules(new File(args[index]));
+				} catch (IOException e) {
+					System.err.println("Can not read " + args[index] + ": " + e.getMessage());
+					System.exit(1);
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					System.exit(1);
+				}
+			} else if (args[index].equals("--inode-order")) {
+				setInodeOrder(TreeWalker.InodeOrder.ROTATIONAL);
+			} else if (args[index].equals("--hard-links")) {
+				setHardLinks(true);
+			} else if (args[index].equals("--compress")) {
+				setCompress(true);
+			} else if (args[index].equals("--read-ahead")) {
+				setReadAhead(ReadAheadHasher.DEFAULT_BUFFER_COUNT);
+			} else if (args[index].equals("--chunk-size") && (index + 1 < args.length)) {
+				index++;
+				try {
+					setChunkSize(Sizes.parse(args[index]));
+				} catch (IllegalArgumentException e) {
+					System.err.println("--chunk-size must be 0 or at least " + TreeHasher.MIN_CHUNK_SIZE + ", not " + args[index]);
+					System.exit(1);
+				}
+			} else {
+				remaining.add(args[index]);
+			}
+		}
+
+		if ((checkpointPath != null) && (outputPath == null)) {
+			System.err.println("--checkpoint needs --output, since only a listing in a file can be resumed");
+			System.exit(1);
+		}
+		if ((watchInterval > 0) && (outputPath == null)) {
+			System.err.println("--watch needs --output, the listing to keep up to date");
+			System.exit(1);
+		}
+		if (!roots.isEmpty() && ((checkpointPath != null) || (watchInterval > 0))) {
+			System.err.println("--root can not be used with --checkpoint or --watch");
+			System.exit(1);
+		}
+		if (compress && ((checkpointPath != null) || (watchInterval > 0))) {
+			System.err.println("--compress can not be used with --checkpoint or --watch");
+			System.exit(1);
+		}
+		return remaining.toArray(new String[remaining.size()]);
+	}
+
+	/**
+	 * Gathers the directories to list into one listing when --root is given:
+	 * those left in the arguments, then those given with --root.
+	 *
+	 * @param args The arguments that remain once the scan options are removed
+	 * @return The directories, in order
+	 * @throws IllegalArgumentException If an option other than -a remains
+	 */
+	protected List<String> rootPaths(String[] args) {
+		List<String> paths = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.equals("-a")) {
+				continue;
+			}
+			if (arg.startsWith("-")) {
+				throw new IllegalArgumentException(arg + " can not be used with --root");
+			}
+			paths.add(arg);
+		}
+		paths.addAll(roots);
+		return paths;
+	}
+
+	/**
+	 * Adds a rule for leaving files and directories out when a directory is
+	 * scanned by listDirectory() or compare(), after those already given.
+	 * @param rule The rule (see PathFilter)
+	 * @throws IllegalArgumentException If the rule is malformed
+	 */
+	public void addFilterRule(String rule) {
+		new PathFilter().add(rule);
+		filterRules.add(rule);
+	}
+
+	/**
+	 * Adds the rules in a file (see PathFilter), after those already given.
+	 * @param file The file of rules
+	 * @throws IOException If the file can't be read
+	 * @throws IllegalArgumentException If a rule is malformed
+	 */
+	public void addFilterRules(File file) throws IOException {
+		PathFilter rules = new PathFilter();
+		rules.addAll(file);
+		filterRules.addAll(rules.getRules());
+	}
+
+	/**
+	 * Builds the filter for a scan of a directory: the rules of its
+	 * .csumignore file, if it has one, then those given to this.
+	 *
+	 * @param path The directory to scan
+	 * @return The filter
+	 * @throws InvalidEntryException If the .csumignore file has a bad rule
+	 * @throws IOException If the .csumignore file can't be read
+	 */
+	protected PathFilter createFilter(String path) throws InvalidEntryException, IOException {
+		PathFilter filter = new PathFilter();
+		try {
+			File ignoreFile = new File(path, PathFilter.IGNORE_FILE);
+			if (ignoreFile.isFile()) {
+				filter.addAll(ignoreFile);
+			}
+			for (String rule : filterRules) {
+				filter.add(rule);
+			}
+		} catch (IllegalArgumentException e) {
+			throw new InvalidEntryException(e.getMessage(), e);
+		}
+		return filter;
+	}
+
+	/**
+	 * Sets how often watchDirectory() brings its listing up to date.
+	 * @param seconds Seconds between updates (at least 1)
+	 */
+	public void setWatchInterval(long seconds) {
+		if (seconds < 1) {
+			throw new IllegalArgumentException("The watch interval must be at least a second");
+		}
+		watchInterval = seconds;
+	}
+
+	/**
+	 * Sets how often a line saying how far the run has got is printed to
+	 * standard error.
+	 * @param seconds Seconds between lines (at least 1)
+	 */
+	public void setProgressInterval(long seconds) {
+		if (seconds < 1) {
+			throw new IllegalArgumentException("The progress interval must be at least a second");
+		}
+		progressInterval = seconds;
+	}
+
+	/**
+	 * Sets where finish() writes what the run did, and where its time went, as JSON.
+	 * @param path The file, "-" for standard error, or null to not write them
+	 */
+	public void setMetricsPath(String path) {
+		metricsPath = path;
+	}
+
+	/**
+	 * @return What the run does is recorded in, started the first time it
+	 * is asked for; or null if neither progress nor metrics were asked for
+	 */
+	protected Metrics getMetrics() {
+		if ((metrics == null) && ((progressInterval > 0) || (metricsPath != null))) {
+			metrics = new Metrics();
+			if (progressInterval > 0) {
+				progress = new ProgressReporter(metrics, progressInterval * 1000, System.err);
+				progress.start();
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Sets a file for main() to write a listing to, rather than standard output.
+	 * @param path The file, or null for standard output
+	 */
+	public void setOutputPath(String path) {
+		outputPath = path;
+	}
+
+	/**
+	 * Sets a file to keep checkpoints in when listDirectory() writes a
+	 * listing to a file.  If the file exists, the listing is resumed from it.
+	 * @param path The checkpoint file, or null to not take checkpoints
+	 */
+	public void setCheckpointPath(String path) {
+		checkpointPath = path;
+	}
+
+	/**
+	 * @param seconds Most seconds between checkpoints, or 0 for no limit
+	 */
+	public void setCheckpointInterval(long seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("The checkpoint interval can not be negative");
+		}
+		checkpointInterval = seconds;
+	}
+
+	/**
+	 * @param bytes Most bytes checksummed between checkpoints, or 0 for no limit
+	 */
+	public void setCheckpointBytes(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("The checkpoint byte count can not be negative");
+		}
+		checkpointBytes = bytes;
+	}
+
+	/**
+	 * Sets the number of threads files are checksummed on when a directory
+	 * is scanned by listDirectory() or compare().
+	 * @param count The number of threads (at least 1)
+	 */
+	public void setWorkerCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("Worker count must be at least 1");
+		}
+		workerCount = count;
+	}
+
+	/**
+	 * Sets an earlier listing whose checksums are reused when a directory
+	 * is scanned by listDirectory() or compare().
+	 * @param path Path to the archive, or null to read every file
+	 */
+	public void setSincePath(String path) {
+		sincePath = path;
+		baseline = null;
+	}
+
+	/**
+	 * @return The earlier listing named by setSincePath(), read in, or null if there isn't one
+	 * @throws InvalidEntryException If the archive can't be read
+	 * @throws IOException If the archive can't be opened
+	 */
+	protected Baseline getBaseline() throws InvalidEntryException, IOException {
+		if ((baseline == null) && (sincePath != null)) {
+			InputStream input = new FileInputStream(sincePath);
+			try {
+				baseline = new Baseline(new ArchiveQueue(input));
+			} finally {
+				input.close();
+			}
+		}
+		return baseline;
+	}
+
+	/**
+	 * Sets the algorithm files are checksummed with when a directory
+	 * is scanned by listDirectory() or compare().
+	 * @param name The algorithm (see DigestAlgorithms), or null for the default
+	 * @throws NoSuchAlgorithmException If there is no such algorithm
+	 */
+	public void setAlgorithm(String name) throws NoSuchAlgorithmException {
+		algorithm = (name == null) ? null : DigestAlgorithms.canonicalName(name);
+	}
+
+	/**
+	 * Sets the number of threads each device gets to checksum files on when
+	 * a directory is scanned by listDirectory() or compare().
+	 * @param count The number of threads per device (at least 1)
+	 */
+	public void setDeviceWorkerCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("Device worker count must be at least 1");
+		}
+		deviceWorkerCount = count;
+	}
+
+	/**
+	 * Sets the most file operations in flight at once, each on its own
+	 * thread, when a directory is scanned by listDirectory() or compare().
+	 * @param limit The most operations in flight (at least 1)
+	 */
+	public void setInFlightLimit(int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("The in flight limit must be at least 1");
+		}
+		inFlightLimit = limit;
+	}
+
+	/**
+	 * Sets the number of threads directories are listed on, ahead of the
+	 * checksumming, when a directory is scanned by listDirectory() or compare().
+	 * @param count The number of threads (at least 1)
+	 */
+	public void setListingThreadCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("The listing thread count must be at least 1");
+		}
+		listingThreadCount = count;
+	}
+
+	/**
+	 * Sets the number of threads a listing file is read on, in pieces, by
+	 * compare().  With 1 (the default) it is read as it is compared.
+	 * @param count The number of threads (at least 1)
+	 */
+	public void setParseThreadCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("The parse thread count must be at least 1");
+		}
+		parseThreadCount = count;
+	}
+
+	/**
+	 * Sets whether listings written by listDirectory() and listDirectories()
+	 * are gzipped, on all cores (see ParallelGzipOutputStream).
+	 * @param value true to gzip them
+	 */
+	public void setCompress(boolean value) {
+		compress = value;
+	}
+
+	/**
+	 * @param stream Where a listing is to go
+	 * @return A writer of the listing to the stream, gzipping it if told to
+	 */
+	public Writer openListing(OutputStream stream) {
+		if (compress) {
+			stream = new ParallelGzipOutputStream(stream, Runtime.getRuntime().availableProcessors());
+		}
+		return new OutputStreamWriter(stream, Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * Sets when files are read in inode order when a directory is scanned
+	 * by listDirectory() or compare().
+	 * @param order When to sort
+	 */
+	public void setInodeOrder(TreeWalker.InodeOrder order) {
+		inodeOrder = order;
+	}
+
+	/**
+	 * Sets whether a file with several hard links is read once, its other
+	 * links sharing its checksum, when a directory is scanned by
+	 * listDirectory() or compare().
+	 * @param value true to look for hard links
+	 */
+	public void setHardLinks(boolean value) {
+		hardLinks = value;
+	}
+
+	/**
+	 * Sets the most bytes read per second when a directory is scanned by
+	 * listDirectory() or compare().
+	 * @param rate The ceiling, or 0 for none
+	 */
+	public void setMaxBytesPerSecond(double rate) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("The rate can not be negative");
+		}
+		maxBytesPerSecond = rate;
+	}
+
+	/**
+	 * Sets the most files and directories looked at per second when a
+	 * directory is scanned by listDirectory() or compare().
+	 * @param rate The ceiling, or 0 for none
+	 */
+	public void setMaxFilesPerSecond(double rate) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("The rate can not be negative");
+		}
+		maxFilesPerSecond = rate;
+	}
+
+	/**
+	 * Sets a file to take the ceilings on reading from while scanning (see Throttle).
+	 * @param path The control file, or null
+	 */
+	public void setThrottlePath(String path) {
+		throttlePath = path;
+	}
+
+	/**
+	 * @return The throttle scans are kept to, or null if there are no ceilings
+	 */
+	protected Throttle getThrottle() {
+		if ((throttle == null) && ((maxBytesPerSecond > 0) || (maxFilesPerSecond > 0) || (throttlePath != null))) {
+			throttle = new Throttle(maxBytesPerSecond, maxFilesPerSecond);
+			if (throttlePath != null) {
+				throttle.watch(new File(throttlePath));
+			}
+		}
+		return throttle;
+	}
+
+	/**
+	 * Sets whether files are read ahead on a separate thread when a
+	 * directory is scanned by listDirectory() or compare().
+	 * @param bufferCount The number of buffers to read ahead into (at least 2), or 0 to not read ahead
+	 */
+	public void setReadAhead(int bufferCount) {
+		if ((bufferCount != 0) && (bufferCount < 2)) {
+			throw new IllegalArgumentException("Read ahead needs at least 2 buffers");
+		}
+		readAheadBuffers = bufferCount;
+	}
+
+	/**
+	 * Sets the chunk size for tree checksums used when a directory is
+	 * scanned by listDirectory() or compare().
+	 * @param size The chunk size in bytes, 0 to checksum whole files, or null for the default
+	 */
+	public void setChunkSize(Long size) {
+		if ((size != null) && (size != 0) && (size < TreeHasher.MIN_CHUNK_SIZE)) {
+			throw new IllegalArgumentException("The chunk size must be 0 or at least " + TreeHasher.MIN_CHUNK_SIZE);
+		}
+		chunkSize = size;
+	}
+
+	/**
+	 * Sets the persistent cache of checksums used when a directory is
+	 * scanned by listDirectory() or compare().
+	 * @param path Path to the cache file (created if need be), or null to not use one
+	 */
+	public void setCachePath(String path) {
+		cachePath = path;
+	}
+
+	/**
+	 * @return The cache named by setCachePath(), opened, or null if there isn't one
+	 * @throws IOException If the cache can't be opened
+	 */
+	protected HashCache getHashCache() throws IOException {
+		if ((hashCache == null) && (cachePath != null)) {
+			hashCache = new HashCache(new File(cachePath), HashCache.DEFAULT_CAPACITY);
+		}
+		return hashCache;
+	}
+
+	/**
+	 * Releases anything opened for scanning, reporting the throughput of
+	 * each device read from (if devices were tracked) and how useful the
+	 * checksum cache was (if there was one).
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		for (FSQueue scan : scans) {
+			if (scan.getLinkedCount() > 0) {
+				System.err.println("# Hard links: " + scan.getLinkedCount() + " files shared the checksum of an earlier link");
+			}
+			for (Device device : scan.getDevices()) {
+				System.err.println(String.format("# Device %s%s: %d files, %.1f MB, %.1f MB/s",
+						device.getName(), device.isRotational() ? " (rotational)" : "",
+						device.getFileCount(), device.getByteCount() / 1048576.0,
+						device.getBytesPerSecond() / 1048576.0));
+			}
+		}
+		scans.clear();
+		if (progress != null) {
+			progress.stop();
+			progress = null;
+		}
+		if ((metrics != null) && (metricsPath != null)) {
+			if (metricsPath.equals("-")) {
+				System.err.print(metrics.toJson());
+			} else {
+				Writer writer = new OutputStreamWriter(new FileOutputStream(metricsPath), Charset.forName("UTF-8"));
+				try {
+					writer.write(metrics.toJson());
+				} finally {
+					writer.close();
+				}
+			}
+		}
+		metrics = null;
+		if (throttle != null) {
+			throttle.close();
+			throttle = null;
+		}
+		if (hashCache != null) {
+			System.err.println("# Checksum cache: " + hashCache.getHitCount() + " hits, " +
+					hashCache.getMissCount() + " misses, " + hashCache.getEvictionCount() + " evictions");
+			hashCache.close();
+			hashCache = null;
+		}
+	}
+
+	/**
+	 * Builds a queue that scans the specified directory, set up with the
+	 * scan options this has been given.
+	 *
+	 * @param path The directory to scan
+	 * @return The queue
+	 * @throws InvalidEntryException
+	 */
+	protected FSQueue createFSQueue(String path) throws InvalidEntryException, IOException {
+		return createFSQueue(path, (algorithm == null) ? DigestAlgorithms.SHA_256 : algorithm,
+				(chunkSize == null) ? 0 : chunkSize);
+	}
+
+	/**
+	 * Builds a queue that scans the specified directory, set up with the
+	 * scan options this has been given, and the specified algorithm.
+	 *
+	 * @param path The directory to scan
+	 * @param algorithmName The checksum algorithm to use
+	 * @param chunk The chunk size for tree checksums, or 0 for whole files
+	 * @return The queue
+	 * @throws InvalidEntryException
+	 */
+	protected FSQueue createFSQueue(String path, String algorithmName, long chunk) throws InvalidEntryException, IOException {
+		FSQueue queue = new FSQueue(path);
+		queue.setWorkerCount(workerCount);
+		queue.setChunkSize(chunk);
+		queue.setReadAhead(readAheadBuffers);
+		queue.setDeviceWorkerCount(deviceWorkerCount);
+		queue.setInodeOrder(inodeOrder);
+		queue.setHardLinks(hardLinks);
+		queue.setInFlightLimit(inFlightLimit);
+		queue.setListingThreadCount(listingThreadCount);
+		queue.setThrottle(getThrottle());
+		queue.setFilter(createFilter(path));
+		queue.setMetrics(getMetrics());
+		scans.add(queue);
+		try {
+			queue.setAlgorithm(algorithmName);
+			queue.setBaseline(getBaseline());
+		} catch (NoSuchAlgorithmException e) {
+			throw new InvalidEntryException("Unknown checksum algorithm " + algorithmName, e);
+		} catch (IllegalArgumentException e) {
+			throw new InvalidEntryException("Can not use " + sincePath + ": " + e.getMessage(), e);
+		}
+		queue.setHashCache(getHashCache());
+		if ((queue.getMetrics() != null) && (queue.getBaseline() != null)) {
+			queue.getMetrics().setExpectedFiles(queue.getBaseline().size());
+		}
+		return queue;
+	}
+
 	/**
 	 * Write out an Archive file starting from the specified path
 	 * @param path
@@ -104,35 +1070,480 @@ public class CLI {
 	 * @throws java.io.IOException 
 	 */
 	public void listDirectory(String path, boolean all, Writer writer) throws InvalidEntryException, IOException {
-		FSQueue queue = new FSQueue(path);	
-		BuilderUtils utils = new BuilderUtils();
-		StringBuilder builder = new StringBuilder();
-
+		FSQueue queue = createFSQueue(path);
 		queue.setIgnoreSpecialMacFiles(!all);
-		
-		writer.write("# CSum\n");
-		writer.write("# Version 1\n");
+		ArchiveWriter archive = new ArchiveWriter(writer, newSummarizer(queue.getAlgorithm()));
+		writeHeader(queue, archive);
+		writeListing(queue, archive, null, null, 0);
+	}
 
-		builder.append("# " + ArchiveQueue.DIR_COMMENT + " ");
-		utils.appendPath(builder, queue.getBasePath());
-		writer.write(builder.toString() +  "\n");
+	/**
+	 * Turns a text listing into a binary one, or a binary one into text.
+	 *
+	 * @param toBinary true to turn text into binary, false for the other way
+	 * @param input The listing to turn
+	 * @param output Where the turned listing goes
+	 * @throws IOException If either can't be read or written, or the input
+	 * isn't in the form expected
+	 */
+	public void convert(boolean toBinary, File input, File output) throws IOException {
+		InputStream in = new FileInputStream(input);
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+			try {
+				if (toBinary) {
+					ArchiveConverter.toBinary(in, out);
+				} else {
+					ArchiveConverter.toText(in, new OutputStreamWriter(out, Charset.forName("UTF-8")));
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a listing sorted by pathname, with an index to look its
+	 * entries up in (see IndexedArchiveWriter).
+	 *
+	 * @param input The listing, in any form
+	 * @param output Where the indexed listing goes
+	 * @throws InvalidEntryException If the listing can't be read
+	 * @throws IOException If the indexed listing can't be written
+	 */
+	public void index(File input, File output) throws InvalidEntryException, IOException {
+		InputStream in = new FileInputStream(input);
+		try {
+			ArchiveQueue queue = new ArchiveQueue(in);
+			queue.setMetrics(getMetrics());
+			new IndexedArchiveWriter(output).write(queue, queue.getRoots());
+		} finally {
+			in.close();
+		}
+	}
 
-		builder.append("# " + ArchiveQueue.START_COMMENT + " ");
-		utils.appendDate(builder, queue.getStartTime());
-		writer.write(builder.toString() +  "\n");
+	/**
+	 * Looks entries up in an indexed listing, and writes them out as they
+	 * would be in a listing, after a Start comment saying when the listing
+	 * was made.
+	 *
+	 * @param listing The indexed listing
+	 * @param byChecksum true if the queries are checksums (in hex), false if
+	 * they are pathnames (relative to the directory listed, or within it),
+	 * those ending in / asking for everything under them
+	 * @param queries What to look up
+	 * @param writer Where the entries go
+	 * @return true if anything was found
+	 * @throws InvalidEntryException If the indexed listing can't be read
+	 * @throws IOException If the indexed listing can't be read, or a
+	 * checksum isn't an even number of hex digits
+	 */
+	public boolean lookup(File listing, boolean byChecksum, List<String> queries, Writer writer) throws InvalidEntryException, IOException {
+		IndexedArchive archive = new IndexedArchive(listing);
+		try {
+			StringBuilder builder = new StringBuilder("# " + ArchiveQueue.START_COMMENT + " ");
+			new BuilderUtils().appendDate(builder, archive.getStartTime());
+			writer.write(builder.toString() + "\n");
+			ArchiveWriter found = new ArchiveWriter(writer, null);
+			long foundCount = 0;
+
+			for (String query : queries) {
+				List<FileEntry> entries;
+				if (byChecksum) {
+					if (!query.matches("([0-9a-fA-F]{2})+")) {
+						throw new IOException("Not a checksum (an even number of hex digits): " + query);
+					}
+					byte[] bytes = query.getBytes(Charset.forName("UTF-8"));
+					entries = archive.findChecksum(new ArchiveReader(bytes, 0, bytes.length).readHexString());
+				} else {
+					String pathname = query;
+					String basePath = archive.getBasePath();
+					if (pathname.startsWith(basePath + "/")) {
+						pathname = pathname.substring(basePath.length() + 1);
+					}
+					if (!pathname.startsWith("./")) {
+						pathname = "./" + pathname;
+					}
+					if (pathname.endsWith("/")) {
+						entries = archive.findUnder(pathname);
+					} else {
+						FileEntry entry = archive.findPath(pathname);
+						entries = (entry == null) ? Collections.<FileEntry>emptyList() : Collections.singletonList(entry);
+					}
+				}
+				for (FileEntry entry : entries) {
+					found.write(entry);
+					foundCount++;
+				}
+			}
+			return (foundCount > 0);
+		} finally {
+			archive.close();
+		}
+	}
+
+	/**
+	 * Writes an Archive file starting from the specified path to a file,
+	 * taking checkpoints along the way if a checkpoint file has been given.
+	 * If there is a checkpoint already, and the file exists, the listing
+	 * is carried on from the checkpoint rather than started again.
+	 *
+	 * @param path The directory to list
+	 * @param all true to include special mac files
+	 * @param output The file to write the listing to
+	 * @throws InvalidEntryException
+	 * @throws IOException
+	 */
+	public void listDirectory(String path, boolean all, File output) throws InvalidEntryException, IOException {
+		Checkpoint checkpoint = (checkpointPath == null) ? null :
+				new Checkpoint(new File(checkpointPath), checkpointInterval * 1000, checkpointBytes);
+		FSQueue queue;
+		DirectorySummarizer summarizer;
+		long entryCount = 0;
+		boolean resuming = (checkpoint != null) && checkpoint.exists() && output.isFile();
+		FileOutputStream stream;
+
+		if (resuming) {
+			// Cut off anything written since the checkpoint, and carry on from there.
+			RandomAccessFile archive = new RandomAccessFile(output, "rw");
+			try {
+				archive.setLength(checkpoint.loadArchiveLength());
+			} finally {
+				archive.close();
+			}
+			ResumePoint point;
+			InputStream input = new FileInputStream(output);
+			try {
+				point = ResumePoint.read(input);
+			} finally {
+				input.close();
+			}
+			summarizer = point.getSummarizer();
+			System.err.println("# Resuming after " + point.getEntryCount() + " files" +
+					((point.getLastPathname() == null) ? "" : ", the last " + point.getLastPathname()));
+			entryCount = point.getEntryCount();
+			queue = createFSQueue(path, point.getAlgorithm(), point.getChunkSize());
+			queue.setIgnoreSpecialMacFiles(!all);
+			queue.setResumePoint(point);
+			stream = new FileOutputStream(output, true);
+		} else {
+			queue = createFSQueue(path);
+			queue.setIgnoreSpecialMacFiles(!all);
+			summarizer = newSummarizer(queue.getAlgorithm());
+			stream = new FileOutputStream(output);
+		}
+
+		Writer writer = openListing(stream);
+		try {
+			ArchiveWriter archive = new ArchiveWriter(writer, summarizer);
+			if (!resuming) {
+				writeHeader(queue, archive);
+			}
+			writeListing(queue, archive, stream, checkpoint, entryCount);
+			writer.flush();
+		} finally {
+			writer.close();
+		}
+		if (checkpoint != null) {
+			checkpoint.delete();
+		}
+	}
+
+	/**
+	 * Writes one Archive of several directories, scanning them all at once
+	 * (see MultiRootQueue).  Each directory's entries have its label in
+	 * front of their pathnames, and follow a Directory comment naming it.
+	 *
+	 * @param paths The directories to list
+	 * @param all true to include special mac files
+	 * @param writer Where to write the listing
+	 * @throws InvalidEntryException
+	 * @throws IOException
+	 */
+	public void listDirectories(List<String> paths, boolean all, Writer writer) throws InvalidEntryException, IOException {
+		List<String> labels = MultiRootQueue.makeLabels(paths);
+		List<FSQueue> queues = new ArrayList<FSQueue>();
+		for (int index = 0; index < paths.size(); index++) {
+			FSQueue queue = createFSQueue(paths.get(index));
+			queue.setIgnoreSpecialMacFiles(!all);
+			if (queue.getBaseline() != null) {
+				queue.setBaseline(queue.getBaseline().forRoot(labels.get(index)));
+			}
+			queues.add(queue);
+		}
+		MultiRootQueue queue = new MultiRootQueue(labels, queues);
+		FSQueue first = queues.get(0);
+
+		ArchiveWriter archive = new ArchiveWriter(writer, newSummarizer(queue.getAlgorithm()));
+		archive.writeHeader(queue.getAlgorithm(), queue.getChunkSize(), null, queue.getStartTime(),
+				(first.getBaseline() == null) ? null : new File(sincePath).getAbsolutePath());
+		int root = -1;
+		while (!queue.isEmpty()) {
+			for (; root < queue.getCurrentRoot(); root++) {
+				archive.startRoot(queue.getScan(root + 1).getBasePath(), queue.getLabel(root + 1));
+			}
+			try {
+				archive.write(queue.dequeue());
+			} catch (Exception e) {
+				archive.writeProblem();
+				System.err.println("Ignoring exception while dequeueing: ");
+				e.printStackTrace(System.err);
+			}
+		}
+		for (; root < queue.getRootCount() - 1; root++) {
+			archive.startRoot(queue.getScan(root + 1).getBasePath(), queue.getLabel(root + 1));
+		}
+		for (int index = 0; index < queue.getProblemCount(); index++) {
+			archive.writeProblem();
+		}
+		archive.finish();
+
+		if (first.getBaseline() != null) {
+			long reused = 0;
+			long hashed = 0;
+			for (FSQueue scan : queues) {
+				reused += scan.getReusedCount();
+				hashed += scan.getHashedCount();
+			}
+			archive.writeCount(ArchiveQueue.REUSED_COMMENT, reused);
+			archive.writeCount(ArchiveQueue.HASHED_COMMENT, hashed);
+		}
+	}
+
+	/**
+	 * Writes one Archive of several directories to a file (see
+	 * listDirectories(List, boolean, Writer)).
+	 *
+	 * @param paths The directories to list
+	 * @param all true to include special mac files
+	 * @param output The file to write the listing to
+	 * @throws InvalidEntryException
+	 * @throws IOException
+	 */
+	public void listDirectories(List<String> paths, boolean all, File output) throws InvalidEntryException, IOException {
+		Writer writer = openListing(new FileOutputStream(output));
+		try {
+			listDirectories(paths, all, writer);
+			writer.flush();
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes an Archive file starting from the specified path to a file,
+	 * then watches the directory, bringing the file up to date every watch
+	 * interval with whatever changed.  Only returns if interrupted.
+	 * If the file is already there, and made with the same algorithm, its
+	 * checksums are reused for files that haven't changed since.
+	 *
+	 * @param path The directory to watch
+	 * @param all true to include special mac files
+	 * @param output The file to keep the listing in
+	 * @throws InvalidEntryException
+	 * @throws IOException
+	 */
+	public void watchDirectory(String path, boolean all, File output) throws InvalidEntryException, IOException {
+		if ((sincePath == null) && output.isFile()) {
+			setSincePath(output.getPath());
+			Baseline previous = getBaseline();
+			if (((algorithm != null) && !algorithm.equals(previous.getAlgorithm())) ||
+					((chunkSize != null) && (chunkSize != previous.getChunkSize()))) {
+				setSincePath(null);
+			}
+		}
+		Baseline previous = getBaseline();
+		String algorithmName = (algorithm != null) ? algorithm :
+				(previous != null) ? previous.getAlgorithm() : DigestAlgorithms.SHA_256;
+		long chunk = (chunkSize != null) ? chunkSize : (previous != null) ? previous.getChunkSize() : 0;
+
+		TreeWatcher watcher;
+		try {
+			watcher = new TreeWatcher(new File(path).toPath(), algorithmName, chunk);
+		} catch (NoSuchAlgorithmException e) {
+			throw new InvalidEntryException("Unknown checksum algorithm " + algorithmName, e);
+		}
+		try {
+			watcher.setIgnoreSpecialMacFiles(!all);
+			watcher.setFilter(createFilter(path));
+			watcher.exclude(output);
+			watcher.exclude(new File(output.getPath() + ".tmp"));
+			// Watch first, so nothing that changes while listing is missed.
+			watcher.register();
+			FSQueue queue = createFSQueue(path, algorithmName, chunk);
+			queue.setIgnoreSpecialMacFiles(!all);
+			watcher.load(queue);
+			watcher.write(output);
+			finish();
+			System.err.println("# Watching " + path + ": " + watcher.getEntries().size() + " files");
+			watcher.run(output, watchInterval * 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			watcher.close();
+		}
+	}
+
+	/**
+	 * @param algorithmName The algorithm a listing is made with
+	 * @return A summarizer for the listing's directories
+	 * @throws InvalidEntryException If there is no such algorithm
+	 */
+	private DirectorySummarizer newSummarizer(String algorithmName) throws InvalidEntryException {
+		try {
+			return new DirectorySummarizer(algorithmName);
+		} catch (NoSuchAlgorithmException e) {
+			throw new InvalidEntryException("Unknown checksum algorithm " + algorithmName, e);
+		}
+	}
+
+	/**
+	 * Writes the header comments of a listing.
+	 *
+	 * @param queue The scan being listed
+	 * @param archive The listing to write to
+	 * @throws IOException
+	 */
+	protected void writeHeader(FSQueue queue, ArchiveWriter archive) throws IOException {
+		archive.writeHeader(queue.getAlgorithm(), queue.getChunkSize(), queue.getBasePath(), queue.getStartTime(),
+				(queue.getBaseline() == null) ? null : new File(sincePath).getAbsolutePath());
+	}
+
+	/**
+	 * Writes the entries of a listing, with the directory summaries, and
+	 * anything that trails them.
+	 *
+	 * @param queue The scan being listed
+	 * @param archive The listing to write to
+	 * @param stream The file the listing is written to, or null if checkpoints aren't taken
+	 * @param checkpoint Where to take checkpoints, or null to not take any
+	 * @param entryCount The number of entries already in the listing
+	 * @throws InvalidEntryException If the scan goes wrong
+	 * @throws IOException
+	 */
+	protected void writeListing(FSQueue queue, ArchiveWriter archive,
+			FileOutputStream stream, Checkpoint checkpoint, long entryCount) throws InvalidEntryException, IOException {
+		String position = null;
 		while (!queue.isEmpty()) {
 			try {
 				FileEntry entry = queue.dequeue();
-				writer.write(entry.toString() +  "\n");
+				archive.write(entry);
+				entryCount++;
+				position = entry.getPathname();
 			} catch (Exception e) {
-				writer.write("# Problem with entry\n");
+				archive.writeProblem();
 				System.err.println("Ignoring exception while dequeueing: ");
 				e.printStackTrace(System.err);
 			}
+
+			if ((checkpoint != null) && checkpoint.isDue(queue.getHashedByteCount())) {
+				// The listing must be safely on disk before the checkpoint says it is.
+				archive.flush();
+				stream.getFD().sync();
+				checkpoint.save(stream.getChannel().position(), entryCount, position, queue.getHashedByteCount());
+			}
+		}
+
+		archive.finish();
+
+		if (queue.getBaseline() != null) {
+			// These can only be known at the end, so they trail the entries.
+			archive.writeCount(ArchiveQueue.REUSED_COMMENT, queue.getReusedCount());
+			archive.writeCount(ArchiveQueue.HASHED_COMMENT, queue.getHashedCount());
+		}
+	}
+
+	/**
+	 * Leaves the directories that are the same in two archives, by their
+	 * summaries, out of both, so only the directories that differ are
+	 * compared.  Each archive's summaries are read from it separately first.
+	 *
+	 * @param path1 Path to the old archive
+	 * @param oldQueue The old archive, not yet read from
+	 * @param path2 Path to the new archive
+	 * @param newQueue The new archive, not yet read from
+	 * @return The number of files left out of each
+	 * @throws IOException
+	 * @throws InvalidEntryException
+	 */
+	protected long skipIdenticalDirectories(String path1, EntryQueue oldQueue, String path2, EntryQueue newQueue)
+			throws IOException, InvalidEntryException {
+		Map<String, DirectorySummary> oldSummaries = readSummaries(path1);
+		Map<String, DirectorySummary> newSummaries = readSummaries(path2);
+		long fileCount = 0;
+		for (String pathname : Resolver.findIdenticalDirectories(oldSummaries, newSummaries)) {
+			DirectorySummary oldSummary = oldSummaries.get(pathname);
+			DirectorySummary newSummary = newSummaries.get(pathname);
+			skipEntries(oldQueue, oldSummary.getEnd() - oldSummary.getFileCount(), oldSummary.getEnd());
+			skipEntries(newQueue, newSummary.getEnd() - newSummary.getFileCount(), newSummary.getEnd());
+			fileCount += newSummary.getFileCount();
+		}
+		return fileCount;
+	}
+
+	/**
+	 * Opens an archive to compare, reading it in pieces on several threads
+	 * if told to (and it is uncompressed text).
+	 *
+	 * @param file The archive
+	 * @return A queue of its entries
+	 * @throws IOException
+	 * @throws InvalidEntryException
+	 */
+	private EntryQueue openArchive(File file) throws IOException, InvalidEntryException {
+		InputStream input = new FileInputStream(file);
+		ArchiveQueue archive = new ArchiveQueue(input);
+		// Binary and gzipped listings can't be split up at lines.
+		if ((parseThreadCount > 1) && (archive.getVersion() == 1) && !archive.isCompressed()) {
+			input.close();
+			ParallelArchiveQueue pieces = new ParallelArchiveQueue(file, parseThreadCount);
+			pieces.setMetrics(getMetrics());
+			return pieces;
+		}
+		archive.setMetrics(getMetrics());
+		return archive;
+	}
+
+	/**
+	 * @param queue A queue
+	 * @return true if its entries are read from an archive (and so can be skipped over)
+	 */
+	private static boolean isArchive(EntryQueue queue) {
+		return (queue instanceof ArchiveQueue) || (queue instanceof ParallelArchiveQueue);
+	}
+
+	/**
+	 * Skips over a range of the entries of an archive.
+	 *
+	 * @param queue The archive (see isArchive())
+	 * @param start The index of the first entry to skip
+	 * @param end One past the index of the last entry to skip
+	 */
+	private static void skipEntries(EntryQueue queue, long start, long end) {
+		if (queue instanceof ParallelArchiveQueue) {
+			((ParallelArchiveQueue) queue).skipEntries(start, end);
+		} else {
+			((ArchiveQueue) queue).skipEntries(start, end);
+		}
+	}
+
+	/**
+	 * @param path Path to an archive
+	 * @return Its directory summaries, by pathname
+	 * @throws IOException
+	 * @throws InvalidEntryException
+	 */
+	private Map<String, DirectorySummary> readSummaries(String path) throws IOException, InvalidEntryException {
+		InputStream input = new FileInputStream(path);
+		try {
+			return ArchiveQueue.readSummaries(input);
+		} finally {
+			input.close();
 		}
 	}
 
-	
 	/**
 	 * Processes command line arguments in preparation for comparing the
 	 * entries in two queues.
@@ -193,28 +1604,54 @@ public class CLI {
 	 */
 	public void compare(String path1, String path2, Writer writer) throws IOException, InvalidEntryException {
 		File f1 = new File(path1);
-		EntryQueue oldQueue;
+		File f2 = new File(path2);
+		EntryQueue oldQueue = null;
+		EntryQueue newQueue = null;
+
+		// Read any archives first, so a directory compared with an archive
+		// can be checksummed with the same algorithm and chunk size the archive was.
+		if (!f1.isDirectory()) {
+			oldQueue = openArchive(f1);
+		}
+		if (!f2.isDirectory()) {
+			newQueue = openArchive(f2);
+		}
+		EntryQueue archive = (oldQueue != null) ? oldQueue : newQueue;
+		String scanAlgorithm = algorithm;
+		if (scanAlgorithm == null) {
+			scanAlgorithm = (archive != null) ? archive.getAlgorithm() : DigestAlgorithms.SHA_256;
+		}
+		long scanChunkSize;
+		if (chunkSize != null) {
+			scanChunkSize = chunkSize;
+		} else {
+			scanChunkSize = (archive != null) ? archive.getChunkSize() : 0;
+		}
 
 		writer.write("# CSum comparison\n");
-		if (f1.isDirectory()) {
+		if (oldQueue == null) {
 			writer.write("# Old from path " + path1 + "\n");
-			oldQueue = new FSQueue(path1);
+			oldQueue = createFSQueue(path1, scanAlgorithm, scanChunkSize);
 		} else {
 			writer.write("# Old from file " + path1 + "\n");
-			oldQueue = new ArchiveQueue(new FileInputStream(path1));
 		}
 		
-		File f2 = new File(path2);
-		EntryQueue newQueue;
-		if (f2.isDirectory()) {
+		if (newQueue == null) {
 			writer.write("# New from path " + path2 + "\n");
-			newQueue = new FSQueue(path2);
+			newQueue = createFSQueue(path2, scanAlgorithm, scanChunkSize);
 		} else {
 			writer.write("# New from file " + path2 + "\n");
-			newQueue = new ArchiveQueue(new FileInputStream(path2));
+		}
+
+		// Unchanged files can only be shown if they are all compared.
+		if (!showSame && isArchive(oldQueue) && isArchive(newQueue)) {
+			long skippedCount = skipIdenticalDirectories(path1, oldQueue, path2, newQueue);
+			if (skippedCount > 0) {
+				writer.write("# Skipped " + skippedCount + " files in directories that are the same in both\n");
+			}
 		}
 		
-		Resolver resolver = new Resolver(oldQueue, newQueue);
+		Resolver resolver = new Resolver(oldQueue, newQueue, getMetrics());
 		ArrayList<FileEntry> entries;
 		
 		if (showChanged) {
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.entry;
+
+import bdw.csum.hash.DigestAlgorithms;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Works out the summary of each directory in a listing as its entries go
+ * by.  A directory's checksum is the checksum of its children, sorted by
+ * name: each child's name (with a / after a directory's), a zero byte, and
+ * the child's checksum (a directory's being its own summary checksum).  So
+ * it covers the name and contents of everything under the directory, but not
+ * sizes or dates, and it doesn't depend on the order the files were listed in.
+ * <p>
+ * The files under each directory must come together, as they do from a
+ * walk of a tree, so that a directory is known to be finished as soon as a
+ * file from outside it comes along.
+ */
+public class DirectorySummarizer {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * A directory whose files are still going by
+	 */
+	private static class OpenDirectory {
+		final String pathname;
+		final Map<String, byte[]> children = new TreeMap<String, byte[]>();
+		long fileCount;
+
+		OpenDirectory(String pathname) {
+			this.pathname = pathname;
+		}
+	}
+
+	/**
+	 * Combines the checksums of children
+	 */
+	private final MessageDigest digest;
+
+	/**
+	 * The directories whose files are going by, innermost first
+	 */
+	private final ArrayDeque<OpenDirectory> open = new ArrayDeque<OpenDirectory>();
+
+	/**
+	 * Number of entries added so far
+	 */
+	private long entryCount;
+
+	/**
+	 * @param algorithm The algorithm to checksum directories with; that of the listing
+	 * @throws NoSuchAlgorithmException If there is no such algorithm
+	 */
+	public DirectorySummarizer(String algorithm) throws NoSuchAlgorithmException {
+		digest = DigestAlgorithms.newDigest(algorithm);
+	}
+
+	/**
+	 * Adds the next entry of the listing.
+	 *
+	 * @param entry The entry
+	 * @return The summaries of the directories this entry shows to be
+	 * finished, innermost first (usually none)
+	 */
+	public List<DirectorySummary> add(FileEntry entry) {
+		String pathname = entry.getPathname();
+		int slash = pathname.lastIndexOf('/');
+		String directory = pathname.substring(0, slash + 1);
+
+		List<DirectorySummary> finished = Collections.emptyList();
+		while (!open.isEmpty() && !directory.startsWith(open.peek().pathname)) {
+			if (finished.isEmpty()) {
+				finished = new ArrayList<DirectorySummary>();
+			}
+			finished.add(close());
+		}
+
+		if (open.isEmpty()) {
+			open.push(new OpenDirectory("./"));
+		}
+		while (!open.peek().pathname.equals(directory)) {
+			int next = directory.indexOf('/', open.peek().pathname.length());
+			open.push(new OpenDirectory(directory.substring(0, next + 1)));
+		}
+
+		entryCount++;
+		open.peek().children.put(pathname.substring(slash + 1), entry.getChecksum());
+		open.peek().fileCount++;
+		return finished;
+	}
+
+	/**
+	 * Finishes the listing.
+	 *
+	 * @return The summaries of the directories still open, innermost first,
+	 * ending with that of the root ("./"); empty if there were no entries
+	 */
+	public List<DirectorySummary> finish() {
+		List<DirectorySummary> finished = new ArrayList<DirectorySummary>();
+		while (!open.isEmpty()) {
+			finished.add(close());
+		}
+		return finished;
+	}
+
+	/**
+	 * Finishes the innermost open directory, adding it to its parent.
+	 *
+	 * @return Its summary
+	 */
+	private DirectorySummary close() {
+		OpenDirectory directory = open.pop();
+		for (Map.Entry<String, byte[]> child : directory.children.entrySet()) {
+			digest.update(child.getKey().getBytes(UTF_8));
+			digest.update((byte) 0);
+			digest.update(child.getValue());
+		}
+		byte[] checksum = digest.digest();
+
+		OpenDirectory parent = open.peek();
+		if (parent != null) {
+			String name = directory.pathname.substring(parent.pathname.length());
+			parent.children.put(name, checksum);
+			parent.fileCount += directory.fileCount;
+		}
+		return new DirectorySummary(directory.pathname, checksum, directory.fileCount, entryCount);
+	}
+}
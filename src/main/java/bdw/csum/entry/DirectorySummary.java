@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.entry;
+
+/**
+ * The summary of a directory in a listing: a checksum covering the names
+ * and checksums of everything under it (see DirectorySummarizer), the
+ * number of files under it, and where in the listing its files end.  Two
+ * directories with the same summary hold the same files, by name and contents.
+ */
+public class DirectorySummary {
+	/**
+	 * The directory's pathname relative to the root of the listing, starting
+	 * with ./ and ending with /
+	 */
+	private final String pathname;
+
+	/**
+	 * The checksum of the directory's contents
+	 */
+	private final byte[] checksum;
+
+	/**
+	 * Number of files under the directory, at any depth
+	 */
+	private final long fileCount;
+
+	/**
+	 * Number of file entries in the listing up to and including the
+	 * directory's last, or -1 if not known
+	 */
+	private final long end;
+
+	/**
+	 * @param pathname The directory's pathname relative to the root of the listing, ending with /
+	 * @param checksum The checksum of the directory's contents
+	 * @param fileCount Number of files under the directory, at any depth
+	 * @param end Number of file entries in the listing up to and including
+	 * the directory's last, or -1 if not known
+	 */
+	public DirectorySummary(String pathname, byte[] checksum, long fileCount, long end) {
+		this.pathname = pathname.startsWith("./") ? pathname : "./" + pathname;
+		this.checksum = checksum;
+		this.fileCount = fileCount;
+		this.end = end;
+	}
+
+	/**
+	 * @return The directory's pathname relative to the root of the listing,
+	 * starting with ./ and ending with /
+	 */
+	public String getPathname() {
+		return pathname;
+	}
+
+	/**
+	 * @return The checksum of the directory's contents
+	 */
+	public byte[] getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * @return The number of files under the directory, at any depth
+	 */
+	public long getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * The files under a directory are together in a listing, so they are
+	 * the getFileCount() entries before this.
+	 * @return The number of file entries in the listing up to and
+	 * including the directory's last, or -1 if not known
+	 */
+	public long getEnd() {
+		return end;
+	}
+}
@@ -19,6 +19,7 @@ package bdw.csum.entry;
 import bdw.csum.io.CSumReader;
 import bdw.csum.io.BuilderUtils;
 import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
 import java.util.Date;
 
@@ -46,6 +47,11 @@ public class FileEntry {
 	 */
 	protected Date lastModDate;
 
+	/**
+	 * The pathname of an earlier hard link to the same file, or null
+	 */
+	protected String linkedTo;
+
 	/**
 	 * Sets the entry to managing the provided values.
 	 * 
@@ -65,6 +71,18 @@ public class FileEntry {
 		}			
 	}
 
+	/**
+	 * Sets the entry to managing the provided values, taking the size
+	 * and last modification time from the file's attributes.
+	 * 
+	 * @param digest The checksum for the file
+	 * @param attributes The file's attributes
+	 * @param partialPathname The pathname relative to the root of the scanning.
+	 */
+	public FileEntry(byte[] digest, BasicFileAttributes attributes, String partialPathname) {
+		this(digest, attributes.size(), new Date(attributes.lastModifiedTime().toMillis()), partialPathname);
+	}
+
 	/**
 	 * Reads information about a file from an archive (output from toString()).
 	 * @param source The reader to read from
@@ -110,6 +128,27 @@ public class FileEntry {
 		return lastModDate;
 	}
 
+	/**
+	 * @return The pathname of an earlier hard link to the same file, or null
+	 * if this is the first (or links aren't being tracked)
+	 */
+	public String getLinkedTo() {
+		return linkedTo;
+	}
+
+	/**
+	 * Notes that this is another hard link to a file already listed.  This
+	 * isn't part of the entry's identity (equals() ignores it).
+	 *
+	 * @param pathname The pathname of the earlier link, or null
+	 */
+	public void setLinkedTo(String pathname) {
+		if ((pathname != null) && !pathname.startsWith("./")) {
+			pathname = "./" + pathname;
+		}
+		linkedTo = pathname;
+	}
+
 	/**
 	 * {@inheritdoc}
 	 * 
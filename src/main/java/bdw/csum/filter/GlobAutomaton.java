@@ -0,0 +1,501 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches a path against many globs at once.  The globs are compiled
+ * together into one nondeterministic automaton, which is turned into a
+ * deterministic one a state at a time, as paths need them; so a path is
+ * checked in one step per character, however many globs there are.
+ * <p>
+ * The glob syntax is that of FileSystem.getPathMatcher(): * matches
+ * anything but /, ** matches anything, ? matches one character but /,
+ * [...] matches one of a set of characters ([!...] one not in it),
+ * {a,b} matches either alternative, and \ quotes the next character.
+ * A ** that makes up a whole leading segment ("** /x", without the space)
+ * matches no directories at all, as well as any number of them.
+ * <p>
+ * Matching may be done from several threads at once.
+ */
+class GlobAutomaton {
+	/**
+	 * Most deterministic states kept before they are thrown away and built again
+	 */
+	static final int MAX_STATES = 10000;
+
+	/**
+	 * A set of characters one step of a glob matches
+	 */
+	private interface CharSet {
+		boolean contains(char c);
+	}
+
+	/**
+	 * Any character
+	 */
+	private static final CharSet ANY = new CharSet() {
+		@Override
+		public boolean contains(char c) {
+			return true;
+		}
+	};
+
+	/**
+	 * Any character but /
+	 */
+	private static final CharSet NOT_SLASH = new CharSet() {
+		@Override
+		public boolean contains(char c) {
+			return c != '/';
+		}
+	};
+
+	/**
+	 * One character
+	 */
+	private static class Literal implements CharSet {
+		private final char literal;
+
+		Literal(char literal) {
+			this.literal = literal;
+		}
+
+		@Override
+		public boolean contains(char c) {
+			return c == literal;
+		}
+	}
+
+	/**
+	 * A bracket expression: ranges of characters, or everything but them.  Never /.
+	 */
+	private static class Ranges implements CharSet {
+		private final char[] ranges;
+		private final boolean negated;
+
+		/**
+		 * @param ranges Pairs of first and last characters
+		 * @param negated true to match the characters not in the ranges
+		 */
+		Ranges(char[] ranges, boolean negated) {
+			this.ranges = ranges;
+			this.negated = negated;
+		}
+
+		@Override
+		public boolean contains(char c) {
+			if (c == '/') {
+				return false;
+			}
+			for (int index = 0; index < ranges.length; index += 2) {
+				if ((c >= ranges[index]) && (c <= ranges[index + 1])) {
+					return !negated;
+				}
+			}
+			return negated;
+		}
+	}
+
+	/**
+	 * A state of the nondeterministic automaton: it moves on one set of
+	 * characters (or none), and without consuming anything to others.
+	 */
+	private static class NfaState {
+		final int id;
+		CharSet on;
+		NfaState next;
+		final List<NfaState> empty = new ArrayList<NfaState>(2);
+		int rule = -1;
+
+		NfaState(int id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * A state of the deterministic automaton: a set of states of the
+	 * nondeterministic one.  Its moves are filled in as they are needed;
+	 * those on ASCII characters may be read without the lock, since a state
+	 * is only seen once fully built (its fields are final), and a move not
+	 * yet seen is simply worked out again under the lock.
+	 */
+	static final class State {
+		/**
+		 * The nondeterministic states this stands for
+		 */
+		final BitSet states;
+
+		/**
+		 * The highest numbered rule matched by a path ending here, or -1
+		 */
+		final int rule;
+
+		/**
+		 * Moves on ASCII characters, as they are worked out
+		 */
+		final State[] ascii = new State[128];
+
+		/**
+		 * Moves on other characters, as they are worked out; guarded by the automaton
+		 */
+		final Map<Character, State> others = new HashMap<Character, State>();
+
+		State(BitSet states, int rule) {
+			this.states = states;
+			this.rule = rule;
+		}
+
+		/**
+		 * @return true if no path reaching here can match
+		 */
+		boolean isDead() {
+			return states.isEmpty();
+		}
+	}
+
+	/**
+	 * The nondeterministic states, by id
+	 */
+	private final List<NfaState> nfa = new ArrayList<NfaState>();
+
+	/**
+	 * Where every glob starts
+	 */
+	private final NfaState nfaStart;
+
+	/**
+	 * The deterministic states built so far, by the set they stand for
+	 */
+	private final Map<BitSet, State> states = new HashMap<BitSet, State>();
+
+	/**
+	 * The state matching starts in
+	 */
+	private volatile State start;
+
+	/**
+	 * Builds an automaton that matches nothing, until globs are added.
+	 */
+	GlobAutomaton() {
+		nfaStart = newState();
+	}
+
+	/**
+	 * Adds a glob.  Must not be called once matching has started.
+	 *
+	 * @param glob The glob
+	 * @param anyDepth true if the glob may match at the start of any
+	 * segment of a path, rather than only at the start of the path
+	 * @param rule The number the glob is reported by when it matches; a
+	 * higher number wins over a lower
+	 * @throws IllegalArgumentException If the glob is malformed
+	 */
+	void add(String glob, boolean anyDepth, int rule) {
+		NfaState state = newState();
+		nfaStart.empty.add(state);
+		if (anyDepth) {
+			state = anyDirectories(state);
+		}
+		int[] position = new int[1];
+		state = sequence(glob, position, state, false);
+		if (position[0] < glob.length()) {
+			throw new IllegalArgumentException("Unexpected " + glob.charAt(position[0]) + " in " + glob);
+		}
+		state.rule = rule;
+	}
+
+	/**
+	 * Runs a path through the automaton.
+	 *
+	 * @param path The path, relative, with / between segments
+	 * @return The state it ends in (dead if it can't match)
+	 */
+	State run(String path) {
+		State state = start;
+		if (state == null) {
+			state = getStart();
+		}
+		for (int index = 0; (index < path.length()) && !state.isDead(); index++) {
+			char c = path.charAt(index);
+			State next = (c < 128) ? state.ascii[c] : null;
+			state = (next != null) ? next : move(state, c);
+		}
+		return state;
+	}
+
+	/**
+	 * @return The state matching starts in, built if need be
+	 */
+	private synchronized State getStart() {
+		if (start == null) {
+			BitSet initial = new BitSet();
+			close(nfaStart, initial);
+			start = intern(initial);
+		}
+		return start;
+	}
+
+	/**
+	 * Works out (or looks up) a move of the deterministic automaton.
+	 *
+	 * @param from The state moved from
+	 * @param c The character moved on
+	 * @return The state moved to
+	 */
+	private synchronized State move(State from, char c) {
+		State to = (c < 128) ? from.ascii[c] : from.others.get(c);
+		if (to != null) {
+			return to;
+		}
+
+		BitSet reached = new BitSet();
+		for (int id = from.states.nextSetBit(0); id >= 0; id = from.states.nextSetBit(id + 1)) {
+			NfaState state = nfa.get(id);
+			if ((state.on != null) && state.on.contains(c)) {
+				close(state.next, reached);
+			}
+		}
+		if (states.size() >= MAX_STATES) {
+			// Rarely matters, but keeps a pathological set of globs from using up memory.
+			states.clear();
+			start = null;
+		}
+		to = intern(reached);
+		if (c < 128) {
+			from.ascii[c] = to;
+		} else {
+			from.others.put(c, to);
+		}
+		return to;
+	}
+
+	/**
+	 * @param set A set of nondeterministic states, closed under empty moves
+	 * @return The deterministic state for it
+	 */
+	private State intern(BitSet set) {
+		State state = states.get(set);
+		if (state == null) {
+			int rule = -1;
+			for (int id = set.nextSetBit(0); id >= 0; id = set.nextSetBit(id + 1)) {
+				rule = Math.max(rule, nfa.get(id).rule);
+			}
+			state = new State(set, rule);
+			states.put(set, state);
+		}
+		return state;
+	}
+
+	/**
+	 * Adds a state, and all those reachable from it without consuming anything, to a set.
+	 *
+	 * @param state The state
+	 * @param set The set
+	 */
+	private void close(NfaState state, BitSet set) {
+		if (set.get(state.id)) {
+			return;
+		}
+		set.set(state.id);
+		for (NfaState next : state.empty) {
+			close(next, set);
+		}
+	}
+
+	/**
+	 * @return A new nondeterministic state
+	 */
+	private NfaState newState() {
+		NfaState state = new NfaState(nfa.size());
+		nfa.add(state);
+		return state;
+	}
+
+	/**
+	 * Adds a move on a set of characters.
+	 *
+	 * @param from The state to move from
+	 * @param on The characters
+	 * @return The state moved to
+	 */
+	private NfaState step(NfaState from, CharSet on) {
+		if (from.on != null) {
+			NfaState spare = newState();
+			from.empty.add(spare);
+			from = spare;
+		}
+		from.on = on;
+		from.next = newState();
+		return from.next;
+	}
+
+	/**
+	 * Adds a match of any number of whole directories ("**" followed by "/"), including none.
+	 *
+	 * @param from The state to start from
+	 * @return The state after the directories
+	 */
+	private NfaState anyDirectories(NfaState from) {
+		NfaState end = newState();
+		from.empty.add(end);
+		NfaState loop = newState();
+		from.empty.add(loop);
+		NfaState afterAny = step(loop, ANY);
+		afterAny.empty.add(loop);
+		NfaState slash = newState();
+		afterAny.empty.add(slash);
+		step(slash, new Literal('/')).empty.add(end);
+		return end;
+	}
+
+	/**
+	 * Adds a match of any number of characters from a set.
+	 *
+	 * @param from The state to start from
+	 * @param on The characters
+	 * @return The state after them
+	 */
+	private NfaState repeat(NfaState from, CharSet on) {
+		NfaState loop = newState();
+		from.empty.add(loop);
+		NfaState body = newState();
+		loop.empty.add(body);
+		step(body, on).empty.add(loop);
+		return loop;
+	}
+
+	/**
+	 * Compiles a glob, or an alternative within braces, up to its end.
+	 *
+	 * @param glob The glob
+	 * @param position Where to start in the glob; left at the end of what was compiled
+	 * @param state The state to start from
+	 * @param inBraces true if a , or } ends the sequence
+	 * @return The state at the end of the sequence
+	 */
+	private NfaState sequence(String glob, int[] position, NfaState state, boolean inBraces) {
+		int length = glob.length();
+		while (position[0] < length) {
+			int index = position[0];
+			char c = glob.charAt(index);
+			if (inBraces && ((c == ',') || (c == '}'))) {
+				return state;
+			}
+			position[0]++;
+			switch (c) {
+				case '*':
+					if ((index + 1 < length) && (glob.charAt(index + 1) == '*')) {
+						position[0]++;
+						boolean wholeSegment = ((index == 0) || (glob.charAt(index - 1) == '/')) &&
+								(index + 2 < length) && (glob.charAt(index + 2) == '/');
+						if (wholeSegment) {
+							position[0]++;
+							state = anyDirectories(state);
+						} else {
+							state = repeat(state, ANY);
+						}
+					} else {
+						state = repeat(state, NOT_SLASH);
+					}
+					break;
+				case '?':
+					state = step(state, NOT_SLASH);
+					break;
+				case '[':
+					state = step(state, brackets(glob, position));
+					break;
+				case '{':
+					NfaState end = newState();
+					while (true) {
+						NfaState alternative = newState();
+						state.empty.add(alternative);
+						sequence(glob, position, alternative, true).empty.add(end);
+						if (position[0] >= length) {
+							throw new IllegalArgumentException("Missing } in " + glob);
+						}
+						if (glob.charAt(position[0]++) == '}') {
+							break;
+						}
+					}
+					state = end;
+					break;
+				case '\\':
+					if (position[0] >= length) {
+						throw new IllegalArgumentException("Nothing after \\ in " + glob);
+					}
+					state = step(state, new Literal(glob.charAt(position[0]++)));
+					break;
+				default:
+					state = step(state, new Literal(c));
+					break;
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Compiles a bracket expression, the [ already passed.
+	 *
+	 * @param glob The glob
+	 * @param position Where the expression starts; left after its ]
+	 * @return The characters it matches
+	 */
+	private CharSet brackets(String glob, int[] position) {
+		int length = glob.length();
+		boolean negated = false;
+		if ((position[0] < length) && ((glob.charAt(position[0]) == '!') || (glob.charAt(position[0]) == '^'))) {
+			negated = true;
+			position[0]++;
+		}
+		char[] ranges = new char[8];
+		int count = 0;
+		boolean first = true;
+		while (true) {
+			if (position[0] >= length) {
+				throw new IllegalArgumentException("Missing ] in " + glob);
+			}
+			char low = glob.charAt(position[0]++);
+			if ((low == ']') && !first) {
+				break;
+			}
+			if ((low == '\\') && (position[0] < length)) {
+				low = glob.charAt(position[0]++);
+			}
+			char high = low;
+			if ((position[0] + 1 < length) && (glob.charAt(position[0]) == '-') && (glob.charAt(position[0] + 1) != ']')) {
+				high = glob.charAt(position[0] + 1);
+				position[0] += 2;
+				if (high < low) {
+					throw new IllegalArgumentException("Backwards range " + low + "-" + high + " in " + glob);
+				}
+			}
+			if (count == ranges.length) {
+				ranges = Arrays.copyOf(ranges, count * 2);
+			}
+			ranges[count++] = low;
+			ranges[count++] = high;
+			first = false;
+		}
+		return new Ranges(Arrays.copyOf(ranges, count), negated);
+	}
+}
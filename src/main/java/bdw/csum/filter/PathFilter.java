@@ -0,0 +1,234 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.filter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which files and directories are left out of a scan, from a list
+ * of rules much like those of a .gitignore file:
+ * <ul>
+ * <li>A rule is a glob, in the syntax of FileSystem.getPathMatcher()
+ * ("glob:" may be put in front, but needn't be), or a regular expression
+ * with "regex:" in front.</li>
+ * <li>A glob with no / in it (other than at the end) matches the name of a
+ * file or directory at any depth; one with a / in it matches the path
+ * from the root of the scan (a / at the start just says so).</li>
+ * <li>A glob ending in / only matches directories.</li>
+ * <li>A regular expression matches the whole path from the root of the scan.</li>
+ * <li>A rule starting with ! brings back what earlier rules left out.</li>
+ * <li>Where several rules match, the last one wins.</li>
+ * <li>Blank lines, and lines starting with #, are ignored.</li>
+ * </ul>
+ * A directory that is left out is not looked into at all, so nothing under
+ * it is listed, whatever later rules say.
+ * <p>
+ * All the globs are compiled together into one automaton, so checking a
+ * path takes about as long with thousands of rules as with one; regular
+ * expressions are checked one by one, after it.  Once built, a filter may
+ * be used from several threads at once.
+ */
+public class PathFilter {
+	/**
+	 * Name of the file of rules looked for at the root of a scan
+	 */
+	public static final String IGNORE_FILE = ".csumignore";
+
+	/**
+	 * One rule, as given
+	 */
+	private static class Rule {
+		final String text;
+		final boolean include;
+		final Pattern regex;
+
+		Rule(String text, boolean include, Pattern regex) {
+			this.text = text;
+			this.include = include;
+			this.regex = regex;
+		}
+	}
+
+	/**
+	 * The rules, in the order given
+	 */
+	private final List<Rule> rules = new ArrayList<Rule>();
+
+	/**
+	 * The rules that are regular expressions, in the order given
+	 */
+	private final List<Integer> regexRules = new ArrayList<Integer>();
+
+	/**
+	 * The globs of the rules that apply to files (numbered by rule)
+	 */
+	private final GlobAutomaton fileGlobs = new GlobAutomaton();
+
+	/**
+	 * The globs of all the rules, since all apply to directories (numbered by rule)
+	 */
+	private final GlobAutomaton directoryGlobs = new GlobAutomaton();
+
+	/**
+	 * Adds a rule, after those already given.  Must not be called once the
+	 * filter is in use.
+	 *
+	 * @param line The rule (see the class comment)
+	 * @throws IllegalArgumentException If the rule is malformed
+	 */
+	public void add(String line) {
+		String text = line.trim();
+		if (text.isEmpty() || text.startsWith("#")) {
+			return;
+		}
+		boolean include = text.startsWith("!");
+		if (include) {
+			text = text.substring(1);
+		}
+
+		int number = rules.size();
+		if (text.startsWith("regex:")) {
+			try {
+				rules.add(new Rule(line, include, Pattern.compile(text.substring("regex:".length()))));
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Bad rule " + line + ": " + e.getDescription(), e);
+			}
+			regexRules.add(number);
+			return;
+		}
+
+		if (text.startsWith("glob:")) {
+			text = text.substring("glob:".length());
+		}
+		boolean directoryOnly = text.endsWith("/");
+		if (directoryOnly) {
+			text = text.substring(0, text.length() - 1);
+		}
+		boolean anyDepth = (text.indexOf('/') < 0);
+		if (text.startsWith("/")) {
+			text = text.substring(1);
+		}
+		if (text.isEmpty()) {
+			throw new IllegalArgumentException("Bad rule " + line + ": nothing to match");
+		}
+
+		directoryGlobs.add(text, anyDepth, number);
+		if (!directoryOnly) {
+			fileGlobs.add(text, anyDepth, number);
+		}
+		rules.add(new Rule(line, include, null));
+	}
+
+	/**
+	 * Adds all the rules in a file, one a line, after those already given.
+	 *
+	 * @param file The file (UTF-8)
+	 * @throws IOException If the file can't be read
+	 * @throws IllegalArgumentException If a rule is malformed
+	 */
+	public void addAll(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8")));
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				try {
+					add(line);
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException(file + ": " + e.getMessage(), e);
+				}
+				line = reader.readLine();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @return true if there are no rules, so nothing is left out
+	 */
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	/**
+	 * @return The number of rules
+	 */
+	public int size() {
+		return rules.size();
+	}
+
+	/**
+	 * Decides whether a file or directory is left out.  Only the path is
+	 * looked at: that a directory above it is left out isn't, since a scan
+	 * never gets that far.
+	 *
+	 * @param pathname The path from the root of the scan, with / between
+	 * segments (a leading ./ is allowed)
+	 * @param directory true if it is a directory
+	 * @return true if it is left out
+	 */
+	public boolean isExcluded(String pathname, boolean directory) {
+		if (rules.isEmpty()) {
+			return false;
+		}
+		if (pathname.startsWith("./")) {
+			pathname = pathname.substring(2);
+		}
+		int rule = (directory ? directoryGlobs : fileGlobs).run(pathname).rule;
+		for (int index = regexRules.size() - 1; index >= 0; index--) {
+			int number = regexRules.get(index);
+			if (number < rule) {
+				break;
+			}
+			if (rules.get(number).regex.matcher(pathname).matches()) {
+				rule = number;
+				break;
+			}
+		}
+		return (rule >= 0) && !rules.get(rule).include;
+	}
+
+	/**
+	 * Decides whether something is left out whether it turns out to be a
+	 * file or a directory, so that there's no need to look at it to find out.
+	 *
+	 * @param pathname The path from the root of the scan
+	 * @return true if it is left out either way
+	 */
+	public boolean isExcludedEither(String pathname) {
+		return isExcluded(pathname, false) && isExcluded(pathname, true);
+	}
+
+	/**
+	 * @return The rules, in order, as given (less blank lines and comments)
+	 */
+	public List<String> getRules() {
+		List<String> texts = new ArrayList<String>();
+		for (Rule rule : rules) {
+			texts.add(rule.text);
+		}
+		return texts;
+	}
+}
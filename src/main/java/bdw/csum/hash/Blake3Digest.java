@@ -0,0 +1,347 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import java.security.MessageDigest;
+
+/**
+ * A pure-Java BLAKE3 (unkeyed, 32 byte output), dressed up as a
+ * MessageDigest.  This follows the structure of the reference implementation:
+ * input is split into 1 KB chunks, each chunk is compressed 64 bytes at a
+ * time, and the chunks' chaining values are merged into a binary tree as
+ * they complete.  Nothing here uses SIMD or threads, so it is much slower
+ * than the native b3sum, and slower than SHA-256 on a CPU with SHA
+ * instructions.
+ */
+public class Blake3Digest extends MessageDigest implements Cloneable {
+	/**
+	 * Name of the algorithm
+	 */
+	public static final String NAME = "BLAKE3";
+
+	private static final int[] IV = {
+		0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A,
+		0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+	};
+
+	private static final int[] MESSAGE_PERMUTATION = {2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8};
+
+	private static final int[][] SCHEDULE = schedule();
+
+	private static final int BLOCK_LENGTH = 64;
+	private static final int CHUNK_LENGTH = 1024;
+
+	private static final int CHUNK_START = 1;
+	private static final int CHUNK_END = 2;
+	private static final int PARENT = 4;
+	private static final int ROOT = 8;
+
+	/**
+	 * Chaining values of completed subtrees, one per set bit of the chunk count
+	 */
+	private int[][] cvStack = new int[54][];
+
+	/**
+	 * Number of entries in cvStack
+	 */
+	private int cvStackLength;
+
+	/**
+	 * Chaining value of the chunk being compressed
+	 */
+	private int[] chunkCv = new int[8];
+
+	/**
+	 * Index of the chunk being compressed
+	 */
+	private long chunkCounter;
+
+	/**
+	 * The block being filled
+	 */
+	private byte[] block = new byte[BLOCK_LENGTH];
+
+	/**
+	 * Number of bytes in block
+	 */
+	private int blockLength;
+
+	/**
+	 * Number of blocks of the current chunk already compressed
+	 */
+	private int blocksCompressed;
+
+	/**
+	 * Scratch space for compression
+	 */
+	private int[] words = new int[16];
+	private int[] state = new int[16];
+
+	/**
+	 * Constructs a digest ready for input
+	 */
+	public Blake3Digest() {
+		super(NAME);
+		engineReset();
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 32;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		engineUpdate(new byte[] {input}, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int length) {
+		int position = offset;
+		int end = offset + length;
+
+		while (position < end) {
+			// A full chunk is only finished off once more input arrives,
+			// since the last chunk is treated differently.
+			if (chunkLength() == CHUNK_LENGTH) {
+				int[] cv = new int[8];
+				chainingValue(chunkCv, block, blockLength, chunkFlags() | CHUNK_END, chunkCounter, cv);
+				addChunkChainingValue(cv, chunkCounter + 1);
+				startChunk(chunkCounter + 1);
+			}
+
+			if (blockLength == BLOCK_LENGTH) {
+				compressInPlace(chunkCv, block, BLOCK_LENGTH, chunkCounter, chunkFlags());
+				blocksCompressed++;
+				blockLength = 0;
+			}
+
+			int take = Math.min(BLOCK_LENGTH - blockLength, end - position);
+			System.arraycopy(input, position, block, blockLength, take);
+			blockLength += take;
+			position += take;
+		}
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		// Work up the stack from the current chunk, to find the root node.
+		int[] inputCv = chunkCv;
+		byte[] nodeBlock = block;
+		int nodeLength = blockLength;
+		long counter = chunkCounter;
+		int flags = chunkFlags() | CHUNK_END;
+
+		for (int index = cvStackLength - 1; index >= 0; index--) {
+			int[] right = new int[8];
+			chainingValue(inputCv, nodeBlock, nodeLength, flags, counter, right);
+			nodeBlock = parentBlock(cvStack[index], right);
+			inputCv = IV;
+			nodeLength = BLOCK_LENGTH;
+			counter = 0;
+			flags = PARENT;
+		}
+
+		int[] out = new int[8];
+		chainingValue(inputCv, nodeBlock, nodeLength, flags | ROOT, counter, out);
+		byte[] result = new byte[32];
+		for (int index = 0; index < 8; index++) {
+			result[index * 4] = (byte) out[index];
+			result[index * 4 + 1] = (byte) (out[index] >>> 8);
+			result[index * 4 + 2] = (byte) (out[index] >>> 16);
+			result[index * 4 + 3] = (byte) (out[index] >>> 24);
+		}
+		engineReset();
+		return result;
+	}
+
+	@Override
+	protected final void engineReset() {
+		cvStackLength = 0;
+		startChunk(0);
+	}
+
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		Blake3Digest copy = (Blake3Digest) super.clone();
+		copy.cvStack = new int[cvStack.length][];
+		for (int index = 0; index < cvStackLength; index++) {
+			copy.cvStack[index] = cvStack[index].clone();
+		}
+		copy.chunkCv = chunkCv.clone();
+		copy.block = block.clone();
+		copy.words = new int[16];
+		copy.state = new int[16];
+		return copy;
+	}
+
+	/**
+	 * @return The number of bytes given to the current chunk
+	 */
+	private int chunkLength() {
+		return blocksCompressed * BLOCK_LENGTH + blockLength;
+	}
+
+	/**
+	 * @return CHUNK_START if the current block is the first of its chunk
+	 */
+	private int chunkFlags() {
+		return (blocksCompressed == 0) ? CHUNK_START : 0;
+	}
+
+	/**
+	 * Resets the chunk state to the start of a new chunk
+	 */
+	private void startChunk(long counter) {
+		System.arraycopy(IV, 0, chunkCv, 0, 8);
+		chunkCounter = counter;
+		blockLength = 0;
+		blocksCompressed = 0;
+	}
+
+	/**
+	 * Pushes a finished chunk's chaining value, first merging it with any
+	 * completed subtrees it pairs up with.
+	 *
+	 * @param cv The chunk's chaining value
+	 * @param totalChunks The number of chunks finished, including this one
+	 */
+	private void addChunkChainingValue(int[] cv, long totalChunks) {
+		int[] merged = cv;
+		long chunks = totalChunks;
+		while ((chunks & 1) == 0) {
+			cvStackLength--;
+			int[] parent = new int[8];
+			chainingValue(IV, parentBlock(cvStack[cvStackLength], merged), BLOCK_LENGTH, PARENT, 0, parent);
+			merged = parent;
+			chunks >>= 1;
+		}
+		cvStack[cvStackLength] = merged;
+		cvStackLength++;
+	}
+
+	/**
+	 * @return The 64 byte block of a parent node with the given children
+	 */
+	private static byte[] parentBlock(int[] left, int[] right) {
+		byte[] result = new byte[BLOCK_LENGTH];
+		for (int index = 0; index < 8; index++) {
+			putInt(result, index * 4, left[index]);
+			putInt(result, 32 + index * 4, right[index]);
+		}
+		return result;
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >>> 8);
+		bytes[offset + 2] = (byte) (value >>> 16);
+		bytes[offset + 3] = (byte) (value >>> 24);
+	}
+
+	/**
+	 * Compresses a block, replacing cv with the result's chaining value.
+	 */
+	private void compressInPlace(int[] cv, byte[] input, int length, long counter, int flags) {
+		compress(cv, input, length, counter, flags);
+		for (int index = 0; index < 8; index++) {
+			cv[index] = state[index] ^ state[index + 8];
+		}
+	}
+
+	/**
+	 * Compresses a block, putting the result's chaining value in out.
+	 */
+	private void chainingValue(int[] cv, byte[] input, int length, int flags, long counter, int[] out) {
+		compress(cv, input, length, counter, flags);
+		for (int index = 0; index < 8; index++) {
+			out[index] = state[index] ^ state[index + 8];
+		}
+	}
+
+	/**
+	 * The compression function, leaving its (unfinished) result in state.
+	 * Only the first half of the output is ever needed here.  The state is
+	 * kept in locals while the rounds run, which the JIT handles far better
+	 * than array elements.
+	 */
+	private void compress(int[] cv, byte[] input, int length, long counter, int flags) {
+		int[] m = words;
+		for (int index = 0; index < 16; index++) {
+			int offset = index * 4;
+			if (offset + 4 <= length) {
+				m[index] = (input[offset] & 0xFF) | ((input[offset + 1] & 0xFF) << 8) |
+						((input[offset + 2] & 0xFF) << 16) | ((input[offset + 3] & 0xFF) << 24);
+			} else {
+				int word = 0;
+				for (int position = offset; position < length; position++) {
+					word |= (input[position] & 0xFF) << (8 * (position - offset));
+				}
+				m[index] = word;
+			}
+		}
+
+		int s0 = cv[0], s1 = cv[1], s2 = cv[2], s3 = cv[3];
+		int s4 = cv[4], s5 = cv[5], s6 = cv[6], s7 = cv[7];
+		int s8 = IV[0], s9 = IV[1], s10 = IV[2], s11 = IV[3];
+		int s12 = (int) counter, s13 = (int) (counter >>> 32), s14 = length, s15 = flags;
+
+		for (int round = 0; round < 7; round++) {
+			int[] p = SCHEDULE[round];
+
+			// Columns
+			s0 += s4 + m[p[0]]; s12 = Integer.rotateRight(s12 ^ s0, 16); s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 12);
+			s0 += s4 + m[p[1]]; s12 = Integer.rotateRight(s12 ^ s0, 8); s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 7);
+			s1 += s5 + m[p[2]]; s13 = Integer.rotateRight(s13 ^ s1, 16); s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 12);
+			s1 += s5 + m[p[3]]; s13 = Integer.rotateRight(s13 ^ s1, 8); s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 7);
+			s2 += s6 + m[p[4]]; s14 = Integer.rotateRight(s14 ^ s2, 16); s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 12);
+			s2 += s6 + m[p[5]]; s14 = Integer.rotateRight(s14 ^ s2, 8); s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 7);
+			s3 += s7 + m[p[6]]; s15 = Integer.rotateRight(s15 ^ s3, 16); s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 12);
+			s3 += s7 + m[p[7]]; s15 = Integer.rotateRight(s15 ^ s3, 8); s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 7);
+
+			// Diagonals
+			s0 += s5 + m[p[8]]; s15 = Integer.rotateRight(s15 ^ s0, 16); s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 12);
+			s0 += s5 + m[p[9]]; s15 = Integer.rotateRight(s15 ^ s0, 8); s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 7);
+			s1 += s6 + m[p[10]]; s12 = Integer.rotateRight(s12 ^ s1, 16); s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 12);
+			s1 += s6 + m[p[11]]; s12 = Integer.rotateRight(s12 ^ s1, 8); s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 7);
+			s2 += s7 + m[p[12]]; s13 = Integer.rotateRight(s13 ^ s2, 16); s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 12);
+			s2 += s7 + m[p[13]]; s13 = Integer.rotateRight(s13 ^ s2, 8); s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 7);
+			s3 += s4 + m[p[14]]; s14 = Integer.rotateRight(s14 ^ s3, 16); s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 12);
+			s3 += s4 + m[p[15]]; s14 = Integer.rotateRight(s14 ^ s3, 8); s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 7);
+		}
+
+		state[0] = s0; state[1] = s1; state[2] = s2; state[3] = s3;
+		state[4] = s4; state[5] = s5; state[6] = s6; state[7] = s7;
+		state[8] = s8; state[9] = s9; state[10] = s10; state[11] = s11;
+		state[12] = s12; state[13] = s13; state[14] = s14; state[15] = s15;
+	}
+
+	/**
+	 * The message word order for each round: the permutation applied again and again
+	 */
+	private static int[][] schedule() {
+		int[][] result = new int[7][16];
+		for (int index = 0; index < 16; index++) {
+			result[0][index] = index;
+		}
+		for (int round = 1; round < 7; round++) {
+			for (int index = 0; index < 16; index++) {
+				result[round][index] = result[round - 1][MESSAGE_PERMUTATION[index]];
+			}
+		}
+		return result;
+	}
+}
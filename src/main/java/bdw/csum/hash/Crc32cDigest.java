@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+/**
+ * java.util.zip.CRC32C dressed up as a MessageDigest.  The JVM computes
+ * this with the processor's CRC instructions where it can, so it is about
+ * as cheap as a checksum gets, but at 32 bits it is only fit for noticing
+ * damage, not for telling files apart.  The result is returned big endian.
+ */
+public class Crc32cDigest extends MessageDigest implements Cloneable {
+	/**
+	 * Name of the algorithm
+	 */
+	public static final String NAME = "CRC32C";
+
+	/**
+	 * The checksum being accumulated
+	 */
+	private CRC32C crc = new CRC32C();
+
+	/**
+	 * true once any input has been given since the last reset
+	 */
+	private boolean started;
+
+	/**
+	 * Constructs a digest ready for input
+	 */
+	public Crc32cDigest() {
+		super(NAME);
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 4;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		crc.update(input);
+		started = true;
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int length) {
+		crc.update(input, offset, length);
+		started = true;
+	}
+
+	@Override
+	protected void engineUpdate(ByteBuffer input) {
+		crc.update(input);
+		started = true;
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long value = crc.getValue();
+		engineReset();
+		return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+	}
+
+	@Override
+	protected void engineReset() {
+		crc.reset();
+		started = false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * CRC32C doesn't let its state be copied, so this can only clone a
+	 * digest that hasn't been given any input since it was last reset.
+	 */
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		if (started) {
+			throw new CloneNotSupportedException("Can only clone a CRC32C digest before it is used");
+		}
+		Crc32cDigest copy = (Crc32cDigest) super.clone();
+		copy.crc = new CRC32C();
+		return copy;
+	}
+}
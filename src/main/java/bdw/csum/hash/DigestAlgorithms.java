@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Knows the checksum algorithms a listing can be made with.  Besides
+ * CRC32C, XXH64 and BLAKE3 (implemented here), any algorithm the JVM's
+ * MessageDigest knows (SHA-256, SHA-512, MD5, ...) can be used.
+ * Names are not case sensitive.
+ */
+public class DigestAlgorithms {
+	/**
+	 * The algorithm listings have always used, and still do by default.
+	 */
+	public static final String SHA_256 = "SHA-256";
+
+	/**
+	 * A fresh digest of each JVM algorithm asked for so far, by upper case
+	 * name, which new digests are cloned from.  These are never updated.
+	 */
+	private static final ConcurrentMap<String, MessageDigest> prototypes =
+			new ConcurrentHashMap<String, MessageDigest>();
+
+	/**
+	 * Creates a digest for an algorithm.  The JVM's algorithms are looked up
+	 * through the providers the first time only; after that the digest is
+	 * cloned, which is a good deal cheaper.
+	 *
+	 * @param name The algorithm's name
+	 * @return A new digest
+	 * @throws NoSuchAlgorithmException If there is no such algorithm
+	 */
+	public static MessageDigest newDigest(String name) throws NoSuchAlgorithmException {
+		if (name.equalsIgnoreCase(Crc32cDigest.NAME)) {
+			return new Crc32cDigest();
+		} else if (name.equalsIgnoreCase(XxHash64Digest.NAME)) {
+			return new XxHash64Digest();
+		} else if (name.equalsIgnoreCase(Blake3Digest.NAME)) {
+			return new Blake3Digest();
+		}
+
+		String key = name.toUpperCase(Locale.ROOT);
+		MessageDigest prototype = prototypes.get(key);
+		if (prototype == null) {
+			prototype = MessageDigest.getInstance(name);
+			prototypes.putIfAbsent(key, prototype);
+		}
+		try {
+			return (MessageDigest) prototype.clone();
+		} catch (CloneNotSupportedException e) {
+			return MessageDigest.getInstance(name);
+		}
+	}
+
+	/**
+	 * @param name An algorithm's name, in any case
+	 * @return The name as it should be written in a listing
+	 * @throws NoSuchAlgorithmException If there is no such algorithm
+	 */
+	public static String canonicalName(String name) throws NoSuchAlgorithmException {
+		newDigest(name);
+		return name.toUpperCase(Locale.ROOT);
+	}
+
+	/**
+	 * @param first An algorithm's name
+	 * @param second Another algorithm's name
+	 * @return true if they name the same algorithm
+	 */
+	public static boolean sameAlgorithm(String first, String second) {
+		return first.equalsIgnoreCase(second);
+	}
+}
@@ -0,0 +1,422 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import bdw.csum.metrics.Metrics;
+import bdw.util.RateLimiter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the checksum of a file's contents.  Small and medium files are
+ * read through a FileChannel into one large, reused, direct buffer.  Files
+ * at or above the map threshold are instead memory-mapped a region at a time
+ * and the regions handed straight to the digest, which saves copying them
+ * through the buffer at all.
+ * Files smaller than STREAM_READ_SIZE, given as a stream, are read straight
+ * from the stream into a small array, without making a channel at all.
+ * An instance holds on to its buffers and digest between files, so it is not
+ * safe to use from more than one thread at a time; give each thread its own.
+ * That way checksumming a file allocates nothing but the checksum itself.
+ */
+public class FileHasher {
+	/**
+	 * The name of the algorithm used by default
+	 */
+	public static final String DEFAULT_ALGORITHM = DigestAlgorithms.SHA_256;
+
+	/**
+	 * Files this size and larger are mapped rather than read (8 MB)
+	 */
+	public static final long DEFAULT_MAP_THRESHOLD = 8L * 1024 * 1024;
+
+	/**
+	 * Size of the buffer used to read files which are not mapped (256 KB)
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * The most of a file that is mapped at once (64 MB)
+	 */
+	public static final long MAP_REGION_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Files smaller than this are read from their stream rather than a
+	 * channel (8 KB, the most the JDK reads from a stream without
+	 * allocating a native buffer for it)
+	 */
+	public static final int STREAM_READ_SIZE = 8 * 1024;
+
+	/**
+	 * The digest, reset after each file
+	 */
+	protected final MessageDigest digest;
+
+	/**
+	 * The buffer files below the threshold are read into
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * The array small files are read into from their stream
+	 */
+	private final byte[] streamBuffer = new byte[STREAM_READ_SIZE];
+
+	/**
+	 * Files this size and larger are mapped
+	 */
+	private long mapThreshold;
+
+	/**
+	 * Limits the bytes read per second, or null for no limit
+	 */
+	protected RateLimiter rateLimiter;
+
+	/**
+	 * Where the time spent reading and digesting is recorded, or null
+	 */
+	protected Metrics metrics;
+
+	/**
+	 * Constructs a hasher using SHA-256 and the default sizes
+	 * @throws NoSuchAlgorithmException If SHA-256 isn't available
+	 */
+	public FileHasher() throws NoSuchAlgorithmException {
+		this(DEFAULT_ALGORITHM, DEFAULT_BUFFER_SIZE, DEFAULT_MAP_THRESHOLD);
+	}
+
+	/**
+	 * Constructs a hasher.
+	 *
+	 * @param algorithm The name of the algorithm to use (see DigestAlgorithms)
+	 * @param bufferSize The size of the read buffer, in bytes
+	 * @param mapThreshold Files this size and larger are memory-mapped
+	 * @throws NoSuchAlgorithmException If the algorithm isn't available
+	 */
+	public FileHasher(String algorithm, int bufferSize, long mapThreshold) throws NoSuchAlgorithmException {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("The buffer size must be positive");
+		}
+		digest = DigestAlgorithms.newDigest(algorithm);
+		buffer = ByteBuffer.allocateDirect(bufferSize);
+		setMapThreshold(mapThreshold);
+	}
+
+	/**
+	 * @param threshold Files this size and larger are memory-mapped rather
+	 * than read. Long.MAX_VALUE never maps.
+	 */
+	public void setMapThreshold(long threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("The map threshold can not be negative");
+		}
+		mapThreshold = threshold;
+	}
+
+	/**
+	 * @return The size at which files start being memory-mapped
+	 */
+	public long getMapThreshold() {
+		return mapThreshold;
+	}
+
+	/**
+	 * @param limiter Limits the bytes read per second (may be shared with
+	 * other hashers), or null for no limit
+	 */
+	public void setRateLimiter(RateLimiter limiter) {
+		rateLimiter = limiter;
+	}
+
+	/**
+	 * @return What limits the bytes read per second, or null
+	 */
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * @param value Where to record the time spent reading and digesting
+	 * (may be shared with other hashers), or null to not record it
+	 */
+	public void setMetrics(Metrics value) {
+		metrics = value;
+	}
+
+	/**
+	 * Computes the checksum of a file's contents.
+	 *
+	 * @param file The file to read
+	 * @return The checksum
+	 * @throws IOException If the file can't be read
+	 */
+	public byte[] hash(File file) throws IOException {
+		// Opening through a stream is noticeably cheaper than FileChannel.open(),
+		// which matters when the file is tiny.
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			return hash(stream.getChannel());
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Computes the checksum of a file's contents.
+	 *
+	 * @param path The file to read
+	 * @return The checksum
+	 * @throws IOException If the file can't be read
+	 */
+	public byte[] hash(Path path) throws IOException {
+		return hash(path.toFile());
+	}
+
+	/**
+	 * Computes the checksum of a file opened as a stream, whose size is
+	 * already known (say, from a directory walk).  Small files are read
+	 * from the stream itself; others from its channel.  The size only
+	 * chooses which: everything up to the end of the file is read either way.
+	 *
+	 * @param stream The file, positioned at its start. It is not closed.
+	 * @param size The size of the file
+	 * @return The checksum
+	 * @throws IOException If the file can't be read
+	 */
+	public byte[] hash(FileInputStream stream, long size) throws IOException {
+		if (size >= STREAM_READ_SIZE) {
+			return hash(stream.getChannel());
+		}
+		digest.reset();
+		try {
+			digestStream(stream);
+			return digest.digest();
+		} finally {
+			digest.reset();
+		}
+	}
+
+	/**
+	 * Computes the checksum of everything from the current position of
+	 * a channel to its end.
+	 *
+	 * @param channel The channel to read. It is not closed.
+	 * @return The checksum
+	 * @throws IOException If the channel can't be read
+	 */
+	public byte[] hash(FileChannel channel) throws IOException {
+		digest.reset();
+		try {
+			long size = channel.size();
+			if (size >= mapThreshold) {
+				digestMapped(channel, channel.position(), size);
+			} else {
+				digestRead(channel);
+			}
+			return digest.digest();
+		} finally {
+			digest.reset();
+		}
+	}
+
+	/**
+	 * Computes the checksum of part of a channel.  This reads at explicit
+	 * positions and leaves the channel's own position alone, so several
+	 * hashers may work on different parts of one channel at the same time.
+	 *
+	 * @param channel The channel to read. It is not closed.
+	 * @param start The position of the first byte to include
+	 * @param length The number of bytes to include
+	 * @return The checksum
+	 * @throws IOException If the channel can't be read, or ends early
+	 */
+	public byte[] hash(FileChannel channel, long start, long length) throws IOException {
+		digest.reset();
+		try {
+			long end = start + length;
+			if (length >= mapThreshold) {
+				long position = start;
+				while (position < end) {
+					long regionLength = Math.min(MAP_REGION_SIZE, end - position);
+					digestRegion(channel.map(FileChannel.MapMode.READ_ONLY, position, regionLength));
+					position += regionLength;
+				}
+			} else {
+				long position = start;
+				while (position < end) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), end - position));
+					long mark = (metrics == null) ? 0 : System.nanoTime();
+					int count = channel.read(buffer, position);
+					if (count < 0) {
+						throw new IOException("Unexpected end of file at " + position);
+					}
+					throttle(count);
+					buffer.flip();
+					if (metrics != null) {
+						mark = metrics.record(Metrics.Timer.READ, mark);
+					}
+					digest.update(buffer);
+					if (metrics != null) {
+						metrics.record(Metrics.Timer.DIGEST, mark);
+					}
+					position += count;
+				}
+			}
+			return digest.digest();
+		} finally {
+			digest.reset();
+		}
+	}
+
+	/**
+	 * Feeds the digest by reading the channel through the buffer.
+	 *
+	 * @param channel The channel to read
+	 * @throws IOException
+	 */
+	private void digestRead(FileChannel channel) throws IOException {
+		buffer.clear();
+		long start = (metrics == null) ? 0 : System.nanoTime();
+		int count;
+		while ((count = channel.read(buffer)) != -1) {
+			throttle(count);
+			buffer.flip();
+			if (metrics != null) {
+				start = metrics.record(Metrics.Timer.READ, start);
+			}
+			digest.update(buffer);
+			buffer.clear();
+			if (metrics != null) {
+				start = metrics.record(Metrics.Timer.DIGEST, start);
+			}
+		}
+		if (metrics != null) {
+			metrics.record(Metrics.Timer.READ, start);
+		}
+	}
+
+	/**
+	 * Feeds the digest by reading a stream through the small array.
+	 *
+	 * @param stream The stream to read
+	 * @throws IOException
+	 */
+	private void digestStream(InputStream stream) throws IOException {
+		long start = (metrics == null) ? 0 : System.nanoTime();
+		int count;
+		while ((count = stream.read(streamBuffer)) != -1) {
+			throttle(count);
+			if (metrics != null) {
+				start = metrics.record(Metrics.Timer.READ, start);
+			}
+			digest.update(streamBuffer, 0, count);
+			if (metrics != null) {
+				start = metrics.record(Metrics.Timer.DIGEST, start);
+			}
+		}
+		if (metrics != null) {
+			metrics.record(Metrics.Timer.READ, start);
+		}
+	}
+
+	/**
+	 * Feeds the digest by mapping the channel a region at a time.
+	 *
+	 * @param channel The channel to map
+	 * @param start Position to start at
+	 * @param size The size of the file
+	 * @throws IOException
+	 */
+	private void digestMapped(FileChannel channel, long start, long size) throws IOException {
+		long position = start;
+		while (position < size) {
+			long length = Math.min(MAP_REGION_SIZE, size - position);
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			digestRegion(region);
+			position += length;
+		}
+		// The file may have grown since we looked at its size; pick up the rest.
+		channel.position(position);
+		digestRead(channel);
+	}
+
+	/**
+	 * Feeds a mapped region to the digest.  When rate limited, it goes a
+	 * buffer's worth at a time, so the reading (page faults) is spread out.
+	 *
+	 * @param region The region
+	 * @throws IOException If interrupted while waiting on the rate limiter
+	 */
+	private void digestRegion(MappedByteBuffer region) throws IOException {
+		long start = (metrics == null) ? 0 : System.nanoTime();
+		try {
+			feedRegion(region);
+		} finally {
+			if (metrics != null) {
+				// The reading happens as the pages are touched, so it can't be told apart.
+				metrics.record(Metrics.Timer.DIGEST, start);
+			}
+		}
+	}
+
+	/**
+	 * Feeds a mapped region to the digest, spread out if rate limited.
+	 *
+	 * @param region The region
+	 * @throws IOException If interrupted while waiting on the rate limiter
+	 */
+	private void feedRegion(MappedByteBuffer region) throws IOException {
+		if (rateLimiter == null) {
+			digest.update(region);
+			return;
+		}
+		int end = region.limit();
+		while (region.position() < end) {
+			int length = Math.min(buffer.capacity(), end - region.position());
+			throttle(length);
+			region.limit(region.position() + length);
+			digest.update(region);
+			region.limit(end);
+		}
+	}
+
+	/**
+	 * Waits as long as the rate limiter says to for some bytes read
+	 *
+	 * @param count The number of bytes
+	 * @throws InterruptedIOException If interrupted while waiting
+	 */
+	protected void throttle(long count) throws InterruptedIOException {
+		if ((rateLimiter != null) && (count > 0)) {
+			try {
+				rateLimiter.acquire(count);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while rate limited");
+			}
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of checksums, kept in a memory-mapped file so that
+ * repeated scans of the same files need not read them again.  An entry is
+ * keyed by the identity of the file (its BasicFileAttributes.fileKey(), which
+ * on unix is the device and inode), the checksum algorithm, and the file's
+ * size and last modification time.  Since the identity of a file survives
+ * it being renamed or moved within its file system, so does its entry.
+ * <p>
+ * The file is a fixed size, set when it is created: a header followed by
+ * a table of buckets, each holding a few slots.  A key always lives in the
+ * same bucket, and when a bucket is full the slot least recently used is
+ * reused, so the cache never grows and roughly keeps what has been used
+ * recently.  Each lookup or store locks just the bucket involved, both
+ * within this process and (with a file lock) against any other csum process
+ * using the same file.  Slots carry a CRC so that a torn write is seen as a
+ * miss rather than a wrong checksum.
+ */
+public class HashCache {
+	/**
+	 * Default number of entries a new cache can hold
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+
+	/**
+	 * Identifies a cache file
+	 */
+	private static final long MAGIC = 0x4353554d43414348L; // "CSUMCACH"
+
+	/**
+	 * Version of the layout
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Size of the header at the start of the file
+	 */
+	private static final int HEADER_SIZE = 64;
+
+	/**
+	 * Number of slots in each bucket
+	 */
+	private static final int WAYS = 8;
+
+	/**
+	 * Largest checksum a slot can hold
+	 */
+	private static final int MAX_DIGEST = 64;
+
+	/**
+	 * Layout of a slot: key hash, size, mod time, last use, crc, digest length, digest
+	 */
+	private static final int KEY_OFFSET = 0;
+	private static final int SIZE_OFFSET = 8;
+	private static final int MTIME_OFFSET = 16;
+	private static final int USED_OFFSET = 24;
+	private static final int CRC_OFFSET = 32;
+	private static final int LENGTH_OFFSET = 36;
+	private static final int DIGEST_OFFSET = 40;
+	private static final int SLOT_SIZE = DIGEST_OFFSET + MAX_DIGEST;
+
+	/**
+	 * Size of a bucket
+	 */
+	private static final int BUCKET_SIZE = WAYS * SLOT_SIZE;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The file itself
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * Channel used to lock buckets
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The whole of the file, mapped
+	 */
+	private final MappedByteBuffer map;
+
+	/**
+	 * Number of buckets in the file
+	 */
+	private final int bucketCount;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Opens a cache file, creating it if need be.  If the file already exists,
+	 * it keeps the capacity it was created with.
+	 *
+	 * @param path The cache file
+	 * @param capacity The number of entries a new file should hold
+	 * @throws IOException If the file can't be opened, or isn't a cache file
+	 */
+	public HashCache(File path, int capacity) throws IOException {
+		if (capacity < WAYS) {
+			throw new IllegalArgumentException("Capacity must be at least " + WAYS);
+		}
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+
+		int buckets;
+		FileLock lock = channel.lock(0, HEADER_SIZE, false);
+		try {
+			if (file.length() == 0) {
+				buckets = (int) Math.min((capacity + (long) WAYS - 1) / WAYS, (Integer.MAX_VALUE - HEADER_SIZE) / BUCKET_SIZE);
+				file.setLength(HEADER_SIZE + (long) buckets * BUCKET_SIZE);
+				file.seek(0);
+				file.writeLong(MAGIC);
+				file.writeInt(VERSION);
+				file.writeInt(buckets);
+				file.writeInt(WAYS);
+				file.writeInt(SLOT_SIZE);
+			} else {
+				file.seek(0);
+				if ((file.length() < HEADER_SIZE) || (file.readLong() != MAGIC) || (file.readInt() != VERSION)) {
+					throw new IOException(path + " is not a checksum cache");
+				}
+				buckets = file.readInt();
+				if ((file.readInt() != WAYS) || (file.readInt() != SLOT_SIZE) ||
+						(file.length() != HEADER_SIZE + (long) buckets * BUCKET_SIZE)) {
+					throw new IOException(path + " has an unexpected layout");
+				}
+			}
+		} catch (IOException e) {
+			lock.release();
+			file.close();
+			throw e;
+		}
+		lock.release();
+
+		bucketCount = buckets;
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+	}
+
+	/**
+	 * Looks up the checksum of a file.
+	 *
+	 * @param fileKey The identity of the file (from BasicFileAttributes.fileKey())
+	 * @param algorithm The checksum algorithm
+	 * @param size The current size of the file
+	 * @param lastMod The current last modification time of the file, in milliseconds
+	 * @return The checksum, or null if not in the cache
+	 * @throws IOException If the bucket can't be locked
+	 */
+	public byte[] find(Object fileKey, String algorithm, long size, long lastMod) throws IOException {
+		long key = keyHash(fileKey, algorithm);
+		int bucket = bucketOffset(key);
+
+		synchronized (this) {
+			FileLock lock = channel.lock(bucket, BUCKET_SIZE, false);
+			try {
+				for (int way = 0; way < WAYS; way++) {
+					int slot = bucket + way * SLOT_SIZE;
+					if ((map.getLong(slot + KEY_OFFSET) == key) &&
+							(map.getLong(slot + SIZE_OFFSET) == size) &&
+							(map.getLong(slot + MTIME_OFFSET) == lastMod) &&
+							slotIsIntact(slot)) {
+						byte[] digest = new byte[map.getInt(slot + LENGTH_OFFSET)];
+						for (int index = 0; index < digest.length; index++) {
+							digest[index] = map.get(slot + DIGEST_OFFSET + index);
+						}
+						map.putLong(slot + USED_OFFSET, System.currentTimeMillis());
+						hits.incrementAndGet();
+						return digest;
+					}
+				}
+			} finally {
+				lock.release();
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Remembers the checksum of a file, replacing what was there for it, or
+	 * if the bucket is full, the entry least recently used.
+	 *
+	 * @param fileKey The identity of the file (from BasicFileAttributes.fileKey())
+	 * @param algorithm The checksum algorithm
+	 * @param size The size of the file when it was checksummed
+	 * @param lastMod The last modification time of the file when it was checksummed, in milliseconds
+	 * @param digest The checksum
+	 * @throws IOException If the bucket can't be locked
+	 */
+	public void store(Object fileKey, String algorithm, long size, long lastMod, byte[] digest) throws IOException {
+		if (digest.length > MAX_DIGEST) {
+			return;
+		}
+		long key = keyHash(fileKey, algorithm);
+		int bucket = bucketOffset(key);
+
+		synchronized (this) {
+			FileLock lock = channel.lock(bucket, BUCKET_SIZE, false);
+			try {
+				int victim = -1;
+				long oldest = Long.MAX_VALUE;
+				for (int way = 0; way < WAYS; way++) {
+					int slot = bucket + way * SLOT_SIZE;
+					if (map.getLong(slot + KEY_OFFSET) == key) {
+						victim = slot;
+						break;
+					}
+					long used = map.getLong(slot + USED_OFFSET);
+					if (used < oldest) {
+						oldest = used;
+						victim = slot;
+					}
+				}
+				if ((map.getLong(victim + KEY_OFFSET) != key) && (map.getLong(victim + USED_OFFSET) != 0)) {
+					evictions.incrementAndGet();
+				}
+
+				map.putLong(victim + KEY_OFFSET, key);
+				map.putLong(victim + SIZE_OFFSET, size);
+				map.putLong(victim + MTIME_OFFSET, lastMod);
+				map.putLong(victim + USED_OFFSET, System.currentTimeMillis());
+				map.putInt(victim + LENGTH_OFFSET, digest.length);
+				for (int index = 0; index < digest.length; index++) {
+					map.put(victim + DIGEST_OFFSET + index, digest[index]);
+				}
+				map.putInt(victim + CRC_OFFSET, slotCrc(victim));
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of lookups that found a checksum
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of lookups that didn't find a checksum
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of entries pushed out to make room for others
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return The number of entries the cache can hold
+	 */
+	public int getCapacity() {
+		return bucketCount * WAYS;
+	}
+
+	/**
+	 * Writes any changes out and closes the file.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		map.force();
+		file.close();
+	}
+
+	/**
+	 * @param key A key hash
+	 * @return The position in the file of the bucket the key belongs in
+	 */
+	private int bucketOffset(long key) {
+		int bucket = (int) ((key >>> 1) % bucketCount);
+		return HEADER_SIZE + bucket * BUCKET_SIZE;
+	}
+
+	/**
+	 * @param slot The position of a slot
+	 * @return true if the slot's contents match its crc
+	 */
+	private boolean slotIsIntact(int slot) {
+		int length = map.getInt(slot + LENGTH_OFFSET);
+		return (length >= 0) && (length <= MAX_DIGEST) && (map.getInt(slot + CRC_OFFSET) == slotCrc(slot));
+	}
+
+	/**
+	 * @param slot The position of a slot
+	 * @return A crc of the key, size, time and checksum in the slot (not the last use)
+	 */
+	private int slotCrc(int slot) {
+		CRC32 crc = new CRC32();
+		for (int index = 0; index < USED_OFFSET; index++) {
+			crc.update(map.get(slot + index));
+		}
+		int length = Math.min(Math.max(map.getInt(slot + LENGTH_OFFSET), 0), MAX_DIGEST);
+		for (int index = LENGTH_OFFSET; index < DIGEST_OFFSET + length; index++) {
+			crc.update(map.get(slot + index));
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Reduces a file identity and algorithm to a 64 bit key (FNV-1a), never 0
+	 *
+	 * @param fileKey The file's identity
+	 * @param algorithm The checksum algorithm
+	 * @return The key
+	 */
+	private long keyHash(Object fileKey, String algorithm) {
+		byte[] bytes = (algorithm + "|" + fileKey).getBytes(UTF8);
+		long hash = 0xcbf29ce484222325L;
+		for (byte value : bytes) {
+			hash ^= (value & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return (hash == 0) ? 1 : hash;
+	}
+}
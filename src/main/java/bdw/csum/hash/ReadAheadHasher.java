@@ -0,0 +1,284 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import bdw.csum.metrics.Metrics;
+import bdw.util.RateLimiter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * A FileHasher that overlaps reading a file with checksumming it.  A
+ * dedicated reader thread fills a small ring of reusable buffers while the
+ * calling thread feeds the filled ones to the digest, so the disk needn't
+ * wait on the CPU or the other way around.  There is only ever the one
+ * reader, reading sequentially, which suits spinning disks that do badly
+ * with many readers at once.
+ * <p>
+ * Files are always read through the ring, never mapped.  Like FileHasher,
+ * an instance must only be used by one thread at a time.  The reader thread
+ * is a daemon, started on first use; close() stops it.
+ */
+public class ReadAheadHasher extends FileHasher {
+	/**
+	 * Number of buffers in the ring by default
+	 */
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+
+	/**
+	 * Size of each buffer in the ring by default (1 MB)
+	 */
+	public static final int DEFAULT_READ_AHEAD_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * A buffer in the ring, along with what the reader found out while filling it
+	 */
+	private static class Slot {
+		final ByteBuffer buffer;
+
+		/**
+		 * true if this is the last buffer of the file
+		 */
+		boolean last;
+
+		/**
+		 * What went wrong reading the file, or null
+		 */
+		IOException error;
+
+		Slot(int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	/**
+	 * Size of each buffer in the ring
+	 */
+	private final int bufferSize;
+
+	/**
+	 * Number of buffers in the ring
+	 */
+	private final int bufferCount;
+
+	/**
+	 * Buffers waiting to be filled
+	 */
+	private BlockingQueue<Slot> empty;
+
+	/**
+	 * Buffers waiting to be checksummed, in file order
+	 */
+	private BlockingQueue<Slot> filled;
+
+	/**
+	 * Hands the next file to the reader
+	 */
+	private BlockingQueue<FileChannel> requests;
+
+	/**
+	 * The reader thread, or null if not running
+	 */
+	private Thread reader;
+
+	/**
+	 * Constructs a hasher using the default ring
+	 *
+	 * @param algorithm The name of the algorithm to use (see DigestAlgorithms)
+	 * @throws NoSuchAlgorithmException If the algorithm isn't available
+	 */
+	public ReadAheadHasher(String algorithm) throws NoSuchAlgorithmException {
+		this(algorithm, DEFAULT_READ_AHEAD_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+	}
+
+	/**
+	 * Constructs a hasher.
+	 *
+	 * @param algorithm The name of the algorithm to use (see DigestAlgorithms)
+	 * @param bufferSize The size of each buffer in the ring, in bytes
+	 * @param bufferCount The number of buffers in the ring, at least 2
+	 * @throws NoSuchAlgorithmException If the algorithm isn't available
+	 */
+	public ReadAheadHasher(String algorithm, int bufferSize, int bufferCount) throws NoSuchAlgorithmException {
+		super(algorithm, FileHasher.DEFAULT_BUFFER_SIZE, Long.MAX_VALUE);
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("The buffer size must be positive");
+		}
+		if (bufferCount < 2) {
+			throw new IllegalArgumentException("There must be at least 2 buffers");
+		}
+		this.bufferSize = bufferSize;
+		this.bufferCount = bufferCount;
+	}
+
+	/**
+	 * Computes the checksum of everything from the current position of
+	 * a channel to its end, reading ahead on the reader thread.
+	 *
+	 * @param channel The channel to read. It is not closed.
+	 * @return The checksum
+	 * @throws IOException If the channel can't be read
+	 */
+	@Override
+	public byte[] hash(FileChannel channel) throws IOException {
+		if (reader == null) {
+			start();
+		}
+
+		digest.reset();
+		try {
+			requests.put(channel);
+			while (true) {
+				Slot slot = filled.take();
+				boolean last = slot.last;
+				IOException error = slot.error;
+				long start = (metrics == null) ? 0 : System.nanoTime();
+				digest.update(slot.buffer);
+				if (metrics != null) {
+					metrics.record(Metrics.Timer.DIGEST, start);
+				}
+				empty.put(slot);
+				if (error != null) {
+					throw error;
+				}
+				if (last) {
+					return digest.digest();
+				}
+			}
+		} catch (InterruptedException e) {
+			// The reader may be part way through the file; start afresh next time.
+			close();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while checksumming");
+		} finally {
+			digest.reset();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * The reader thread picks up the change when next started.
+	 */
+	@Override
+	public void setRateLimiter(RateLimiter limiter) {
+		super.setRateLimiter(limiter);
+		close();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * The reader thread picks up the change when next started.
+	 */
+	@Override
+	public void setMetrics(Metrics value) {
+		super.setMetrics(value);
+		close();
+	}
+
+	/**
+	 * Stops the reader thread.  The hasher may still be used afterwards;
+	 * a new reader is started when needed.
+	 */
+	public void close() {
+		if (reader != null) {
+			reader.interrupt();
+			reader = null;
+		}
+	}
+
+	/**
+	 * Builds the ring and starts the reader thread
+	 */
+	private void start() {
+		empty = new ArrayBlockingQueue<Slot>(bufferCount);
+		filled = new ArrayBlockingQueue<Slot>(bufferCount);
+		requests = new SynchronousQueue<FileChannel>();
+		for (int index = 0; index < bufferCount; index++) {
+			empty.add(new Slot(bufferSize));
+		}
+
+		final BlockingQueue<Slot> ringEmpty = empty;
+		final BlockingQueue<Slot> ringFilled = filled;
+		final BlockingQueue<FileChannel> ringRequests = requests;
+		final RateLimiter limiter = rateLimiter;
+		final Metrics readMetrics = metrics;
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						readFile(ringRequests.take(), ringEmpty, ringFilled, limiter, readMetrics);
+					}
+				} catch (InterruptedException e) {
+					// Told to stop
+				}
+			}
+		}, "csum-read-ahead");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Run on the reader thread: reads a whole file into the ring
+	 *
+	 * @param channel The file to read
+	 * @param ringEmpty Buffers to fill
+	 * @param ringFilled Where to put them once filled
+	 * @param limiter Limits the bytes read per second, or null
+	 * @param readMetrics Where to record the time spent reading, or null
+	 * @throws InterruptedException If told to stop
+	 */
+	private static void readFile(FileChannel channel, BlockingQueue<Slot> ringEmpty,
+			BlockingQueue<Slot> ringFilled, RateLimiter limiter, Metrics readMetrics) throws InterruptedException {
+		while (true) {
+			Slot slot = ringEmpty.take();
+			slot.buffer.clear();
+			slot.last = false;
+			slot.error = null;
+			long start = (readMetrics == null) ? 0 : System.nanoTime();
+			try {
+				// Fill the whole buffer, so the digest gets it in large pieces.
+				while (slot.buffer.hasRemaining()) {
+					int count = channel.read(slot.buffer);
+					if (count == -1) {
+						slot.last = true;
+						break;
+					}
+					if ((limiter != null) && (count > 0)) {
+						limiter.acquire(count);
+					}
+				}
+			} catch (IOException e) {
+				slot.error = e;
+				slot.last = true;
+			}
+			if (readMetrics != null) {
+				readMetrics.record(Metrics.Timer.READ, start);
+			}
+			slot.buffer.flip();
+			ringFilled.put(slot);
+			if (slot.last) {
+				return;
+			}
+		}
+	}
+}
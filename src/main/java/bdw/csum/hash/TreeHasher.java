@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import bdw.csum.metrics.Metrics;
+import bdw.util.RateLimiter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes chunked (tree) checksums, so that one very large file can be
+ * checksummed on several cores at once.  A file is split into chunks of a
+ * fixed size, the chunks are checksummed concurrently on a fork-join pool,
+ * and the file's checksum is the checksum of the chunks' checksums, in order.
+ * A file no bigger than one chunk gets its ordinary checksum.
+ * <p>
+ * The result depends on the chunk size, so it is only comparable with
+ * checksums made with the same algorithm and the same chunk size.
+ * Unlike FileHasher, an instance may be used from several threads at once.
+ */
+public class TreeHasher {
+	/**
+	 * Opens the files to be checksummed
+	 */
+	public interface Opener {
+		/**
+		 * Opens a file for reading.
+		 *
+		 * @param path The file
+		 * @return A stream positioned at its start
+		 * @throws IOException If it can't be opened
+		 */
+		FileInputStream open(Path path) throws IOException;
+	}
+
+	/**
+	 * The chunk size used by default (64 MB)
+	 */
+	public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * The smallest chunk size allowed (64 KB); smaller chunks spend more
+	 * time combining than hashing.
+	 */
+	public static final long MIN_CHUNK_SIZE = 64L * 1024;
+
+	/**
+	 * Name of the algorithm used for the chunks and to combine them
+	 */
+	private final String algorithm;
+
+	/**
+	 * Size of each chunk but the last
+	 */
+	private final long chunkSize;
+
+	/**
+	 * Chunks this size and larger are memory-mapped
+	 */
+	private final long mapThreshold;
+
+	/**
+	 * The pool the chunks are checksummed on
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Each thread that checksums chunks gets its own hasher (and buffer)
+	 */
+	private final ThreadLocal<FileHasher> hashers = new ThreadLocal<FileHasher>();
+
+	/**
+	 * Limits the bytes read per second, or null for no limit
+	 */
+	private RateLimiter rateLimiter;
+
+	/**
+	 * Where the time spent reading and digesting is recorded, or null
+	 */
+	private Metrics metrics;
+
+	/**
+	 * Opens the files, or null to open them directly
+	 */
+	private Opener opener;
+
+	/**
+	 * Constructs a hasher.
+	 *
+	 * @param algorithm The name of the algorithm to use (see DigestAlgorithms)
+	 * @param chunkSize The size of each chunk, at least MIN_CHUNK_SIZE
+	 * @param mapThreshold Chunks this size and larger are memory-mapped
+	 * @param pool The pool to checksum chunks on
+	 * @throws NoSuchAlgorithmException If the algorithm isn't available
+	 */
+	public TreeHasher(String algorithm, long chunkSize, long mapThreshold, ForkJoinPool pool) throws NoSuchAlgorithmException {
+		if (chunkSize < MIN_CHUNK_SIZE) {
+			throw new IllegalArgumentException("The chunk size must be at least " + MIN_CHUNK_SIZE);
+		}
+		DigestAlgorithms.newDigest(algorithm);
+		this.algorithm = algorithm;
+		this.chunkSize = chunkSize;
+		this.mapThreshold = mapThreshold;
+		this.pool = pool;
+	}
+
+	/**
+	 * Must be called before the first file is checksummed.
+	 * @param limiter Limits the bytes read per second, or null for no limit
+	 */
+	public void setRateLimiter(RateLimiter limiter) {
+		rateLimiter = limiter;
+	}
+
+	/**
+	 * Must be called before the first file is checksummed.
+	 * @param value Where to record the time spent reading and digesting, or null
+	 */
+	public void setMetrics(Metrics value) {
+		metrics = value;
+	}
+
+	/**
+	 * Must be called before the first file is checksummed.
+	 * @param value What opens the files (such as a scan's FileAccess), or
+	 * null to open them directly
+	 */
+	public void setOpener(Opener value) {
+		opener = value;
+	}
+
+	/**
+	 * @return The size of each chunk
+	 */
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Computes the checksum of a file's contents.  The size of the file
+	 * is taken once at the start; anything added after that is ignored.
+	 *
+	 * @param path The file to read
+	 * @return The checksum
+	 * @throws IOException If the file can't be read
+	 */
+	public byte[] hash(Path path) throws IOException {
+		FileInputStream stream = (opener == null) ? new FileInputStream(path.toFile()) : opener.open(path);
+		try {
+			FileChannel channel = stream.getChannel();
+			long size = channel.size();
+			if (size <= chunkSize) {
+				return getHasher().hash(channel);
+			}
+
+			int chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+			byte[][] chunkDigests = new byte[chunkCount][];
+			try {
+				pool.invoke(new ChunkTask(channel, size, chunkDigests, 0, chunkCount));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			MessageDigest combined = DigestAlgorithms.newDigest(algorithm);
+			for (byte[] chunkDigest : chunkDigests) {
+				combined.update(chunkDigest);
+			}
+			return combined.digest();
+		} catch (NoSuchAlgorithmException e) {
+			// Checked in the constructor, so this can't happen.
+			throw new IllegalStateException(e);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @return The hasher belonging to the current thread
+	 * @throws NoSuchAlgorithmException If the checksum algorithm isn't available
+	 */
+	private FileHasher getHasher() throws NoSuchAlgorithmException {
+		FileHasher hasher = hashers.get();
+		if (hasher == null) {
+			hasher = new FileHasher(algorithm, FileHasher.DEFAULT_BUFFER_SIZE, mapThreshold);
+			hasher.setRateLimiter(rateLimiter);
+			hasher.setMetrics(metrics);
+			hashers.set(hasher);
+		}
+		return hasher;
+	}
+
+	/**
+	 * Checksums a range of chunks, splitting the range in half until
+	 * there is just one chunk left to do.
+	 */
+	@SuppressWarnings("serial")
+	private class ChunkTask extends RecursiveAction {
+		private final FileChannel channel;
+		private final long size;
+		private final byte[][] chunkDigests;
+		private final int first;
+		private final int end;
+
+		/**
+		 * @param channel The file's channel
+		 * @param size The size of the file
+		 * @param chunkDigests Where to put the checksum of each chunk
+		 * @param first The first chunk to do
+		 * @param end One past the last chunk to do
+		 */
+		ChunkTask(FileChannel channel, long size, byte[][] chunkDigests, int first, int end) {
+			this.channel = channel;
+			this.size = size;
+			this.chunkDigests = chunkDigests;
+			this.first = first;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - first > 1) {
+				int middle = (first + end) >>> 1;
+				invokeAll(new ChunkTask(channel, size, chunkDigests, first, middle),
+						new ChunkTask(channel, size, chunkDigests, middle, end));
+				return;
+			}
+
+			long start = first * chunkSize;
+			try {
+				chunkDigests[first] = getHasher().hash(channel, start, Math.min(chunkSize, size - start));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
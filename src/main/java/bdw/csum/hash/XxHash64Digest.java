@@ -0,0 +1,203 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import java.security.MessageDigest;
+
+/**
+ * A pure-Java xxHash64 (seed 0), dressed up as a MessageDigest.  It is not
+ * a cryptographic hash, but it is very fast and quite good enough to
+ * notice a file that has been damaged.  The 64 bit result is returned big
+ * endian, which is how xxhsum and friends print it.
+ */
+public class XxHash64Digest extends MessageDigest implements Cloneable {
+	/**
+	 * Name of the algorithm
+	 */
+	public static final String NAME = "XXH64";
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	/**
+	 * The four lanes of accumulated state
+	 */
+	private long v1, v2, v3, v4;
+
+	/**
+	 * Input not yet making a full 32 byte stripe
+	 */
+	private byte[] pending = new byte[32];
+
+	/**
+	 * Number of bytes in pending
+	 */
+	private int pendingLength;
+
+	/**
+	 * Number of bytes seen in all
+	 */
+	private long totalLength;
+
+	/**
+	 * Constructs a digest ready for input
+	 */
+	public XxHash64Digest() {
+		super(NAME);
+		engineReset();
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 8;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		engineUpdate(new byte[] {input}, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int length) {
+		int position = offset;
+		int end = offset + length;
+		totalLength += length;
+
+		if (pendingLength > 0) {
+			int take = Math.min(32 - pendingLength, length);
+			System.arraycopy(input, position, pending, pendingLength, take);
+			pendingLength += take;
+			position += take;
+			if (pendingLength < 32) {
+				return;
+			}
+			stripe(pending, 0);
+			pendingLength = 0;
+		}
+
+		while (end - position >= 32) {
+			stripe(input, position);
+			position += 32;
+		}
+
+		pendingLength = end - position;
+		System.arraycopy(input, position, pending, 0, pendingLength);
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long hash;
+		if (totalLength >= 32) {
+			hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			hash = mergeRound(hash, v1);
+			hash = mergeRound(hash, v2);
+			hash = mergeRound(hash, v3);
+			hash = mergeRound(hash, v4);
+		} else {
+			hash = PRIME5;
+		}
+		hash += totalLength;
+
+		int position = 0;
+		while (position + 8 <= pendingLength) {
+			hash ^= round(0, readLong(pending, position));
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+			position += 8;
+		}
+		if (position + 4 <= pendingLength) {
+			hash ^= (readInt(pending, position) & 0xFFFFFFFFL) * PRIME1;
+			hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+			position += 4;
+		}
+		while (position < pendingLength) {
+			hash ^= (pending[position] & 0xFF) * PRIME5;
+			hash = Long.rotateLeft(hash, 11) * PRIME1;
+			position++;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+
+		byte[] result = new byte[8];
+		for (int index = 0; index < 8; index++) {
+			result[index] = (byte) (hash >>> (56 - 8 * index));
+		}
+		engineReset();
+		return result;
+	}
+
+	@Override
+	protected final void engineReset() {
+		v1 = PRIME1 + PRIME2;
+		v2 = PRIME2;
+		v3 = 0;
+		v4 = -PRIME1;
+		pendingLength = 0;
+		totalLength = 0;
+	}
+
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		XxHash64Digest copy = (XxHash64Digest) super.clone();
+		copy.pending = pending.clone();
+		return copy;
+	}
+
+	/**
+	 * Folds a 32 byte stripe into the four lanes
+	 */
+	private void stripe(byte[] input, int offset) {
+		v1 = round(v1, readLong(input, offset));
+		v2 = round(v2, readLong(input, offset + 8));
+		v3 = round(v3, readLong(input, offset + 16));
+		v4 = round(v4, readLong(input, offset + 24));
+	}
+
+	private static long round(long accumulator, long input) {
+		accumulator += input * PRIME2;
+		accumulator = Long.rotateLeft(accumulator, 31);
+		return accumulator * PRIME1;
+	}
+
+	private static long mergeRound(long accumulator, long value) {
+		accumulator ^= round(0, value);
+		return accumulator * PRIME1 + PRIME4;
+	}
+
+	private static long readLong(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFFL) |
+				((bytes[offset + 1] & 0xFFL) << 8) |
+				((bytes[offset + 2] & 0xFFL) << 16) |
+				((bytes[offset + 3] & 0xFFL) << 24) |
+				((bytes[offset + 4] & 0xFFL) << 32) |
+				((bytes[offset + 5] & 0xFFL) << 40) |
+				((bytes[offset + 6] & 0xFFL) << 48) |
+				((bytes[offset + 7] & 0xFFL) << 56);
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) |
+				((bytes[offset + 1] & 0xFF) << 8) |
+				((bytes[offset + 2] & 0xFF) << 16) |
+				((bytes[offset + 3] & 0xFF) << 24);
+	}
+}
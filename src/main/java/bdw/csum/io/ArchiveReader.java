@@ -0,0 +1,571 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Reads the same structures as CSumReader, with the same results, but
+ * straight from the UTF-8 bytes in a large buffer of its own, rather than
+ * a character at a time through a Reader with a mark and reset around
+ * nearly every one.  Everything the format gives meaning to is ASCII,
+ * which in UTF-8 never appears inside another character, so the bytes can
+ * be scanned as they are; only words and pathnames are decoded, and only
+ * once they have been found.  Checksums, sizes and dates are decoded from
+ * the bytes without making strings of them.
+ * <p>
+ * Where CSumReader would leave a character to be read again, this leaves
+ * it unread (see peek()).
+ */
+public class ArchiveReader {
+	/**
+	 * Size of the buffer used by default (1 MB)
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * The length of a date, in the form yyyy.MM.dd.HH.mm.ss.SSS
+	 */
+	private static final int DATE_LENGTH = 23;
+
+	/**
+	 * The value of each byte as a hexadecimal digit, or -1
+	 */
+	private static final byte[] NIBBLES = new byte[256];
+
+	static {
+		Arrays.fill(NIBBLES, (byte) -1);
+		for (int digit = 0; digit < 10; digit++) {
+			NIBBLES['0' + digit] = (byte) digit;
+		}
+		for (int digit = 0; digit < 6; digit++) {
+			NIBBLES['a' + digit] = (byte) (10 + digit);
+			NIBBLES['A' + digit] = (byte) (10 + digit);
+		}
+	}
+
+	/**
+	 * The encoding of the input
+	 */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Where the bytes come from
+	 */
+	private final InputStream input;
+
+	/**
+	 * The bytes read from the input and not yet used, from position to limit
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * The next byte to use in the buffer
+	 */
+	private int position;
+
+	/**
+	 * One past the last byte read into the buffer
+	 */
+	private int limit;
+
+	/**
+	 * true once the input has run out
+	 */
+	private boolean ended;
+
+	/**
+	 * Where checksums, and words and pathnames that can't be decoded where
+	 * they lie, are put together
+	 */
+	private byte[] scratch = new byte[256];
+
+	/**
+	 * Turns the fields of a date into a time; reused for every date
+	 */
+	private final Calendar calendar = Calendar.getInstance();
+
+	/**
+	 * Constructs an instance with a buffer of the default size.
+	 *
+	 * @param input The data source, in UTF-8
+	 */
+	public ArchiveReader(InputStream input) {
+		this(input, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructs an instance.
+	 *
+	 * @param input The data source, in UTF-8
+	 * @param bufferSize The size of the buffer (at least the length of a date)
+	 */
+	public ArchiveReader(InputStream input, int bufferSize) {
+		if (bufferSize < DATE_LENGTH) {
+			throw new IllegalArgumentException("The buffer must hold at least " + DATE_LENGTH + " bytes");
+		}
+		this.input = input;
+		buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Constructs an instance that reads part of an array (such as a
+	 * comment in a binary listing), without copying it.
+	 *
+	 * @param bytes The array, in UTF-8
+	 * @param offset Where the part starts
+	 * @param length The length of the part
+	 */
+	public ArchiveReader(byte[] bytes, int offset, int length) {
+		input = null;
+		buffer = bytes;
+		position = offset;
+		limit = offset + length;
+		ended = true;
+	}
+
+	/**
+	 * Reads a byte.
+	 *
+	 * @return The byte (0-255), or -1 at the end of the input
+	 * @throws IOException If an IO error happens.
+	 */
+	public int read() throws IOException {
+		if ((position == limit) && !fill(1)) {
+			return -1;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	/**
+	 * Looks at the next byte without reading it.
+	 *
+	 * @return The byte (0-255), or -1 at the end of the input
+	 * @throws IOException If an IO error happens.
+	 */
+	public int peek() throws IOException {
+		if ((position == limit) && !fill(1)) {
+			return -1;
+		}
+		return buffer[position] & 0xff;
+	}
+
+	/**
+	 * Reads bytes as they are (such as the blocks of a binary listing).
+	 *
+	 * @param bytes Where to put them
+	 * @param offset Where in bytes to start putting them
+	 * @param length How many to read
+	 * @throws EOFException If the input runs out first
+	 * @throws IOException If an IO error happens.
+	 */
+	public void readFully(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			if ((position == limit) && !fill(1)) {
+				throw new EOFException("Expected " + length + " more bytes");
+			}
+			int count = Math.min(length, limit - position);
+			System.arraycopy(buffer, position, bytes, offset, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Reads the rest of the line, leaving the new line (or carriage return)
+	 * unread.
+	 *
+	 * @return What was read, decoded
+	 * @throws IOException If an IO error happens.
+	 */
+	public String readToEndOfLine() throws IOException {
+		int length = 0;
+		while (true) {
+			int start = position;
+			while ((position < limit) && (buffer[position] != '\n') && (buffer[position] != '\r')) {
+				position++;
+			}
+			length = append(length, start, position);
+			if ((position < limit) || !fill(1)) {
+				return new String(scratch, 0, length, UTF_8);
+			}
+		}
+	}
+
+	/**
+	 * Skips over spaces and tabs.
+	 *
+	 * @throws IOException If an IO error happens.
+	 */
+	public void skipWhitespace() throws IOException {
+		while (true) {
+			while (position < limit) {
+				byte aByte = buffer[position];
+				if ((aByte != ' ') && (aByte != '\t')) {
+					return;
+				}
+				position++;
+			}
+			if (!fill(1)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Skips to the end of the line, leaving the new line (or carriage
+	 * return) unread.
+	 *
+	 * @throws IOException If an IO error happens.
+	 */
+	public void skipToEndOfLine() throws IOException {
+		while (true) {
+			while (position < limit) {
+				byte aByte = buffer[position];
+				if ((aByte == '\n') || (aByte == '\r')) {
+					return;
+				}
+				position++;
+			}
+			if (!fill(1)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Skips the rest of the line, along with its end (a new line, a carriage
+	 * return, or both), as BufferedReader.readLine() would.
+	 *
+	 * @throws IOException If an IO error happens.
+	 */
+	public void skipLine() throws IOException {
+		skipToEndOfLine();
+		if ((read() == '\r') && (peek() == '\n')) {
+			position++;
+		}
+	}
+
+	/**
+	 * Reads a series of hexadecimal characters, as
+	 * CSumReader.readHexString() does.
+	 *
+	 * @return The bytes they stand for (empty if none could be found)
+	 * @throws IOException If an IO error happens.
+	 */
+	public byte[] readHexString() throws IOException {
+		skipWhitespace();
+		int length = 0;
+		while (((limit - position) >= 2) || fill(2)) {
+			int hiNibble = NIBBLES[buffer[position] & 0xff];
+			int loNibble = NIBBLES[buffer[position + 1] & 0xff];
+			if ((hiNibble == -1) || (loNibble == -1)) {
+				skipWhitespace();
+				break;
+			}
+			if (length == scratch.length) {
+				scratch = Arrays.copyOf(scratch, length * 2);
+			}
+			scratch[length++] = (byte) ((hiNibble << 4) | loNibble);
+			position += 2;
+		}
+		return Arrays.copyOf(scratch, length);
+	}
+
+	/**
+	 * Reads a word, as CSumReader.readWord() does.
+	 *
+	 * @return A possibly empty space-terminated word
+	 * @throws IOException If an IO error happens.
+	 */
+	public String readWord() throws IOException {
+		skipWhitespace();
+		int length = 0;
+		while (true) {
+			int start = position;
+			while ((position < limit) && !isWordEnd(buffer[position])) {
+				position++;
+			}
+			if ((position < limit) && (length == 0)) {
+				// The whole word was in the buffer, so needn't be copied first
+				String word = new String(buffer, start, position - start, UTF_8);
+				skipWhitespace();
+				return word;
+			}
+			length = append(length, start, position);
+			if ((position < limit) || !fill(1)) {
+				break;
+			}
+		}
+		skipWhitespace();
+		return new String(scratch, 0, length, UTF_8);
+	}
+
+	/**
+	 * Reads a word that is a number, as Long.parseLong(readWord()) would,
+	 * without making a string of it.
+	 *
+	 * @return The number
+	 * @throws IOException If an IO error happens.
+	 * @throws NumberFormatException If the word isn't a number
+	 */
+	public long readLong() throws IOException {
+		skipWhitespace();
+		if (((limit - position) < 20) && !ended) {
+			fill(20);
+		}
+		long value = 0;
+		int index = position;
+		while ((index < limit) && (index - position < 18) && (buffer[index] >= '0') && (buffer[index] <= '9')) {
+			value = (value * 10) + (buffer[index] - '0');
+			index++;
+		}
+		if ((index > position) && (index < limit) && isWordEnd(buffer[index])) {
+			position = index;
+			skipWhitespace();
+			return value;
+		}
+		// Signs, very long numbers, things that aren't numbers and numbers
+		// at the very end are left to Long.parseLong().
+		return Long.parseLong(readWord());
+	}
+
+	/**
+	 * Reads a pathname, as CSumReader.readPath() does.
+	 *
+	 * @return The pathname found (empty if none)
+	 * @throws IOException If an IO error happens.
+	 */
+	public String readPath() throws IOException {
+		skipWhitespace();
+		boolean quoted = (peek() == '"');
+		if (quoted) {
+			position++;
+		}
+
+		// Most pathnames have no escapes, and lie whole in the buffer, so can
+		// be decoded where they are.
+		for (int index = position; index < limit; index++) {
+			byte aByte = buffer[index];
+			if (aByte == '\\') {
+				break;
+			} else if ((aByte == '\n') || (aByte == '\r') || (quoted && (aByte == '"'))) {
+				String pathname = new String(buffer, position, index - position, UTF_8);
+				position = index;
+				if (aByte == '"') {
+					position++;
+					skipWhitespace();
+				}
+				return pathname;
+			}
+		}
+
+		int length = 0;
+		boolean doingAnEscape = false;
+		int aChar = read();
+		while (aChar != -1) {
+			if (doingAnEscape) {
+				if (aChar == 'r') {
+					aChar = '\r';
+				} else if (aChar == 'n') {
+					aChar = '\n';
+				}
+				doingAnEscape = false;
+				length = append(length, aChar);
+			} else if (aChar == '\\') {
+				doingAnEscape = true;
+			} else if (quoted && (aChar == '"')) {
+				skipWhitespace();
+				break;
+			} else if ((aChar == '\n') || (aChar == '\r')) {
+				position--;
+				break;
+			} else {
+				length = append(length, aChar);
+			}
+			aChar = read();
+		}
+
+		// If we were in the middle of what we thought was an
+		// escape sequence, and we found the end of the path, then
+		// put the slash back on it.
+		if (doingAnEscape) {
+			length = append(length, '\\');
+		}
+		return new String(scratch, 0, length, UTF_8);
+	}
+
+	/**
+	 * Reads a date in the form yyyy.MM.dd.HH.mm.ss.SSS, as
+	 * CSumReader.readDate() does.  The usual form is decoded straight from
+	 * the bytes; anything else is left to SimpleDateFormat.
+	 *
+	 * @return The date
+	 * @throws IOException If the date can't be parsed, or an IO error happens.
+	 */
+	public Date readDate() throws IOException {
+		skipWhitespace();
+		if ((limit - position) < DATE_LENGTH) {
+			fill(DATE_LENGTH);
+		}
+		int start = position;
+		int length = Math.min(DATE_LENGTH, limit - position);
+		position += length;
+
+		Date date = null;
+		ParseException problem = null;
+		if (length == DATE_LENGTH) {
+			date = decodeDate(start);
+		}
+		if (date == null) {
+			try {
+				SimpleDateFormat formatter = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss.SSS");
+				date = formatter.parse(new String(buffer, start, length, UTF_8));
+			} catch (ParseException e) {
+				problem = e;
+			}
+		}
+
+		skipWhitespace();
+		if (problem != null) {
+			throw new IOException("Parse problem", problem);
+		}
+		return date;
+	}
+
+	/**
+	 * @param start Where a date starts in the buffer
+	 * @return The date, or null if it isn't in the usual form
+	 */
+	private Date decodeDate(int start) {
+		int year = digits(start, 4);
+		int month = digits(start + 5, 2);
+		int day = digits(start + 8, 2);
+		int hour = digits(start + 11, 2);
+		int minute = digits(start + 14, 2);
+		int second = digits(start + 17, 2);
+		int millisecond = digits(start + 20, 3);
+		if ((year < 0) || (month < 0) || (day < 0) || (hour < 0) || (minute < 0) ||
+				(second < 0) || (millisecond < 0)) {
+			return null;
+		}
+		for (int dot = start + 4; dot < start + 20; dot += 3) {
+			if (buffer[dot] != '.') {
+				return null;
+			}
+		}
+
+		// The same as SimpleDateFormat does with the fields it parses
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, minute, second);
+		calendar.set(Calendar.MILLISECOND, millisecond);
+		return calendar.getTime();
+	}
+
+	/**
+	 * @param start Where some digits start in the buffer
+	 * @param count How many digits
+	 * @return The number they make, or -1 if they aren't all digits
+	 */
+	private int digits(int start, int count) {
+		int value = 0;
+		for (int index = start; index < start + count; index++) {
+			int digit = buffer[index] - '0';
+			if ((digit < 0) || (digit > 9)) {
+				return -1;
+			}
+			value = (value * 10) + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * @param aByte A byte
+	 * @return true if it ends a word
+	 */
+	private static boolean isWordEnd(byte aByte) {
+		return (aByte == ' ') || (aByte == '\t') || (aByte == '\n') || (aByte == '\r');
+	}
+
+	/**
+	 * Adds part of the buffer to the scratch space.
+	 *
+	 * @param length The length of what is in the scratch space
+	 * @param start Where the part starts
+	 * @param end One past where it ends
+	 * @return The new length of what is in the scratch space
+	 */
+	private int append(int length, int start, int end) {
+		int count = end - start;
+		if (length + count > scratch.length) {
+			scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, length + count));
+		}
+		System.arraycopy(buffer, start, scratch, length, count);
+		return length + count;
+	}
+
+	/**
+	 * Adds a byte to the scratch space.
+	 *
+	 * @param length The length of what is in the scratch space
+	 * @param aByte The byte
+	 * @return The new length of what is in the scratch space
+	 */
+	private int append(int length, int aByte) {
+		if (length == scratch.length) {
+			scratch = Arrays.copyOf(scratch, length * 2);
+		}
+		scratch[length] = (byte) aByte;
+		return length + 1;
+	}
+
+	/**
+	 * Reads more of the input, moving what is left of the buffer to its
+	 * start, until there are at least some bytes left or the input runs out.
+	 *
+	 * @param count The number of bytes wanted (no more than the buffer holds)
+	 * @return true if there are that many
+	 * @throws IOException If an IO error happens.
+	 */
+	private boolean fill(int count) throws IOException {
+		if (ended) {
+			return (limit - position) >= count;
+		}
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		while (limit < count) {
+			int read = input.read(buffer, limit, buffer.length - limit);
+			if (read < 0) {
+				ended = true;
+				return false;
+			}
+			limit += read;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,352 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses what ParallelGzipOutputStream writes, several members at
+ * once, on a pool of threads, a few members ahead of the one being read.
+ * Each member's length is in its header, so members can be read in
+ * without being decompressed first.
+ * <p>
+ * open() hands back a stream that decompresses whatever is gzipped,
+ * whoever wrote it, and leaves everything else as it is.
+ */
+public class ParallelGzipInputStream extends InputStream {
+	/**
+	 * The first two bytes of a gzip member
+	 */
+	private static final int MAGIC1 = 0x1f;
+	private static final int MAGIC2 = 0x8b;
+
+	/**
+	 * How many members each thread may have decompressed ahead
+	 */
+	private static final int MEMBERS_PER_THREAD = 2;
+
+	/**
+	 * Where the members come from
+	 */
+	private final InputStream in;
+
+	/**
+	 * The threads members are decompressed on
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * The most members decompressed (or being decompressed) ahead
+	 */
+	private final int ahead;
+
+	/**
+	 * The members being decompressed, in order
+	 */
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+	/**
+	 * The number of members read in so far
+	 */
+	private long memberCount;
+
+	/**
+	 * true once the last member has been read in
+	 */
+	private boolean inputEnded;
+
+	/**
+	 * The decompressed member being read
+	 */
+	private byte[] current = new byte[0];
+
+	/**
+	 * The next byte to read in the current member
+	 */
+	private int position;
+
+	/**
+	 * Opens a stream that may or may not be gzipped.
+	 *
+	 * @param input The stream
+	 * @param threadCount The number of threads to decompress members written
+	 * by ParallelGzipOutputStream on
+	 * @return A stream of what is in the input: decompressed (on several
+	 * threads if it was written by ParallelGzipOutputStream) if it is
+	 * gzipped, otherwise just as it is
+	 * @throws IOException If the input can't be read
+	 */
+	public static InputStream open(InputStream input, int threadCount) throws IOException {
+		byte[] start = new byte[ParallelGzipOutputStream.HEADER_LENGTH];
+		PushbackInputStream pushback = new PushbackInputStream(input, start.length);
+		int count = 0;
+		while (count < start.length) {
+			int read = pushback.read(start, count, start.length - count);
+			if (read < 0) {
+				break;
+			}
+			count += read;
+		}
+		pushback.unread(start, 0, count);
+		if ((count < 2) || ((start[0] & 0xff) != MAGIC1) || ((start[1] & 0xff) != MAGIC2)) {
+			return pushback;
+		}
+		if ((count == start.length) && hasSizeField(start)) {
+			return new ParallelGzipInputStream(pushback, threadCount);
+		}
+		return new GZIPInputStream(pushback, 64 * 1024);
+	}
+
+	/**
+	 * @param stream A stream open() handed back
+	 * @return true if it is decompressing its input
+	 */
+	public static boolean isDecompressing(InputStream stream) {
+		return (stream instanceof ParallelGzipInputStream) || (stream instanceof GZIPInputStream);
+	}
+
+	/**
+	 * Constructs an instance.
+	 *
+	 * @param in The members, as written by ParallelGzipOutputStream
+	 * @param threadCount The number of threads to decompress them on
+	 */
+	public ParallelGzipInputStream(InputStream in, int threadCount) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1");
+		}
+		this.in = in;
+		pool = new ForkJoinPool(threadCount);
+		ahead = threadCount * MEMBERS_PER_THREAD;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if ((position == current.length) && !nextMember()) {
+			return -1;
+		}
+		return current[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int count) throws IOException {
+		if (count == 0) {
+			return 0;
+		}
+		if ((position == current.length) && !nextMember()) {
+			return -1;
+		}
+		int part = Math.min(count, current.length - position);
+		System.arraycopy(current, position, bytes, offset, part);
+		position += part;
+		return part;
+	}
+
+	@Override
+	public void close() throws IOException {
+		pool.shutdownNow();
+		in.close();
+	}
+
+	/**
+	 * Moves on to the next member that isn't empty, reading in more members
+	 * as room is made.
+	 *
+	 * @return false if there are no more
+	 * @throws IOException If a member can't be read, or is damaged
+	 */
+	private boolean nextMember() throws IOException {
+		while (position == current.length) {
+			fillPending();
+			Future<byte[]> next = pending.poll();
+			if (next == null) {
+				pool.shutdown();
+				return false;
+			}
+			try {
+				current = next.get();
+				position = 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while decompressing");
+			} catch (ExecutionException e) {
+				// The pool wraps checked exceptions in RuntimeExceptions.
+				for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+				}
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new IOException("Problem when trying to decompress", cause);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads in members, and starts decompressing them, until as many as
+	 * allowed are being decompressed ahead.
+	 * @throws IOException If a member can't be read
+	 */
+	private void fillPending() throws IOException {
+		while (!inputEnded && (pending.size() < ahead)) {
+			final byte[] member = readMember();
+			if (member == null) {
+				inputEnded = true;
+				return;
+			}
+			final long index = memberCount;
+			pending.add(pool.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return decompress(member, index);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Reads in the next member, as it is.
+	 *
+	 * @return The member, or null if there are no more
+	 * @throws IOException If it can't be read, or has no length in its header
+	 */
+	private byte[] readMember() throws IOException {
+		byte[] header = new byte[ParallelGzipOutputStream.HEADER_LENGTH];
+		int count = 0;
+		while (count < header.length) {
+			int read = in.read(header, count, header.length - count);
+			if (read < 0) {
+				break;
+			}
+			count += read;
+		}
+		if (count == 0) {
+			return null;
+		}
+		memberCount++;
+		if ((count < header.length) || !hasSizeField(header)) {
+			throw new IOException("Member " + memberCount + " wasn't written by csum, or is damaged");
+		}
+		long length = (header[16] & 0xffL) | ((header[17] & 0xffL) << 8) | ((header[18] & 0xffL) << 16)
+				| ((header[19] & 0xffL) << 24);
+		if (length < header.length + ParallelGzipOutputStream.TRAILER_LENGTH) {
+			throw new IOException("Member " + memberCount + " is damaged");
+		}
+		byte[] member = new byte[(int) length];
+		System.arraycopy(header, 0, member, 0, header.length);
+		count = header.length;
+		while (count < member.length) {
+			int read = in.read(member, count, member.length - count);
+			if (read < 0) {
+				throw new EOFException("The input ends part way through member " + memberCount);
+			}
+			count += read;
+		}
+		return member;
+	}
+
+	/**
+	 * Decompresses a member.
+	 *
+	 * @param member The member
+	 * @param index Its number, for messages
+	 * @return What is in it
+	 * @throws IOException If it is damaged
+	 */
+	private static byte[] decompress(byte[] member, long index) throws IOException {
+		int trailer = member.length - ParallelGzipOutputStream.TRAILER_LENGTH;
+		long size = getInt(member, trailer + 4);
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IOException("Member " + index + " is damaged");
+		}
+		byte[] data = new byte[(int) size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(member, ParallelGzipOutputStream.HEADER_LENGTH,
+					trailer - ParallelGzipOutputStream.HEADER_LENGTH);
+			int length = 0;
+			byte[] beyond = new byte[1];
+			while (!inflater.finished()) {
+				int count;
+				if (length < data.length) {
+					count = inflater.inflate(data, length, data.length - length);
+					length += count;
+				} else if (inflater.inflate(beyond) > 0) {
+					throw new IOException("Member " + index + " is damaged (it holds more than its trailer says)");
+				} else {
+					count = 0;
+				}
+				if ((count == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Member " + index + " is damaged (it ends too soon)");
+				}
+			}
+			if (length != data.length) {
+				throw new IOException("Member " + index + " is damaged (it holds less than its trailer says)");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Member " + index + " is damaged", e);
+		} finally {
+			inflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		if (crc.getValue() != getInt(member, trailer)) {
+			throw new IOException("Member " + index + " is damaged (its CRC doesn't match)");
+		}
+		return data;
+	}
+
+	/**
+	 * @param header The start of a member
+	 * @return true if it has the extra field ParallelGzipOutputStream
+	 * writes, giving its length
+	 */
+	private static boolean hasSizeField(byte[] header) {
+		return ((header[0] & 0xff) == MAGIC1) && ((header[1] & 0xff) == MAGIC2) && (header[2] == 8) && (header[3] == 4)
+				&& (header[10] == 8) && (header[11] == 0)
+				&& (header[12] == ParallelGzipOutputStream.SIZE_ID1) && (header[13] == ParallelGzipOutputStream.SIZE_ID2)
+				&& (header[14] == 4) && (header[15] == 0);
+	}
+
+	/**
+	 * @param bytes An array
+	 * @param offset Where 4 bytes start, least significant first
+	 * @return Their value
+	 */
+	private static long getInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xffL) | ((bytes[offset + 1] & 0xffL) << 8)
+				| ((bytes[offset + 2] & 0xffL) << 16) | ((bytes[offset + 3] & 0xffL) << 24);
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses what is written to it with gzip, on several threads at once,
+ * as pigz does.  What is written is cut into blocks, and each block is
+ * compressed on its own, on a pool of threads, into a gzip member of its
+ * own; the members are written out in order.  gzip reads a series of
+ * members as one file, so the output is an ordinary gzip file.
+ * <p>
+ * Each member's header has an extra field (with the ID "CS") holding the
+ * length of the whole member, as 4 bytes, least significant first, as BGZF
+ * does, so a reader can find where each member ends without decompressing
+ * it, and decompress several at once (see ParallelGzipInputStream).
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+	/**
+	 * The size of each block by default (256 KB)
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+	/**
+	 * The first ID byte of the extra field giving the length of a member
+	 */
+	static final byte SIZE_ID1 = 'C';
+
+	/**
+	 * The second ID byte of the extra field giving the length of a member
+	 */
+	static final byte SIZE_ID2 = 'S';
+
+	/**
+	 * The length of a member's header: the fixed part, the length of the
+	 * extra field, and the extra field
+	 */
+	static final int HEADER_LENGTH = 10 + 2 + 8;
+
+	/**
+	 * The length of a member's trailer: the CRC-32 and the length of the data
+	 */
+	static final int TRAILER_LENGTH = 8;
+
+	/**
+	 * How many blocks each thread may have waiting to be written
+	 */
+	private static final int BLOCKS_PER_THREAD = 2;
+
+	/**
+	 * Where the members go
+	 */
+	private final OutputStream out;
+
+	/**
+	 * The size of each block
+	 */
+	private final int blockSize;
+
+	/**
+	 * The threads blocks are compressed on
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * The most blocks being compressed, or waiting to be written, at once
+	 */
+	private final int ahead;
+
+	/**
+	 * The members being made, in order
+	 */
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+	/**
+	 * The block being filled
+	 */
+	private byte[] block;
+
+	/**
+	 * How much of the block has been filled
+	 */
+	private int length;
+
+	/**
+	 * true once closed
+	 */
+	private boolean closed;
+
+	/**
+	 * Constructs an instance that uses blocks of the default size.
+	 *
+	 * @param out Where the compressed bytes go
+	 * @param threadCount The number of threads to compress on
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int threadCount) {
+		this(out, threadCount, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Constructs an instance.
+	 *
+	 * @param out Where the compressed bytes go
+	 * @param threadCount The number of threads to compress on
+	 * @param blockSize The size of each block
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int threadCount, int blockSize) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1");
+		}
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("The block size must be positive");
+		}
+		this.out = out;
+		this.blockSize = blockSize;
+		pool = new ForkJoinPool(threadCount);
+		ahead = threadCount * BLOCKS_PER_THREAD;
+		block = new byte[blockSize];
+	}
+
+	@Override
+	public void write(int aByte) throws IOException {
+		if (length == blockSize) {
+			submitBlock();
+		}
+		block[length++] = (byte) aByte;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int count) throws IOException {
+		while (count > 0) {
+			if (length == blockSize) {
+				submitBlock();
+			}
+			int part = Math.min(count, blockSize - length);
+			System.arraycopy(bytes, offset, block, length, part);
+			length += part;
+			offset += part;
+			count -= part;
+		}
+	}
+
+	/**
+	 * Compresses what has been written so far (as a block of its own, if
+	 * the block isn't full), writes it out, and flushes the stream below.
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (length > 0) {
+			submitBlock();
+		}
+		while (!pending.isEmpty()) {
+			writeMember();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			flush();
+		} finally {
+			pool.shutdown();
+			out.close();
+		}
+	}
+
+	/**
+	 * Starts compressing the block, writing out the oldest member first if
+	 * there are as many being made as allowed.
+	 * @throws IOException
+	 */
+	private void submitBlock() throws IOException {
+		while (pending.size() >= ahead) {
+			writeMember();
+		}
+		final byte[] data = block;
+		final int dataLength = length;
+		pending.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compress(data, dataLength);
+			}
+		}));
+		block = new byte[blockSize];
+		length = 0;
+	}
+
+	/**
+	 * Waits for the oldest member to be made, and writes it out.
+	 * @throws IOException
+	 */
+	private void writeMember() throws IOException {
+		try {
+			out.write(pending.poll().get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException("Problem when trying to compress", cause);
+		}
+	}
+
+	/**
+	 * Compresses a block into a gzip member.
+	 *
+	 * @param data The block
+	 * @param dataLength How much of it to compress
+	 * @return The member
+	 */
+	static byte[] compress(byte[] data, int dataLength) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		byte[] member;
+		int memberLength = HEADER_LENGTH;
+		try {
+			deflater.setInput(data, 0, dataLength);
+			deflater.finish();
+			// Deflate adds at most a few bytes per 16 KB to what won't compress.
+			member = new byte[HEADER_LENGTH + dataLength + (dataLength >> 12) + 64];
+			while (!deflater.finished()) {
+				if (memberLength == member.length - TRAILER_LENGTH) {
+					member = Arrays.copyOf(member, member.length * 2);
+				}
+				memberLength += deflater.deflate(member, memberLength, member.length - TRAILER_LENGTH - memberLength);
+			}
+		} finally {
+			deflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, dataLength);
+		memberLength = putInt(member, memberLength, crc.getValue());
+		memberLength = putInt(member, memberLength, dataLength);
+
+		member[0] = 0x1f;
+		member[1] = (byte) 0x8b;
+		member[2] = Deflater.DEFLATED;
+		member[3] = 4; // FEXTRA
+		// No modification time (4 bytes of 0), no extra flags, unknown OS
+		member[9] = (byte) 0xff;
+		member[10] = 8;
+		member[11] = 0;
+		member[12] = SIZE_ID1;
+		member[13] = SIZE_ID2;
+		member[14] = 4;
+		member[15] = 0;
+		putInt(member, 16, memberLength);
+		return Arrays.copyOf(member, memberLength);
+	}
+
+	/**
+	 * Puts 4 bytes in an array, least significant first.
+	 *
+	 * @param bytes The array
+	 * @param offset Where to put them
+	 * @param value The value (its low 32 bits)
+	 * @return Where they end
+	 */
+	private static int putInt(byte[] bytes, int offset, long value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >>> 8);
+		bytes[offset + 2] = (byte) (value >>> 16);
+		bytes[offset + 3] = (byte) (value >>> 24);
+		return offset + 4;
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what a run does, and times where it spends its time, so a slow run
+ * can be told to be waiting on the disks (stat, list, read) or on the
+ * processor (digest, parse, resolve).  Timers add up the time of every
+ * thread, so with several threads they can add up to more than the run took.
+ * <p>
+ * Whatever does the work is handed one of these (or null, to not measure)
+ * and records into it; all the methods may be called from any thread.
+ */
+public class Metrics {
+	/**
+	 * What time is spent on
+	 */
+	public enum Timer {
+		/** Reading the attributes of files */
+		STAT("stat"),
+		/** Opening directories to list them */
+		LIST("list"),
+		/** Reading files (not counting mapped ones, whose reading happens as they are digested) */
+		READ("read"),
+		/** Computing checksums */
+		DIGEST("digest"),
+		/** Reading entries from archives */
+		PARSE("parse"),
+		/** Comparing listings, once their entries are read */
+		RESOLVE("resolve");
+
+		/**
+		 * The name in the summary
+		 */
+		private final String label;
+
+		Timer(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * @return The name in the summary
+		 */
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	/**
+	 * What is counted
+	 */
+	public enum Counter {
+		/** Entries listed, however their checksum was found */
+		FILES("files"),
+		/** Bytes in the entries listed */
+		BYTES("bytes"),
+		/** Files read to compute their checksum */
+		HASHED_FILES("hashedFiles"),
+		/** Bytes read to compute checksums */
+		HASHED_BYTES("hashedBytes"),
+		/** Directories listed */
+		DIRECTORIES("directories"),
+		/** Entries read from archives */
+		PARSED_ENTRIES("parsedEntries");
+
+		/**
+		 * The name in the summary
+		 */
+		private final String label;
+
+		Counter(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * @return The name in the summary
+		 */
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	/**
+	 * Nanoseconds spent, by timer
+	 */
+	private final AtomicLongArray nanos = new AtomicLongArray(Timer.values().length);
+
+	/**
+	 * Times each timer was recorded
+	 */
+	private final AtomicLongArray timings = new AtomicLongArray(Timer.values().length);
+
+	/**
+	 * The counts, by counter
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(Counter.values().length);
+
+	/**
+	 * When the run started (System.nanoTime())
+	 */
+	private final long startNanos;
+
+	/**
+	 * The entry most recently listed, or null
+	 */
+	private volatile String current;
+
+	/**
+	 * The number of files expected to be listed, or 0 if not known
+	 */
+	private volatile long expectedFiles;
+
+	/**
+	 * Starts measuring a run.
+	 */
+	public Metrics() {
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Records time spent, from a start time to now.
+	 *
+	 * @param timer What the time was spent on
+	 * @param start When it started (System.nanoTime())
+	 * @return Now (System.nanoTime()), to start timing whatever comes next
+	 */
+	public long record(Timer timer, long start) {
+		long now = System.nanoTime();
+		add(timer, now - start);
+		return now;
+	}
+
+	/**
+	 * Records time spent.
+	 *
+	 * @param timer What the time was spent on
+	 * @param elapsed The nanoseconds spent
+	 */
+	public void add(Timer timer, long elapsed) {
+		nanos.addAndGet(timer.ordinal(), elapsed);
+		timings.incrementAndGet(timer.ordinal());
+	}
+
+	/**
+	 * Adds to a count.
+	 *
+	 * @param counter The count
+	 * @param amount How much to add
+	 */
+	public void add(Counter counter, long amount) {
+		counts.addAndGet(counter.ordinal(), amount);
+	}
+
+	/**
+	 * @param timer A timer
+	 * @return The nanoseconds recorded
+	 */
+	public long getNanos(Timer timer) {
+		return nanos.get(timer.ordinal());
+	}
+
+	/**
+	 * @param timer A timer
+	 * @return The number of times it was recorded
+	 */
+	public long getTimings(Timer timer) {
+		return timings.get(timer.ordinal());
+	}
+
+	/**
+	 * @param counter A counter
+	 * @return Its count
+	 */
+	public long getCount(Counter counter) {
+		return counts.get(counter.ordinal());
+	}
+
+	/**
+	 * Notes the entry most recently listed, for the progress line.
+	 *
+	 * @param pathname Its pathname
+	 */
+	public void setCurrent(String pathname) {
+		current = pathname;
+	}
+
+	/**
+	 * @return The entry most recently listed, or null
+	 */
+	public String getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Sets how many files the run is expected to list (say, as many as the
+	 * listing before it), so the progress line can say when it might finish.
+	 *
+	 * @param files The number of files, or 0 if not known
+	 */
+	public void setExpectedFiles(long files) {
+		expectedFiles = files;
+	}
+
+	/**
+	 * @return Seconds since the run started
+	 */
+	public double getElapsedSeconds() {
+		return (System.nanoTime() - startNanos) / 1e9;
+	}
+
+	/**
+	 * @return Whether the time recorded was mostly spent waiting on the
+	 * disks ("io") or the processor ("cpu"), or "unknown" if none was
+	 */
+	public String getBound() {
+		long io = getNanos(Timer.STAT) + getNanos(Timer.LIST) + getNanos(Timer.READ);
+		long cpu = getNanos(Timer.DIGEST) + getNanos(Timer.PARSE) + getNanos(Timer.RESOLVE);
+		if (io + cpu == 0) {
+			return "unknown";
+		}
+		return (io >= cpu) ? "io" : "cpu";
+	}
+
+	/**
+	 * @return A line saying how far the run has got, how fast it is going,
+	 * where it is and, if known, how long it has left
+	 */
+	public String getProgressLine() {
+		double seconds = Math.max(getElapsedSeconds(), 1e-3);
+		long files = getCount(Counter.FILES);
+		double filesPerSecond = files / seconds;
+		StringBuilder line = new StringBuilder();
+		line.append(String.format(Locale.ROOT, "# Progress: %d files, %.1f MB, %.0f files/s, %.1f MB/s",
+				files, getCount(Counter.BYTES) / 1048576.0, filesPerSecond,
+				getCount(Counter.HASHED_BYTES) / 1048576.0 / seconds));
+		if (getCount(Counter.PARSED_ENTRIES) > 0) {
+			line.append(", ").append(getCount(Counter.PARSED_ENTRIES)).append(" entries read");
+		}
+		String pathname = current;
+		if (pathname != null) {
+			int slash = pathname.lastIndexOf('/');
+			line.append(", in ").append((slash < 0) ? pathname : pathname.substring(0, slash + 1));
+		}
+		long expected = expectedFiles;
+		if ((expected > files) && (filesPerSecond > 0)) {
+			long left = (long) ((expected - files) / filesPerSecond);
+			line.append(String.format(Locale.ROOT, ", about %d:%02d:%02d left", left / 3600, (left / 60) % 60, left % 60));
+		}
+		return line.toString();
+	}
+
+	/**
+	 * @return Everything measured, as a JSON object
+	 */
+	public String toJson() {
+		double seconds = getElapsedSeconds();
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append(String.format(Locale.ROOT, "  \"elapsedSeconds\": %.3f,\n", seconds));
+		for (Counter counter : Counter.values()) {
+			json.append("  \"").append(counter.getLabel()).append("\": ").append(getCount(counter)).append(",\n");
+		}
+		json.append(String.format(Locale.ROOT, "  \"filesPerSecond\": %.1f,\n",
+				(seconds > 0) ? getCount(Counter.FILES) / seconds : 0.0));
+		json.append(String.format(Locale.ROOT, "  \"hashedMegabytesPerSecond\": %.1f,\n",
+				(seconds > 0) ? getCount(Counter.HASHED_BYTES) / 1048576.0 / seconds : 0.0));
+		json.append("  \"timers\": {\n");
+		Timer[] timers = Timer.values();
+		for (int index = 0; index < timers.length; index++) {
+			json.append(String.format(Locale.ROOT, "    \"%s\": {\"count\": %d, \"seconds\": %.3f}%s\n",
+					timers[index].getLabel(), getTimings(timers[index]), getNanos(timers[index]) / 1e9,
+					(index + 1 < timers.length) ? "," : ""));
+		}
+		json.append("  },\n");
+		json.append("  \"bound\": \"").append(getBound()).append("\"\n");
+		json.append("}\n");
+		return json.toString();
+	}
+}
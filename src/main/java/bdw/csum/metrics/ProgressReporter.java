@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.metrics;
+
+import java.io.PrintStream;
+
+/**
+ * Prints a progress line (see Metrics.getProgressLine()) every so often,
+ * on a thread of its own, until stopped.
+ */
+public class ProgressReporter {
+	/**
+	 * What to report on
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * Milliseconds between lines
+	 */
+	private final long intervalMillis;
+
+	/**
+	 * Where the lines go
+	 */
+	private final PrintStream out;
+
+	/**
+	 * The thread printing the lines, or null if not started
+	 */
+	private Thread thread;
+
+	/**
+	 * @param metrics What to report on
+	 * @param intervalMillis Milliseconds between lines
+	 * @param out Where the lines go (usually System.err)
+	 */
+	public ProgressReporter(Metrics metrics, long intervalMillis, PrintStream out) {
+		if (intervalMillis < 1) {
+			throw new IllegalArgumentException("The interval must be positive");
+		}
+		this.metrics = metrics;
+		this.intervalMillis = intervalMillis;
+		this.out = out;
+	}
+
+	/**
+	 * Starts printing lines.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(intervalMillis);
+						out.println(metrics.getProgressLine());
+					}
+				} catch (InterruptedException e) {
+					// Told to stop
+				}
+			}
+		}, "csum-progress");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops printing lines, waiting for any being printed to finish.
+	 */
+	public synchronized void stop() {
+		if (thread == null) {
+			return;
+		}
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.io.ArchiveReader;
+import bdw.csum.io.ParallelGzipInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Turns text listings into binary ones (see BinaryArchiveWriter) and back.
+ * Comments are carried over as they are, and entries are written as
+ * FileEntry.toString() writes them, so a listing written by csum comes back
+ * from being turned into binary and back exactly as it was.  Either may be
+ * gzipped; what they are turned into isn't.
+ */
+public class ArchiveConverter {
+	/**
+	 * The comment that starts a listing (written afresh in either form)
+	 */
+	private static final String CSUM_COMMENT = "CSum";
+
+	/**
+	 * Turns a text listing into a binary one.
+	 *
+	 * @param input The text listing
+	 * @param output Where the binary listing goes (flushed, but not closed)
+	 * @return The number of entries
+	 * @throws IOException If the listing can't be read or written, or is
+	 * already binary
+	 */
+	public static long toBinary(InputStream input, OutputStream output) throws IOException {
+		ArchiveReader in = new ArchiveReader(ParallelGzipInputStream.open(input, Runtime.getRuntime().availableProcessors()));
+		BinaryArchiveWriter writer = new BinaryArchiveWriter(output);
+		long count = 0;
+		while (true) {
+			in.skipWhitespace();
+			int aChar = in.peek();
+			if (aChar == -1) {
+				break;
+			} else if (aChar == '#') {
+				in.read();
+				String text = in.readToEndOfLine();
+				String word = firstWord(text);
+				if (word.equalsIgnoreCase(ArchiveQueue.VERSION_COMMENT)) {
+					if (!text.trim().endsWith(" 1")) {
+						throw new IOException("Only text (Version 1) listings can be turned into binary ones");
+					}
+				} else if (!text.trim().equals(CSUM_COMMENT)) {
+					writer.writeComment(text);
+				}
+			} else if ((aChar == '\n') || (aChar == '\r')) {
+				in.read();
+			} else {
+				writer.write(new FileEntry(in.readHexString(), in.readLong(), in.readDate(), in.readPath()));
+				count++;
+				in.skipToEndOfLine();
+			}
+		}
+		writer.finish();
+		return count;
+	}
+
+	/**
+	 * Turns a binary listing into a text one.
+	 *
+	 * @param input The binary listing
+	 * @param output Where the text listing goes (flushed, but not closed)
+	 * @return The number of entries
+	 * @throws IOException If the listing can't be read or written, isn't
+	 * binary, or is damaged
+	 */
+	public static long toText(InputStream input, Writer output) throws IOException {
+		ArchiveReader in = new ArchiveReader(ParallelGzipInputStream.open(input, Runtime.getRuntime().availableProcessors()));
+		while (true) {
+			in.skipWhitespace();
+			int aChar = in.read();
+			if (aChar == '#') {
+				String text = in.readToEndOfLine();
+				in.skipLine();
+				if (firstWord(text).equalsIgnoreCase(ArchiveQueue.VERSION_COMMENT)) {
+					if (!text.trim().endsWith(" " + BinaryArchiveWriter.VERSION)) {
+						throw new IOException("Only binary (Version 2) listings can be turned into text ones");
+					}
+					break;
+				}
+			} else if ((aChar != '\n') && (aChar != '\r')) {
+				throw new IOException("Only binary (Version 2) listings can be turned into text ones");
+			}
+		}
+
+		output.write("# " + CSUM_COMMENT + "\n");
+		output.write("# " + ArchiveQueue.VERSION_COMMENT + " 1\n");
+		BinaryArchiveReader blocks = new BinaryArchiveReader(in);
+		long count = 0;
+		while (true) {
+			int record = blocks.peek();
+			if (record == -1) {
+				break;
+			} else if (record == BinaryArchiveWriter.COMMENT) {
+				output.write("#" + blocks.readComment().readToEndOfLine() + "\n");
+			} else {
+				output.write(blocks.readEntry().toString() + "\n");
+				count++;
+			}
+		}
+		output.flush();
+		return count;
+	}
+
+	/**
+	 * @param text The text of a comment
+	 * @return Its first word
+	 */
+	private static String firstWord(String text) {
+		String trimmed = text.trim();
+		int end = 0;
+		while ((end < trimmed.length()) && !Character.isWhitespace(trimmed.charAt(end))) {
+			end++;
+		}
+		return trimmed.substring(0, end);
+	}
+}
@@ -15,18 +15,42 @@
  */
 package bdw.csum.queue;
 
+import bdw.csum.entry.DirectorySummary;
 import bdw.csum.entry.InvalidEntryException;
 import bdw.csum.entry.FileEntry;
-import bdw.csum.io.CSumReader;
-import bdw.csum.io.BuilderUtils;
+import bdw.csum.io.ArchiveReader;
+import bdw.csum.io.ParallelGzipInputStream;
+import bdw.csum.metrics.Metrics;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * A queue that draws its data from the an inputstream presumably written out earlier
  * by this program. The format should be a series of header comments (prefixed by #)
  * followed by a series of lines, where each line is the result of FileEntry.toString().
- * The input stream is assumed to be in UTF-8 format.
+ * The input stream is assumed to be in UTF-8 format, and is read a byte
+ * at a time (see ArchiveReader), which is far quicker than as characters.
+ * <p>
+ * After the last file of each directory may come a Summary comment for the
+ * directory (see DirectorySummarizer); these are collected as they are
+ * read.  Ranges of file entries can be skipped over without being parsed,
+ * which together with the summaries lets a comparison pass over whole
+ * directories that haven't changed.  Before an entry may come a Link
+ * comment, naming an earlier hard link to the same file.
+ * <p>
+ * A listing of several directories together (see MultiRootQueue) has a
+ * Directory comment for each, before its entries, giving the directory and
+ * the label its entries' pathnames start with.
+ * <p>
+ * A listing whose Version comment says 2 goes on in binary form after that
+ * comment (see BinaryArchiveWriter), and is read the same way.  A gzipped
+ * listing, of either form, is decompressed as it is read (on several
+ * threads, if written by ParallelGzipOutputStream).
  */
 public class ArchiveQueue extends EntryQueue {
 	/**
@@ -40,14 +64,101 @@ public class ArchiveQueue extends EntryQueue {
 	public static final String START_COMMENT = "Start";
 
 	/**
-	 * The reader used to read characters from the input stream
+	 * String to use to identify the algorithm the checksums were made with.
+	 * Archives without one were made with SHA-256.
 	 */
-	private CSumReader source;
-	
+	public static final String ALGORITHM_COMMENT = "Algorithm";
+
+	/**
+	 * String to use to identify the chunk size large files were checksummed
+	 * in. Archives without one checksummed every file whole.
+	 */
+	public static final String CHUNKED_COMMENT = "Chunked";
+
+	/**
+	 * String to use to identify the earlier archive checksums were reused from
+	 */
+	public static final String SINCE_COMMENT = "Since";
+
+	/**
+	 * String to use to identify the count of checksums reused from the earlier archive
+	 */
+	public static final String REUSED_COMMENT = "Reused";
+
+	/**
+	 * String to use to identify the count of checksums computed by reading files
+	 */
+	public static final String HASHED_COMMENT = "Hashed";
+
+	/**
+	 * String to use to identify the summary of a directory
+	 */
+	public static final String SUMMARY_COMMENT = "Summary";
+
+	/**
+	 * String to use to identify the earlier hard link to the same file as
+	 * the entry that follows
+	 */
+	public static final String LINK_COMMENT = "Link";
+
+	/**
+	 * String to use to identify the version of the listing's form (1 for
+	 * text, 2 for binary; see BinaryArchiveWriter)
+	 */
+	public static final String VERSION_COMMENT = "Version";
+
+	/**
+	 * The reader used to read the bytes of the input stream
+	 */
+	private ArchiveReader source;
+
+	/**
+	 * The reader of the blocks of a binary listing, once its Version
+	 * comment has been read, or null for a text listing
+	 */
+	private BinaryArchiveReader blocks;
+
+	/**
+	 * The version of the listing's form
+	 */
+	private int version = 1;
+
+	/**
+	 * true if the listing is gzipped
+	 */
+	private boolean compressed;
+
+	/**
+	 * Number of file entries read (or skipped over) so far
+	 */
+	private long entryIndex;
+
+	/**
+	 * Ranges of file entries to skip over, as the index of the first
+	 * mapped to one past the last
+	 */
+	private final TreeMap<Long, Long> skipped = new TreeMap<Long, Long>();
+
+	/**
+	 * The directory summaries read so far, by pathname
+	 */
+	private final Map<String, DirectorySummary> summaries = new LinkedHashMap<String, DirectorySummary>();
+
+	/**
+	 * Where the time spent reading entries is recorded, or null
+	 */
+	private Metrics metrics;
+
+	/**
+	 * The earlier hard link given for the next entry, or null
+	 */
+	private String pendingLink;
+
 	/**
-	 * Utility class used to help do parsing
+	 * The directories listed, by the label their entries' pathnames start
+	 * with, where several were listed together
 	 */
-	private BuilderUtils parseUtils;
+	private final Map<String, String> roots = new LinkedHashMap<String, String>();
 	
 	/**
 	 * Constructs an archive queue.  Until it encounters comment lines
@@ -58,17 +169,69 @@ public class ArchiveQueue extends EntryQueue {
 	 */
 	public ArchiveQueue(InputStream input) throws InvalidEntryException {
 		super();
-		source = new CSumReader(input);
-		parseUtils = new BuilderUtils();
 		
-		// process and skip any leading comments.
 		try {
+			InputStream stream = ParallelGzipInputStream.open(input, Runtime.getRuntime().availableProcessors());
+			compressed = ParallelGzipInputStream.isDecompressing(stream);
+			source = new ArchiveReader(stream);
+
+			// process and skip any leading comments.
 			skipAllNonData();
 		} catch (Exception e) {
 			throw new InvalidEntryException("Problem when trying to read the archived entry", e);
 		}
 	}
 	
+	/**
+	 * Reads just the directory summaries of an archive, skipping over all its
+	 * file entries, which is much quicker than reading the entries.
+	 *
+	 * @param input The stream to read from
+	 * @return The summaries, by pathname (empty if the archive has none)
+	 * @throws InvalidEntryException If the archive can't be read
+	 */
+	public static Map<String, DirectorySummary> readSummaries(InputStream input) throws InvalidEntryException {
+		ArchiveQueue queue = new ArchiveQueue(input);
+		queue.skipEntries(0, Long.MAX_VALUE);
+		queue.isEmpty();
+		return queue.getDirectorySummaries();
+	}
+
+	/**
+	 * Skips over a range of file entries, as if they weren't there.  Only
+	 * entries not yet read can be skipped.
+	 *
+	 * @param start The index of the first entry to skip (the first in the archive being 0)
+	 * @param end One past the index of the last entry to skip
+	 */
+	public void skipEntries(long start, long end) {
+		if (end > start) {
+			skipped.put(start, end);
+		}
+	}
+
+	/**
+	 * @return The directory summaries read so far, by pathname, in the order read
+	 */
+	public Map<String, DirectorySummary> getDirectorySummaries() {
+		return Collections.unmodifiableMap(summaries);
+	}
+
+	/**
+	 * @return The version of the listing's form: 1 for text, 2 for binary
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return true if the listing is gzipped (and so is being decompressed
+	 * as it is read)
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @return true if there are no more entries in the queue
@@ -77,8 +240,7 @@ public class ArchiveQueue extends EntryQueue {
 	public boolean isEmpty() {
 		try {
 			skipAllNonData();
-			if (readChar() != -1) {
-				unreadChar();
+			if (hasEntry()) {
 				return false;
 			}
 		} catch (IOException e) {
@@ -95,13 +257,20 @@ public class ArchiveQueue extends EntryQueue {
 	 */
 	@Override
 	public FileEntry dequeue() throws InvalidEntryException {
+		long start = (metrics == null) ? 0 : System.nanoTime();
 		while (true) {
 			try {
 				FileEntry entry = null;
 				skipAllNonData();
-				if (readChar() != -1) {
-					unreadChar();
-					entry = new FileEntry(source);
+				if (hasEntry()) {
+					entry = readEntry();
+					entry.setLinkedTo(pendingLink);
+					pendingLink = null;
+					entryIndex++;
+				}
+				if (metrics != null) {
+					metrics.record(Metrics.Timer.PARSE, start);
+					metrics.add(Metrics.Counter.PARSED_ENTRIES, (entry == null) ? 0 : 1);
 				}
 				return entry;
 			} catch (Exception e) {
@@ -110,79 +279,169 @@ public class ArchiveQueue extends EntryQueue {
 		}
 	}
 
+	/**
+	 * Reads a file entry (in the form FileEntry.toString() writes).
+	 * @return The entry
+	 * @throws IOException
+	 */
+	private FileEntry readEntry() throws IOException {
+		if (blocks != null) {
+			return blocks.readEntry();
+		}
+		byte[] checksum = source.readHexString();
+		long length = source.readLong();
+		Date lastMod = source.readDate();
+		return new FileEntry(checksum, length, lastMod, source.readPath());
+	}
+
+	/**
+	 * @return true if an entry comes next (once skipAllNonData() has been called)
+	 * @throws IOException
+	 */
+	private boolean hasEntry() throws IOException {
+		if (blocks != null) {
+			return blocks.peek() == BinaryArchiveWriter.ENTRY;
+		}
+		return source.peek() != -1;
+	}
+
 	protected void skipAllNonData() throws IOException {
+		if (blocks != null) {
+			skipAllBinaryNonData();
+			return;
+		}
 		while (true) {
-			skipWhitespace();
-			int aChar = readChar();
+			source.skipWhitespace();
+			int aChar = source.peek();
 			switch (aChar) {
 				case '#':
-					skipWhitespace();
-					String word = source.readWord();
-					if (!word.equals("")) {
-						skipWhitespace();
-						if (word.equalsIgnoreCase(ArchiveQueue.DIR_COMMENT)) {
-							basePath = source.readPath();
-						} else if (word.equalsIgnoreCase(ArchiveQueue.START_COMMENT)) {
-							startTime = source.readDate();
-						}
+					source.read();
+					readComment(source);
+					if (version == BinaryArchiveWriter.VERSION) {
+						source.skipLine();
+						blocks = new BinaryArchiveReader(source);
+						skipAllBinaryNonData();
+						return;
 					}
-					aChar = readChar();
-					while ((!isEol(aChar)) && (aChar != -1)) {
-						aChar = readChar();
-					}
-					unreadChar();
+					source.skipToEndOfLine();
 					break;
 				case '\n':
 				case '\r':
+					source.read();
 					break;
 				default:
-					unreadChar();
-					return;
+					if ((aChar == -1) || !isSkipped(entryIndex)) {
+						return;
+					}
+					source.skipLine();
+					pendingLink = null;
+					entryIndex++;
+					break;
 			}
 		}
 	}
 
 	
 	/**
-	 * Skips over whitespace.
-	 * 
-	 * @throws IOException If an IO exception happens.
+	 * The binary form of skipAllNonData(): reads comments, and skips
+	 * entries to be skipped, until an entry to read or the end.
+	 * @throws IOException
 	 */
-	private void skipWhitespace() throws IOException {
-		int aChar = readChar();
+	private void skipAllBinaryNonData() throws IOException {
+		while (true) {
+			int record = blocks.peek();
+			if (record == BinaryArchiveWriter.COMMENT) {
+				readComment(blocks.readComment());
+			} else if ((record == -1) || !isSkipped(entryIndex)) {
+				return;
+			} else {
+				blocks.readEntry();
+				pendingLink = null;
+				entryIndex++;
+			}
+		}
+	}
 
-		while ((aChar != -1) && ((aChar == ' ') || (aChar == '\t'))) {
-			aChar = readChar();
+	/**
+	 * Reads a comment, from just after its #, taking note of what it says.
+	 *
+	 * @param in Where the comment is read from
+	 * @throws IOException If the Version comment gives a version this can't read
+	 */
+	private void readComment(ArchiveReader in) throws IOException {
+		String word = in.readWord();
+		if (word.equals("")) {
+			return;
 		}
+		if (word.equalsIgnoreCase(ArchiveQueue.DIR_COMMENT)) {
+			readDirectory(in);
+		} else if (word.equalsIgnoreCase(ArchiveQueue.START_COMMENT)) {
+			startTime = in.readDate();
+		} else if (word.equalsIgnoreCase(ArchiveQueue.ALGORITHM_COMMENT)) {
+			algorithm = in.readWord();
+		} else if (word.equalsIgnoreCase(ArchiveQueue.CHUNKED_COMMENT)) {
+			chunkSize = in.readLong();
+		} else if (word.equalsIgnoreCase(ArchiveQueue.SUMMARY_COMMENT)) {
+			byte[] checksum = in.readHexString();
+			long fileCount = in.readLong();
+			String pathname = in.readPath();
+			DirectorySummary summary = new DirectorySummary(pathname, checksum, fileCount, entryIndex);
+			summaries.put(summary.getPathname(), summary);
+		} else if (word.equalsIgnoreCase(ArchiveQueue.LINK_COMMENT)) {
+			pendingLink = in.readPath();
+		} else if (word.equalsIgnoreCase(ArchiveQueue.VERSION_COMMENT) && (blocks == null)) {
+			long value = in.readLong();
+			if ((value < 1) || (value > BinaryArchiveWriter.VERSION)) {
+				throw new IOException("Can't read a listing of version " + value);
+			}
+			version = (int) value;
+		}
+	}
 
-		if (aChar != -1) {
-			unreadChar();
+	/**
+	 * Reads the rest of a Directory comment: the directory listed, and
+	 * where several were listed together, the label of this one.  The base
+	 * path is the first directory.
+	 *
+	 * @param in Where the comment is read from
+	 * @throws IOException
+	 */
+	private void readDirectory(ArchiveReader in) throws IOException {
+		String directory = in.readPath();
+		in.skipWhitespace();
+		if (in.peek() != '"') {
+			basePath = directory;
+			return;
+		}
+		String label = in.readPath();
+		if (roots.isEmpty()) {
+			basePath = directory;
 		}
+		roots.put(label, directory);
 	}
 
 	/**
-	 * Reads a character from the input, putting a 1 character mark on
-	 * the reader before doing so.
-	 * 
-	 * @return The character
+	 * @param value Where to record the time spent reading entries, or null
+	 * to not record it
 	 */
-	private int readChar() throws IOException {
-		source.mark(1);
-		return source.read();
+	public void setMetrics(Metrics value) {
+		metrics = value;
 	}
 
 	/**
-	 * Unreads the character that readChar() returned
+	 * @return The directories listed, by the label their entries' pathnames
+	 * start with (like "./name/"), if several were listed together; otherwise empty
 	 */
-	private void unreadChar() throws IOException {
-		source.reset();
+	public Map<String, String> getRoots() {
+		return roots;
 	}
 
 	/**
-	 * @param aChar A character value
-	 * @return true if the character is a newline or carriage return
+	 * @param index The index of a file entry
+	 * @return true if it is to be skipped over
 	 */
-	private boolean isEol(int aChar) {
-		return ((aChar == '\n') || (aChar == '\r'));
+	private boolean isSkipped(long index) {
+		Map.Entry<Long, Long> range = skipped.floorEntry(index);
+		return (range != null) && (index < range.getValue());
 	}
 }
@@ -0,0 +1,217 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.DirectorySummarizer;
+import bdw.csum.entry.DirectorySummary;
+import bdw.csum.entry.FileEntry;
+import bdw.csum.io.BuilderUtils;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes a listing in the form ArchiveQueue reads: the header comments,
+ * then a line for each entry, with the summary of each directory following
+ * its last entry.
+ */
+public class ArchiveWriter {
+	/**
+	 * Where the listing goes
+	 */
+	private final Writer writer;
+
+	/**
+	 * Summarizes the directories of the listing
+	 */
+	private final DirectorySummarizer summarizer;
+
+	/**
+	 * Formats paths, dates and checksums
+	 */
+	private final BuilderUtils utils = new BuilderUtils();
+
+	/**
+	 * Reused for each line
+	 */
+	private final StringBuilder builder = new StringBuilder();
+
+	/**
+	 * Directory comments for roots whose entries are about to start, to go
+	 * after the summaries the next entry finishes
+	 */
+	private final StringBuilder pendingRoots = new StringBuilder();
+
+	/**
+	 * @param writer Where the listing goes
+	 * @param summarizer Summarizes the directories of the listing; one that
+	 * has already been given the entries before these, if carrying on a
+	 * listing; or null to not write summaries
+	 */
+	public ArchiveWriter(Writer writer, DirectorySummarizer summarizer) {
+		this.writer = writer;
+		this.summarizer = summarizer;
+	}
+
+	/**
+	 * Writes the header comments of a listing.
+	 *
+	 * @param algorithm The algorithm the checksums are made with
+	 * @param chunkSize The chunk size of tree checksums, or 0 for whole files
+	 * @param basePath The directory listed, or null if several are (see startRoot())
+	 * @param startTime When the listing was started
+	 * @param sincePath The earlier listing checksums were reused from, or null
+	 * @throws IOException
+	 */
+	public void writeHeader(String algorithm, long chunkSize, String basePath, Date startTime, String sincePath) throws IOException {
+		writer.write("# CSum\n");
+		writer.write("# Version 1\n");
+		writer.write("# " + ArchiveQueue.ALGORITHM_COMMENT + " " + algorithm + "\n");
+		if (chunkSize != 0) {
+			writer.write("# " + ArchiveQueue.CHUNKED_COMMENT + " " + chunkSize + "\n");
+		}
+
+		if (basePath != null) {
+			builder.setLength(0);
+			builder.append("# " + ArchiveQueue.DIR_COMMENT + " ");
+			utils.appendPath(builder, basePath);
+			writer.write(builder.toString() + "\n");
+		}
+
+		builder.setLength(0);
+		builder.append("# " + ArchiveQueue.START_COMMENT + " ");
+		utils.appendDate(builder, startTime);
+		writer.write(builder.toString() + "\n");
+
+		if (sincePath != null) {
+			builder.setLength(0);
+			builder.append("# " + ArchiveQueue.SINCE_COMMENT + " ");
+			utils.appendPath(builder, sincePath);
+			writer.write(builder.toString() + "\n");
+		}
+	}
+
+	/**
+	 * Writes an entry, after the summaries of any directories it shows to
+	 * be finished, and the earlier hard link it shares a file with, if any.
+	 * Entries must come in an order that keeps the files of each directory
+	 * together.
+	 *
+	 * @param entry The entry
+	 * @throws IOException
+	 */
+	public void write(FileEntry entry) throws IOException {
+		if (summarizer != null) {
+			writeSummaries(summarizer.add(entry));
+		}
+		writePendingRoots();
+		if (entry.getLinkedTo() != null) {
+			builder.setLength(0);
+			builder.append("# " + ArchiveQueue.LINK_COMMENT + " ");
+			utils.appendPath(builder, entry.getLinkedTo());
+			writer.write(builder.toString() + "\n");
+		}
+		writer.write(entry.toString() + "\n");
+	}
+
+	/**
+	 * Notes that the entries that follow are from another of several
+	 * directories listed together, with a Directory comment giving the
+	 * directory and the label its entries' pathnames start with.
+	 *
+	 * @param basePath The directory
+	 * @param label The label (see MultiRootQueue)
+	 * @throws IOException
+	 */
+	public void startRoot(String basePath, String label) throws IOException {
+		builder.setLength(0);
+		builder.append("# " + ArchiveQueue.DIR_COMMENT + " ");
+		utils.appendPath(builder, basePath);
+		builder.append(" ");
+		utils.appendPath(builder, "./" + label + "/");
+		pendingRoots.append(builder).append("\n");
+	}
+
+	/**
+	 * Notes an entry that couldn't be listed.
+	 * @throws IOException
+	 */
+	public void writeProblem() throws IOException {
+		writer.write("# Problem with entry\n");
+	}
+
+	/**
+	 * Writes a comment with a count, such as those that trail the entries.
+	 *
+	 * @param name The name of the comment (e.g. ArchiveQueue.REUSED_COMMENT)
+	 * @param count The count
+	 * @throws IOException
+	 */
+	public void writeCount(String name, long count) throws IOException {
+		writer.write("# " + name + " " + count + "\n");
+	}
+
+	/**
+	 * Writes the summaries of the directories still open, ending with the
+	 * root.  Called after the last entry.
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		writePendingRoots();
+		if (summarizer != null) {
+			writeSummaries(summarizer.finish());
+		}
+	}
+
+	/**
+	 * Flushes the underlying writer.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	/**
+	 * Writes out the Directory comments of roots that are starting.
+	 * @throws IOException
+	 */
+	private void writePendingRoots() throws IOException {
+		if (pendingRoots.length() > 0) {
+			writer.write(pendingRoots.toString());
+			pendingRoots.setLength(0);
+		}
+	}
+
+	/**
+	 * Writes out the summaries of directories, as comments.
+	 *
+	 * @param summaries The summaries
+	 * @throws IOException
+	 */
+	private void writeSummaries(List<DirectorySummary> summaries) throws IOException {
+		for (DirectorySummary summary : summaries) {
+			builder.setLength(0);
+			builder.append("# " + ArchiveQueue.SUMMARY_COMMENT + " ");
+			utils.appendHexString(builder, summary.getChecksum());
+			builder.append(" ");
+			builder.append(summary.getFileCount());
+			builder.append(" ");
+			utils.appendPath(builder, summary.getPathname());
+			writer.write(builder.toString() + "\n");
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * The entries of an earlier listing, kept so that a new scan can reuse the
+ * checksums of files that don't appear to have changed since.  A file is
+ * taken to be unchanged if it has the same relative path, size and last
+ * modification time as it had in the earlier listing.
+ * Once built, this is only read, so may be shared between threads.
+ */
+public class Baseline {
+	/**
+	 * The earlier entries, by pathname
+	 */
+	private final HashMap<String, FileEntry> entries;
+
+	/**
+	 * The algorithm the earlier checksums were made with
+	 */
+	private final String algorithm;
+
+	/**
+	 * The chunk size the earlier checksums were made with, or 0
+	 */
+	private final long chunkSize;
+
+	/**
+	 * What to put in front of pathnames to look them up (after the ./)
+	 */
+	private final String prefix;
+
+	/**
+	 * Builds a baseline from all the entries in a queue (usually an ArchiveQueue)
+	 *
+	 * @param previous The queue to drain
+	 * @throws InvalidEntryException If the queue has a problem producing the entries
+	 */
+	public Baseline(EntryQueue previous) throws InvalidEntryException {
+		entries = new HashMap<String, FileEntry>();
+		algorithm = previous.getAlgorithm();
+		chunkSize = previous.getChunkSize();
+		prefix = "";
+		while (!previous.isEmpty()) {
+			FileEntry entry = previous.dequeue();
+			entries.put(entry.getPathname(), entry);
+		}
+	}
+
+	/**
+	 * @param whole The baseline to look in
+	 * @param prefix What to put in front of pathnames
+	 */
+	private Baseline(Baseline whole, String prefix) {
+		entries = whole.entries;
+		algorithm = whole.algorithm;
+		chunkSize = whole.chunkSize;
+		this.prefix = whole.prefix + prefix;
+	}
+
+	/**
+	 * Gives the part of this baseline for one of several directories listed
+	 * together (see MultiRootQueue), for a scan of just that directory.
+	 *
+	 * @param label The label of the directory
+	 * @return A baseline that looks pathnames up under the label
+	 */
+	public Baseline forRoot(String label) {
+		return new Baseline(this, label + "/");
+	}
+
+	/**
+	 * @return The name of the algorithm the earlier checksums were made with
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return The chunk size the earlier checksums were made with, or 0 if
+	 * files were checksummed whole
+	 */
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return The number of entries in the baseline
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Looks for an earlier entry for an apparently unchanged file.
+	 *
+	 * @param pathname The pathname relative to the root of the scan (with or without a leading ./)
+	 * @param length The current size of the file
+	 * @param lastMod The current last modification time of the file
+	 * @return The earlier entry, or null if there wasn't one or the file has changed
+	 */
+	public FileEntry find(String pathname, long length, Date lastMod) {
+		String key;
+		if (!pathname.startsWith("./")) {
+			key = "./" + prefix + pathname;
+		} else if (prefix.isEmpty()) {
+			key = pathname;
+		} else {
+			key = "./" + prefix + pathname.substring(2);
+		}
+		FileEntry entry = entries.get(key);
+		if ((entry != null) && (entry.getFileSize() == length) &&
+				(entry.getLastModTime() != null) && (entry.getLastModTime().equals(lastMod))) {
+			return entry;
+		}
+		return null;
+	}
+}
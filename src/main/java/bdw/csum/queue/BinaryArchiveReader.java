@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.io.ArchiveReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the records of a binary (Version 2) listing, as written by
+ * BinaryArchiveWriter, a block at a time.
+ */
+public class BinaryArchiveReader {
+	/**
+	 * The largest block believed (a larger length means the listing is damaged)
+	 */
+	private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The encoding of pathnames and comments
+	 */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Where the blocks come from, just past the Version comment
+	 */
+	private final ArchiveReader source;
+
+	/**
+	 * The contents of the current block
+	 */
+	private byte[] block = new byte[BinaryArchiveWriter.DEFAULT_BLOCK_SIZE + 1024];
+
+	/**
+	 * The next byte to read in the block
+	 */
+	private int position;
+
+	/**
+	 * The length of the contents of the block
+	 */
+	private int length;
+
+	/**
+	 * The number of blocks read so far
+	 */
+	private long blockCount;
+
+	/**
+	 * true once the empty block that ends the listing has been read
+	 */
+	private boolean ended;
+
+	/**
+	 * The pathname of the entry before, in UTF-8
+	 */
+	private byte[] lastPathname = new byte[256];
+
+	/**
+	 * The length of the pathname of the entry before (0 at the start of a block)
+	 */
+	private int lastPathnameLength;
+
+	/**
+	 * Checks the blocks
+	 */
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * @param source Where the blocks come from, just past the Version comment
+	 */
+	public BinaryArchiveReader(ArchiveReader source) {
+		this.source = source;
+	}
+
+	/**
+	 * Finds what the next record is, reading the next block if need be.
+	 *
+	 * @return BinaryArchiveWriter.ENTRY or COMMENT, or -1 if there are no more
+	 * @throws IOException If the listing can't be read, or is damaged
+	 */
+	public int peek() throws IOException {
+		while (position == length) {
+			if (ended || !readBlock()) {
+				return -1;
+			}
+		}
+		return block[position];
+	}
+
+	/**
+	 * Reads an entry.
+	 *
+	 * @return The entry
+	 * @throws IOException If the next record isn't an entry, or the listing
+	 * can't be read, or is damaged
+	 */
+	public FileEntry readEntry() throws IOException {
+		if (peek() != BinaryArchiveWriter.ENTRY) {
+			throw new IOException("Expected an entry in block " + blockCount);
+		}
+		position++;
+		int shared = readLength();
+		int rest = readLength();
+		if (shared > lastPathnameLength) {
+			throw new IOException("Block " + blockCount + " is damaged");
+		}
+		if (shared + rest > lastPathname.length) {
+			lastPathname = Arrays.copyOf(lastPathname, Math.max(lastPathname.length * 2, shared + rest));
+		}
+		System.arraycopy(block, take(rest), lastPathname, shared, rest);
+		lastPathnameLength = shared + rest;
+		String pathname = new String(lastPathname, 0, lastPathnameLength, UTF_8);
+		int checksumLength = readLength();
+		int checksumStart = take(checksumLength);
+		byte[] checksum = Arrays.copyOfRange(block, checksumStart, checksumStart + checksumLength);
+		long size = readVarint();
+		long millis = readVarint();
+		millis = (millis >>> 1) ^ -(millis & 1);
+		return new FileEntry(checksum, size, new Date(millis), pathname);
+	}
+
+	/**
+	 * Reads a comment.
+	 *
+	 * @return A reader of the text of the comment (everything after its #),
+	 * good until the next record is read
+	 * @throws IOException If the next record isn't a comment, or the listing
+	 * can't be read, or is damaged
+	 */
+	public ArchiveReader readComment() throws IOException {
+		if (peek() != BinaryArchiveWriter.COMMENT) {
+			throw new IOException("Expected a comment in block " + blockCount);
+		}
+		position++;
+		int textLength = readLength();
+		return new ArchiveReader(block, take(textLength), textLength);
+	}
+
+	/**
+	 * Reads the next block.
+	 *
+	 * @return false if it was the empty block that ends the listing
+	 * @throws IOException If the listing can't be read, or is damaged
+	 */
+	private boolean readBlock() throws IOException {
+		long blockLength = 0;
+		for (int shift = 0; ; shift += 7) {
+			int aByte = source.read();
+			if ((aByte < 0) || (shift > 28)) {
+				throw new IOException("The listing ends part way through, after block " + blockCount);
+			}
+			blockLength |= (long) (aByte & 0x7f) << shift;
+			if ((aByte & 0x80) == 0) {
+				break;
+			}
+		}
+		if (blockLength == 0) {
+			ended = true;
+			return false;
+		}
+		if (blockLength > MAX_BLOCK_SIZE) {
+			throw new IOException("Block " + (blockCount + 1) + " is damaged");
+		}
+		byte[] stored = new byte[4];
+		source.readFully(stored, 0, 4);
+		if (blockLength > block.length) {
+			block = new byte[(int) blockLength];
+		}
+		source.readFully(block, 0, (int) blockLength);
+		blockCount++;
+		crc.reset();
+		crc.update(block, 0, (int) blockLength);
+		long value = crc.getValue();
+		if ((stored[0] != (byte) (value >>> 24)) || (stored[1] != (byte) (value >>> 16))
+				|| (stored[2] != (byte) (value >>> 8)) || (stored[3] != (byte) value)) {
+			throw new IOException("Block " + blockCount + " is damaged (its CRC doesn't match)");
+		}
+		position = 0;
+		length = (int) blockLength;
+		lastPathnameLength = 0;
+		return true;
+	}
+
+	/**
+	 * Reads a varint that is a length within the block.
+	 *
+	 * @return The length
+	 * @throws IOException If the block is damaged
+	 */
+	private int readLength() throws IOException {
+		long value = readVarint();
+		if (value > length) {
+			throw new IOException("Block " + blockCount + " is damaged");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Reads a varint.
+	 *
+	 * @return The number
+	 * @throws IOException If the block is damaged
+	 */
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position == length) {
+				break;
+			}
+			byte aByte = block[position++];
+			value |= (long) (aByte & 0x7f) << shift;
+			if (aByte >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("Block " + blockCount + " is damaged");
+	}
+
+	/**
+	 * Passes over bytes of the block.
+	 *
+	 * @param count How many
+	 * @return Where they start
+	 * @throws IOException If the block hasn't that many left
+	 */
+	private int take(int count) throws IOException {
+		if (count > length - position) {
+			throw new IOException("Block " + blockCount + " is damaged");
+		}
+		int start = position;
+		position += count;
+		return start;
+	}
+}
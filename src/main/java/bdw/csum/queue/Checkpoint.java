@@ -0,0 +1,178 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Notes how far a listing being written to a file has got, so that if the
+ * run dies, a new run can pick up from there (see ResumePoint).  A checkpoint
+ * is taken every so often, by time or by bytes checksummed: the listing is
+ * flushed to disk, and its length recorded in a small properties file:
+ * <pre>
+ * archive-length = 123456789
+ * entries = 1000000
+ * position = ./some/directory/file.txt
+ * </pre>
+ * Whatever the listing has beyond that length when the run is resumed is
+ * cut off and done again, so a checkpoint is always consistent.  The file
+ * is replaced atomically, so a run dying while taking one leaves the last.
+ */
+public class Checkpoint {
+	/**
+	 * Key for the length of the listing as of the checkpoint
+	 */
+	public static final String LENGTH_KEY = "archive-length";
+
+	/**
+	 * Key for the number of entries in the listing as of the checkpoint
+	 */
+	public static final String ENTRIES_KEY = "entries";
+
+	/**
+	 * Key for the pathname of the last entry as of the checkpoint
+	 */
+	public static final String POSITION_KEY = "position";
+
+	/**
+	 * The checkpoint file
+	 */
+	private final File file;
+
+	/**
+	 * Most milliseconds between checkpoints, or 0 for no limit
+	 */
+	private final long interval;
+
+	/**
+	 * Most bytes checksummed between checkpoints, or 0 for no limit
+	 */
+	private final long byteInterval;
+
+	/**
+	 * When the last checkpoint was taken (or the run started), from System.nanoTime()
+	 */
+	private long lastTime = System.nanoTime();
+
+	/**
+	 * Bytes checksummed as of the last checkpoint
+	 */
+	private long lastBytes;
+
+	/**
+	 * @param file The checkpoint file
+	 * @param interval Most milliseconds between checkpoints, or 0 for no limit
+	 * @param byteInterval Most bytes checksummed between checkpoints, or 0 for no limit
+	 */
+	public Checkpoint(File file, long interval, long byteInterval) {
+		if ((interval < 0) || (byteInterval < 0)) {
+			throw new IllegalArgumentException("Checkpoint intervals can not be negative");
+		}
+		this.file = file;
+		this.interval = interval;
+		this.byteInterval = byteInterval;
+	}
+
+	/**
+	 * @return The checkpoint file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return true if there is a checkpoint to resume from
+	 */
+	public boolean exists() {
+		return file.isFile();
+	}
+
+	/**
+	 * @param hashedBytes The bytes checksummed so far in this run
+	 * @return true if it is time for another checkpoint
+	 */
+	public boolean isDue(long hashedBytes) {
+		if ((byteInterval > 0) && (hashedBytes - lastBytes >= byteInterval)) {
+			return true;
+		}
+		return (interval > 0) && (System.nanoTime() - lastTime >= interval * 1000000L);
+	}
+
+	/**
+	 * Records a checkpoint.  The listing must already be safely on disk.
+	 *
+	 * @param archiveLength The length of the listing
+	 * @param entryCount The number of entries in the listing
+	 * @param position The pathname of the last entry, or null if none
+	 * @param hashedBytes The bytes checksummed so far in this run
+	 * @throws IOException If the checkpoint can't be written
+	 */
+	public void save(long archiveLength, long entryCount, String position, long hashedBytes) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty(LENGTH_KEY, Long.toString(archiveLength));
+		properties.setProperty(ENTRIES_KEY, Long.toString(entryCount));
+		if (position != null) {
+			properties.setProperty(POSITION_KEY, position);
+		}
+
+		File temporary = new File(file.getPath() + ".tmp");
+		FileOutputStream output = new FileOutputStream(temporary);
+		try {
+			properties.store(output, "csum checkpoint");
+			output.getFD().sync();
+		} finally {
+			output.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		lastTime = System.nanoTime();
+		lastBytes = hashedBytes;
+	}
+
+	/**
+	 * @return The length of the listing as of the saved checkpoint
+	 * @throws IOException If the checkpoint can't be read, or is damaged
+	 */
+	public long loadArchiveLength() throws IOException {
+		Properties properties = new Properties();
+		InputStream input = new FileInputStream(file);
+		try {
+			properties.load(input);
+		} finally {
+			input.close();
+		}
+		try {
+			return Long.parseLong(properties.getProperty(LENGTH_KEY, "").trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("No " + LENGTH_KEY + " in checkpoint " + file, e);
+		}
+	}
+
+	/**
+	 * Removes the checkpoint, once the listing is finished.
+	 */
+	public void delete() {
+		file.delete();
+	}
+}
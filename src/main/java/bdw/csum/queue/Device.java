@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * A device (file store) that files being walked live on, along with
+ * statistics about the files read from it.  Work can be grouped by device
+ * so that each disk gets its own, separately sized, set of readers.
+ */
+public class Device {
+	/**
+	 * Identifies the device (the unix device number where there is one)
+	 */
+	private final Object id;
+
+	/**
+	 * The name of the file store, e.g. /dev/sda1
+	 */
+	private final String name;
+
+	/**
+	 * true if the device is believed to be a spinning disk
+	 */
+	private final boolean rotational;
+
+	private long fileCount;
+	private long byteCount;
+
+	/**
+	 * When the first read from the device started, and the last finished (System.nanoTime())
+	 */
+	private long firstStart = Long.MAX_VALUE;
+	private long lastEnd = Long.MIN_VALUE;
+
+	/**
+	 * @param id Identifies the device
+	 * @param name The name of the file store
+	 * @param rotational true if the device is a spinning disk
+	 */
+	public Device(Object id, String name, boolean rotational) {
+		this.id = id;
+		this.name = name;
+		this.rotational = rotational;
+	}
+
+	/**
+	 * @return What identifies the device
+	 */
+	public Object getId() {
+		return id;
+	}
+
+	/**
+	 * @return The name of the file store
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return true if the device is believed to be a spinning disk
+	 */
+	public boolean isRotational() {
+		return rotational;
+	}
+
+	/**
+	 * Notes that a file was read from the device.
+	 *
+	 * @param size The size of the file
+	 * @param start When the read started (System.nanoTime())
+	 * @param end When it finished (System.nanoTime())
+	 */
+	public synchronized void record(long size, long start, long end) {
+		fileCount++;
+		byteCount += size;
+		firstStart = Math.min(firstStart, start);
+		lastEnd = Math.max(lastEnd, end);
+	}
+
+	/**
+	 * @return The number of files read from the device
+	 */
+	public synchronized long getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * @return The number of bytes read from the device
+	 */
+	public synchronized long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * @return Bytes read per second, from the start of the first read to the
+	 * end of the last, or 0 if nothing has been read
+	 */
+	public synchronized double getBytesPerSecond() {
+		if (lastEnd <= firstStart) {
+			return 0;
+		}
+		return byteCount * 1e9 / (lastEnd - firstStart);
+	}
+
+	/**
+	 * Guesses whether the block device behind a file store is a spinning
+	 * disk, by asking Linux's /sys/class/block.  Anything that can't be
+	 * found out about (other systems, network file systems) is taken not to be.
+	 *
+	 * @param storeName The name of the file store (FileStore.name()), e.g. /dev/sda1
+	 * @return true if the device is rotational
+	 */
+	public static boolean isRotational(String storeName) {
+		if ((storeName == null) || !storeName.startsWith("/dev/")) {
+			return false;
+		}
+		try {
+			// Resolves things like /dev/mapper/root to /dev/dm-0
+			String blockName = Paths.get(storeName).toRealPath().getFileName().toString();
+			Path block = Paths.get("/sys/class/block", blockName).toRealPath();
+			Path flag = block.resolve("queue/rotational");
+			if (!Files.exists(flag)) {
+				// A partition; the flag belongs to the whole disk
+				flag = block.getParent().resolve("queue/rotational");
+			}
+			List<String> lines = Files.readAllLines(flag, Charset.forName("UTF-8"));
+			return !lines.isEmpty() && lines.get(0).trim().equals("1");
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
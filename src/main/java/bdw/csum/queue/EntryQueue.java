@@ -17,6 +17,7 @@ package bdw.csum.queue;
 
 import bdw.csum.entry.InvalidEntryException;
 import bdw.csum.entry.FileEntry;
+import bdw.csum.hash.DigestAlgorithms;
 import java.util.Date;
 
 /**
@@ -40,12 +41,24 @@ public abstract class EntryQueue  {
 	protected Date startTime;
 
 	/**
-	 * Construct, with a default start time of 0 milliseconds, and base
-	 * path of "/"
+	 * The name of the algorithm the checksums of the entries were made with
+	 */
+	protected String algorithm;
+
+	/**
+	 * The chunk size large files were checksummed in (see TreeHasher),
+	 * or 0 if every file was checksummed whole
+	 */
+	protected long chunkSize;
+
+	/**
+	 * Construct, with a default start time of 0 milliseconds, base
+	 * path of "/", and algorithm of SHA-256
 	 */
 	public EntryQueue() {
 		startTime = new Date(0);
 		basePath = "/";
+		algorithm = DigestAlgorithms.SHA_256;
 	}
 	/**
 	 * @return The next entry in the queue, or null if no more.
@@ -76,4 +89,19 @@ public abstract class EntryQueue  {
 	public String getBasePath() {
 		return basePath;
 	}
+
+	/**
+	 * @return The name of the algorithm the checksums were made with
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return The chunk size large files were checksummed in, or 0 if
+	 * files were checksummed whole
+	 */
+	public long getChunkSize() {
+		return chunkSize;
+	}
 }
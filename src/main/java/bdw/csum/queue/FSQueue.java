@@ -17,35 +17,169 @@ package bdw.csum.queue;
 
 import bdw.csum.entry.InvalidEntryException;
 import bdw.csum.entry.FileEntry;
+import bdw.csum.filter.PathFilter;
+import bdw.csum.hash.DigestAlgorithms;
+import bdw.csum.hash.FileHasher;
+import bdw.csum.hash.HashCache;
+import bdw.csum.hash.ReadAheadHasher;
+import bdw.csum.hash.TreeHasher;
+import bdw.csum.metrics.Metrics;
+import bdw.util.RateLimiter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.security.MessageDigest;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.Stack;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A queue that draws its data from the file system.  Base behavior is to
  * return all files under the path provided to the constructor in a depth-first
- * order through the dequeue routine
+ * order through the dequeue routine.
+ * If given more than one worker, the files are read and checksummed on a pool
+ * of threads while the walk continues on the caller's thread, but the entries
+ * still come out of dequeue() in the same depth-first order.
  */
 public class FSQueue extends EntryQueue {
 	/**
-	 * The stack of files and directors we still need to scan
+	 * The walk through the directories we still need to scan
 	 */
-	protected Stack<File> todo = new Stack<File>();
+	protected TreeWalker walker;
 	
 	/**
 	 * The next file to process
 	 */
-	protected File nextFile;
-	
+	protected WalkEntry nextFile;
+
+	/**
+	 * Number of threads to checksum files on. 1 means do it on the caller's thread.
+	 */
+	protected int workerCount = 1;
+
+	/**
+	 * Files being checksummed by the workers, or null if not yet started
+	 */
+	private HashPipeline pipeline;
+
+	/**
+	 * How many files each worker may have outstanding (queued or in progress)
+	 */
+	private static final int FILES_PER_WORKER = 4;
+
+	/**
+	 * Files this size and larger are memory-mapped when checksummed
+	 */
+	protected long mapThreshold = FileHasher.DEFAULT_MAP_THRESHOLD;
+
+	/**
+	 * Number of buffers to read ahead into while checksumming, or 0 to not read ahead
+	 */
+	protected int readAheadBuffers;
+
+	/**
+	 * Limits the bytes read per second, or null
+	 */
+	protected RateLimiter byteLimiter;
+
+	/**
+	 * Each thread that checksums files gets its own hasher (and buffer)
+	 */
+	private final ThreadLocal<FileHasher> hashers = new ThreadLocal<FileHasher>();
+
+	/**
+	 * The hashers not in use, when files are checksummed on a thread per
+	 * task (see setInFlightLimit()), where a hasher per thread would mean a
+	 * new one for every file.  No more are made than are in use at once.
+	 */
+	private final BlockingQueue<FileHasher> idleHashers = new LinkedBlockingQueue<FileHasher>();
+
+	/**
+	 * The read ahead hashers made so far, whose reader threads are stopped
+	 * once there are no more entries
+	 */
+	private final List<ReadAheadHasher> readAheadHashers = new ArrayList<ReadAheadHasher>();
+
+	/**
+	 * Number of threads each device gets to checksum files on, or 0 to
+	 * not group the work by device
+	 */
+	protected int deviceWorkerCount;
+
 	/**
-	 * flag indicating whether special mac files should be ignored
+	 * Most file system operations to have in flight at once on a thread
+	 * per task, or 0 to use the pools of worker threads instead
 	 */
-	protected boolean ignoreSpecialMac;
+	protected int inFlightLimit;
+
+	/**
+	 * Enforces the in flight limit across the walk and the checksumming, or null
+	 */
+	private Semaphore inFlight;
+
+	/**
+	 * Number of threads directories are listed on, or 0 to list each as the walk reaches it
+	 */
+	protected int listingThreadCount;
+
+	/**
+	 * How the file system is looked at
+	 */
+	protected FileAccess access = new FileAccess();
+
+	/**
+	 * Checksums files larger than the chunk size, or null if not yet needed
+	 */
+	private TreeHasher treeHasher;
+
+	/**
+	 * An earlier listing whose checksums may be reused, or null
+	 */
+	protected Baseline baseline;
+
+	/**
+	 * A persistent cache of checksums to consult before reading a file, or null
+	 */
+	protected HashCache cache;
+
+	/**
+	 * The files with several hard links seen so far, or null to not look for links
+	 */
+	private LinkTable links;
+
+	/**
+	 * Where what the scan does is counted and timed, or null
+	 */
+	protected Metrics metrics;
+
+	/**
+	 * Number of entries whose checksum was taken from the baseline
+	 */
+	private final AtomicLong reusedCount = new AtomicLong();
+
+	/**
+	 * Number of entries whose checksum was computed by reading the file
+	 */
+	private final AtomicLong hashedCount = new AtomicLong();
+
+	/**
+	 * Number of bytes read to compute checksums
+	 */
+	private final AtomicLong hashedByteCount = new AtomicLong();
+
+	/**
+	 * Number of entries whose checksum was taken from an earlier hard link
+	 */
+	private final AtomicLong linkedCount = new AtomicLong();
 	
 	/**
 	 * Construct an instance. Ignores special mac files by default.
@@ -55,13 +189,11 @@ public class FSQueue extends EntryQueue {
 	 */
 	public FSQueue(String startPath) throws InvalidEntryException {		
 		super();
-		ignoreSpecialMac = true;
 		startTime = new Date();
 		File startFile = new File(startPath);
 		basePath = startFile.getAbsolutePath() + File.pathSeparator;
-		if (startFile.exists() && startFile.isDirectory()) {
-			todo.push(new File(startPath));
-		}
+		walker = new TreeWalker(startFile.toPath());
+		walker.setIgnoreSpecialMacFiles(true);
 	}
 	
 	/**
@@ -70,16 +202,391 @@ public class FSQueue extends EntryQueue {
 	 * @param value true if these are to be ignored.
 	 */
 	public void setIgnoreSpecialMacFiles(boolean value) {
-		ignoreSpecialMac = value;
+		walker.setIgnoreSpecialMacFiles(value);
 	}
 	
 	/**
 	 * @return true if funky mack files are to be ignored
 	 */
 	public boolean getIgnoreSpecialMacFiles() {
-		return ignoreSpecialMac;
+		return walker.getIgnoreSpecialMacFiles();
+	}
+
+	/**
+	 * Leaves out the files and directories a filter excludes (directories
+	 * left out aren't even listed).  Must be called before the first call
+	 * to isEmpty() or dequeue().
+	 * @param filter The filter, or null to leave nothing out
+	 */
+	public void setFilter(PathFilter filter) {
+		walker.setFilter(filter);
+	}
+
+	/**
+	 * Sets the number of threads that files are read and checksummed on.
+	 * Must be called before the first call to isEmpty() or dequeue().
+	 * @param count The number of threads. 1 (the default) does all the work
+	 * on the calling thread.
+	 */
+	public void setWorkerCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("Worker count must be at least 1");
+		}
+		if (pipeline != null) {
+			throw new IllegalStateException("Can not change the worker count once the queue is in use");
+		}
+		workerCount = count;
+	}
+
+	/**
+	 * @return The number of threads that files are checksummed on
+	 */
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	/**
+	 * Groups the work by the device files are on, giving each device its
+	 * own pool of threads of this size (in place of the shared pool set by
+	 * setWorkerCount()).  One thread per spinning disk avoids making its heads
+	 * thrash back and forth; solid state devices can take more.
+	 * Entries still come out of dequeue() in the same order.
+	 * Must be called before the first call to isEmpty() or dequeue().
+	 * @param count The number of threads per device, or 0 (the default) to not group by device
+	 */
+	public void setDeviceWorkerCount(int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Device worker count can not be negative");
+		}
+		if (pipeline != null) {
+			throw new IllegalStateException("Can not change the worker count once the queue is in use");
+		}
+		deviceWorkerCount = count;
+		walker.setTrackDevices(count > 0);
+	}
+
+	/**
+	 * @return The number of threads each device gets, or 0 if work isn't grouped by device
+	 */
+	public int getDeviceWorkerCount() {
+		return deviceWorkerCount;
+	}
+
+	/**
+	 * Sets up for file systems where each operation is slow but many can be
+	 * in progress at once (NFS, SMB).  Every attribute read and every file
+	 * checksummed becomes a task with its own thread (a virtual thread, where
+	 * the JVM has them), and up to this many of them are in flight at once.
+	 * This takes the place of setWorkerCount() and setDeviceWorkerCount().
+	 * Entries still come out of dequeue() in the same order.
+	 * Must be called before the first call to isEmpty() or dequeue().
+	 * @param limit The most operations in flight, or 0 (the default) to not work this way
+	 */
+	public void setInFlightLimit(int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("The in flight limit can not be negative");
+		}
+		if (pipeline != null) {
+			throw new IllegalStateException("Can not change the in flight limit once the queue is in use");
+		}
+		inFlightLimit = limit;
+		if (limit > 0) {
+			inFlight = new Semaphore(limit);
+			walker.setConcurrentStat(ScanThreads.newPerTaskExecutor("csum-stat-"), inFlight, limit);
+		} else {
+			inFlight = null;
+			walker.setConcurrentStat(null, null, 1);
+		}
+	}
+
+	/**
+	 * @return The most operations in flight at once, or 0 if not working that way
+	 */
+	public int getInFlightLimit() {
+		return inFlightLimit;
+	}
+
+	/**
+	 * Lists directories in parallel, on a fork-join pool of this many threads,
+	 * ahead of and separately from the checksumming (see TreeWalker).  This
+	 * helps with trees of very many directories.  It takes the place of the
+	 * concurrent attribute reads of setInFlightLimit(), but not of its checksumming.
+	 * Entries still come out of dequeue() in the same order.
+	 * Must be called before the first call to isEmpty() or dequeue().
+	 * @param count The number of threads, or 0 (the default) to list each
+	 * directory on the walking thread as the walk reaches it
+	 */
+	public void setListingThreadCount(int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("The listing thread count can not be negative");
+		}
+		if (pipeline != null) {
+			throw new IllegalStateException("Can not change the listing thread count once the queue is in use");
+		}
+		listingThreadCount = count;
+		// Fork-join workers are daemon threads, so the pool needs no shutting down.
+		walker.setListingPool((count > 0) ? new ForkJoinPool(count) : null, TreeWalker.DEFAULT_LISTING_AHEAD);
+	}
+
+	/**
+	 * @return The number of threads directories are listed on, or 0
+	 */
+	public int getListingThreadCount() {
+		return listingThreadCount;
+	}
+
+	/**
+	 * @param fileAccess How to look at the file system. Must be set before
+	 * the first call to isEmpty() or dequeue().
+	 */
+	public void setFileAccess(FileAccess fileAccess) {
+		access = fileAccess;
+		walker.setFileAccess(fileAccess);
+	}
+
+	/**
+	 * Sets when the files of a directory are read in inode order, which on
+	 * a spinning disk means less seeking.  This changes the order entries
+	 * come out of dequeue() in, within each directory.
+	 * Must be called before the first call to isEmpty() or dequeue().
+	 * @param order When to sort (OFF by default)
+	 */
+	public void setInodeOrder(TreeWalker.InodeOrder order) {
+		walker.setInodeOrder(order);
+	}
+
+	/**
+	 * @return When the files of a directory are read in inode order
+	 */
+	public TreeWalker.InodeOrder getInodeOrder() {
+		return walker.getInodeOrder();
+	}
+
+	/**
+	 * Sets whether to keep statistics on each device files are read from,
+	 * for getDevices().  Grouping by device, or sorting by inode only on
+	 * spinning disks, turns this on too.
+	 * Must be called before the first call to isEmpty() or dequeue().
+	 * @param value true to keep statistics
+	 */
+	public void setDeviceStatistics(boolean value) {
+		walker.setTrackDevices(value || (deviceWorkerCount > 0));
+	}
+
+	/**
+	 * @return The devices seen so far, with their statistics (empty unless
+	 * devices are being tracked)
+	 */
+	public Collection<Device> getDevices() {
+		return walker.getDevices();
+	}
+
+	/**
+	 * Sets the size at which files are memory-mapped rather than read
+	 * through a buffer when being checksummed.
+	 * Must be called before the first call to isEmpty() or dequeue().
+	 * @param threshold The size in bytes. Long.MAX_VALUE never maps.
+	 */
+	public void setMapThreshold(long threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("The map threshold can not be negative");
+		}
+		mapThreshold = threshold;
+	}
+
+	/**
+	 * @return The size at which files are memory-mapped
+	 */
+	public long getMapThreshold() {
+		return mapThreshold;
+	}
+
+	/**
+	 * Sets whether files are read ahead on a separate thread while being
+	 * checksummed (see ReadAheadHasher), so that reading and checksumming
+	 * overlap.  Each thread checksumming files gets its own reader; the
+	 * readers are stopped once there are no more entries.
+	 * Must be called before the first call to isEmpty() or dequeue().
+	 * @param bufferCount The number of buffers to read ahead into (at least 2),
+	 * or 0 (the default) to read and checksum in turn
+	 */
+	public void setReadAhead(int bufferCount) {
+		if ((bufferCount != 0) && (bufferCount < 2)) {
+			throw new IllegalArgumentException("Read ahead needs at least 2 buffers");
+		}
+		if (pipeline != null) {
+			throw new IllegalStateException("Can not change read ahead once the queue is in use");
+		}
+		readAheadBuffers = bufferCount;
+	}
+
+	/**
+	 * @return The number of buffers files are read ahead into, or 0
+	 */
+	public int getReadAhead() {
+		return readAheadBuffers;
+	}
+
+	/**
+	 * Keeps the scan to the ceilings of a throttle, both in reading files
+	 * and in looking through directories.
+	 * Must be called before the first call to isEmpty() or dequeue().
+	 * @param throttle The throttle, or null for no limits
+	 */
+	public void setThrottle(Throttle throttle) {
+		byteLimiter = (throttle == null) ? null : throttle.getByteLimiter();
+		walker.setEntryLimiter((throttle == null) ? null : throttle.getFileLimiter());
+	}
+
+	/**
+	 * Sets the algorithm files are checksummed with.
+	 * Must be called before the first call to isEmpty() or dequeue().
+	 * @param name The algorithm's name (see DigestAlgorithms)
+	 * @throws NoSuchAlgorithmException If there is no such algorithm
+	 */
+	public void setAlgorithm(String name) throws NoSuchAlgorithmException {
+		if (pipeline != null) {
+			throw new IllegalStateException("Can not change the algorithm once the queue is in use");
+		}
+		algorithm = DigestAlgorithms.canonicalName(name);
+	}
+
+	/**
+	 * Sets the chunk size for tree checksums.  Files larger than this are
+	 * split into chunks which are checksummed in parallel (see TreeHasher);
+	 * smaller files are checksummed as usual.
+	 * Must be called before the first call to isEmpty() or dequeue().
+	 * @param size The chunk size in bytes, or 0 (the default) to checksum every file whole
+	 */
+	public void setChunkSize(long size) {
+		if ((size != 0) && (size < TreeHasher.MIN_CHUNK_SIZE)) {
+			throw new IllegalArgumentException("The chunk size must be 0 or at least " + TreeHasher.MIN_CHUNK_SIZE);
+		}
+		if (pipeline != null) {
+			throw new IllegalStateException("Can not change the chunk size once the queue is in use");
+		}
+		chunkSize = size;
+	}
+
+	/**
+	 * Sets an earlier listing to take checksums from.  Files with the same
+	 * relative path, size and last modification time as in the earlier
+	 * listing are not read; their old checksum is used instead.
+	 * The earlier listing must have been made with the same algorithm and
+	 * chunk size, so call this after setAlgorithm() and setChunkSize().
+	 * @param previous The earlier listing, or null to read every file
+	 */
+	public void setBaseline(Baseline previous) {
+		if ((previous != null) && !DigestAlgorithms.sameAlgorithm(previous.getAlgorithm(), algorithm)) {
+			throw new IllegalArgumentException("The earlier listing was made with " + previous.getAlgorithm() +
+					", not " + algorithm);
+		}
+		if ((previous != null) && (previous.getChunkSize() != chunkSize)) {
+			throw new IllegalArgumentException("The earlier listing was made with a chunk size of " +
+					previous.getChunkSize() + ", not " + chunkSize);
+		}
+		baseline = previous;
+	}
+
+	/**
+	 * @return The earlier listing checksums are taken from, or null
+	 */
+	public Baseline getBaseline() {
+		return baseline;
+	}
+
+	/**
+	 * Sets a persistent cache of checksums to consult before reading a file,
+	 * and to remember the checksums of files that are read.  Unlike a
+	 * baseline, the cache knows files by their identity (device and inode)
+	 * rather than their path.
+	 * @param hashCache The cache, or null to not use one
+	 */
+	public void setHashCache(HashCache hashCache) {
+		cache = hashCache;
+	}
+
+	/**
+	 * @return The persistent cache of checksums, or null
+	 */
+	public HashCache getHashCache() {
+		return cache;
+	}
+
+	/**
+	 * Sets where to count and time what the scan does.  Must be called
+	 * before the first call to isEmpty() or dequeue().
+	 * @param value Where to record, or null to not record
+	 */
+	public void setMetrics(Metrics value) {
+		metrics = value;
+		walker.setMetrics(value);
+	}
+
+	/**
+	 * @return Where what the scan does is recorded, or null
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets whether to look for hard links, so that a file with several is
+	 * read once, and its other links share its checksum (and note which
+	 * link they share it with, always one listed before them).  This costs a
+	 * little extra work for each file, done as the walk comes to it.
+	 * @param value true to look for hard links
+	 */
+	public void setHardLinks(boolean value) {
+		links = value ? new LinkTable(LinkTable.DEFAULT_MAX_SIZE) : null;
+	}
+
+	/**
+	 * @return true if hard links are looked for
+	 */
+	public boolean getHardLinks() {
+		return (links != null);
+	}
+
+	/**
+	 * Carries on an interrupted scan, leaving out the directories and files
+	 * it already listed.  Must be called before the first call to isEmpty() or dequeue().
+	 * @param point Where the interrupted scan got to, or null to scan everything
+	 */
+	public void setResumePoint(ResumePoint point) {
+		walker.setResumePoint(point);
+	}
+
+	/**
+	 * @return The number of entries so far whose checksum came from the baseline
+	 */
+	public long getReusedCount() {
+		return reusedCount.get();
+	}
+
+	/**
+	 * @return The number of entries so far whose checksum was computed by
+	 * reading the file (rather than coming from the baseline or cache)
+	 */
+	public long getHashedCount() {
+		return hashedCount.get();
 	}
 	
+	/**
+	 * @return The number of bytes read so far to compute checksums
+	 */
+	public long getHashedByteCount() {
+		return hashedByteCount.get();
+	}
+
+	/**
+	 * @return The number of entries so far whose checksum was taken from
+	 * an earlier hard link to the same file
+	 */
+	public long getLinkedCount() {
+		return linkedCount.get();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @return true if there are no more entries in the queue
@@ -87,8 +594,20 @@ public class FSQueue extends EntryQueue {
 	 */
 	@Override
 	public boolean isEmpty() throws InvalidEntryException {
+		if (isParallel()) {
+			fillPipeline();
+			if (pipeline.isEmpty()) {
+				closeHashers();
+				return true;
+			}
+			return false;
+		}
 		findNext();
-		return ((todo.size() == 0) && (nextFile == null));
+		if (nextFile == null) {
+			closeHashers();
+			return true;
+		}
+		return false;
 	}
 
 	/**
@@ -98,90 +617,333 @@ public class FSQueue extends EntryQueue {
 	 */
 	@Override
 	public FileEntry dequeue() throws InvalidEntryException {
+		if (isParallel()) {
+			fillPipeline();
+			if (pipeline.isEmpty()) {
+				closeHashers();
+				return null;
+			}
+			return pipeline.take();
+		}
+
 		findNext();
 		if (nextFile == null) {
+			closeHashers();
 			return null;
 		}
 
-		FileEntry entry = null;
-		MessageDigest digest;
-		byte[] readBuffer = new byte[1024];
-		InputStream stream = null;
-		try {
-			digest = MessageDigest.getInstance("SHA-256");
-			stream = new FileInputStream(nextFile);
-			
-			int bytesRead = stream.read(readBuffer);
-			while (bytesRead != -1) {
-				digest.update(readBuffer, 0, bytesRead);
-				bytesRead = stream.read(readBuffer);
+		WalkEntry file = nextFile;
+		nextFile = null;
+		LinkTable.Link link = (links == null) ? null : new LinkTable.Link();
+		return buildEntry(file, link, claimLink(file, link));
+	}
+
+	/**
+	 * Reads and checksums a file, building an entry for it.  This may be called
+	 * on several threads at once, so must not touch the state of the walk.
+	 *
+	 * @param file The file to build an entry for
+	 * @param link The file's claim among the hard links to it (see
+	 * claimLink()), to be given its entry, or null
+	 * @param first The first link to the file, if this is a later one, whose
+	 * entry must already have been built; otherwise null
+	 * @return The entry
+	 * @throws InvalidEntryException If the file could not be read
+	 */
+	protected FileEntry buildEntry(WalkEntry file, LinkTable.Link link, LinkTable.Link first) throws InvalidEntryException {
+		FileEntry entry = (first == null) ? null : linkedEntry(file, first);
+		if (entry == null) {
+			entry = checksumEntry(file);
+			if (link != null) {
+				link.setEntry(entry);
 			}
+		}
+		if (metrics != null) {
+			metrics.add(Metrics.Counter.FILES, 1);
+			metrics.add(Metrics.Counter.BYTES, entry.getFileSize());
+			metrics.setCurrent(entry.getPathname());
+		}
+		return entry;
+	}
 
-			entry = new FileEntry(digest.digest(), nextFile.length(),
-										new Date(nextFile.lastModified()),
-										nextFile.getAbsolutePath().substring(basePath.length()));
-			nextFile = null;
-		} catch (NoSuchAlgorithmException e) {
-			throw new InvalidEntryException("NoSuchAlgorithmException while building entry for " + nextFile.getAbsolutePath(), e);
+	/**
+	 * Claims a file's place among the hard links to it, if it has several
+	 * and links are being looked for.  This is called in the order the walk
+	 * comes to files, before they are read, so the first link listed is the
+	 * one read, and the later ones name it, however many threads read files.
+	 *
+	 * @param file The file
+	 * @param link Its claim, or null if links aren't being looked for
+	 * @return The first link to the file, if this is a later one; otherwise null
+	 */
+	private LinkTable.Link claimLink(WalkEntry file, LinkTable.Link link) {
+		if (link == null) {
+			return null;
+		}
+		long[] identity;
+		try {
+			identity = access.readLinks(file.getPath());
 		} catch (IOException e) {
-			throw new InvalidEntryException("IOException while building entry for " + nextFile.getAbsolutePath(), e);
-		} finally {
-			try {
-				if (stream != null) {
-					stream.close();
-				}
-			} catch (IOException e) {
-				throw new InvalidEntryException("Could not close stream for " + nextFile.getAbsolutePath(), e);
-			}
+			// Just read it; if it can't be, that will be reported then.
+			return null;
 		}
-				
+		if ((identity == null) || (identity[2] < 2)) {
+			return null;
+		}
+		return links.claim(identity[0], identity[1], identity[2], link);
+	}
+
+	/**
+	 * Builds the entry of a later hard link to a file, sharing the checksum
+	 * of the first.
+	 *
+	 * @param file The file to build an entry for
+	 * @param first The first link to the file
+	 * @return The entry, or null if the first link couldn't be read
+	 */
+	private FileEntry linkedEntry(WalkEntry file, LinkTable.Link first) {
+		FileEntry firstEntry = first.getEntry();
+		if (firstEntry == null) {
+			return null;
+		}
+		linkedCount.incrementAndGet();
+		FileEntry entry = new FileEntry(firstEntry.getChecksum(), file.getAttributes(), file.getRelativePath());
+		entry.setLinkedTo(firstEntry.getPathname());
 		return entry;
 	}
-	
-	
+
 	/**
-	 * Walk through the stack of things still todo, and find the
-	 * next file that we'll want to handle
-	 * @throws bdw.csum.entry.InvalidEntryException
+	 * Builds an entry for a file from the baseline, the cache or by reading it.
+	 *
+	 * @param file The file to build an entry for
+	 * @return The entry
+	 * @throws InvalidEntryException If the file could not be read
 	 */
-	protected void findNext() throws InvalidEntryException {
-		if ((nextFile != null) || (todo.size() == 0)) {
-			return;
-		}
-
-		File next = todo.pop();
-		
-		boolean fileIsOK = false;
-		while (!fileIsOK) {
-			while ((next != null) && next.isDirectory()) {
-				File[] files = next.listFiles();
-				// push them in reverse order, so they come out in a more expected order
-				for (int index = files.length-1; index >= 0; index--) {
-					todo.push(files[index]);
+	private FileEntry checksumEntry(WalkEntry file) throws InvalidEntryException {
+		// This runs for every file, so each piece of the entry is made once and
+		// shared with the lookups (the attributes make a new FileTime each time asked).
+		BasicFileAttributes attributes = file.getAttributes();
+		String pathname = "./" + file.getRelativePath();
+		long size = attributes.size();
+		long lastModMillis = attributes.lastModifiedTime().toMillis();
+		Date lastMod = new Date(lastModMillis);
+		try {
+			if (baseline != null) {
+				FileEntry previous = baseline.find(pathname, size, lastMod);
+				if (previous != null) {
+					reusedCount.incrementAndGet();
+					return new FileEntry(previous.getChecksum(), size, lastMod, pathname);
 				}
-				next = (todo.size() == 0) ? null : todo.pop();
 			}
 
-			fileIsOK = true;
-			if (next != null) {
-				if (ignoreSpecialMac) {
-					if ((next.getName().equals(".DS_Store")) ||
-						 (next.getName().startsWith("._"))) {
-						fileIsOK = false;
-						next = (todo.size() == 0) ? null : todo.pop();
-					}
+			Object fileKey = (cache == null) ? null : attributes.fileKey();
+			if (fileKey != null) {
+				byte[] checksum = cache.find(fileKey, getCacheAlgorithm(), size, lastModMillis);
+				if (checksum != null) {
+					return new FileEntry(checksum, size, lastMod, pathname);
 				}
 			}
-			if (next != null) {
-				if (!next.exists()) {
-					System.err.println("Skipping over Nonexistent file: " + next.getAbsoluteFile());
-					fileIsOK = false;
-					next = (todo.size() == 0) ? null : todo.pop();
+
+			long start = System.nanoTime();
+			byte[] checksum;
+			if ((chunkSize > 0) && (size > chunkSize)) {
+				checksum = getTreeHasher().hash(file.getPath());
+			} else {
+				FileInputStream stream = access.openStream(file.getPath());
+				FileHasher hasher = getHasher();
+				try {
+					checksum = hasher.hash(stream, size);
+				} finally {
+					releaseHasher(hasher);
+					stream.close();
 				}
 			}
+			if (file.getDevice() != null) {
+				file.getDevice().record(size, start, System.nanoTime());
+			}
+			hashedCount.incrementAndGet();
+			hashedByteCount.addAndGet(size);
+			if (metrics != null) {
+				metrics.add(Metrics.Counter.HASHED_FILES, 1);
+				metrics.add(Metrics.Counter.HASHED_BYTES, size);
+			}
+			if (fileKey != null) {
+				cache.store(fileKey, getCacheAlgorithm(), size, lastModMillis, checksum);
+			}
+			return new FileEntry(checksum, size, lastMod, pathname);
+		} catch (NoSuchAlgorithmException e) {
+			throw new InvalidEntryException("NoSuchAlgorithmException while building entry for " + file.getPath().toAbsolutePath(), e);
+		} catch (IOException e) {
+			throw new InvalidEntryException("IOException while building entry for " + file.getPath().toAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Gets a hasher to checksum a file with, which must be handed back to
+	 * releaseHasher() afterwards.
+	 *
+	 * @return The hasher belonging to the current thread, or when checksumming
+	 * on a thread per task, one not in use
+	 * @throws NoSuchAlgorithmException If the checksum algorithm isn't available
+	 */
+	protected FileHasher getHasher() throws NoSuchAlgorithmException {
+		if (inFlightLimit > 0) {
+			FileHasher hasher = idleHashers.poll();
+			return (hasher == null) ? newHasher() : hasher;
+		}
+		FileHasher hasher = hashers.get();
+		if (hasher == null) {
+			hasher = newHasher();
+			hashers.set(hasher);
+		}
+		return hasher;
+	}
+
+	/**
+	 * Hands back a hasher got from getHasher().
+	 *
+	 * @param hasher The hasher, no longer in use
+	 */
+	protected void releaseHasher(FileHasher hasher) {
+		if (inFlightLimit > 0) {
+			idleHashers.add(hasher);
+		}
+	}
+
+	/**
+	 * @return A new hasher
+	 * @throws NoSuchAlgorithmException If the checksum algorithm isn't available
+	 */
+	private FileHasher newHasher() throws NoSuchAlgorithmException {
+		FileHasher hasher;
+		if (readAheadBuffers > 0) {
+			ReadAheadHasher readAhead = new ReadAheadHasher(algorithm, ReadAheadHasher.DEFAULT_READ_AHEAD_BUFFER_SIZE, readAheadBuffers);
+			synchronized (readAheadHashers) {
+				readAheadHashers.add(readAhead);
+			}
+			hasher = readAhead;
+		} else {
+			hasher = new FileHasher(algorithm, FileHasher.DEFAULT_BUFFER_SIZE, mapThreshold);
 		}
+		hasher.setRateLimiter(byteLimiter);
+		hasher.setMetrics(metrics);
+		return hasher;
+	}
 
-		
-		nextFile = next;
+	/**
+	 * Stops the reader threads of the read ahead hashers, and lets go of
+	 * their buffers.  Called once there are no more entries, when nothing
+	 * is being checksummed.
+	 */
+	private void closeHashers() {
+		synchronized (readAheadHashers) {
+			for (ReadAheadHasher hasher : readAheadHashers) {
+				hasher.close();
+			}
+			readAheadHashers.clear();
+		}
+		idleHashers.clear();
+	}
+
+	/**
+	 * @return The hasher for files larger than the chunk size, shared by all threads
+	 * @throws NoSuchAlgorithmException If the checksum algorithm isn't available
+	 */
+	protected synchronized TreeHasher getTreeHasher() throws NoSuchAlgorithmException {
+		if (treeHasher == null) {
+			// Fork-join workers are daemon threads, so the pool needs no shutting down.
+			treeHasher = new TreeHasher(algorithm, chunkSize, mapThreshold, new ForkJoinPool());
+			treeHasher.setRateLimiter(byteLimiter);
+			treeHasher.setMetrics(metrics);
+			treeHasher.setOpener(new TreeHasher.Opener() {
+				@Override
+				public FileInputStream open(Path path) throws IOException {
+					return access.openStream(path);
+				}
+			});
+		}
+		return treeHasher;
+	}
+
+	/**
+	 * @return The algorithm name checksums are kept under in the cache.
+	 * Tree checksums differ from whole-file ones, so include the chunk size.
+	 */
+	private String getCacheAlgorithm() {
+		return (chunkSize == 0) ? algorithm : algorithm + "/" + chunkSize;
+	}
+
+	/**
+	 * @return true if files are checksummed on worker threads
+	 */
+	private boolean isParallel() {
+		return (workerCount > 1) || (deviceWorkerCount > 0) || (inFlightLimit > 0);
+	}
+
+	/**
+	 * Continues the walk, handing files to the workers until either they
+	 * have as much outstanding work as they are allowed, or there are no more
+	 * files.  Once everything has been handed out, the workers are told to stop
+	 * when they finish.
+	 * @throws InvalidEntryException
+	 */
+	private void fillPipeline() throws InvalidEntryException {
+		if (pipeline == null) {
+			if (inFlightLimit > 0) {
+				pipeline = new HashPipeline(ScanThreads.newPerTaskExecutor("csum-hash-"), inFlightLimit);
+			} else {
+				pipeline = new HashPipeline(workerCount, deviceWorkerCount,
+						Math.max(workerCount, deviceWorkerCount) * FILES_PER_WORKER);
+			}
+		}
+
+		while (!pipeline.isFull()) {
+			findNext();
+			if (nextFile == null) {
+				pipeline.shutdown();
+				return;
+			}
+
+			final WalkEntry file = nextFile;
+			nextFile = null;
+			final LinkTable.Link link = (links == null) ? null : new LinkTable.Link();
+			final LinkTable.Link first = claimLink(file, link);
+			if (first != null) {
+				// The first link is ahead of this one in the pipeline, so will
+				// have been read by the time this is taken.
+				pipeline.defer(new Callable<FileEntry>() {
+					@Override
+					public FileEntry call() throws InvalidEntryException {
+						return buildEntry(file, link, first);
+					}
+				});
+				continue;
+			}
+			pipeline.submit(file.getDevice(), new Callable<FileEntry>() {
+				@Override
+				public FileEntry call() throws InvalidEntryException {
+					if (inFlight == null) {
+						return buildEntry(file, link, null);
+					}
+					inFlight.acquireUninterruptibly();
+					try {
+						return buildEntry(file, link, null);
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		}
+	}
+	
+	
+	/**
+	 * Continue the walk to find the next file that we'll want to handle
+	 * @throws bdw.csum.entry.InvalidEntryException
+	 */
+	protected void findNext() throws InvalidEntryException {
+		if (nextFile == null) {
+			nextFile = walker.next();
+		}
 	}
 }
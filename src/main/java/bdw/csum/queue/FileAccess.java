@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+
+/**
+ * The file system operations a scan makes: listing a directory, reading
+ * an entry's attributes, and opening a file.  This default goes straight to
+ * the file system; a subclass can stand in for something else, for instance
+ * adding latency to look like a network file system.
+ */
+public class FileAccess {
+	/**
+	 * Opens a directory for listing.
+	 *
+	 * @param directory The directory
+	 * @return Its entries
+	 * @throws IOException If it can't be read
+	 */
+	public DirectoryStream<Path> newDirectoryStream(Path directory) throws IOException {
+		return Files.newDirectoryStream(directory);
+	}
+
+	/**
+	 * Reads the attributes of an entry (following links).
+	 *
+	 * @param path The entry
+	 * @return Its attributes
+	 * @throws IOException If they can't be read
+	 */
+	public BasicFileAttributes readAttributes(Path path) throws IOException {
+		return Files.readAttributes(path, BasicFileAttributes.class);
+	}
+
+	/**
+	 * Reads the identity of a file and how many hard links it has.
+	 *
+	 * @param path The file
+	 * @return Its device, inode and number of links, or null if the file
+	 * system doesn't say
+	 * @throws IOException If they can't be read
+	 */
+	public long[] readLinks(Path path) throws IOException {
+		try {
+			Map<String, Object> values = Files.readAttributes(path, "unix:dev,ino,nlink");
+			return new long[] {((Number) values.get("dev")).longValue(),
+				((Number) values.get("ino")).longValue(),
+				((Number) values.get("nlink")).longValue()};
+		} catch (UnsupportedOperationException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Opens a file for reading as a stream, whose channel can be had from
+	 * it if wanted.  Scans open files this way, so tiny files can be read
+	 * without making a channel at all (see FileHasher.hash(FileInputStream, long)).
+	 *
+	 * @param path The file
+	 * @return A stream positioned at its start
+	 * @throws IOException If it can't be opened
+	 */
+	public FileInputStream openStream(Path path) throws IOException {
+		// Opening through a stream is noticeably cheaper than FileChannel.open(),
+		// which matters when the file is tiny.
+		return new FileInputStream(path.toFile());
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A bounded window of entries being built concurrently by a pool of worker
+ * threads. Work is handed out in the order it is submitted, and the results
+ * are taken back in exactly that same order, so whoever is feeding this sees
+ * the same sequence of entries it would have seen if it had done the work
+ * itself, one entry at a time.
+ * Work may be given a group (such as the device the file is on); if the
+ * pipeline was built with a per-group worker count, each group gets its own
+ * pool of that many threads, so a slow group can't starve a fast one of
+ * readers, and a group can be kept to few enough readers to suit it.
+ * Work that needs the results of work before it is deferred instead: it
+ * is done by whoever takes it, once everything before it has been taken.
+ */
+class HashPipeline {
+	/**
+	 * Work to be done by the thread that takes it
+	 */
+	private static class DeferredWork extends FutureTask<FileEntry> {
+		DeferredWork(Callable<FileEntry> work) {
+			super(work);
+		}
+	}
+
+	/**
+	 * The entries that have been handed to the workers, oldest first
+	 */
+	private final ArrayDeque<Future<FileEntry>> pending;
+
+	/**
+	 * The most entries that may be outstanding at once
+	 */
+	private final int capacity;
+
+	/**
+	 * The threads doing work that has no group, or all work if not grouping
+	 */
+	private final ExecutorService workers;
+
+	/**
+	 * Number of threads each group gets, or 0 if work isn't grouped
+	 */
+	private final int groupWorkerCount;
+
+	/**
+	 * The threads for each group, created as groups turn up
+	 */
+	private final Map<Object, ExecutorService> groupWorkers = new HashMap<Object, ExecutorService>();
+
+	/**
+	 * Constructs a pipeline where all work shares one pool of threads.
+	 *
+	 * @param workerCount The number of threads to build entries on (at least 1)
+	 * @param capacity The most entries that may be outstanding at once (at least 1)
+	 */
+	HashPipeline(int workerCount, int capacity) {
+		this(workerCount, 0, capacity);
+	}
+
+	/**
+	 * Constructs a pipeline.
+	 *
+	 * @param workerCount The number of threads to build entries without a group on (at least 1)
+	 * @param groupWorkerCount The number of threads each group gets, or 0 to not group work
+	 * @param capacity The most entries that may be outstanding at once (at least 1)
+	 */
+	HashPipeline(int workerCount, int groupWorkerCount, int capacity) {
+		if ((workerCount < 1) || (capacity < 1) || (groupWorkerCount < 0)) {
+			throw new IllegalArgumentException("Worker count and capacity must both be positive");
+		}
+		this.capacity = capacity;
+		this.groupWorkerCount = groupWorkerCount;
+		pending = new ArrayDeque<Future<FileEntry>>(capacity);
+		workers = newPool(workerCount, "csum-hash-");
+	}
+
+	/**
+	 * Constructs a pipeline that runs all work on the given executor, which
+	 * it takes over (and shuts down).
+	 *
+	 * @param executor The executor to build entries on
+	 * @param capacity The most entries that may be outstanding at once (at least 1)
+	 */
+	HashPipeline(ExecutorService executor, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.capacity = capacity;
+		this.groupWorkerCount = 0;
+		pending = new ArrayDeque<Future<FileEntry>>(capacity);
+		workers = executor;
+	}
+
+	/**
+	 * @param threadCount The number of threads
+	 * @param namePrefix What to start the threads' names with
+	 * @return A new pool of daemon threads
+	 */
+	private static ExecutorService newPool(int threadCount, final String namePrefix) {
+		return Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable task) {
+				count++;
+				Thread thread = new Thread(task, namePrefix + count);
+				// don't keep the vm alive if a caller abandons the queue part way
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return true if no more work can be submitted until something is taken
+	 */
+	boolean isFull() {
+		return pending.size() >= capacity;
+	}
+
+	/**
+	 * @return true if there is no outstanding work
+	 */
+	boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Hands a unit of work to the workers.
+	 *
+	 * @param work The work which will build an entry
+	 */
+	void submit(Callable<FileEntry> work) {
+		submit(null, work);
+	}
+
+	/**
+	 * Hands a unit of work to the workers for its group.
+	 *
+	 * @param group The group the work belongs to, or null for none
+	 * @param work The work which will build an entry
+	 */
+	void submit(Object group, Callable<FileEntry> work) {
+		if (isFull()) {
+			throw new IllegalStateException("The pipeline is full");
+		}
+		ExecutorService executor = workers;
+		if ((group != null) && (groupWorkerCount > 0)) {
+			executor = groupWorkers.get(group);
+			if (executor == null) {
+				executor = newPool(groupWorkerCount, "csum-hash-" + group + "-");
+				groupWorkers.put(group, executor);
+			}
+		}
+		pending.add(executor.submit(work));
+	}
+
+	/**
+	 * Adds a unit of work to be done by the thread that takes it, when its
+	 * turn comes, so it can rely on everything before it being done.  It
+	 * should be quick, since nothing else is done meanwhile.
+	 *
+	 * @param work The work which will build an entry
+	 */
+	void defer(Callable<FileEntry> work) {
+		if (isFull()) {
+			throw new IllegalStateException("The pipeline is full");
+		}
+		pending.add(new DeferredWork(work));
+	}
+
+	/**
+	 * Waits for the oldest outstanding unit of work to complete, and returns
+	 * its result. If that work failed, it is still removed from the pipeline,
+	 * so the next call moves on to the next entry.
+	 *
+	 * @return The entry built, or null if there was no outstanding work
+	 * @throws InvalidEntryException If the work failed
+	 */
+	FileEntry take() throws InvalidEntryException {
+		Future<FileEntry> next = pending.poll();
+		if (next == null) {
+			return null;
+		}
+		if (next instanceof DeferredWork) {
+			((DeferredWork) next).run();
+		}
+
+		try {
+			return next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InvalidEntryException("Interrupted while waiting for an entry", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof InvalidEntryException) {
+				throw (InvalidEntryException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new InvalidEntryException("Problem while building an entry", e);
+		}
+	}
+
+	/**
+	 * Stops the worker threads once any outstanding work completes.
+	 */
+	void shutdown() {
+		workers.shutdown();
+		for (ExecutorService executor : groupWorkers.values()) {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Looks entries up in an indexed listing (see IndexedArchiveWriter) by
+ * pathname or checksum.  The footer is memory-mapped and binary searched,
+ * and only the blocks that can hold what is looked for are mapped and
+ * read, so a lookup takes about as long in a large listing as in a small one.
+ */
+public class IndexedArchive implements Closeable {
+	/**
+	 * The encoding of pathnames
+	 */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * The text lines a binary listing starts with, put before the blocks
+	 * read so that ArchiveQueue can read them
+	 */
+	private static final byte[] START = ("# CSum\n# " + ArchiveQueue.VERSION_COMMENT + " " + BinaryArchiveWriter.VERSION + "\n").getBytes(UTF_8);
+
+	/**
+	 * The indexed listing
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * The footer, from the block table to the trailer
+	 */
+	private final MappedByteBuffer footer;
+
+	/**
+	 * The number of blocks in the block table
+	 */
+	private final int blockCount;
+
+	/**
+	 * The number of entries
+	 */
+	private final long entryCount;
+
+	/**
+	 * Where the block table starts, which is where the blocks end
+	 */
+	private final long blockTableOffset;
+
+	/**
+	 * Where the names start, from the start of the footer
+	 */
+	private final int namesStart;
+
+	/**
+	 * Where the checksum index starts, from the start of the footer
+	 */
+	private final int checksumStart;
+
+	/**
+	 * The header of the listing
+	 */
+	private final ArchiveQueue header;
+
+	/**
+	 * Opens an indexed listing.
+	 *
+	 * @param listing The indexed listing
+	 * @throws IOException If it can't be read, or isn't an indexed listing
+	 * @throws InvalidEntryException If its header can't be read
+	 */
+	public IndexedArchive(File listing) throws IOException, InvalidEntryException {
+		file = new RandomAccessFile(listing, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long length = channel.size();
+			if (length < IndexedArchiveWriter.TRAILER_LENGTH) {
+				throw new IOException(listing + " isn't an indexed listing");
+			}
+			ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, length - IndexedArchiveWriter.TRAILER_LENGTH, IndexedArchiveWriter.TRAILER_LENGTH);
+			byte[] magic = new byte[IndexedArchiveWriter.MAGIC.length];
+			trailer.get(magic);
+			if (!Arrays.equals(magic, IndexedArchiveWriter.MAGIC)) {
+				throw new IOException(listing + " isn't an indexed listing");
+			}
+			int footerVersion = trailer.getInt();
+			if (footerVersion != IndexedArchiveWriter.FOOTER_VERSION) {
+				throw new IOException("Can't read the index of version " + footerVersion + " of " + listing);
+			}
+			blockCount = trailer.getInt();
+			entryCount = trailer.getLong();
+			blockTableOffset = trailer.getLong();
+			long namesOffset = trailer.getLong();
+			long checksumOffset = trailer.getLong();
+			long footerLength = length - IndexedArchiveWriter.TRAILER_LENGTH - blockTableOffset;
+			if ((blockCount < 0) || (entryCount < 0) || (blockTableOffset < 0) || (footerLength > Integer.MAX_VALUE)
+					|| (namesOffset != blockTableOffset + 16L * blockCount)
+					|| (checksumOffset < namesOffset) || (checksumOffset + 8 * entryCount != blockTableOffset + footerLength)) {
+				throw new IOException("The index of " + listing + " is damaged");
+			}
+			footer = channel.map(FileChannel.MapMode.READ_ONLY, blockTableOffset, footerLength);
+			namesStart = (int) (namesOffset - blockTableOffset);
+			checksumStart = (int) (checksumOffset - blockTableOffset);
+
+			InputStream input = new FileInputStream(listing);
+			try {
+				header = new ArchiveQueue(input);
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		} catch (InvalidEntryException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The number of entries
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * @return When the listing was started
+	 */
+	public Date getStartTime() {
+		return header.getStartTime();
+	}
+
+	/**
+	 * @return The name of the algorithm the checksums were made with
+	 */
+	public String getAlgorithm() {
+		return header.getAlgorithm();
+	}
+
+	/**
+	 * @return The directory listed (the first, if several were)
+	 */
+	public String getBasePath() {
+		return header.getBasePath();
+	}
+
+	/**
+	 * @return The directories listed, by label, if several were listed
+	 * together; otherwise empty
+	 */
+	public Map<String, String> getRoots() {
+		return header.getRoots();
+	}
+
+	/**
+	 * Finds the entry of a file.
+	 *
+	 * @param pathname The file's pathname, as in the listing (like "./dir/name")
+	 * @return Its entry, or null if it isn't in the listing
+	 * @throws IOException If the listing can't be read, or is damaged
+	 */
+	public FileEntry findPath(String pathname) throws IOException {
+		int block = findBlock(pathname);
+		if (block < 0) {
+			return null;
+		}
+		for (FileEntry entry : readBlock(block)) {
+			int order = entry.getPathname().compareTo(pathname);
+			if (order == 0) {
+				return entry;
+			} else if (order > 0) {
+				break;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the entries of the files under a directory.
+	 *
+	 * @param prefix The start of their pathnames, as in the listing (like
+	 * "./dir/")
+	 * @return Their entries, sorted by pathname
+	 * @throws IOException If the listing can't be read, or is damaged
+	 */
+	public List<FileEntry> findUnder(String prefix) throws IOException {
+		List<FileEntry> found = new ArrayList<FileEntry>();
+		for (int block = Math.max(findBlock(prefix), 0); block < blockCount; block++) {
+			for (FileEntry entry : readBlock(block)) {
+				if (entry.getPathname().startsWith(prefix)) {
+					found.add(entry);
+				} else if (entry.getPathname().compareTo(prefix) > 0) {
+					return found;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds the entries of the files with a checksum.
+	 *
+	 * @param checksum The checksum
+	 * @return Their entries, sorted by pathname
+	 * @throws IOException If the listing can't be read, or is damaged
+	 */
+	public List<FileEntry> findChecksum(byte[] checksum) throws IOException {
+		long low = IndexedArchiveWriter.checksumKey(checksum, 0);
+		long high = low | 0xffffff;
+		long start = 0;
+		long end = entryCount;
+		while (start < end) {
+			long middle = (start + end) >>> 1;
+			if (checksumKey(middle) < low) {
+				start = middle + 1;
+			} else {
+				end = middle;
+			}
+		}
+
+		TreeSet<Integer> blocks = new TreeSet<Integer>();
+		for (long index = start; (index < entryCount) && (checksumKey(index) <= high); index++) {
+			blocks.add((int) (checksumKey(index) & 0xffffff));
+		}
+		List<FileEntry> found = new ArrayList<FileEntry>();
+		for (int block : blocks) {
+			for (FileEntry entry : readBlock(block)) {
+				if (Arrays.equals(entry.getChecksum(), checksum)) {
+					found.add(entry);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Closes the listing.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Finds the last block whose first pathname comes at or before a pathname.
+	 *
+	 * @param pathname The pathname
+	 * @return The number of the block, or -1 if the pathname comes before
+	 * them all
+	 */
+	private int findBlock(String pathname) {
+		int start = 0;
+		int end = blockCount;
+		while (start < end) {
+			int middle = (start + end) >>> 1;
+			if (getFirstPathname(middle).compareTo(pathname) <= 0) {
+				start = middle + 1;
+			} else {
+				end = middle;
+			}
+		}
+		return start - 1;
+	}
+
+	/**
+	 * @param block The number of a block in the block table
+	 * @return The pathname of its first entry
+	 */
+	private String getFirstPathname(int block) {
+		int nameOffset = footer.getInt(16 * block + 8);
+		int nameLength = footer.getInt(16 * block + 12);
+		byte[] name = new byte[nameLength];
+		for (int index = 0; index < nameLength; index++) {
+			name[index] = footer.get(namesStart + nameOffset + index);
+		}
+		return new String(name, UTF_8);
+	}
+
+	/**
+	 * @param index The number of a key in the checksum index
+	 * @return The key
+	 */
+	private long checksumKey(long index) {
+		return footer.getLong(checksumStart + 8 * (int) index);
+	}
+
+	/**
+	 * Reads the entries of a block in the block table, along with any
+	 * blocks of only comments after it.
+	 *
+	 * @param block The number of the block
+	 * @return Its entries
+	 * @throws IOException If the listing can't be read, or is damaged
+	 */
+	private List<FileEntry> readBlock(int block) throws IOException {
+		long start = footer.getLong(16 * block);
+		long end = (block + 1 < blockCount) ? footer.getLong(16 * (block + 1)) : blockTableOffset;
+		if ((start < 0) || (end < start) || (end > blockTableOffset) || (end - start > Integer.MAX_VALUE - START.length - 1)) {
+			throw new IOException("The index is damaged");
+		}
+		byte[] bytes = new byte[START.length + (int) (end - start) + 1];
+		System.arraycopy(START, 0, bytes, 0, START.length);
+		file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, end - start).get(bytes, START.length, (int) (end - start));
+
+		List<FileEntry> entries = new ArrayList<FileEntry>();
+		try {
+			ArchiveQueue queue = new ArchiveQueue(new ByteArrayInputStream(bytes));
+			for (FileEntry entry = queue.dequeue(); entry != null; entry = queue.dequeue()) {
+				entries.add(entry);
+			}
+		} catch (InvalidEntryException e) {
+			throw new IOException("Block " + block + " of the index is damaged", e);
+		}
+		return Collections.unmodifiableList(entries);
+	}
+}
@@ -0,0 +1,468 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.DirectorySummarizer;
+import bdw.csum.entry.DirectorySummary;
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.io.BuilderUtils;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Writes an indexed listing: a binary (Version 2) listing whose entries
+ * are sorted by pathname, followed by a footer that IndexedArchive uses to
+ * find entries by pathname or checksum without reading the rest.  Since
+ * sorting keeps the files under each directory together, the directory
+ * summaries are worked out afresh as the sorted entries are written, and
+ * come out the same as in the listing sorted.  The comments that only
+ * make sense in the order the files were listed in (Since, Reused,
+ * Hashed and Problem) are left out.
+ * <p>
+ * The footer comes after the block that ends the listing, so ArchiveQueue
+ * reads an indexed listing as it would any other binary one.  It holds:
+ * <ul>
+ * <li>the block table: for each block that has entries in it, where the
+ * block starts (8 bytes) and where in the names its first pathname starts
+ * and how long it is (4 bytes each)
+ * <li>the names: the first pathname of each of those blocks, in UTF-8
+ * <li>the checksum index: for each entry, the first 5 bytes of its
+ * checksum (padded with 0s if shorter) and the number of its block in the
+ * block table (3 bytes), as 8 bytes, sorted as signed numbers
+ * <li>the trailer, TRAILER_LENGTH bytes: MAGIC, the version of the footer,
+ * the number of blocks in the table, the number of entries, and where the
+ * block table, the names and the checksum index start
+ * </ul>
+ * All numbers are big endian.
+ * <p>
+ * A listing too large to sort in memory is sorted in runs of getRunSize()
+ * entries, each written to a temporary file beside the output, which are
+ * then merged.
+ */
+public class IndexedArchiveWriter {
+	/**
+	 * The bytes the trailer starts with
+	 */
+	public static final byte[] MAGIC = {'C', 'S', 'u', 'm', 'I', 'n', 'd', 'x'};
+
+	/**
+	 * The version of the footer
+	 */
+	public static final int FOOTER_VERSION = 1;
+
+	/**
+	 * The length of the trailer at the very end
+	 */
+	public static final int TRAILER_LENGTH = 48;
+
+	/**
+	 * The number of checksum bytes the checksum index keeps of each entry
+	 */
+	public static final int CHECKSUM_PREFIX_LENGTH = 5;
+
+	/**
+	 * The most blocks the checksum index can number
+	 */
+	private static final int MAX_BLOCKS = 1 << 24;
+
+	/**
+	 * The number of entries sorted in memory at once, by default
+	 */
+	public static final int DEFAULT_RUN_SIZE = 500000;
+
+	/**
+	 * The encoding of pathnames
+	 */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Orders entries by pathname
+	 */
+	private static final Comparator<FileEntry> BY_PATHNAME = new Comparator<FileEntry>() {
+		@Override
+		public int compare(FileEntry one, FileEntry other) {
+			return one.getPathname().compareTo(other.getPathname());
+		}
+	};
+
+	/**
+	 * Where the indexed listing goes
+	 */
+	private final File output;
+
+	/**
+	 * The number of entries sorted in memory at once
+	 */
+	private int runSize = DEFAULT_RUN_SIZE;
+
+	/**
+	 * Formats the pathnames and checksums of summaries
+	 */
+	private final BuilderUtils utils = new BuilderUtils();
+
+	/**
+	 * @param output Where the indexed listing goes
+	 */
+	public IndexedArchiveWriter(File output) {
+		this.output = output;
+	}
+
+	/**
+	 * @return The number of entries sorted in memory at once
+	 */
+	public int getRunSize() {
+		return runSize;
+	}
+
+	/**
+	 * @param value The number of entries to sort in memory at once; more
+	 * than that are sorted in runs written to temporary files
+	 */
+	public void setRunSize(int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException("The run size must be positive");
+		}
+		runSize = value;
+	}
+
+	/**
+	 * Writes the entries of a listing, sorted and indexed.
+	 *
+	 * @param source The listing
+	 * @param roots The directories listed, by label, if several were listed
+	 * together (see ArchiveQueue.getRoots()); otherwise empty
+	 * @return The number of entries written
+	 * @throws InvalidEntryException If the listing can't be read
+	 * @throws IOException If the indexed listing can't be written
+	 */
+	public long write(EntryQueue source, Map<String, String> roots) throws InvalidEntryException, IOException {
+		List<File> runFiles = new ArrayList<File>();
+		try {
+			List<FileEntry> run = new ArrayList<FileEntry>();
+			while (!source.isEmpty()) {
+				run.add(source.dequeue());
+				if (run.size() >= runSize) {
+					runFiles.add(writeRun(run));
+					run.clear();
+				}
+			}
+			Collections.sort(run, BY_PATHNAME);
+
+			List<Run> runs = new ArrayList<Run>();
+			try {
+				for (File runFile : runFiles) {
+					runs.add(new Run(runFile));
+				}
+				runs.add(new Run(run.iterator()));
+				return writeIndexed(source, roots, runs);
+			} finally {
+				for (Run each : runs) {
+					each.close();
+				}
+			}
+		} finally {
+			for (File runFile : runFiles) {
+				runFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Sorts a run of entries and writes it to a temporary file.
+	 *
+	 * @param run The entries
+	 * @return The file
+	 * @throws IOException
+	 */
+	private File writeRun(List<FileEntry> run) throws IOException {
+		Collections.sort(run, BY_PATHNAME);
+		File directory = output.getAbsoluteFile().getParentFile();
+		File runFile = File.createTempFile("csum", ".run", directory);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(runFile));
+		try {
+			BinaryArchiveWriter writer = new BinaryArchiveWriter(out);
+			for (FileEntry entry : run) {
+				writer.write(entry);
+			}
+			writer.finish();
+		} finally {
+			out.close();
+		}
+		return runFile;
+	}
+
+	/**
+	 * Merges sorted runs of entries into the indexed listing.
+	 *
+	 * @param source The listing, for its header
+	 * @param roots The directories listed, by label, or empty
+	 * @param runs The runs
+	 * @return The number of entries written
+	 * @throws InvalidEntryException If a run can't be read
+	 * @throws IOException If the indexed listing can't be written
+	 */
+	private long writeIndexed(EntryQueue source, Map<String, String> roots, List<Run> runs) throws InvalidEntryException, IOException {
+		DirectorySummarizer summarizer;
+		try {
+			summarizer = new DirectorySummarizer(source.getAlgorithm());
+		} catch (NoSuchAlgorithmException e) {
+			throw new InvalidEntryException("The listing's algorithm " + source.getAlgorithm() + " isn't known", e);
+		}
+
+		PriorityQueue<Run> merging = new PriorityQueue<Run>(runs.size() + 1, new Comparator<Run>() {
+			@Override
+			public int compare(Run one, Run other) {
+				return BY_PATHNAME.compare(one.head, other.head);
+			}
+		});
+		for (Run run : runs) {
+			if (run.advance()) {
+				merging.add(run);
+			}
+		}
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+		try {
+			BinaryArchiveWriter writer = new BinaryArchiveWriter(out);
+			writeHeader(writer, source, roots);
+
+			List<Long> blockOffsets = new ArrayList<Long>();
+			ByteArrayOutputStream names = new ByteArrayOutputStream();
+			List<Integer> nameOffsets = new ArrayList<Integer>();
+			long[] checksums = new long[1024];
+			long entryCount = 0;
+			int lastBlock = -1;
+			while (!merging.isEmpty()) {
+				Run run = merging.poll();
+				FileEntry entry = run.head;
+				if (run.advance()) {
+					merging.add(run);
+				}
+
+				writeSummaries(writer, summarizer.add(entry));
+				if (writer.getBlockCount() != lastBlock) {
+					lastBlock = writer.getBlockCount();
+					if (blockOffsets.size() == MAX_BLOCKS) {
+						throw new IOException("The listing is too large to index");
+					}
+					blockOffsets.add(writer.getLength());
+					nameOffsets.add(names.size());
+					byte[] name = entry.getPathname().getBytes(UTF_8);
+					names.write(name, 0, name.length);
+				}
+				if (entryCount == checksums.length) {
+					checksums = Arrays.copyOf(checksums, checksums.length * 2);
+				}
+				checksums[(int) entryCount++] = checksumKey(entry.getChecksum(), blockOffsets.size() - 1);
+				writer.write(entry);
+			}
+			writeSummaries(writer, summarizer.finish());
+			writer.finish();
+			Arrays.sort(checksums, 0, (int) entryCount);
+
+			DataOutputStream footer = new DataOutputStream(out);
+			long blockTableOffset = writer.getLength();
+			for (int index = 0; index < blockOffsets.size(); index++) {
+				int nameEnd = (index + 1 < nameOffsets.size()) ? nameOffsets.get(index + 1) : names.size();
+				footer.writeLong(blockOffsets.get(index));
+				footer.writeInt(nameOffsets.get(index));
+				footer.writeInt(nameEnd - nameOffsets.get(index));
+			}
+			long namesOffset = blockTableOffset + 16L * blockOffsets.size();
+			names.writeTo(footer);
+			long checksumOffset = namesOffset + names.size();
+			for (int index = 0; index < entryCount; index++) {
+				footer.writeLong(checksums[index]);
+			}
+			footer.write(MAGIC);
+			footer.writeInt(FOOTER_VERSION);
+			footer.writeInt(blockOffsets.size());
+			footer.writeLong(entryCount);
+			footer.writeLong(blockTableOffset);
+			footer.writeLong(namesOffset);
+			footer.writeLong(checksumOffset);
+			footer.flush();
+			return entryCount;
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Works out an entry's key in the checksum index.
+	 *
+	 * @param checksum The entry's checksum
+	 * @param block The number of its block in the block table
+	 * @return The key
+	 */
+	static long checksumKey(byte[] checksum, int block) {
+		return (checksumPrefix(checksum) << 24) | block;
+	}
+
+	/**
+	 * @param checksum A checksum
+	 * @return Its first CHECKSUM_PREFIX_LENGTH bytes, padded with 0s if
+	 * shorter, as a number
+	 */
+	static long checksumPrefix(byte[] checksum) {
+		long prefix = 0;
+		for (int index = 0; index < CHECKSUM_PREFIX_LENGTH; index++) {
+			prefix = (prefix << 8) | ((index < checksum.length) ? (checksum[index] & 0xff) : 0);
+		}
+		return prefix;
+	}
+
+	/**
+	 * Writes the comments an indexed listing starts with.
+	 *
+	 * @param writer Where they go
+	 * @param source The listing
+	 * @param roots The directories listed, by label, or empty
+	 * @throws IOException
+	 */
+	private void writeHeader(BinaryArchiveWriter writer, EntryQueue source, Map<String, String> roots) throws IOException {
+		writer.writeComment(" " + ArchiveQueue.ALGORITHM_COMMENT + " " + source.getAlgorithm());
+		if (source.getChunkSize() != 0) {
+			writer.writeComment(" " + ArchiveQueue.CHUNKED_COMMENT + " " + source.getChunkSize());
+		}
+		if (roots.isEmpty()) {
+			StringBuilder builder = new StringBuilder(" " + ArchiveQueue.DIR_COMMENT + " ");
+			utils.appendPath(builder, source.getBasePath());
+			writer.writeComment(builder.toString());
+		}
+		for (Map.Entry<String, String> root : roots.entrySet()) {
+			StringBuilder builder = new StringBuilder(" " + ArchiveQueue.DIR_COMMENT + " ");
+			utils.appendPath(builder, root.getValue());
+			builder.append(" ");
+			utils.appendPath(builder, root.getKey());
+			writer.writeComment(builder.toString());
+		}
+		StringBuilder builder = new StringBuilder(" " + ArchiveQueue.START_COMMENT + " ");
+		utils.appendDate(builder, source.getStartTime());
+		writer.writeComment(builder.toString());
+	}
+
+	/**
+	 * Writes the summaries of directories, as comments.
+	 *
+	 * @param writer Where they go
+	 * @param summaries The summaries
+	 * @throws IOException
+	 */
+	private void writeSummaries(BinaryArchiveWriter writer, List<DirectorySummary> summaries) throws IOException {
+		for (DirectorySummary summary : summaries) {
+			StringBuilder builder = new StringBuilder(" " + ArchiveQueue.SUMMARY_COMMENT + " ");
+			utils.appendHexString(builder, summary.getChecksum());
+			builder.append(" ").append(summary.getFileCount()).append(" ");
+			utils.appendPath(builder, summary.getPathname());
+			writer.writeComment(builder.toString());
+		}
+	}
+
+	/**
+	 * A sorted run of entries being merged, read from a temporary file or
+	 * from memory
+	 */
+	private static class Run {
+		/**
+		 * The entry at the head of the run, or null once it has run out
+		 */
+		FileEntry head;
+
+		/**
+		 * The entries, if in memory
+		 */
+		private final Iterator<FileEntry> entries;
+
+		/**
+		 * The temporary file, if the entries are in one
+		 */
+		private final InputStream input;
+
+		/**
+		 * Reads the temporary file
+		 */
+		private final ArchiveQueue queue;
+
+		/**
+		 * @param entries The entries, in memory
+		 */
+		Run(Iterator<FileEntry> entries) {
+			this.entries = entries;
+			this.input = null;
+			this.queue = null;
+		}
+
+		/**
+		 * @param file The temporary file of the entries
+		 * @throws IOException
+		 * @throws InvalidEntryException
+		 */
+		Run(File file) throws IOException, InvalidEntryException {
+			this.entries = null;
+			this.input = new FileInputStream(file);
+			try {
+				this.queue = new ArchiveQueue(input);
+			} catch (InvalidEntryException e) {
+				input.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Moves on to the next entry.
+		 *
+		 * @return false if the run has run out
+		 * @throws InvalidEntryException If the temporary file can't be read
+		 */
+		boolean advance() throws InvalidEntryException {
+			if (entries != null) {
+				head = entries.hasNext() ? entries.next() : null;
+			} else {
+				head = queue.dequeue();
+			}
+			return head != null;
+		}
+
+		/**
+		 * Closes the temporary file, if any.
+		 * @throws IOException
+		 */
+		void close() throws IOException {
+			if (input != null) {
+				input.close();
+			}
+		}
+	}
+}
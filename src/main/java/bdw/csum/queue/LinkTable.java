@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.FileEntry;
+
+/**
+ * Remembers the first link seen to each file with several hard links,
+ * by device and inode, so that the file's other links can share its
+ * checksum rather than read the file again.  Links are claimed in the
+ * order the walk comes to them, before any are read, so the first link
+ * is always the one listed first, whatever threads they are read on.
+ * Each file is forgotten once all its links have been seen, so only the
+ * files part way through being seen take up room.
+ * <p>
+ * The table is an open-addressed hash table in parallel arrays, rather than
+ * a map of objects, since a tree of backups can have a great many files
+ * with several links.  Once it holds its most files, it stops taking more
+ * (their links are just checksummed again).  It may be used from several
+ * threads at once.
+ */
+public class LinkTable {
+	/**
+	 * The first link seen to a file, which is read; its entry is shared
+	 * with the file's later links once built
+	 */
+	public static class Link {
+		/**
+		 * The entry, once built
+		 */
+		private volatile FileEntry entry;
+
+		/**
+		 * @return The entry of the link, or null if it hasn't been built,
+		 * or couldn't be
+		 */
+		public FileEntry getEntry() {
+			return entry;
+		}
+
+		/**
+		 * @param value The entry of the link
+		 */
+		public void setEntry(FileEntry value) {
+			entry = value;
+		}
+	}
+
+	/**
+	 * The most files held by default
+	 */
+	public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * The device of the file in each slot
+	 */
+	private long[] devices;
+
+	/**
+	 * The inode of the file in each slot
+	 */
+	private long[] inodes;
+
+	/**
+	 * The number of links still to be seen of the file in each slot
+	 */
+	private int[] remaining;
+
+	/**
+	 * The first link to the file in each slot, or null if the slot is empty
+	 */
+	private Link[] firsts;
+
+	/**
+	 * Number of files held
+	 */
+	private int size;
+
+	/**
+	 * The most files held
+	 */
+	private final int maxSize;
+
+	/**
+	 * @param maxSize The most files to hold at once
+	 */
+	public LinkTable(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("The table must hold at least 1 file");
+		}
+		this.maxSize = maxSize;
+		allocate(1024);
+	}
+
+	/**
+	 * Claims a link to a file: the first one seen is remembered, and the
+	 * later ones are given it, and counted as seen.
+	 *
+	 * @param device The file's device
+	 * @param inode The file's inode
+	 * @param links The number of links to the file
+	 * @param link This link
+	 * @return The first link seen to the file, if this is a later one;
+	 * otherwise null (this one is remembered, unless the table is full)
+	 */
+	public synchronized Link claim(long device, long inode, long links, Link link) {
+		int slot = findSlot(device, inode);
+		if (firsts[slot] != null) {
+			Link first = firsts[slot];
+			if (--remaining[slot] <= 0) {
+				removeAt(slot);
+			}
+			return first;
+		}
+		if ((links < 2) || (size >= maxSize)) {
+			return null;
+		}
+
+		devices[slot] = device;
+		inodes[slot] = inode;
+		remaining[slot] = (int) Math.min(links - 1, Integer.MAX_VALUE);
+		firsts[slot] = link;
+		size++;
+		if (size * 2 > firsts.length) {
+			grow();
+		}
+		return null;
+	}
+
+	/**
+	 * @return The number of files held
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @param device A device
+	 * @param inode An inode
+	 * @return The slot the file is in, or the empty slot it would go in
+	 */
+	private int findSlot(long device, long inode) {
+		int mask = firsts.length - 1;
+		int slot = home(device, inode, mask);
+		while ((firsts[slot] != null) && ((inodes[slot] != inode) || (devices[slot] != device))) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return The slot a file would be in if nothing were in the way
+	 */
+	private static int home(long device, long inode, int mask) {
+		long hash = (inode * 0x9E3779B97F4A7C15L) ^ device;
+		hash ^= hash >>> 32;
+		hash *= 0xC2B2AE3D27D4EB4FL;
+		hash ^= hash >>> 29;
+		return (int) hash & mask;
+	}
+
+	/**
+	 * Empties a slot, moving back any files after it that would otherwise
+	 * no longer be found.
+	 *
+	 * @param slot The slot
+	 */
+	private void removeAt(int slot) {
+		int mask = firsts.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (firsts[next] != null) {
+			int home = home(devices[next], inodes[next], mask);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				devices[hole] = devices[next];
+				inodes[hole] = inodes[next];
+				remaining[hole] = remaining[next];
+				firsts[hole] = firsts[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		firsts[hole] = null;
+		size--;
+	}
+
+	/**
+	 * Doubles the number of slots.
+	 */
+	private void grow() {
+		long[] oldDevices = devices;
+		long[] oldInodes = inodes;
+		int[] oldRemaining = remaining;
+		Link[] oldFirsts = firsts;
+		allocate(oldFirsts.length * 2);
+		for (int index = 0; index < oldFirsts.length; index++) {
+			if (oldFirsts[index] != null) {
+				int slot = findSlot(oldDevices[index], oldInodes[index]);
+				devices[slot] = oldDevices[index];
+				inodes[slot] = oldInodes[index];
+				remaining[slot] = oldRemaining[index];
+				firsts[slot] = oldFirsts[index];
+			}
+		}
+	}
+
+	/**
+	 * @param slotCount The number of slots (a power of 2)
+	 */
+	private void allocate(int slotCount) {
+		devices = new long[slotCount];
+		inodes = new long[slotCount];
+		remaining = new int[slotCount];
+		firsts = new Link[slotCount];
+	}
+}
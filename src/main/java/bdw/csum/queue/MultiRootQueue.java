@@ -0,0 +1,353 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A queue that scans several directories (roots) at once, and gives back
+ * their entries as if they were all under one directory: each root's
+ * entries come together, in the order the roots were given, with the
+ * root's label (see makeLabels()) in front of their pathnames.  So two
+ * roots can't give the same pathname, and a listing of them compares with
+ * another listing of the same roots like any other.
+ * <p>
+ * The first root is scanned as its entries are asked for.  The others
+ * are each scanned on a thread of their own as soon as this is started,
+ * into a temporary file, which is read back once the roots before them
+ * have been given.  So the whole takes about as long as the slowest root
+ * rather than all of them one after another.
+ */
+public class MultiRootQueue extends EntryQueue {
+	/**
+	 * The roots' labels
+	 */
+	private final List<String> labels;
+
+	/**
+	 * The scans of the roots
+	 */
+	private final List<FSQueue> scans;
+
+	/**
+	 * The scans of all but the first root into temporary files, once started
+	 */
+	private final List<FutureTask<File>> spools = new ArrayList<FutureTask<File>>();
+
+	/**
+	 * The root entries are being taken from
+	 */
+	private int current;
+
+	/**
+	 * Where the current root's entries are taken from, or null if not yet opened
+	 */
+	private EntryQueue source;
+
+	/**
+	 * The spooled listing of the current root, while it is being read
+	 */
+	private File spoolFile;
+
+	/**
+	 * Reads the spooled listing of the current root
+	 */
+	private InputStream spoolInput;
+
+	/**
+	 * The next entry, once found
+	 */
+	private FileEntry nextEntry;
+
+	/**
+	 * Why the next entry couldn't be built, once found, to be thrown by dequeue()
+	 */
+	private InvalidEntryException nextProblem;
+
+	/**
+	 * Number of entries the scans of the later roots couldn't build
+	 */
+	private int problemCount;
+
+	/**
+	 * @param labels The label of each root (see makeLabels())
+	 * @param scans The scan of each root, in the same order, set up but
+	 * not yet started
+	 */
+	public MultiRootQueue(List<String> labels, List<FSQueue> scans) {
+		if (scans.isEmpty() || (labels.size() != scans.size())) {
+			throw new IllegalArgumentException("Each root needs a label");
+		}
+		this.labels = new ArrayList<String>(labels);
+		this.scans = new ArrayList<FSQueue>(scans);
+		FSQueue first = scans.get(0);
+		basePath = first.getBasePath();
+		startTime = first.getStartTime();
+		algorithm = first.getAlgorithm();
+		chunkSize = first.getChunkSize();
+	}
+
+	/**
+	 * Makes a label for each root from its last name, which is what its
+	 * entries' pathnames start with.  Where roots have the same last name,
+	 * the later ones get -2, -3 and so on after it.
+	 *
+	 * @param paths The roots
+	 * @return Their labels, in the same order
+	 */
+	public static List<String> makeLabels(List<String> paths) {
+		List<String> labels = new ArrayList<String>();
+		Set<String> used = new HashSet<String>();
+		for (String path : paths) {
+			File file = new File(path).getAbsoluteFile().toPath().normalize().toFile();
+			String name = file.getName().isEmpty() ? "root" : file.getName();
+			String label = name;
+			for (int count = 2; used.contains(label); count++) {
+				label = name + "-" + count;
+			}
+			used.add(label);
+			labels.add(label);
+		}
+		return labels;
+	}
+
+	/**
+	 * @return The number of roots
+	 */
+	public int getRootCount() {
+		return scans.size();
+	}
+
+	/**
+	 * @param index The number of a root
+	 * @return Its label
+	 */
+	public String getLabel(int index) {
+		return labels.get(index);
+	}
+
+	/**
+	 * @param index The number of a root
+	 * @return Its scan
+	 */
+	public FSQueue getScan(int index) {
+		return scans.get(index);
+	}
+
+	/**
+	 * @return The number of the root the next entry comes from; once the
+	 * queue is empty, the number of roots
+	 * @throws InvalidEntryException If a root couldn't be scanned
+	 */
+	public int getCurrentRoot() throws InvalidEntryException {
+		findNext();
+		return current;
+	}
+
+	/**
+	 * @return The number of entries in the later roots that couldn't be
+	 * built (those in the first come out of dequeue() as exceptions)
+	 */
+	public synchronized int getProblemCount() {
+		return problemCount;
+	}
+
+	/**
+	 * Starts scanning all but the first root, each on its own thread.
+	 * Called by the first call to isEmpty() or dequeue() if not before.
+	 */
+	public void start() {
+		if (!spools.isEmpty() || (scans.size() == 1)) {
+			return;
+		}
+		for (int index = 1; index < scans.size(); index++) {
+			final FSQueue scan = scans.get(index);
+			FutureTask<File> spool = new FutureTask<File>(new Callable<File>() {
+				@Override
+				public File call() throws IOException, InvalidEntryException {
+					return spool(scan);
+				}
+			});
+			Thread thread = new Thread(spool, "csum-root-" + labels.get(index));
+			thread.setDaemon(true);
+			thread.start();
+			spools.add(spool);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @return true if there are no more entries in any root
+	 * @throws InvalidEntryException If a root couldn't be scanned
+	 */
+	@Override
+	public boolean isEmpty() throws InvalidEntryException {
+		findNext();
+		return (nextEntry == null) && (nextProblem == null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @return The next entry, with its root's label in front of its pathname,
+	 * or null if there are no more
+	 * @throws InvalidEntryException If the entry, or a root, couldn't be scanned
+	 */
+	@Override
+	public FileEntry dequeue() throws InvalidEntryException {
+		findNext();
+		if (nextProblem != null) {
+			InvalidEntryException problem = nextProblem;
+			nextProblem = null;
+			throw problem;
+		}
+		FileEntry entry = nextEntry;
+		nextEntry = null;
+		return entry;
+	}
+
+	/**
+	 * Finds the next entry, moving on to the next root when one runs out.
+	 * @throws InvalidEntryException
+	 */
+	private void findNext() throws InvalidEntryException {
+		start();
+		while ((nextEntry == null) && (nextProblem == null) && (current < scans.size())) {
+			if (source == null) {
+				source = open(current);
+			}
+			if (source.isEmpty()) {
+				closeSource();
+				current++;
+			} else {
+				try {
+					nextEntry = relabel(source.dequeue(), labels.get(current));
+				} catch (InvalidEntryException e) {
+					nextProblem = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param index The number of a root
+	 * @return Where to take its entries from: its scan for the first, and
+	 * its spooled listing (once finished) for the others
+	 * @throws InvalidEntryException If the root couldn't be scanned
+	 */
+	private EntryQueue open(int index) throws InvalidEntryException {
+		if (index == 0) {
+			return scans.get(0);
+		}
+		try {
+			spoolFile = spools.get(index - 1).get();
+			spoolInput = new BufferedInputStream(new FileInputStream(spoolFile));
+			return new ArchiveQueue(spoolInput);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InvalidEntryException("Interrupted while waiting for " + labels.get(index), e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new InvalidEntryException("Could not scan " + scans.get(index).getBasePath(), (Exception) cause);
+		} catch (IOException e) {
+			throw new InvalidEntryException("Could not read back the listing of " + labels.get(index), e);
+		}
+	}
+
+	/**
+	 * Finishes with the current root's source.
+	 */
+	private void closeSource() {
+		source = null;
+		if (spoolInput != null) {
+			try {
+				spoolInput.close();
+			} catch (IOException e) {
+				// nothing more is read from it
+			}
+			spoolInput = null;
+			spoolFile.delete();
+			spoolFile = null;
+		}
+	}
+
+	/**
+	 * Scans a root into a temporary file, in the form ArchiveQueue reads.
+	 *
+	 * @param scan The root's scan
+	 * @return The file
+	 * @throws IOException If the file can't be written
+	 * @throws InvalidEntryException If the scan can't go on
+	 */
+	private File spool(FSQueue scan) throws IOException, InvalidEntryException {
+		File file = File.createTempFile("csum-root", ".listing");
+		file.deleteOnExit();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+		try {
+			ArchiveWriter archive = new ArchiveWriter(writer, null);
+			while (!scan.isEmpty()) {
+				try {
+					archive.write(scan.dequeue());
+				} catch (InvalidEntryException e) {
+					synchronized (this) {
+						problemCount++;
+					}
+					System.err.println("Ignoring exception while dequeueing: ");
+					e.printStackTrace(System.err);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	/**
+	 * @param entry An entry from a root
+	 * @param label The root's label
+	 * @return The entry with the label in front of its pathname (and the
+	 * pathname of any earlier link)
+	 */
+	private static FileEntry relabel(FileEntry entry, String label) {
+		FileEntry labelled = new FileEntry(entry.getChecksum(), entry.getFileSize(), entry.getLastModTime(),
+				label + entry.getPathname().substring(1));
+		if (entry.getLinkedTo() != null) {
+			labelled.setLinkedTo(label + entry.getLinkedTo().substring(1));
+		}
+		return labelled;
+	}
+}
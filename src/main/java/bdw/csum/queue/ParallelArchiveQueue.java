@@ -0,0 +1,496 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.hash.DigestAlgorithms;
+import bdw.csum.metrics.Metrics;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * A queue that reads a listing file (as ArchiveQueue does) in pieces, on
+ * several threads at once.  The file is split into pieces of about the
+ * same size, each ending at the end of a line, and each piece is mapped
+ * and read by an ArchiveQueue of its own on a pool of threads, a few
+ * pieces ahead of the one entries are being taken from.  Entries still
+ * come out of dequeue() in the order they are in the file, so this can
+ * stand in for an ArchiveQueue wherever the listing is a file.
+ * <p>
+ * The header comments are read from the pieces up to the first entry, which
+ * are read before the constructor returns.  A piece never starts right after a Link
+ * comment, which belongs with the entry after it.  Directory summaries are
+ * not collected; read them with ArchiveQueue.readSummaries() instead.
+ */
+public class ParallelArchiveQueue extends EntryQueue {
+	/**
+	 * The size of each piece by default (16 MB)
+	 */
+	public static final long DEFAULT_PIECE_SIZE = 16L * 1024 * 1024;
+
+	/**
+	 * How many pieces each thread may have read ahead
+	 */
+	private static final int PIECES_PER_THREAD = 2;
+
+	/**
+	 * Where each piece starts in the file, and (last) the end of the file
+	 */
+	private final long[] bounds;
+
+	/**
+	 * The file being read
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * The threads pieces are read on
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * The most pieces read (or being read) ahead
+	 */
+	private final int ahead;
+
+	/**
+	 * The pieces being read, in order, starting with the one after the current piece
+	 */
+	private final ArrayDeque<Future<Piece>> pending = new ArrayDeque<Future<Piece>>();
+
+	/**
+	 * The next piece to start reading
+	 */
+	private int nextPiece;
+
+	/**
+	 * The piece entries are being taken from
+	 */
+	private Piece current;
+
+	/**
+	 * The index in the current piece of the next entry to take
+	 */
+	private int currentIndex;
+
+	/**
+	 * The number of file entries in the pieces before the current one
+	 */
+	private long pieceBase;
+
+	/**
+	 * Ranges of file entries to skip over, as the index of the first
+	 * mapped to one past the last
+	 */
+	private final TreeMap<Long, Long> skipped = new TreeMap<Long, Long>();
+
+	/**
+	 * The directories listed, by label, where several were listed together
+	 */
+	private final Map<String, String> roots = new LinkedHashMap<String, String>();
+
+	/**
+	 * Where the time spent reading entries is recorded, or null
+	 */
+	private volatile Metrics metrics;
+
+	/**
+	 * Opens a listing file, splitting it into pieces of the default size.
+	 *
+	 * @param listing The file
+	 * @param threadCount The number of threads to read it on
+	 * @throws InvalidEntryException If the file can't be read
+	 */
+	public ParallelArchiveQueue(File listing, int threadCount) throws InvalidEntryException {
+		this(listing, threadCount, DEFAULT_PIECE_SIZE);
+	}
+
+	/**
+	 * Opens a listing file.
+	 *
+	 * @param listing The file
+	 * @param threadCount The number of threads to read it on
+	 * @param pieceSize About how many bytes to read as one piece (a piece
+	 * runs on to the end of its last line)
+	 * @throws InvalidEntryException If the file can't be read
+	 */
+	public ParallelArchiveQueue(File listing, int threadCount, long pieceSize) throws InvalidEntryException {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1");
+		}
+		if (pieceSize < 1) {
+			throw new IllegalArgumentException("The piece size must be positive");
+		}
+		try {
+			file = new RandomAccessFile(listing, "r");
+			bounds = split(file.getChannel(), pieceSize);
+		} catch (IOException e) {
+			throw new InvalidEntryException("Could not read " + listing, e);
+		}
+		// Fork-join workers are daemon threads, so the pool needs no shutting down.
+		pool = new ForkJoinPool(threadCount);
+		ahead = threadCount * PIECES_PER_THREAD;
+
+		fillPending();
+		current = take();
+		findNext();
+	}
+
+	/**
+	 * @return The number of pieces the file is read in
+	 */
+	public int getPieceCount() {
+		return bounds.length - 1;
+	}
+
+	/**
+	 * @param value Where to record the time spent reading entries (from
+	 * the pieces not yet started), or null to not record it
+	 */
+	public void setMetrics(Metrics value) {
+		metrics = value;
+	}
+
+	/**
+	 * Skips over a range of file entries, as if they weren't there.  Only
+	 * entries not yet read can be skipped.
+	 *
+	 * @param start The index of the first entry to skip (the first in the archive being 0)
+	 * @param end One past the index of the last entry to skip
+	 */
+	public void skipEntries(long start, long end) {
+		if (end > start) {
+			skipped.put(start, end);
+		}
+	}
+
+	/**
+	 * @return The directories listed, by the label their entries' pathnames
+	 * start with, if several were listed together, as far as the file has
+	 * been read; otherwise empty
+	 */
+	public Map<String, String> getRoots() {
+		return Collections.unmodifiableMap(roots);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @return true if there are no more entries in the queue
+	 * @throws InvalidEntryException If a piece couldn't be read
+	 */
+	@Override
+	public boolean isEmpty() throws InvalidEntryException {
+		findNext();
+		return (current == null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @return the next file entry, or null if there are no more.
+	 * @throws InvalidEntryException If a piece couldn't be read
+	 */
+	@Override
+	public FileEntry dequeue() throws InvalidEntryException {
+		findNext();
+		if (current == null) {
+			return null;
+		}
+		return current.entries.get(currentIndex++);
+	}
+
+	/**
+	 * Moves on to the next entry not skipped over, going on to the next
+	 * piece whenever one runs out.
+	 * @throws InvalidEntryException
+	 */
+	private void findNext() throws InvalidEntryException {
+		while (current != null) {
+			if (currentIndex < current.entries.size()) {
+				if (!isSkipped(pieceBase + currentIndex)) {
+					return;
+				}
+				currentIndex++;
+				continue;
+			}
+			pieceBase += current.entries.size();
+			current = take();
+			currentIndex = 0;
+		}
+	}
+
+	/**
+	 * Waits for the next piece to be read, starting more as room is made.
+	 *
+	 * @return The piece, or null if there are no more
+	 * @throws InvalidEntryException If the piece couldn't be read
+	 */
+	private Piece take() throws InvalidEntryException {
+		Future<Piece> next = pending.poll();
+		if (next == null) {
+			close();
+			return null;
+		}
+		fillPending();
+		try {
+			Piece piece = next.get();
+			readHeader(piece.header);
+			return piece;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InvalidEntryException("Interrupted while reading the listing", e);
+		} catch (ExecutionException e) {
+			// The pool wraps checked exceptions in RuntimeExceptions.
+			for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+				if (cause instanceof InvalidEntryException) {
+					throw (InvalidEntryException) cause;
+				} else if (cause instanceof IOException) {
+					throw new InvalidEntryException("Could not read the listing", (IOException) cause);
+				}
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new InvalidEntryException("Problem when trying to read the listing", (Exception) cause);
+		}
+	}
+
+	/**
+	 * Takes whatever the comments in a piece say about the listing as a
+	 * whole (anything not left at the defaults EntryQueue starts with).
+	 *
+	 * @param header What read the piece
+	 */
+	private void readHeader(ArchiveQueue header) {
+		if (!header.getBasePath().equals("/")) {
+			basePath = header.getBasePath();
+		}
+		if (header.getStartTime().getTime() != 0) {
+			startTime = header.getStartTime();
+		}
+		if (!header.getAlgorithm().equals(DigestAlgorithms.SHA_256)) {
+			algorithm = header.getAlgorithm();
+		}
+		if (header.getChunkSize() != 0) {
+			chunkSize = header.getChunkSize();
+		}
+		roots.putAll(header.getRoots());
+	}
+
+	/**
+	 * Starts reading pieces until as many as allowed are being read ahead.
+	 */
+	private void fillPending() {
+		while ((pending.size() < ahead) && (nextPiece < getPieceCount())) {
+			final long start = bounds[nextPiece];
+			final long end = bounds[nextPiece + 1];
+			nextPiece++;
+			pending.add(pool.submit(new Callable<Piece>() {
+				@Override
+				public Piece call() throws IOException, InvalidEntryException {
+					return read(start, end);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Reads the entries of one piece.
+	 *
+	 * @param start Where the piece starts in the file
+	 * @param end Where it ends
+	 * @return The piece
+	 * @throws IOException If the file can't be mapped
+	 * @throws InvalidEntryException If an entry can't be read
+	 */
+	private Piece read(long start, long end) throws IOException, InvalidEntryException {
+		ByteBuffer bytes = file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		ArchiveQueue queue = new ArchiveQueue(new BufferInputStream(bytes));
+		queue.setMetrics(metrics);
+		List<FileEntry> entries = new ArrayList<FileEntry>();
+		while (!queue.isEmpty()) {
+			entries.add(queue.dequeue());
+		}
+		return new Piece(queue, entries);
+	}
+
+	/**
+	 * Closes the file, once every piece has been read.
+	 */
+	private void close() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			// everything wanted from it has been read
+		}
+	}
+
+	/**
+	 * @param index The index of a file entry
+	 * @return true if it is to be skipped over
+	 */
+	private boolean isSkipped(long index) {
+		if (skipped.isEmpty()) {
+			return false;
+		}
+		Map.Entry<Long, Long> range = skipped.floorEntry(index);
+		return (range != null) && (index < range.getValue());
+	}
+
+	/**
+	 * Splits a listing into pieces, each ending at the end of a line.
+	 *
+	 * @param channel The listing
+	 * @param pieceSize About how big to make each piece
+	 * @return Where each piece starts, followed by the end of the listing
+	 * @throws IOException If the listing can't be read
+	 */
+	static long[] split(FileChannel channel, long pieceSize) throws IOException {
+		long size = channel.size();
+		List<Long> starts = new ArrayList<Long>();
+		starts.add(0L);
+		long position = 0;
+		while (size - position > pieceSize) {
+			position = findPieceEnd(channel, position + pieceSize, size);
+			if (position >= size) {
+				break;
+			}
+			starts.add(position);
+		}
+		long[] bounds = new long[starts.size() + 1];
+		for (int index = 0; index < starts.size(); index++) {
+			bounds[index] = starts.get(index);
+		}
+		bounds[starts.size()] = size;
+		return bounds;
+	}
+
+	/**
+	 * Finds where a piece can end: after the first whole line from a
+	 * position on that isn't a Link comment.
+	 *
+	 * @param channel The listing
+	 * @param from Where to start looking
+	 * @param size The size of the listing
+	 * @return Where the piece can end (the size of the listing if there is nowhere)
+	 * @throws IOException If the listing can't be read
+	 */
+	private static long findPieceEnd(FileChannel channel, long from, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long position = from;
+		long lineStart = -1;
+		// The start of the line being looked at, as far as it has been seen
+		StringBuilder line = new StringBuilder();
+		while (position < size) {
+			buffer.clear();
+			int count = channel.read(buffer, position);
+			if (count < 0) {
+				break;
+			}
+			for (int index = 0; index < count; index++) {
+				byte aByte = buffer.get(index);
+				if (aByte == '\n') {
+					if ((lineStart >= 0) && !isLinkComment(line)) {
+						return position + index + 1;
+					}
+					lineStart = position + index + 1;
+					line.setLength(0);
+				} else if ((lineStart >= 0) && (line.length() < 16)) {
+					line.append((char) (aByte & 0xff));
+				}
+			}
+			position += count;
+		}
+		return size;
+	}
+
+	/**
+	 * @param start The start of a line
+	 * @return true if it is a Link comment
+	 */
+	private static boolean isLinkComment(CharSequence start) {
+		String text = start.toString().trim();
+		if (!text.startsWith("#")) {
+			return false;
+		}
+		return text.substring(1).trim().regionMatches(true, 0, ArchiveQueue.LINK_COMMENT, 0,
+				ArchiveQueue.LINK_COMMENT.length());
+	}
+
+	/**
+	 * The entries of one piece of the listing
+	 */
+	private static class Piece {
+		/**
+		 * What read the piece, which has whatever comments were in it
+		 */
+		final ArchiveQueue header;
+
+		/**
+		 * The entries, in order
+		 */
+		final List<FileEntry> entries;
+
+		Piece(ArchiveQueue header, List<FileEntry> entries) {
+			this.header = header;
+			this.entries = entries;
+		}
+	}
+
+	/**
+	 * Reads the bytes of a buffer (such as a mapped piece of a file)
+	 */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+	}
+}
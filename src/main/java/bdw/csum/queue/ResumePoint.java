@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.DirectorySummarizer;
+import bdw.csum.entry.DirectorySummary;
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.TreeSet;
+
+/**
+ * Where an interrupted listing got to, worked out from the partial listing
+ * itself, so that a new scan can carry on without checksumming again
+ * anything that is already in it.
+ * <p>
+ * The state of a walk (open directory streams) can't be saved, so it is
+ * rebuilt instead: a directory whose summary was reached is finished and
+ * need not be walked again at all, while in the directories still open
+ * (those containing the last entry), the files already listed are passed
+ * over.  Only those are remembered, so the memory needed stays small however
+ * far the listing got.  Files added to a finished directory since it was
+ * listed are not picked up.
+ */
+public class ResumePoint {
+	/**
+	 * Finished directories, relative to the root and ending with / (the root being empty),
+	 * leaving out those inside another finished directory
+	 */
+	private final TreeSet<String> finishedDirectories = new TreeSet<String>();
+
+	/**
+	 * Files listed in directories not yet finished, relative to the root
+	 */
+	private final TreeSet<String> listedFiles = new TreeSet<String>();
+
+	/**
+	 * Summarizes the listing's directories, as of its last entry
+	 */
+	private DirectorySummarizer summarizer;
+
+	/**
+	 * The algorithm the listing was made with
+	 */
+	private String algorithm;
+
+	/**
+	 * The chunk size of the listing
+	 */
+	private long chunkSize;
+
+	/**
+	 * Number of entries in the listing
+	 */
+	private long entryCount;
+
+	/**
+	 * The pathname of the last entry, or null if there are none
+	 */
+	private String lastPathname;
+
+	/**
+	 * Reads a partial listing, feeding its entries to a summarizer so that
+	 * it is ready to carry on summarizing where the listing left off.
+	 *
+	 * @param archive The partial listing, ending after a complete entry
+	 * @return Where the listing got to
+	 * @throws InvalidEntryException If the listing can't be read
+	 */
+	public static ResumePoint read(InputStream archive) throws InvalidEntryException {
+		ResumePoint point = new ResumePoint();
+		ArchiveQueue queue = new ArchiveQueue(archive);
+		DirectorySummarizer summarizer;
+		try {
+			summarizer = new DirectorySummarizer(queue.getAlgorithm());
+		} catch (NoSuchAlgorithmException e) {
+			throw new InvalidEntryException("Unknown checksum algorithm " + queue.getAlgorithm(), e);
+		}
+		while (!queue.isEmpty()) {
+			FileEntry entry = queue.dequeue();
+			for (DirectorySummary summary : summarizer.add(entry)) {
+				point.finishDirectory(relative(summary.getPathname()));
+			}
+			point.listedFiles.add(relative(entry.getPathname()));
+			point.entryCount++;
+			point.lastPathname = entry.getPathname();
+		}
+		point.summarizer = summarizer;
+		point.algorithm = queue.getAlgorithm();
+		point.chunkSize = queue.getChunkSize();
+		return point;
+	}
+
+	/**
+	 * @param pathname A pathname from a listing, starting with ./
+	 * @return The pathname relative to the root, as a walk gives it
+	 */
+	private static String relative(String pathname) {
+		return pathname.startsWith("./") ? pathname.substring(2) : pathname;
+	}
+
+	/**
+	 * Notes that a directory is finished, forgetting what is inside it.
+	 *
+	 * @param prefix The directory, relative to the root and ending with /
+	 */
+	private void finishDirectory(String prefix) {
+		String end = prefix + Character.MAX_VALUE;
+		listedFiles.subSet(prefix, end).clear();
+		finishedDirectories.subSet(prefix, end).clear();
+		finishedDirectories.add(prefix);
+	}
+
+	/**
+	 * @param prefix A directory, relative to the root of the walk and ending with / (the root being empty)
+	 * @return true if it was finished, so need not be walked
+	 */
+	public boolean isDirectoryFinished(String prefix) {
+		String closest = finishedDirectories.floor(prefix);
+		return (closest != null) && prefix.startsWith(closest);
+	}
+
+	/**
+	 * @param relativePath A file, relative to the root of the walk
+	 * @return true if it is already in the listing
+	 */
+	public boolean isFileListed(String relativePath) {
+		return listedFiles.contains(relativePath);
+	}
+
+	/**
+	 * @return A summarizer for the listing's directories, with its entries
+	 * already added, ready to carry on from the last
+	 */
+	public DirectorySummarizer getSummarizer() {
+		return summarizer;
+	}
+
+	/**
+	 * @return The algorithm the listing was made with
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return The chunk size the listing was made with
+	 */
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return The number of entries already in the listing
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * @return The pathname of the last entry in the listing, or null if there are none
+	 */
+	public String getLastPathname() {
+		return lastPathname;
+	}
+}
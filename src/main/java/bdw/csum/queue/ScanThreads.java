@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes the executors used to keep many slow file system operations in
+ * flight at once.  Where the JVM has virtual threads (Java 21 and later)
+ * each task gets one, which costs next to nothing while it waits on the
+ * file system.  Otherwise each task gets an ordinary daemon thread from a
+ * cached pool, which works the same, just with more memory per waiting task.
+ * Either way, the executor itself doesn't limit how many tasks run at
+ * once; whoever submits them does that.
+ */
+class ScanThreads {
+	private ScanThreads() {
+	}
+
+	/**
+	 * @return true if the JVM has virtual threads
+	 */
+	static boolean haveVirtualThreads() {
+		return findVirtualFactory() != null;
+	}
+
+	/**
+	 * @param namePrefix What to start thread names with (for platform threads)
+	 * @return An executor that starts a new thread for each task
+	 */
+	static ExecutorService newPerTaskExecutor(final String namePrefix) {
+		Method factory = findVirtualFactory();
+		if (factory != null) {
+			try {
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				// fall back to platform threads
+			}
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable task) {
+				count++;
+				Thread thread = new Thread(task, namePrefix + count);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return Executors.newVirtualThreadPerTaskExecutor, or null if there isn't one
+	 */
+	private static Method findVirtualFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.util.RateLimiter;
+import bdw.util.Sizes;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Keeps a scan to a ceiling on bytes read per second and on directory
+ * entries (files and directories) looked at per second, so that it has a
+ * predictable effect on whatever else the machine is doing.
+ * <p>
+ * The ceilings may be changed while the scan runs by editing a control
+ * file, which is checked every second or so.  It is a properties file:
+ * <pre>
+ * bytes-per-second = 20M
+ * files-per-second = 500
+ * </pre>
+ * A ceiling missing from the file, or 0, means no limit.
+ */
+public class Throttle {
+	/**
+	 * Key in the control file for the byte rate
+	 */
+	public static final String BYTES_KEY = "bytes-per-second";
+
+	/**
+	 * Key in the control file for the file rate
+	 */
+	public static final String FILES_KEY = "files-per-second";
+
+	/**
+	 * How often the control file is checked for changes, in milliseconds
+	 */
+	private static final long POLL_INTERVAL = 1000;
+
+	/**
+	 * Limits bytes read
+	 */
+	private final RateLimiter byteLimiter;
+
+	/**
+	 * Limits directory entries looked at
+	 */
+	private final RateLimiter fileLimiter;
+
+	/**
+	 * The control file, or null
+	 */
+	private File controlFile;
+
+	/**
+	 * Last modification time of the control file when it was last read
+	 */
+	private long controlModified = -1;
+
+	/**
+	 * The thread watching the control file, or null
+	 */
+	private Thread watcher;
+
+	/**
+	 * Constructs a throttle.
+	 * @param bytesPerSecond The most bytes to read per second, or 0 for no limit
+	 * @param filesPerSecond The most directory entries to look at per second, or 0 for no limit
+	 */
+	public Throttle(double bytesPerSecond, double filesPerSecond) {
+		byteLimiter = new RateLimiter(bytesPerSecond);
+		fileLimiter = new RateLimiter(filesPerSecond);
+	}
+
+	/**
+	 * @return The limiter for bytes read
+	 */
+	public RateLimiter getByteLimiter() {
+		return byteLimiter;
+	}
+
+	/**
+	 * @return The limiter for directory entries looked at
+	 */
+	public RateLimiter getFileLimiter() {
+		return fileLimiter;
+	}
+
+	/**
+	 * Starts taking the ceilings from a control file, reading it now and
+	 * whenever it changes from now on.  A file that doesn't exist yet is
+	 * fine; the ceilings given to the constructor stand until it does.
+	 * @param control The control file
+	 */
+	public synchronized void watch(File control) {
+		controlFile = control;
+		checkControlFile();
+		if (watcher == null) {
+			watcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							Thread.sleep(POLL_INTERVAL);
+							checkControlFile();
+						}
+					} catch (InterruptedException e) {
+						// Told to stop
+					}
+				}
+			}, "csum-throttle");
+			watcher.setDaemon(true);
+			watcher.start();
+		}
+	}
+
+	/**
+	 * Stops watching the control file.
+	 */
+	public synchronized void close() {
+		if (watcher != null) {
+			watcher.interrupt();
+			watcher = null;
+		}
+	}
+
+	/**
+	 * Reads the control file if it has changed since it was last read.
+	 * A file that can't be read or understood is complained about and
+	 * otherwise ignored, leaving the ceilings as they were.
+	 */
+	protected synchronized void checkControlFile() {
+		if ((controlFile == null) || !controlFile.isFile() || (controlFile.lastModified() == controlModified)) {
+			return;
+		}
+		controlModified = controlFile.lastModified();
+
+		Properties settings = new Properties();
+		try {
+			InputStream input = new FileInputStream(controlFile);
+			try {
+				settings.load(input);
+			} finally {
+				input.close();
+			}
+			double bytes = parseRate(settings.getProperty(BYTES_KEY));
+			double files = parseRate(settings.getProperty(FILES_KEY));
+			byteLimiter.setRate(bytes);
+			fileLimiter.setRate(files);
+		} catch (IOException e) {
+			System.err.println("Can not read throttle file " + controlFile + ": " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Ignoring throttle file " + controlFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param value A rate from the control file, or null
+	 * @return The rate, 0 if none
+	 */
+	private static double parseRate(String value) {
+		return (value == null) ? 0 : Sizes.parse(value);
+	}
+}
@@ -0,0 +1,1023 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.filter.PathFilter;
+import bdw.csum.metrics.Metrics;
+import bdw.util.RateLimiter;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks a tree depth-first, returning the files in it (not the directories)
+ * one at a time.  Each directory is read through a DirectoryStream as the walk
+ * goes, rather than all at once, so a directory with millions of entries
+ * costs no more memory than one with a few.  The attributes of each entry
+ * are read exactly once, and handed back with it.
+ * Like java.io.File, this follows symbolic links.
+ * <p>
+ * Optionally, the walker notes which device each directory is on, and
+ * can return the files of a directory in inode order, which on a spinning
+ * disk is usually close to the order they are laid out in.  A directory
+ * walked in inode order is read all at once, files first, then its
+ * subdirectories.
+ * <p>
+ * Where each look at the file system is slow (a network file system), the
+ * attributes of a directory's entries can instead be read concurrently, a
+ * window of entries ahead of the one being returned, and any of them that
+ * are directories are opened and listed as well, so the walk finds them
+ * ready when it gets to them.  The entries still come back in the same order.
+ * <p>
+ * For trees with very many directories, the directories can instead be
+ * listed in parallel on a fork-join pool, each one a task that starts the
+ * listing of its subdirectories when it is done, well ahead of the walk.
+ * The walk still takes the results in the same depth-first order, so the
+ * files come back in exactly the order they would otherwise.  Nothing here
+ * reads the files themselves, so a walker on its own makes a metadata-only scan.
+ */
+public class TreeWalker {
+	/**
+	 * How many listed entries may wait to be walked before the listing stops
+	 * getting further ahead, by default
+	 */
+	public static final long DEFAULT_LISTING_AHEAD = 256 * 1024;
+
+	/**
+	 * When the files of a directory are returned in inode order
+	 */
+	public enum InodeOrder {
+		/** Never; files come in the order the directory gives them */
+		OFF,
+		/** Only in directories on spinning disks */
+		ROTATIONAL,
+		/** In every directory */
+		ALWAYS
+	}
+
+	/**
+	 * One open directory in the walk
+	 */
+	private static class Level {
+		/**
+		 * The directory being read, or null if it was read all at once
+		 */
+		final DirectoryStream<Path> stream;
+		final Iterator<Path> children;
+		final String prefix;
+
+		/**
+		 * The device the directory is on, or null if devices aren't tracked
+		 */
+		final Device device;
+
+		/**
+		 * Attributes of the children, if already read, or null
+		 */
+		final Map<Path, BasicFileAttributes> attributes;
+
+		/**
+		 * Children being looked up concurrently, and the look-ups, oldest
+		 * first; null if attributes are read one at a time
+		 */
+		final ArrayDeque<Path> pendingPaths;
+		final ArrayDeque<Future<Lookup>> pending;
+
+		/**
+		 * The directory's listing, if listed on the listing pool, or null
+		 */
+		ListingTask listing;
+
+		/**
+		 * How many entries the directory had when it was listed ahead of the
+		 * walk by a look-up, or 0 if it wasn't
+		 */
+		int listedAhead;
+
+		Level(DirectoryStream<Path> stream, Iterator<Path> children, String prefix,
+				Device device, Map<Path, BasicFileAttributes> attributes, boolean concurrent) {
+			this.stream = stream;
+			this.children = children;
+			this.prefix = prefix;
+			this.device = device;
+			this.attributes = attributes;
+			this.pendingPaths = concurrent ? new ArrayDeque<Path>() : null;
+			this.pending = concurrent ? new ArrayDeque<Future<Lookup>>() : null;
+		}
+	}
+
+	/**
+	 * What a concurrent look-up of an entry found: its attributes and, if it
+	 * is a directory the walk will go into, its entries, listed ahead of
+	 * the walk so that it needn't wait for the directory to be opened and
+	 * read once it gets there.
+	 */
+	private static class Lookup {
+		/**
+		 * The entry's attributes, or null if they couldn't be read
+		 */
+		final BasicFileAttributes attributes;
+
+		/**
+		 * The directory's entries, or null if it wasn't listed ahead
+		 */
+		final List<Path> children;
+
+		/**
+		 * true if the directory was listed ahead but couldn't be opened (it will have said so)
+		 */
+		final boolean unreadable;
+
+		Lookup(BasicFileAttributes attributes, List<Path> children, boolean unreadable) {
+			this.attributes = attributes;
+			this.children = children;
+			this.unreadable = unreadable;
+		}
+	}
+
+	/**
+	 * The directories currently open, innermost first
+	 */
+	private final ArrayDeque<Level> open = new ArrayDeque<Level>();
+
+	/**
+	 * The root of the walk, until it has been opened
+	 */
+	private Path root;
+
+	/**
+	 * flag indicating whether special mac files should be skipped
+	 */
+	private boolean ignoreSpecialMac;
+
+	/**
+	 * flag indicating whether the device of each directory is found
+	 */
+	private boolean trackDevices;
+
+	/**
+	 * When files are returned in inode order
+	 */
+	private InodeOrder inodeOrder = InodeOrder.OFF;
+
+	/**
+	 * How the file system is looked at
+	 */
+	private FileAccess access = new FileAccess();
+
+	/**
+	 * Runs concurrent attribute reads, or null to read them one at a time
+	 */
+	private ExecutorService statExecutor;
+
+	/**
+	 * Limits how many operations (look-ups, and listings on the listing
+	 * pool) are in flight at once (shared with others), or null
+	 */
+	private Semaphore inFlight;
+
+	/**
+	 * How many entries ahead attributes are read when reading concurrently
+	 */
+	private int statWindow;
+
+	/**
+	 * Lists directories in parallel, or null to list each as the walk reaches it
+	 */
+	private ForkJoinPool listingPool;
+
+	/**
+	 * Most listed entries to have waiting to be walked before the listing
+	 * stops getting further ahead
+	 */
+	private long listingAheadLimit = DEFAULT_LISTING_AHEAD;
+
+	/**
+	 * Entries listed on the listing pool and not yet walked past
+	 */
+	private final AtomicLong listedAhead = new AtomicLong();
+
+	/**
+	 * Set once the walk is abandoned, so listing stops getting ahead
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Limits the directory entries looked at per second, or null
+	 */
+	private RateLimiter entryLimiter;
+
+	/**
+	 * Where the time spent reading attributes and listing directories is recorded, or null
+	 */
+	private Metrics metrics;
+
+	/**
+	 * Where an earlier walk got to, whose files are to be passed over, or null
+	 */
+	private ResumePoint resumePoint;
+
+	/**
+	 * Decides which files and directories are left out, or null to leave none out
+	 */
+	private PathFilter filter;
+
+	/**
+	 * The devices seen so far, by id
+	 */
+	private final Map<Object, Device> devices = new LinkedHashMap<Object, Device>();
+
+	/**
+	 * Constructs a walker. If the root isn't a directory, there is nothing to walk.
+	 *
+	 * @param root The directory to walk
+	 */
+	public TreeWalker(Path root) {
+		if (Files.isDirectory(root)) {
+			this.root = root;
+		}
+	}
+
+	/**
+	 * @param value true if "special" mac files (.DS_Store, and ._*) should be skipped
+	 */
+	public void setIgnoreSpecialMacFiles(boolean value) {
+		ignoreSpecialMac = value;
+	}
+
+	/**
+	 * @return true if "special" mac files are skipped
+	 */
+	public boolean getIgnoreSpecialMacFiles() {
+		return ignoreSpecialMac;
+	}
+
+	/**
+	 * Sets whether the device each directory is on is found, and handed
+	 * back with each file.  Must be called before the walk starts.
+	 * @param value true to find devices
+	 */
+	public void setTrackDevices(boolean value) {
+		trackDevices = value || (inodeOrder == InodeOrder.ROTATIONAL);
+	}
+
+	/**
+	 * @return true if the device of each file is found
+	 */
+	public boolean getTrackDevices() {
+		return trackDevices;
+	}
+
+	/**
+	 * Sets when the files of a directory are returned in inode order.
+	 * ROTATIONAL also turns on tracking devices.  Must be called before the walk starts.
+	 * @param order When to sort
+	 */
+	public void setInodeOrder(InodeOrder order) {
+		inodeOrder = order;
+		if (order == InodeOrder.ROTATIONAL) {
+			trackDevices = true;
+		}
+	}
+
+	/**
+	 * @return When the files of a directory are returned in inode order
+	 */
+	public InodeOrder getInodeOrder() {
+		return inodeOrder;
+	}
+
+	/**
+	 * @param fileAccess How to look at the file system.  Must be set before the walk starts.
+	 */
+	public void setFileAccess(FileAccess fileAccess) {
+		access = fileAccess;
+	}
+
+	/**
+	 * Reads the attributes of entries concurrently, rather than one at a time,
+	 * and opens and lists the directories among them too.
+	 * Must be called before the walk starts.
+	 *
+	 * @param executor What to run the reads on, or null to read one at a time
+	 * @param limit Limits the reads and listings in flight at once (may be
+	 * shared with other work, and is also taken by the listing pool's
+	 * listings), or null
+	 * @param window How many entries ahead of the current one to read (at least 1)
+	 */
+	public void setConcurrentStat(ExecutorService executor, Semaphore limit, int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("The window must be at least 1");
+		}
+		statExecutor = executor;
+		inFlight = limit;
+		statWindow = window;
+	}
+
+	/**
+	 * Lists directories in parallel on a fork-join pool, separately from
+	 * (and ahead of) the walk through them.  The files still come back in the
+	 * same order.  This takes the place of setConcurrentStat(), though each
+	 * listing still takes the limit given to it, if any.
+	 * Must be called before the walk starts.
+	 *
+	 * @param pool The pool to list directories on, or null to list each as the walk reaches it
+	 * @param aheadLimit Most listed entries to have waiting to be walked
+	 * before the listing stops getting further ahead (at least 1)
+	 */
+	public void setListingPool(ForkJoinPool pool, long aheadLimit) {
+		if (aheadLimit < 1) {
+			throw new IllegalArgumentException("The listing must be allowed at least 1 entry ahead");
+		}
+		listingPool = pool;
+		listingAheadLimit = aheadLimit;
+	}
+
+	/**
+	 * @param limiter Limits the directory entries (files and directories)
+	 * looked at per second, or null for no limit
+	 */
+	public void setEntryLimiter(RateLimiter limiter) {
+		entryLimiter = limiter;
+	}
+
+	/**
+	 * @param value Where to record the time spent reading attributes and
+	 * listing directories, or null to not record it
+	 */
+	public void setMetrics(Metrics value) {
+		metrics = value;
+	}
+
+	/**
+	 * Carries on from where an earlier walk got to, passing over the
+	 * directories it finished and the files it already returned.
+	 * Must be called before the walk starts.
+	 * @param point Where the earlier walk got to, or null to walk everything
+	 */
+	public void setResumePoint(ResumePoint point) {
+		resumePoint = point;
+		if ((point != null) && point.isDirectoryFinished("")) {
+			root = null;
+		}
+	}
+
+	/**
+	 * Leaves out the files and directories a filter excludes.  A directory
+	 * left out isn't listed at all.  Must be called before the walk starts.
+	 * @param pathFilter The filter, or null to leave nothing out
+	 */
+	public void setFilter(PathFilter pathFilter) {
+		filter = ((pathFilter == null) || pathFilter.isEmpty()) ? null : pathFilter;
+	}
+
+	/**
+	 * @return The devices seen so far in the walk (empty unless devices are tracked)
+	 */
+	public synchronized Collection<Device> getDevices() {
+		return Collections.unmodifiableList(new ArrayList<Device>(devices.values()));
+	}
+
+	/**
+	 * @return true if the walk is over
+	 */
+	public boolean isDone() {
+		return (root == null) && open.isEmpty();
+	}
+
+	/**
+	 * Finds the next file in the walk.
+	 *
+	 * @return The next file, or null if there are no more
+	 */
+	public WalkEntry next() {
+		if (root != null) {
+			if (listingPool != null) {
+				openListing(new ListingTask(root, "", null));
+			} else {
+				openDirectory(root, "", null);
+			}
+			root = null;
+		}
+
+		while (!open.isEmpty()) {
+			Level level = open.peek();
+			Path child;
+			BasicFileAttributes attributes;
+			Lookup lookup = null;
+			try {
+				if (level.pending != null) {
+					fillPending(level);
+					if (level.pending.isEmpty()) {
+						closeLevel();
+						continue;
+					}
+					child = level.pendingPaths.poll();
+					lookup = waitFor(level.pending.poll());
+					attributes = (lookup == null) ? null : lookup.attributes;
+				} else {
+					if (!level.children.hasNext()) {
+						closeLevel();
+						continue;
+					}
+					child = level.children.next();
+					if (level.attributes != null) {
+						attributes = level.attributes.get(child);
+					} else if (isPassedOver(level.prefix, child)) {
+						continue;
+					} else {
+						attributes = readAttributes(child);
+					}
+				}
+			} catch (DirectoryIteratorException e) {
+				System.err.println("Skipping the rest of unreadable directory: " + e.getCause().getMessage());
+				closeLevel();
+				continue;
+			}
+			if (attributes == null) {
+				continue;
+			}
+
+			String name = fileName(child);
+
+			if (attributes.isDirectory()) {
+				if (((resumePoint != null) && resumePoint.isDirectoryFinished(level.prefix + name + "/")) ||
+						isFiltered(level.prefix + name, true)) {
+					continue;
+				}
+				if (level.listing != null) {
+					openListing(level.listing.subdirectories.remove(child));
+				} else if ((lookup != null) && (lookup.children != null)) {
+					openListed(child, level.prefix + name + "/", level.device, lookup.children);
+				} else if ((lookup == null) || !lookup.unreadable) {
+					openDirectory(child, level.prefix + name + "/", level.device);
+				}
+			} else if (!(ignoreSpecialMac && isSpecialMacName(name))) {
+				String relativePath = level.prefix + name;
+				if (!isFiltered(relativePath, false) &&
+						!((resumePoint != null) && resumePoint.isFileListed(relativePath))) {
+					return new WalkEntry(child, relativePath, attributes, level.device);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Abandons the walk, closing any directories still open.
+	 */
+	public void close() {
+		closed = true;
+		root = null;
+		while (!open.isEmpty()) {
+			closeLevel();
+		}
+	}
+
+	/**
+	 * @param path An entry found in a directory
+	 * @return Its name.  This is cut from the path's string, which the path
+	 * keeps (and opening the file uses again), rather than getFileName(),
+	 * which makes a new path and string for every file.
+	 */
+	private static String fileName(Path path) {
+		String whole = path.toString();
+		return whole.substring(whole.lastIndexOf(path.getFileSystem().getSeparator()) + 1);
+	}
+
+	/**
+	 * @param name A file name
+	 * @return true if it is a .DS_Store or ._ file
+	 */
+	public static boolean isSpecialMacName(String name) {
+		return name.equals(".DS_Store") || name.startsWith("._");
+	}
+
+	/**
+	 * @param pathname The path of an entry from the root
+	 * @param directory true if it is a directory
+	 * @return true if the filter leaves it out
+	 */
+	private boolean isFiltered(String pathname, boolean directory) {
+		return (filter != null) && filter.isExcluded(pathname, directory);
+	}
+
+	/**
+	 * @param prefix The pathname of a directory from the root, ending in / (or empty for the root)
+	 * @param child An entry in the directory
+	 * @return true if the filter leaves the entry out whether it is a file
+	 * or a directory, so it needn't even be looked at
+	 */
+	private boolean isPassedOver(String prefix, Path child) {
+		return (filter != null) && filter.isExcludedEither(prefix + child.getFileName());
+	}
+
+	/**
+	 * Reads the attributes of an entry, complaining if that can't be done.
+	 *
+	 * @param child The entry
+	 * @return Its attributes, or null if they couldn't be read
+	 */
+	private BasicFileAttributes readAttributes(Path child) {
+		if (entryLimiter != null) {
+			try {
+				entryLimiter.acquire(1);
+			} catch (InterruptedException e) {
+				// Let whoever is driving the walk see the interrupt
+				Thread.currentThread().interrupt();
+			}
+		}
+		long start = (metrics == null) ? 0 : System.nanoTime();
+		try {
+			return access.readAttributes(child);
+		} catch (NoSuchFileException e) {
+			System.err.println("Skipping over Nonexistent file: " + child.toAbsolutePath());
+		} catch (IOException e) {
+			System.err.println("Skipping over unreadable file: " + child.toAbsolutePath() + " (" + e.getMessage() + ")");
+		} finally {
+			if (metrics != null) {
+				metrics.record(Metrics.Timer.STAT, start);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Opens a directory for listing, complaining if that can't be done.
+	 *
+	 * @param directory The directory
+	 * @return Its entries, or null if it couldn't be opened
+	 */
+	private DirectoryStream<Path> listDirectory(Path directory) {
+		long start = (metrics == null) ? 0 : System.nanoTime();
+		try {
+			return access.newDirectoryStream(directory);
+		} catch (IOException e) {
+			System.err.println("Skipping over unreadable directory: " + directory.toAbsolutePath() + " (" + e.getMessage() + ")");
+			return null;
+		} finally {
+			if (metrics != null) {
+				metrics.record(Metrics.Timer.LIST, start);
+				metrics.add(Metrics.Counter.DIRECTORIES, 1);
+			}
+		}
+	}
+
+	/**
+	 * Starts reading a directory, making it the current one.
+	 *
+	 * @param directory The directory
+	 * @param prefix Its pathname relative to the root, ending in / (or empty for the root)
+	 * @param parentDevice The device of the directory's parent, or null
+	 */
+	private void openDirectory(Path directory, String prefix, Device parentDevice) {
+		Device device = trackDevices ? findDevice(directory, parentDevice) : null;
+		DirectoryStream<Path> stream = listDirectory(directory);
+		if (stream == null) {
+			return;
+		}
+
+		if (isInodeOrdered(device)) {
+			open.push(readSorted(stream, prefix, device));
+		} else {
+			open.push(new Level(stream, stream.iterator(), prefix, device, null, statExecutor != null));
+		}
+	}
+
+	/**
+	 * Makes a directory listed ahead of the walk the current one.
+	 *
+	 * @param directory The directory
+	 * @param prefix Its pathname relative to the root, ending in /
+	 * @param parentDevice The device of the directory's parent, or null
+	 * @param children Its entries, in the order the directory gave them
+	 */
+	private void openListed(Path directory, String prefix, Device parentDevice, List<Path> children) {
+		Device device = trackDevices ? findDevice(directory, parentDevice) : null;
+		Level level;
+		if (isInodeOrdered(device)) {
+			Map<Path, BasicFileAttributes> attributes = new HashMap<Path, BasicFileAttributes>();
+			level = new Level(null, readWhole(children, prefix, attributes, true).iterator(), prefix, device, attributes, false);
+		} else {
+			level = new Level(null, children.iterator(), prefix, device, null, true);
+		}
+		level.listedAhead = children.size();
+		open.push(level);
+	}
+
+	/**
+	 * @param device The device a directory is on, or null
+	 * @return true if its files should be returned in inode order
+	 */
+	private boolean isInodeOrdered(Device device) {
+		return (inodeOrder == InodeOrder.ALWAYS) ||
+				((inodeOrder == InodeOrder.ROTATIONAL) && (device != null) && device.isRotational());
+	}
+
+	/**
+	 * Reads a whole directory, putting its files in inode order, followed by
+	 * its subdirectories.  The stream is closed.
+	 *
+	 * @param stream The directory
+	 * @param prefix Its pathname relative to the root
+	 * @param device The device it is on, or null
+	 * @return The level for the directory
+	 */
+	private Level readSorted(DirectoryStream<Path> stream, String prefix, Device device) {
+		Map<Path, BasicFileAttributes> attributes = new HashMap<Path, BasicFileAttributes>();
+		List<Path> children;
+		try {
+			children = readWhole(stream, prefix, attributes, true);
+		} finally {
+			closeStream(stream);
+		}
+		return new Level(null, children.iterator(), prefix, device, attributes, false);
+	}
+
+	/**
+	 * Reads a whole directory and the attributes of its entries.
+	 *
+	 * @param entries The directory's entries
+	 * @param prefix Its pathname relative to the root
+	 * @param attributes Where to put the attributes of each entry
+	 * @param sorted true to put the files in inode order, followed by the
+	 * subdirectories; false to keep the order the directory gives
+	 * @return The entries whose attributes could be read, in order
+	 */
+	private List<Path> readWhole(Iterable<Path> entries, String prefix, Map<Path, BasicFileAttributes> attributes, boolean sorted) {
+		final Map<Path, Long> inodes = new HashMap<Path, Long>();
+		List<Path> files = new ArrayList<Path>();
+		List<Path> directories = new ArrayList<Path>();
+		try {
+			for (Path child : entries) {
+				if (isPassedOver(prefix, child)) {
+					continue;
+				}
+				BasicFileAttributes childAttributes = readAttributes(child);
+				if (childAttributes == null) {
+					continue;
+				}
+				attributes.put(child, childAttributes);
+				if (sorted && childAttributes.isDirectory()) {
+					directories.add(child);
+				} else {
+					files.add(child);
+					if (sorted) {
+						inodes.put(child, readInode(child));
+					}
+				}
+			}
+		} catch (DirectoryIteratorException e) {
+			System.err.println("Skipping the rest of unreadable directory: " + e.getCause().getMessage());
+		}
+
+		if (sorted) {
+			Collections.sort(files, new Comparator<Path>() {
+				@Override
+				public int compare(Path one, Path two) {
+					return inodes.get(one).compareTo(inodes.get(two));
+				}
+			});
+			files.addAll(directories);
+		}
+		return files;
+	}
+
+	/**
+	 * Closes a directory stream, if it can be.
+	 *
+	 * @param stream The stream
+	 */
+	private static void closeStream(DirectoryStream<Path> stream) {
+		try {
+			stream.close();
+		} catch (IOException e) {
+			// nothing useful to do about it
+		}
+	}
+
+	/**
+	 * Makes a directory listed on the listing pool the current one, waiting
+	 * for the listing if need be.
+	 *
+	 * @param listing The directory's listing
+	 */
+	private void openListing(ListingTask listing) {
+		listing.start();
+		listing.join();
+		if (listing.attributes == null) {
+			// Unreadable; it has said so
+			return;
+		}
+		Level level = new Level(null, listing.children.iterator(), listing.prefix,
+				listing.device, listing.attributes, false);
+		level.listing = listing;
+		open.push(level);
+		listing.startSubdirectories();
+	}
+
+	/**
+	 * Starts looking up a directory's next few entries, until there are a
+	 * window's worth in flight or no more entries.
+	 *
+	 * @param level The directory
+	 */
+	private void fillPending(final Level level) {
+		while ((level.pending.size() < statWindow) && level.children.hasNext()) {
+			final Path child = level.children.next();
+			if (isPassedOver(level.prefix, child)) {
+				continue;
+			}
+			level.pendingPaths.add(child);
+			level.pending.add(statExecutor.submit(new Callable<Lookup>() {
+				@Override
+				public Lookup call() throws InterruptedException {
+					if (inFlight == null) {
+						return lookUp(level.prefix, child);
+					}
+					inFlight.acquire();
+					try {
+						return lookUp(level.prefix, child);
+					} finally {
+						inFlight.release();
+					}
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Reads the attributes of an entry and, if it is a directory the walk
+	 * will go into, opens and lists it too, unless the walk already has
+	 * enough entries listed ahead of it.
+	 *
+	 * @param prefix The pathname, relative to the root, of the directory the entry is in
+	 * @param child The entry
+	 * @return What was found
+	 */
+	private Lookup lookUp(String prefix, Path child) {
+		BasicFileAttributes attributes = readAttributes(child);
+		if ((attributes == null) || !attributes.isDirectory() || closed ||
+				(listedAhead.get() >= listingAheadLimit)) {
+			return new Lookup(attributes, null, false);
+		}
+		String pathname = prefix + fileName(child);
+		if (((resumePoint != null) && resumePoint.isDirectoryFinished(pathname + "/")) ||
+				isFiltered(pathname, true)) {
+			return new Lookup(attributes, null, false);
+		}
+
+		DirectoryStream<Path> stream = listDirectory(child);
+		if (stream == null) {
+			return new Lookup(attributes, null, true);
+		}
+		List<Path> children = new ArrayList<Path>();
+		try {
+			for (Path entry : stream) {
+				children.add(entry);
+			}
+		} catch (DirectoryIteratorException e) {
+			System.err.println("Skipping the rest of unreadable directory: " + e.getCause().getMessage());
+		} finally {
+			closeStream(stream);
+		}
+		listedAhead.addAndGet(children.size());
+		return new Lookup(attributes, children, false);
+	}
+
+	/**
+	 * @param read A concurrent look-up
+	 * @return Its result, or null if it failed (it will have said why) or was interrupted
+	 */
+	private Lookup waitFor(Future<Lookup> read) {
+		try {
+			return read.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			System.err.println("Skipping over unreadable file: " + e.getCause());
+		}
+		return null;
+	}
+
+	/**
+	 * @param file A file
+	 * @return Its inode number, or 0 if that can't be found
+	 */
+	private long readInode(Path file) {
+		try {
+			return ((Number) Files.getAttribute(file, "unix:ino")).longValue();
+		} catch (IOException e) {
+			return 0;
+		} catch (UnsupportedOperationException e) {
+			return 0;
+		} catch (IllegalArgumentException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Finds the device a directory is on, noting it if it is new.
+	 *
+	 * @param directory The directory
+	 * @param parentDevice The device of its parent, or null
+	 * @return The device, or the parent's if it can't be found
+	 */
+	private synchronized Device findDevice(Path directory, Device parentDevice) {
+		try {
+			Object id;
+			try {
+				id = Files.getAttribute(directory, "unix:dev");
+			} catch (UnsupportedOperationException e) {
+				id = Files.getFileStore(directory);
+			} catch (IllegalArgumentException e) {
+				id = Files.getFileStore(directory);
+			}
+			if ((parentDevice != null) && parentDevice.getId().equals(id)) {
+				return parentDevice;
+			}
+
+			Device device = devices.get(id);
+			if (device == null) {
+				String name = Files.getFileStore(directory).name();
+				device = new Device(id, name, Device.isRotational(name));
+				devices.put(id, device);
+			}
+			return device;
+		} catch (IOException e) {
+			return parentDevice;
+		}
+	}
+
+	/**
+	 * Finishes with the current directory.
+	 */
+	private void closeLevel() {
+		Level level = open.pop();
+		if (level.listing != null) {
+			listedAhead.addAndGet(-level.listing.children.size());
+		}
+		listedAhead.addAndGet(-level.listedAhead);
+		if (level.stream != null) {
+			closeStream(level.stream);
+		}
+	}
+
+	/**
+	 * Lists one directory, in full, on the listing pool.  Once done, it
+	 * starts listing its subdirectories in turn, unless the listing is
+	 * already far enough ahead of the walk; the walk starts any it left
+	 * as it gets to them.  The walk only looks at the results after
+	 * join(), which makes them safely visible to it.
+	 */
+	@SuppressWarnings("serial")
+	private class ListingTask extends RecursiveAction {
+		final Path directory;
+		final String prefix;
+		final Device parentDevice;
+
+		/**
+		 * Set once the task has been handed to the pool
+		 */
+		private final AtomicBoolean started = new AtomicBoolean();
+
+		/**
+		 * The device the directory is on, or null
+		 */
+		Device device;
+
+		/**
+		 * The entries, in the order the walk returns them
+		 */
+		List<Path> children = Collections.emptyList();
+
+		/**
+		 * Attributes of the entries, or null if the directory couldn't be read
+		 */
+		Map<Path, BasicFileAttributes> attributes;
+
+		/**
+		 * Listings of the subdirectories not yet reached by the walk, in order
+		 */
+		Map<Path, ListingTask> subdirectories;
+
+		/**
+		 * @param directory The directory
+		 * @param prefix Its pathname relative to the root, ending in / (or empty for the root)
+		 * @param parentDevice The device of the directory's parent, or null
+		 */
+		ListingTask(Path directory, String prefix, Device parentDevice) {
+			this.directory = directory;
+			this.prefix = prefix;
+			this.parentDevice = parentDevice;
+		}
+
+		/**
+		 * Hands the task to the pool, unless it already has been.
+		 */
+		void start() {
+			if (!started.compareAndSet(false, true)) {
+				return;
+			}
+			if (ForkJoinTask.getPool() == listingPool) {
+				fork();
+			} else {
+				listingPool.execute(this);
+			}
+		}
+
+		/**
+		 * Starts listing subdirectories, in order, while the listing isn't too far ahead.
+		 */
+		void startSubdirectories() {
+			for (ListingTask subdirectory : subdirectories.values()) {
+				if (closed || (listedAhead.get() >= listingAheadLimit)) {
+					return;
+				}
+				subdirectory.start();
+			}
+		}
+
+		@Override
+		protected void compute() {
+			if (inFlight != null) {
+				inFlight.acquireUninterruptibly();
+			}
+			try {
+				list();
+			} finally {
+				if (inFlight != null) {
+					inFlight.release();
+				}
+			}
+			if (subdirectories != null) {
+				startSubdirectories();
+			}
+		}
+
+		/**
+		 * Lists the directory and reads the attributes of its entries.
+		 */
+		private void list() {
+			device = trackDevices ? findDevice(directory, parentDevice) : null;
+			DirectoryStream<Path> stream = listDirectory(directory);
+			if (stream == null) {
+				return;
+			}
+
+			Map<Path, BasicFileAttributes> childAttributes = new HashMap<Path, BasicFileAttributes>();
+			try {
+				children = readWhole(stream, prefix, childAttributes, isInodeOrdered(device));
+			} finally {
+				closeStream(stream);
+			}
+			subdirectories = new LinkedHashMap<Path, ListingTask>();
+			for (Path child : children) {
+				String childPrefix = prefix + child.getFileName() + "/";
+				if (childAttributes.get(child).isDirectory() && !isFiltered(prefix + child.getFileName(), true) &&
+						!((resumePoint != null) && resumePoint.isDirectoryFinished(childPrefix))) {
+					subdirectories.put(child, new ListingTask(child, childPrefix, device));
+				}
+			}
+			attributes = childAttributes;
+			listedAhead.addAndGet(children.size());
+		}
+	}
+}
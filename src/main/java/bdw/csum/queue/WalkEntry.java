@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file found while walking a tree, along with the attributes read for it
+ * when it was found, so nobody needs to ask the file system for them again.
+ */
+public class WalkEntry {
+	/**
+	 * Where the file is
+	 */
+	private final Path path;
+
+	/**
+	 * The pathname relative to the root of the walk (no leading ./)
+	 */
+	private final String relativePath;
+
+	/**
+	 * The file's attributes
+	 */
+	private final BasicFileAttributes attributes;
+
+	/**
+	 * The device the file is on, or null if not known
+	 */
+	private final Device device;
+
+	/**
+	 * @param path Where the file is
+	 * @param relativePath The pathname relative to the root of the walk
+	 * @param attributes The file's attributes
+	 */
+	public WalkEntry(Path path, String relativePath, BasicFileAttributes attributes) {
+		this(path, relativePath, attributes, null);
+	}
+
+	/**
+	 * @param path Where the file is
+	 * @param relativePath The pathname relative to the root of the walk
+	 * @param attributes The file's attributes
+	 * @param device The device the file is on, or null if not known
+	 */
+	public WalkEntry(Path path, String relativePath, BasicFileAttributes attributes, Device device) {
+		this.path = path;
+		this.relativePath = relativePath;
+		this.attributes = attributes;
+		this.device = device;
+	}
+
+	/**
+	 * @return Where the file is
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return The pathname relative to the root of the walk (no leading ./)
+	 */
+	public String getRelativePath() {
+		return relativePath;
+	}
+
+	/**
+	 * @return The attributes read when the file was found
+	 */
+	public BasicFileAttributes getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * @return The device the file is on, or null if not known
+	 */
+	public Device getDevice() {
+		return device;
+	}
+}
@@ -0,0 +1,649 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.watch;
+
+import bdw.csum.entry.DirectorySummarizer;
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.filter.PathFilter;
+import bdw.csum.hash.FileHasher;
+import bdw.csum.hash.TreeHasher;
+import bdw.csum.queue.ArchiveWriter;
+import bdw.csum.queue.EntryQueue;
+import bdw.csum.queue.TreeWalker;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a listing of a tree up to date by watching it with a WatchService,
+ * rather than scanning the whole tree again.  Every directory in the tree is
+ * registered, the tree is listed once (see load()), and after that only the
+ * files reported as created or modified are checksummed again, and those
+ * reported as deleted are dropped.  When the watch service loses events for
+ * a directory (an overflow), just that directory is listed again, and its
+ * files checksummed again if their size or date has changed.
+ * <p>
+ * The changes are gathered by poll(), applied by applyChanges(), and the
+ * listing written out in full by write(); run() does all three on a
+ * cadence.  An instance is meant to be used from one thread.
+ */
+public class TreeWatcher implements Closeable {
+	/**
+	 * The kinds of event every directory is registered for
+	 */
+	private static final WatchEvent.Kind<?>[] EVENT_KINDS = new WatchEvent.Kind<?>[] {
+		StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY
+	};
+
+	/**
+	 * The root of the tree watched
+	 */
+	private final Path root;
+
+	/**
+	 * The algorithm files are checksummed with
+	 */
+	private final String algorithm;
+
+	/**
+	 * The chunk size for tree checksums, or 0 for whole files
+	 */
+	private final long chunkSize;
+
+	/**
+	 * Checksums whole files
+	 */
+	private final FileHasher hasher;
+
+	/**
+	 * Checksums files in chunks, or null if chunkSize is 0
+	 */
+	private final TreeHasher treeHasher;
+
+	/**
+	 * Reports changes to the tree
+	 */
+	private final WatchService watchService;
+
+	/**
+	 * The directory each registration is for
+	 */
+	private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+
+	/**
+	 * The registration of each directory
+	 */
+	private final Map<Path, WatchKey> watchKeys = new HashMap<Path, WatchKey>();
+
+	/**
+	 * The listing, by pathname; sorted, so the files of each directory come together
+	 */
+	private final TreeMap<String, FileEntry> entries = new TreeMap<String, FileEntry>();
+
+	/**
+	 * Paths reported as created, modified or deleted since the changes were last applied
+	 */
+	private final Set<Path> changedPaths = new TreeSet<Path>();
+
+	/**
+	 * Directories that lost events since the changes were last applied
+	 */
+	private final Set<Path> overflowedDirectories = new TreeSet<Path>();
+
+	/**
+	 * Files that are never listed (the listing itself, if it is in the tree)
+	 */
+	private final Set<Path> excluded = new HashSet<Path>();
+
+	/**
+	 * true if "special" mac files are left out
+	 */
+	private boolean ignoreSpecialMac = true;
+
+	/**
+	 * Decides which files and directories are left out, or null to leave none out
+	 */
+	private PathFilter filter;
+
+	/**
+	 * Number of files checksummed since the tree was loaded
+	 */
+	private long hashedCount;
+
+	/**
+	 * Number of files dropped since the tree was loaded
+	 */
+	private long removedCount;
+
+	/**
+	 * Number of directories listed again since the tree was loaded
+	 */
+	private long rescannedCount;
+
+	/**
+	 * Constructs a watcher.  Nothing is watched until register() is called.
+	 *
+	 * @param root The root of the tree to watch
+	 * @param algorithm The algorithm to checksum files with
+	 * @param chunkSize The chunk size for tree checksums (see TreeHasher), or 0 for whole files
+	 * @throws NoSuchAlgorithmException If the algorithm isn't available
+	 * @throws IOException If a watch service can't be had
+	 */
+	public TreeWatcher(Path root, String algorithm, long chunkSize) throws NoSuchAlgorithmException, IOException {
+		this.root = root.toAbsolutePath().normalize();
+		this.algorithm = algorithm;
+		this.chunkSize = chunkSize;
+		hasher = new FileHasher(algorithm, FileHasher.DEFAULT_BUFFER_SIZE, FileHasher.DEFAULT_MAP_THRESHOLD);
+		treeHasher = (chunkSize == 0) ? null :
+				new TreeHasher(algorithm, chunkSize, FileHasher.DEFAULT_MAP_THRESHOLD, ForkJoinPool.commonPool());
+		watchService = this.root.getFileSystem().newWatchService();
+	}
+
+	/**
+	 * @param value true if "special" mac files (.DS_Store, and ._*) should be left out
+	 */
+	public void setIgnoreSpecialMacFiles(boolean value) {
+		ignoreSpecialMac = value;
+	}
+
+	/**
+	 * Leaves out the files and directories a filter excludes; directories
+	 * left out aren't watched.  Must be called before register().
+	 * @param pathFilter The filter, or null to leave nothing out
+	 */
+	public void setFilter(PathFilter pathFilter) {
+		filter = ((pathFilter == null) || pathFilter.isEmpty()) ? null : pathFilter;
+	}
+
+	/**
+	 * Leaves a file out of the listing, whatever happens to it.  Used for
+	 * the listing itself (and its temporary file) when it is in the tree.
+	 *
+	 * @param file The file to leave out
+	 */
+	public void exclude(File file) {
+		excluded.add(file.toPath().toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Registers every directory in the tree with the watch service.  Done
+	 * before the tree is first listed, so that nothing changed while it is
+	 * being listed is missed.
+	 *
+	 * @throws IOException If the root can't be registered
+	 */
+	public void register() throws IOException {
+		if (!Files.isDirectory(root)) {
+			throw new IOException(root + " is not a directory");
+		}
+		registerTree(root);
+	}
+
+	/**
+	 * Fills the listing from a scan of the tree (or an earlier listing that
+	 * is up to date), made after register() was called.
+	 *
+	 * @param queue The entries of the tree
+	 * @throws InvalidEntryException If the queue can't go on
+	 */
+	public void load(EntryQueue queue) throws InvalidEntryException {
+		while (!queue.isEmpty()) {
+			FileEntry entry;
+			try {
+				entry = queue.dequeue();
+			} catch (InvalidEntryException e) {
+				System.err.println("Ignoring exception while dequeueing: " + e.getMessage());
+				continue;
+			}
+			if ((entry != null) && !excluded.contains(toPath(entry.getPathname()))) {
+				entries.put(entry.getPathname(), entry);
+			}
+		}
+	}
+
+	/**
+	 * Waits for changes to the tree, and gathers up all those reported.
+	 *
+	 * @param timeout The longest to wait for the first change
+	 * @param unit The unit of timeout
+	 * @return true if any changes were reported
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean poll(long timeout, TimeUnit unit) throws InterruptedException {
+		WatchKey key = watchService.poll(timeout, unit);
+		if (key == null) {
+			return false;
+		}
+		while (key != null) {
+			gather(key);
+			key = watchService.poll();
+		}
+		return true;
+	}
+
+	/**
+	 * Brings the listing up to date with the changes gathered by poll().
+	 *
+	 * @return true if the listing changed
+	 */
+	public boolean applyChanges() {
+		boolean changed = false;
+		for (Path directory : overflowedDirectories) {
+			changed |= rescan(directory, false);
+		}
+		for (Path path : changedPaths) {
+			changed |= update(path);
+		}
+		overflowedDirectories.clear();
+		changedPaths.clear();
+		return changed;
+	}
+
+	/**
+	 * Writes out the whole listing.  It is written to a temporary file
+	 * beside the listing, which then replaces it, so the listing is always
+	 * whole, even if this is interrupted.
+	 *
+	 * @param output The file to write the listing to
+	 * @throws IOException
+	 */
+	public void write(File output) throws IOException {
+		File temporary = new File(output.getPath() + ".tmp");
+		DirectorySummarizer summarizer;
+		try {
+			summarizer = new DirectorySummarizer(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			// Checked in the constructor, so this can't happen.
+			throw new IllegalStateException(e);
+		}
+
+		FileOutputStream stream = new FileOutputStream(temporary);
+		try {
+			Writer writer = new OutputStreamWriter(stream, Charset.forName("UTF-8"));
+			ArchiveWriter archive = new ArchiveWriter(writer, summarizer);
+			archive.writeHeader(algorithm, chunkSize, root.toString(), new Date(), null);
+			for (FileEntry entry : entries.values()) {
+				archive.write(entry);
+			}
+			archive.finish();
+			archive.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		Files.move(temporary.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Keeps the listing up to date until interrupted: changes are gathered
+	 * as they are reported, and every interval they are applied and, if
+	 * anything changed, the listing written out again.
+	 *
+	 * @param output The file to write the listing to
+	 * @param intervalMillis Milliseconds between applying changes
+	 * @throws IOException If the listing can't be written
+	 * @throws InterruptedException When interrupted
+	 */
+	public void run(File output, long intervalMillis) throws IOException, InterruptedException {
+		exclude(output);
+		exclude(new File(output.getPath() + ".tmp"));
+		long due = System.currentTimeMillis() + intervalMillis;
+		while (true) {
+			long wait = due - System.currentTimeMillis();
+			if (wait > 0) {
+				poll(wait, TimeUnit.MILLISECONDS);
+				continue;
+			}
+			long hashedBefore = hashedCount;
+			long removedBefore = removedCount;
+			if (applyChanges()) {
+				write(output);
+				System.err.println("# Updated " + output + ": " + entries.size() + " files, " +
+						(hashedCount - hashedBefore) + " checksummed, " + (removedCount - removedBefore) + " removed");
+			}
+			due = System.currentTimeMillis() + intervalMillis;
+		}
+	}
+
+	/**
+	 * @return The listing as it stands, by pathname
+	 */
+	public SortedMap<String, FileEntry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return Number of files checksummed since the tree was loaded
+	 */
+	public long getHashedCount() {
+		return hashedCount;
+	}
+
+	/**
+	 * @return Number of files dropped since the tree was loaded
+	 */
+	public long getRemovedCount() {
+		return removedCount;
+	}
+
+	/**
+	 * @return Number of directories listed again since the tree was loaded
+	 */
+	public long getRescannedCount() {
+		return rescannedCount;
+	}
+
+	/**
+	 * Stops watching.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+
+	/**
+	 * Gathers the changes reported on one directory.
+	 *
+	 * @param key The directory's registration
+	 */
+	private void gather(WatchKey key) {
+		Path directory = watchedDirectories.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (directory == null) {
+				continue;
+			}
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				overflowedDirectories.add(directory);
+			} else {
+				changedPaths.add(directory.resolve((Path) event.context()));
+			}
+		}
+		if (!key.reset() && (directory != null)) {
+			// The directory has gone (or can no longer be watched).
+			watchedDirectories.remove(key);
+			watchKeys.remove(directory);
+			changedPaths.add(directory);
+		}
+	}
+
+	/**
+	 * Brings the listing up to date for one path reported as changed.
+	 *
+	 * @param path The path
+	 * @return true if the listing changed
+	 */
+	private boolean update(Path path) {
+		if (excluded.contains(path)) {
+			return false;
+		}
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException e) {
+			return remove(path);
+		}
+
+		if (isFiltered(path, attributes.isDirectory())) {
+			return false;
+		}
+		if (attributes.isDirectory()) {
+			// A directory already watched reports its own changes.
+			return !watchKeys.containsKey(path) && rescan(path, true);
+		}
+		if (ignoreSpecialMac && TreeWalker.isSpecialMacName(path.getFileName().toString())) {
+			return false;
+		}
+		return hash(path, attributes);
+	}
+
+	/**
+	 * Lists a directory again, checksumming the files whose size or date
+	 * has changed, and dropping those that have gone.
+	 *
+	 * @param directory The directory
+	 * @param whole true to do the same for every directory under it (for
+	 * one that is new), false for just the one directory
+	 * @return true if the listing changed
+	 */
+	private boolean rescan(Path directory, boolean whole) {
+		rescannedCount++;
+		if (whole) {
+			try {
+				registerTree(directory);
+			} catch (IOException e) {
+				System.err.println("Can not watch " + directory + ": " + e.getMessage());
+			}
+		}
+
+		String prefix = toPrefix(directory);
+		Set<String> present = new HashSet<String>();
+		boolean changed = false;
+		try {
+			DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+			try {
+				for (Path child : stream) {
+					BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(child, BasicFileAttributes.class);
+					} catch (IOException e) {
+						continue;
+					}
+					String name = child.getFileName().toString();
+					if (isFiltered(child, attributes.isDirectory())) {
+						continue;
+					}
+					if (attributes.isDirectory()) {
+						present.add(prefix + name + "/");
+						if (whole || !watchKeys.containsKey(child)) {
+							changed |= rescan(child, true);
+						}
+					} else if (!excluded.contains(child) && !(ignoreSpecialMac && TreeWalker.isSpecialMacName(name))) {
+						present.add(prefix + name);
+						FileEntry entry = entries.get(prefix + name);
+						// A file reported as changed is checksummed again anyway.
+						if (!changedPaths.contains(child) && ((entry == null) ||
+								(entry.getFileSize() != attributes.size()) ||
+								(entry.getLastModTime().getTime() != attributes.lastModifiedTime().toMillis()))) {
+							changed |= hash(child, attributes);
+						}
+					}
+				}
+			} finally {
+				stream.close();
+			}
+		} catch (NoSuchFileException e) {
+			return remove(directory) || changed;
+		} catch (IOException e) {
+			System.err.println("Can not list " + directory + ": " + e.getMessage());
+			return changed;
+		}
+
+		// Drop whatever was in the directory but isn't now.
+		Iterator<String> pathnames = subtree(prefix).keySet().iterator();
+		while (pathnames.hasNext()) {
+			String pathname = pathnames.next();
+			int slash = pathname.indexOf('/', prefix.length());
+			if (!present.contains((slash < 0) ? pathname : pathname.substring(0, slash + 1))) {
+				pathnames.remove();
+				removedCount++;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Checksums a file, putting its entry in the listing.
+	 *
+	 * @param file The file
+	 * @param attributes Its attributes
+	 * @return true if the listing changed
+	 */
+	private boolean hash(Path file, BasicFileAttributes attributes) {
+		byte[] digest;
+		try {
+			digest = (treeHasher != null) ? treeHasher.hash(file) : hasher.hash(file);
+		} catch (IOException e) {
+			// Perhaps it went again already; if so, that will be reported too.
+			System.err.println("Can not read " + file + ": " + e.getMessage());
+			return false;
+		}
+		hashedCount++;
+		FileEntry entry = new FileEntry(digest, attributes, toPathname(file));
+		return !entry.equals(entries.put(entry.getPathname(), entry));
+	}
+
+	/**
+	 * Drops a file, or a directory and everything under it, from the listing.
+	 *
+	 * @param path The file or directory that has gone
+	 * @return true if the listing changed
+	 */
+	private boolean remove(Path path) {
+		if (path.equals(root)) {
+			System.err.println(root + " has gone");
+			return false;
+		}
+		String pathname = toPathname(path);
+		boolean changed = false;
+		if (entries.remove(pathname) != null) {
+			removedCount++;
+			changed = true;
+		}
+		SortedMap<String, FileEntry> under = subtree(pathname + "/");
+		if (!under.isEmpty()) {
+			removedCount += under.size();
+			under.clear();
+			changed = true;
+		}
+
+		Iterator<Map.Entry<Path, WatchKey>> watches = watchKeys.entrySet().iterator();
+		while (watches.hasNext()) {
+			Map.Entry<Path, WatchKey> watch = watches.next();
+			if (watch.getKey().startsWith(path)) {
+				watch.getValue().cancel();
+				watchedDirectories.remove(watch.getValue());
+				watches.remove();
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Registers a directory, and every directory under it, that isn't
+	 * registered already.
+	 *
+	 * @param top The directory
+	 * @throws IOException If the directory can't be walked
+	 */
+	private void registerTree(Path top) throws IOException {
+		Files.walkFileTree(top, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+				if (!directory.equals(root) && isFiltered(directory, true)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				if (!watchKeys.containsKey(directory)) {
+					try {
+						WatchKey key = directory.register(watchService, EVENT_KINDS);
+						watchedDirectories.put(key, directory);
+						watchKeys.put(directory, key);
+					} catch (IOException e) {
+						System.err.println("Can not watch " + directory + ": " + e.getMessage());
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				System.err.println("Can not watch " + file + ": " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * @param path A path in the tree
+	 * @param directory true if it is a directory
+	 * @return true if the filter leaves it out
+	 */
+	private boolean isFiltered(Path path, boolean directory) {
+		return (filter != null) && filter.isExcluded(toPathname(path), directory);
+	}
+
+	/**
+	 * @param prefix A directory's pathname, ending in /
+	 * @return The part of the listing under it
+	 */
+	private SortedMap<String, FileEntry> subtree(String prefix) {
+		return entries.subMap(prefix, prefix + Character.MAX_VALUE);
+	}
+
+	/**
+	 * @param path A path in the tree
+	 * @return Its pathname in the listing (./ and the path relative to the root)
+	 */
+	private String toPathname(Path path) {
+		return "./" + root.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * @param directory A directory in the tree
+	 * @return The pathname its files start with in the listing
+	 */
+	private String toPrefix(Path directory) {
+		return directory.equals(root) ? "./" : toPathname(directory) + "/";
+	}
+
+	/**
+	 * @param pathname A pathname in the listing
+	 * @return The path it is for
+	 */
+	private Path toPath(String pathname) {
+		return root.resolve(pathname.substring(2)).normalize();
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bdw.util;
+
+/**
+ * A token bucket, for keeping something (bytes read, files opened) to a
+ * steady rate.  Tokens accumulate at the rate, up to one second's worth,
+ * and each use of the thing takes tokens out.  A caller wanting more tokens
+ * than there are is let through, but sleeps until the bucket would have
+ * refilled, so a large request is paid for after it is made rather than
+ * having to fit in the bucket.
+ * The rate can be changed at any time, from any thread.
+ */
+public class RateLimiter {
+	/**
+	 * Tokens added per second, or 0 for no limit
+	 */
+	private double rate;
+
+	/**
+	 * Tokens in the bucket; negative when callers are in debt
+	 */
+	private double tokens;
+
+	/**
+	 * When tokens were last added (System.nanoTime())
+	 */
+	private long lastRefill;
+
+	/**
+	 * Constructs a limiter with no limit
+	 */
+	public RateLimiter() {
+		this(0);
+	}
+
+	/**
+	 * Constructs a limiter, with a full bucket
+	 * @param perSecond The rate to keep to, or 0 for no limit
+	 */
+	public RateLimiter(double perSecond) {
+		lastRefill = System.nanoTime();
+		setRate(perSecond);
+		tokens = rate;
+	}
+
+	/**
+	 * Changes the rate.  Tokens already in the bucket are kept (up to the new
+	 * rate's one second's worth), as is any debt.
+	 * @param perSecond The rate to keep to, or 0 for no limit
+	 */
+	public synchronized void setRate(double perSecond) {
+		if (perSecond < 0) {
+			throw new IllegalArgumentException("The rate can not be negative");
+		}
+		refill();
+		rate = perSecond;
+		tokens = Math.min(tokens, rate);
+	}
+
+	/**
+	 * @return The rate kept to, or 0 for no limit
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Takes tokens out of the bucket, sleeping for as long as it takes for
+	 * them to be paid for.
+	 * @param count The number of tokens
+	 * @throws InterruptedException If interrupted while sleeping
+	 */
+	public void acquire(long count) throws InterruptedException {
+		long wait = reserve(count);
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		}
+	}
+
+	/**
+	 * Takes tokens out of the bucket without waiting.
+	 * @param count The number of tokens
+	 * @return How long, in nanoseconds, the caller should wait before going
+	 * ahead, so as to keep to the rate
+	 */
+	public synchronized long reserve(long count) {
+		if (rate == 0) {
+			return 0;
+		}
+		refill();
+		tokens -= count;
+		return (tokens >= 0) ? 0 : (long) (-tokens / rate * 1e9);
+	}
+
+	/**
+	 * Adds the tokens earned since the last refill
+	 */
+	private void refill() {
+		long now = System.nanoTime();
+		if (rate > 0) {
+			tokens = Math.min(rate, tokens + (now - lastRefill) / 1e9 * rate);
+		}
+		lastRefill = now;
+	}
+}
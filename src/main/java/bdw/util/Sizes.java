@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bdw.util;
+
+/**
+ * Reads sizes written the way people write them on command lines.
+ */
+public class Sizes {
+	private Sizes() {
+	}
+
+	/**
+	 * Parses a size such as 4096, 512K, 64M or 1G (K being 1024).
+	 * @param text The size
+	 * @return The size in bytes
+	 * @throws NumberFormatException If the text isn't a size
+	 */
+	public static long parse(String text) {
+		long multiplier = 1;
+		String digits = text.trim();
+		if (!digits.isEmpty()) {
+			switch (Character.toUpperCase(digits.charAt(digits.length() - 1))) {
+				case 'K':
+					multiplier = 1024L;
+					break;
+				case 'M':
+					multiplier = 1024L * 1024;
+					break;
+				case 'G':
+					multiplier = 1024L * 1024 * 1024;
+					break;
+				default:
+					break;
+			}
+			if (multiplier != 1) {
+				digits = digits.substring(0, digits.length() - 1);
+			}
+		}
+		return Long.parseLong(digits) * multiplier;
+	}
+}
@@ -16,12 +16,17 @@
 package bdw.csum;
 
 import bdw.csum.entry.ChangedEntry;
+import bdw.csum.entry.DirectorySummary;
 import bdw.csum.entry.FileEntry;
 import bdw.csum.entry.InvalidEntryException;
 import bdw.csum.entry.MovedEntry;
+import bdw.csum.metrics.Metrics;
 import bdw.testutils.MockQueue;
 import java.io.IOException;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import junit.framework.Assert;
 import org.junit.Test;
@@ -177,4 +182,95 @@ public class ResolverTest {
 
 		Assert.assertEquals(0, resolver.getMovedOrRenamedFiles().size());
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void fileMovedToSeveralHardLinksIsConsideredMoved() throws InvalidEntryException {
+		Date now = new Date();
+		MockQueue oldQueue = new MockQueue();
+		oldQueue.fakeQueue.add(new FileEntry(checkum1(), 1, now, "one.txt"));
+
+		MockQueue newQueue = new MockQueue();
+		newQueue.fakeQueue.add(new FileEntry(checkum1(), 1, now, "two.txt"));
+		FileEntry link = new FileEntry(checkum1(), 1, now, "three.txt");
+		link.setLinkedTo("two.txt");
+		newQueue.fakeQueue.add(link);
+
+		resolver = new Resolver(oldQueue, newQueue);
+
+		MovedEntry expected = new MovedEntry(new FileEntry(checkum1(), 1, now, "one.txt"),
+				  new FileEntry(checkum1(), 1, now, "two.txt"));
+		Assert.assertEquals(1, resolver.getMovedOrRenamedFiles().size());
+		assertSetContains(resolver.getMovedOrRenamedFiles(), expected);
+		Assert.assertEquals(1, resolver.getAddedFiles().size());
+		assertSetContains(resolver.getAddedFiles(), link);
+	}
+
+	@Test
+	public void metricsRecordResolveTime() throws InvalidEntryException {
+		MockQueue oldQueue = new MockQueue();
+		oldQueue.fakeQueue.add(new FileEntry(checkum1(), 1, new Date(), "one.txt"));
+		MockQueue newQueue = new MockQueue();
+		newQueue.fakeQueue.add(new FileEntry(checkum2(), 1, new Date(), "one.txt"));
+		Metrics metrics = new Metrics();
+
+		resolver = new Resolver(oldQueue, newQueue, metrics);
+
+		Assert.assertEquals(1, resolver.getChangedFiles().size());
+		Assert.assertEquals(1, metrics.getTimings(Metrics.Timer.RESOLVE));
+	}
+
+	@Test(expected=InvalidEntryException.class)
+	public void listingsWithDifferentAlgorithmsAreRejected() throws InvalidEntryException {
+		MockQueue oldQueue = new MockQueue();
+		oldQueue.fakeQueue.add(new FileEntry(checkum1(), 1, new Date(), "one.txt"));
+
+		MockQueue newQueue = new MockQueue();
+		newQueue.setAlgorithm("BLAKE3");
+		newQueue.fakeQueue.add(new FileEntry(checkum1(), 1, new Date(), "one.txt"));
+
+		resolver = new Resolver(oldQueue, newQueue);
+	}
+
+	@Test(expected=InvalidEntryException.class)
+	public void listingsWithDifferentChunkSizesAreRejected() throws InvalidEntryException {
+		MockQueue oldQueue = new MockQueue();
+		oldQueue.setChunkSize(64 * 1024 * 1024);
+
+		MockQueue newQueue = new MockQueue();
+		newQueue.fakeQueue.add(new FileEntry(checkum1(), 1, new Date(), "one.txt"));
+
+		resolver = new Resolver(oldQueue, newQueue);
+	}
+
+	@Test
+	public void algorithmNamesAreNotCaseSensitive() throws InvalidEntryException {
+		MockQueue oldQueue = new MockQueue();
+		oldQueue.setAlgorithm("sha-256");
+
+		MockQueue newQueue = new MockQueue();
+		newQueue.fakeQueue.add(new FileEntry(checkum1(), 1, new Date(), "one.txt"));
+
+		resolver = new Resolver(oldQueue, newQueue);
+
+		Assert.assertEquals(1, resolver.getAddedFiles().size());
+	}
+
+	@Test
+	public void identicalDirectoriesAreOutermostWithSameSummary() {
+		Map<String, DirectorySummary> oldSummaries = new HashMap<String, DirectorySummary>();
+		Map<String, DirectorySummary> newSummaries = new HashMap<String, DirectorySummary>();
+		oldSummaries.put("./a/", new DirectorySummary("./a/", checkum1(), 2, 2));
+		oldSummaries.put("./a/b/", new DirectorySummary("./a/b/", checkum2(), 1, 1));
+		oldSummaries.put("./c/", new DirectorySummary("./c/", checkum1(), 1, 3));
+		oldSummaries.put("./", new DirectorySummary("./", checkum3(), 3, 3));
+		newSummaries.put("./a/", new DirectorySummary("./a/", checkum1(), 2, 2));
+		newSummaries.put("./a/b/", new DirectorySummary("./a/b/", checkum2(), 1, 1));
+		newSummaries.put("./c/", new DirectorySummary("./c/", checkum2(), 1, 3));
+		newSummaries.put("./", new DirectorySummary("./", checkum1(), 3, 3));
+
+		List<String> identical = Resolver.findIdenticalDirectories(oldSummaries, newSummaries);
+
+		Assert.assertEquals(1, identical.size());
+		Assert.assertEquals("./a/", identical.get(0));
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.io.CSumReader;
+import bdw.csum.queue.ArchiveConverter;
+import bdw.csum.queue.ArchiveQueue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares reading a listing's entries through CSumReader, as ArchiveQueue
+ * used to, with ArchiveQueue as it is (reading bytes, see ArchiveReader),
+ * and with ArchiveQueue reading the same listing in binary form.
+ * The listing is in memory, so this measures the parsing alone.  Each
+ * operation is one entry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArchiveParseBenchmark {
+	/**
+	 * Must match the value in @OperationsPerInvocation
+	 */
+	private static final int ENTRY_COUNT = 100000;
+
+	private byte[] listing;
+
+	private byte[] binaryListing;
+
+	@Setup(Level.Trial)
+	public void makeListing() throws IOException {
+		Random random = new Random(ENTRY_COUNT);
+		StringBuilder text = new StringBuilder();
+		text.append("# Start 2016.01.02.03.04.05.678\n# Directory \"/home/someone\"\n");
+		for (int index = 0; index < ENTRY_COUNT; index++) {
+			byte[] checksum = new byte[32];
+			random.nextBytes(checksum);
+			String pathname = "src/d" + (index / 100) + "/some file " + index + ".txt";
+			text.append(new FileEntry(checksum, random.nextInt(1 << 20),
+					new Date(1300000000000L + random.nextInt()), pathname)).append('\n');
+		}
+		listing = text.toString().getBytes(Charset.forName("UTF-8"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ArchiveConverter.toBinary(new ByteArrayInputStream(listing), out);
+		binaryListing = out.toByteArray();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ENTRY_COUNT)
+	public void characters(Blackhole hole) throws IOException {
+		CSumReader reader = new CSumReader(new ByteArrayInputStream(listing));
+		reader.readLine();
+		reader.readLine();
+		while (reader.ready()) {
+			hole.consume(new FileEntry(reader));
+			reader.readLine();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ENTRY_COUNT)
+	public void bytes(Blackhole hole) throws InvalidEntryException {
+		ArchiveQueue queue = new ArchiveQueue(new ByteArrayInputStream(listing));
+		while (!queue.isEmpty()) {
+			hole.consume(queue.dequeue());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ENTRY_COUNT)
+	public void binary(Blackhole hole) throws InvalidEntryException {
+		ArchiveQueue queue = new ArchiveQueue(new ByteArrayInputStream(binaryListing));
+		while (!queue.isEmpty()) {
+			hole.consume(queue.dequeue());
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Builds (and throws away) trees of files for the benchmarks to chew on.
+ * Setting the system property csum.bench.dir to an existing directory makes
+ * the benchmarks use that instead, which is how to measure a real disk
+ * (e.g. an SSD) rather than whatever holds java.io.tmpdir.
+ */
+public class BenchTrees {
+	/**
+	 * @return The directory named by csum.bench.dir, or null if not set
+	 */
+	public static File externalTree() {
+		String path = System.getProperty("csum.bench.dir");
+		return (path == null) ? null : new File(path);
+	}
+
+	/**
+	 * Makes a tree of files filled with random bytes, spread over several
+	 * directories.
+	 *
+	 * @param fileCount Number of files to create
+	 * @param fileSize Size of each file in bytes
+	 * @return The root of the tree
+	 * @throws IOException
+	 */
+	public static File makeTree(int fileCount, long fileSize) throws IOException {
+		File root = File.createTempFile("csum-bench", "");
+		root.delete();
+		root.mkdirs();
+
+		Random random = new Random(fileCount ^ fileSize);
+		byte[] block = new byte[64 * 1024];
+		for (int index = 0; index < fileCount; index++) {
+			File dir = new File(root, "d" + (index % 16));
+			dir.mkdirs();
+			writeFile(new File(dir, "f" + index), fileSize, random, block);
+		}
+		return root;
+	}
+
+	/**
+	 * Makes a tree of many directories, eight to a parent, each holding a
+	 * few empty files; for measuring going through directories rather than
+	 * reading files.
+	 *
+	 * @param directoryCount Number of directories to create, besides the root
+	 * @param filesPerDirectory Number of empty files in each
+	 * @return The root of the tree
+	 * @throws IOException
+	 */
+	public static File makeDirectoryTree(int directoryCount, int filesPerDirectory) throws IOException {
+		File root = File.createTempFile("csum-bench", "");
+		root.delete();
+		root.mkdirs();
+
+		File[] directories = new File[directoryCount + 1];
+		directories[0] = root;
+		for (int index = 1; index <= directoryCount; index++) {
+			directories[index] = new File(directories[(index - 1) / 8], "d" + index);
+			directories[index].mkdir();
+			for (int file = 0; file < filesPerDirectory; file++) {
+				new File(directories[index], "f" + file).createNewFile();
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Writes a file full of random bytes.
+	 *
+	 * @param file The file to write
+	 * @param size Number of bytes to write
+	 * @param random Source of the bytes
+	 * @param block Scratch space
+	 * @throws IOException
+	 */
+	public static void writeFile(File file, long size, Random random, byte[] block) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			long remaining = size;
+			while (remaining > 0) {
+				random.nextBytes(block);
+				int length = (int) Math.min(block.length, remaining);
+				out.write(block, 0, length);
+				remaining -= length;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Deletes a tree made by makeTree().
+	 *
+	 * @param file The root of the tree
+	 */
+	public static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+}
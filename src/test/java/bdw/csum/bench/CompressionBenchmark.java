@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.io.ParallelGzipInputStream;
+import bdw.csum.io.ParallelGzipOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares gzipping a listing with GZIPOutputStream, on one thread, with
+ * ParallelGzipOutputStream on several, and reading it back.  The listing
+ * is in memory, so this measures the compression alone.  Each operation is
+ * the whole listing (about 13 MB).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+	private static final int ENTRY_COUNT = 100000;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private byte[] listing;
+
+	private byte[] compressed;
+
+	@Setup(Level.Trial)
+	public void makeListing() throws IOException {
+		Random random = new Random(ENTRY_COUNT);
+		StringBuilder text = new StringBuilder();
+		text.append("# Start 2016.01.02.03.04.05.678\n# Directory \"/home/someone\"\n");
+		for (int index = 0; index < ENTRY_COUNT; index++) {
+			byte[] checksum = new byte[32];
+			random.nextBytes(checksum);
+			String pathname = "src/d" + (index / 100) + "/some file " + index + ".txt";
+			text.append(new FileEntry(checksum, random.nextInt(1 << 20),
+					new Date(1300000000000L + random.nextInt()), pathname)).append('\n');
+		}
+		listing = text.toString().getBytes(Charset.forName("UTF-8"));
+		compressed = parallel();
+	}
+
+	@Benchmark
+	public byte[] gzip() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(listing.length / 2);
+		OutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+		gzip.write(listing);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] parallel() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(listing.length / 2);
+		OutputStream gzip = new ParallelGzipOutputStream(out, threads);
+		gzip.write(listing);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public long read() throws IOException {
+		InputStream in = ParallelGzipInputStream.open(new ByteArrayInputStream(compressed), threads);
+		byte[] buffer = new byte[64 * 1024];
+		long total = 0;
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			total += count;
+		}
+		in.close();
+		return total;
+	}
+}
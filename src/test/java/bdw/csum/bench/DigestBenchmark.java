@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import bdw.csum.hash.FileHasher;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the throughput of the checksum algorithms on a large file.
+ * The bytes counter reads as bytes/s.  With the file in the page cache,
+ * this is the speed of the algorithm itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DigestBenchmark {
+	@Param({"SHA-256", "BLAKE3", "XXH64", "CRC32C"})
+	public String algorithm;
+
+	@Param({"268435456"})
+	public long fileSize;
+
+	private File file;
+	private FileHasher hasher;
+
+	/**
+	 * Per-iteration tallies, reported by jmh as rates.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Throughput {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			bytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void makeFile() throws IOException, NoSuchAlgorithmException {
+		file = File.createTempFile("csum-bench", ".bin");
+		BenchTrees.writeFile(file, fileSize, new Random(fileSize), new byte[64 * 1024]);
+		hasher = new FileHasher(algorithm, FileHasher.DEFAULT_BUFFER_SIZE, FileHasher.DEFAULT_MAP_THRESHOLD);
+	}
+
+	@TearDown(Level.Trial)
+	public void removeFile() {
+		file.delete();
+	}
+
+	@Benchmark
+	public byte[] hash(Throughput counts) throws IOException {
+		counts.bytes += fileSize;
+		return hasher.hash(file);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.queue.FSQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures what listing a tree of tiny files allocates, per file, on one
+ * thread.  Each operation is one file, so with the GC profiler
+ * (-prof gc) gc.alloc.rate.norm reads as bytes allocated per file.
+ * Most of that is the FileEntry itself (the entry, its Date, checksum and
+ * pathname, about 150 bytes) and what the JDK allocates to list, stat and
+ * open the file; the hashing adds nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntryAllocationBenchmark {
+	/**
+	 * Must match the value in @OperationsPerInvocation
+	 */
+	private static final int FILE_COUNT = 4096;
+
+	@Param({"64"})
+	public long fileSize;
+
+	private File root;
+
+	@Setup(Level.Trial)
+	public void makeTree() throws IOException {
+		root = BenchTrees.makeTree(FILE_COUNT, fileSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void removeTree() {
+		BenchTrees.deleteTree(root);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FILE_COUNT)
+	public void scan(Blackhole hole) throws InvalidEntryException {
+		FSQueue queue = new FSQueue(root.getPath());
+		while (!queue.isEmpty()) {
+			FileEntry entry = queue.dequeue();
+			hole.consume(entry);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import bdw.csum.hash.FileHasher;
+import bdw.csum.hash.ReadAheadHasher;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares checksumming a single file the way FSQueue used to (a
+ * FileInputStream and a fresh 1 KB array) with FileHasher reading through
+ * its buffer, FileHasher mapping the file, and ReadAheadHasher reading on
+ * its own thread.  The bytes counter reads
+ * as bytes/s.  The default sizes stop at 1 GB to spare the temp directory;
+ * add -p fileSize=10737418240 for the 10 GB case.
+ * Unless the page cache is dropped between runs this measures the cost of
+ * getting cached data into the digest, not the device.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileHasherBenchmark {
+	@Param({"1024", "65536", "1048576", "16777216", "268435456", "1073741824"})
+	public long fileSize;
+
+	@Param({"stream", "channel", "mapped", "readahead"})
+	public String engine;
+
+	private File file;
+	private FileHasher hasher;
+
+	/**
+	 * Per-iteration tallies, reported by jmh as rates.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Throughput {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			bytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void makeFile() throws IOException, NoSuchAlgorithmException {
+		file = File.createTempFile("csum-bench", ".bin");
+		BenchTrees.writeFile(file, fileSize, new Random(fileSize), new byte[64 * 1024]);
+		if (engine.equals("readahead")) {
+			hasher = new ReadAheadHasher(FileHasher.DEFAULT_ALGORITHM);
+		} else {
+			long threshold = engine.equals("mapped") ? 0 : Long.MAX_VALUE;
+			hasher = new FileHasher(FileHasher.DEFAULT_ALGORITHM, FileHasher.DEFAULT_BUFFER_SIZE, threshold);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void removeFile() {
+		file.delete();
+		if (hasher instanceof ReadAheadHasher) {
+			((ReadAheadHasher) hasher).close();
+		}
+	}
+
+	@Benchmark
+	public byte[] hash(Throughput counts) throws IOException, NoSuchAlgorithmException {
+		counts.bytes += fileSize;
+		if (engine.equals("stream")) {
+			return streamHash(file);
+		}
+		return hasher.hash(file);
+	}
+
+	/**
+	 * How FSQueue checksummed a file before FileHasher.
+	 */
+	private byte[] streamHash(File file) throws IOException, NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		byte[] readBuffer = new byte[1024];
+		InputStream stream = new FileInputStream(file);
+		try {
+			int bytesRead = stream.read(readBuffer);
+			while (bytesRead != -1) {
+				digest.update(readBuffer, 0, bytesRead);
+				bytesRead = stream.read(readBuffer);
+			}
+		} finally {
+			stream.close();
+		}
+		return digest.digest();
+	}
+}
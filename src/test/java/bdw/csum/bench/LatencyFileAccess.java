@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import bdw.csum.queue.FileAccess;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A stand-in for a network file system: the local file system, but with
+ * each listing, attribute read and open taking a fixed extra time, the
+ * way a round trip to a server would.  The operations still overlap, as
+ * they would against a real server.
+ */
+public class LatencyFileAccess extends FileAccess {
+	/**
+	 * The extra time each operation takes, in microseconds
+	 */
+	private final long latencyMicros;
+
+	/**
+	 * @param latencyMicros The extra time each operation takes, in microseconds
+	 */
+	public LatencyFileAccess(long latencyMicros) {
+		this.latencyMicros = latencyMicros;
+	}
+
+	@Override
+	public DirectoryStream<Path> newDirectoryStream(Path directory) throws IOException {
+		delay();
+		return super.newDirectoryStream(directory);
+	}
+
+	@Override
+	public BasicFileAttributes readAttributes(Path path) throws IOException {
+		delay();
+		return super.readAttributes(path);
+	}
+
+	@Override
+	public FileInputStream openStream(Path path) throws IOException {
+		delay();
+		return super.openStream(path);
+	}
+
+	private void delay() throws InterruptedIOException {
+		try {
+			Thread.sleep(latencyMicros / 1000, (int) (latencyMicros % 1000) * 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import bdw.csum.queue.TreeWalker;
+import bdw.csum.queue.WalkEntry;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a metadata-only walk of a tree of many directories, listing them
+ * one at a time as the walk reaches them or ahead of it on a fork-join pool.
+ * A latency of 0 measures the local (cached) file system; a latency above
+ * that stands in for a network file system (see LatencyFileAccess).
+ * The files counter reads as files/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+	/**
+	 * Threads to list directories on, or 0 to list them as the walk goes
+	 */
+	@Param({"0", "4", "16"})
+	public int listingThreads;
+
+	/**
+	 * Extra time taken by each file system operation, in microseconds
+	 */
+	@Param({"0", "500"})
+	public long latencyMicros;
+
+	@Param({"2000"})
+	public int directoryCount;
+
+	@Param({"4"})
+	public int filesPerDirectory;
+
+	private File root;
+	private boolean madeRoot;
+	private ForkJoinPool pool;
+
+	/**
+	 * Per-iteration tallies, reported by jmh as rates.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Throughput {
+		public long files;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			files = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void makeTree() throws IOException {
+		root = BenchTrees.externalTree();
+		if (root == null) {
+			root = BenchTrees.makeDirectoryTree(directoryCount, filesPerDirectory);
+			madeRoot = true;
+		}
+		if (listingThreads > 0) {
+			pool = new ForkJoinPool(listingThreads);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void removeTree() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+		if (madeRoot) {
+			BenchTrees.deleteTree(root);
+		}
+	}
+
+	@Benchmark
+	public void walk(Throughput counts) {
+		TreeWalker walker = new TreeWalker(root.toPath());
+		if (latencyMicros > 0) {
+			walker.setFileAccess(new LatencyFileAccess(latencyMicros));
+		}
+		walker.setListingPool(pool, TreeWalker.DEFAULT_LISTING_AHEAD);
+		WalkEntry entry = walker.next();
+		while (entry != null) {
+			counts.files++;
+			entry = walker.next();
+		}
+	}
+}
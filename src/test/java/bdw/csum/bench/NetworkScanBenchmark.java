@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.queue.FSQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a full scan of a tree as if it were on a network file system,
+ * with every listing, attribute read and open delayed (see LatencyFileAccess).
+ * Compares worker pools of a few sizes with a thread per operation and an
+ * in flight limit.  The files and bytes counters read as files/s and bytes/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NetworkScanBenchmark {
+	/**
+	 * "workers-n" uses a pool of n worker threads; "inflight-n" a thread per
+	 * operation with at most n in flight
+	 */
+	@Param({"workers-1", "workers-8", "inflight-64", "inflight-256"})
+	public String mode;
+
+	/**
+	 * Extra time taken by each file system operation, in microseconds
+	 */
+	@Param({"2000"})
+	public long latencyMicros;
+
+	@Param({"512"})
+	public int fileCount;
+
+	@Param({"4096"})
+	public long fileSize;
+
+	private File root;
+	private boolean madeRoot;
+
+	/**
+	 * Per-iteration tallies, reported by jmh as rates.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Throughput {
+		public long files;
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			files = 0;
+			bytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void makeTree() throws IOException {
+		root = BenchTrees.externalTree();
+		if (root == null) {
+			root = BenchTrees.makeTree(fileCount, fileSize);
+			madeRoot = true;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void removeTree() {
+		if (madeRoot) {
+			BenchTrees.deleteTree(root);
+		}
+	}
+
+	@Benchmark
+	public void scan(Throughput counts) throws InvalidEntryException {
+		FSQueue queue = new FSQueue(root.getPath());
+		queue.setFileAccess(new LatencyFileAccess(latencyMicros));
+		int count = Integer.parseInt(mode.substring(mode.indexOf('-') + 1));
+		if (mode.startsWith("inflight")) {
+			queue.setInFlightLimit(count);
+		} else {
+			queue.setWorkerCount(count);
+		}
+		while (!queue.isEmpty()) {
+			FileEntry entry = queue.dequeue();
+			counts.files++;
+			counts.bytes += entry.getFileSize();
+		}
+	}
+}
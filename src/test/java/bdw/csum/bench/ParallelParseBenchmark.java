@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.queue.ArchiveQueue;
+import bdw.csum.queue.ParallelArchiveQueue;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares reading a listing file with an ArchiveQueue with reading it in
+ * pieces on several threads with a ParallelArchiveQueue.  The file is
+ * small enough to stay in the page cache, so this measures the parsing,
+ * not the disk.  Each operation is one entry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelParseBenchmark {
+	/**
+	 * Must match the value in @OperationsPerInvocation
+	 */
+	private static final int ENTRY_COUNT = 1000000;
+
+	@Param({"1", "2", "4"})
+	public int threads;
+
+	@Param({"4194304"})
+	public long pieceSize;
+
+	private File listing;
+
+	@Setup(Level.Trial)
+	public void makeListing() throws IOException {
+		Random random = new Random(ENTRY_COUNT);
+		listing = File.createTempFile("csum-bench", ".listing");
+		OutputStream out = new FileOutputStream(listing);
+		try {
+			out.write("# Start 2016.01.02.03.04.05.678\n# Directory \"/home/someone\"\n".getBytes("UTF-8"));
+			StringBuilder text = new StringBuilder();
+			for (int index = 0; index < ENTRY_COUNT; index++) {
+				byte[] checksum = new byte[32];
+				random.nextBytes(checksum);
+				String pathname = "src/d" + (index / 100) + "/some file " + index + ".txt";
+				text.append(new FileEntry(checksum, random.nextInt(1 << 20),
+						new Date(1300000000000L + random.nextInt()), pathname)).append('\n');
+				if (text.length() > 65536) {
+					out.write(text.toString().getBytes(Charset.forName("UTF-8")));
+					text.setLength(0);
+				}
+			}
+			out.write(text.toString().getBytes(Charset.forName("UTF-8")));
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void removeListing() {
+		listing.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ENTRY_COUNT)
+	public void sequential(Blackhole hole) throws IOException, InvalidEntryException {
+		FileInputStream in = new FileInputStream(listing);
+		try {
+			ArchiveQueue queue = new ArchiveQueue(in);
+			while (!queue.isEmpty()) {
+				hole.consume(queue.dequeue());
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ENTRY_COUNT)
+	public void pieces(Blackhole hole) throws InvalidEntryException {
+		ParallelArchiveQueue queue = new ParallelArchiveQueue(listing, threads, pieceSize);
+		while (!queue.isEmpty()) {
+			hole.consume(queue.dequeue());
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import bdw.csum.filter.PathFilter;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares checking paths against many exclusion rules with PathFilter
+ * (all the globs compiled into one automaton) and with a PathMatcher per
+ * rule, tried in turn.  The automaton should take about the same time per
+ * path however many rules there are.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PathFilterBenchmark {
+	@Param({"10", "1000"})
+	public int ruleCount;
+
+	@Param({"automaton", "matchers"})
+	public String engine;
+
+	private PathFilter filter;
+	private List<PathMatcher> matchers;
+	private String[] paths;
+	private Path[] pathObjects;
+	private int next;
+
+	@Setup
+	public void makeRules() {
+		Random random = new Random(ruleCount);
+		filter = new PathFilter();
+		matchers = new ArrayList<PathMatcher>();
+		for (int index = 0; index < ruleCount; index++) {
+			String glob = "cache" + index + "/*." + (char) ('a' + random.nextInt(26)) + "?";
+			filter.add(glob);
+			matchers.add(FileSystems.getDefault().getPathMatcher("glob:**/" + glob));
+		}
+
+		paths = new String[1024];
+		pathObjects = new Path[paths.length];
+		for (int index = 0; index < paths.length; index++) {
+			paths[index] = "src/module" + random.nextInt(50) + "/cache" + random.nextInt(2 * ruleCount) +
+					"/file" + index + "." + (char) ('a' + random.nextInt(26)) + "x";
+			pathObjects[index] = Paths.get(paths[index]);
+		}
+	}
+
+	@Benchmark
+	public boolean check() {
+		int index = (next++) & (paths.length - 1);
+		if (engine.equals("automaton")) {
+			return filter.isExcluded(paths[index], false);
+		}
+		for (PathMatcher matcher : matchers) {
+			if (matcher.matches(pathObjects[index])) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
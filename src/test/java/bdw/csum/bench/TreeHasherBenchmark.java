@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.bench;
+
+import bdw.csum.hash.FileHasher;
+import bdw.csum.hash.TreeHasher;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares checksumming one large file whole, on one thread, with
+ * checksumming it as a tree of chunks on a fork-join pool.
+ * The bytes counter reads as bytes/s.  With the file in the page cache,
+ * the tree should scale with the number of cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TreeHasherBenchmark {
+	@Param({"SHA-256"})
+	public String algorithm;
+
+	@Param({"1073741824"})
+	public long fileSize;
+
+	/**
+	 * 0 checksums the file whole
+	 */
+	@Param({"0", "16777216", "67108864"})
+	public long chunkSize;
+
+	private File file;
+	private FileHasher hasher;
+	private TreeHasher treeHasher;
+	private ForkJoinPool pool;
+
+	/**
+	 * Per-iteration tallies, reported by jmh as rates.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Throughput {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			bytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void makeFile() throws IOException, NoSuchAlgorithmException {
+		file = File.createTempFile("csum-bench", ".bin");
+		BenchTrees.writeFile(file, fileSize, new Random(fileSize), new byte[64 * 1024]);
+		hasher = new FileHasher(algorithm, FileHasher.DEFAULT_BUFFER_SIZE, FileHasher.DEFAULT_MAP_THRESHOLD);
+		if (chunkSize > 0) {
+			pool = new ForkJoinPool();
+			treeHasher = new TreeHasher(algorithm, chunkSize, FileHasher.DEFAULT_MAP_THRESHOLD, pool);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void removeFile() {
+		file.delete();
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	@Benchmark
+	public byte[] hash(Throughput counts) throws IOException {
+		counts.bytes += fileSize;
+		return (treeHasher == null) ? hasher.hash(file) : treeHasher.hash(file.toPath());
+	}
+}
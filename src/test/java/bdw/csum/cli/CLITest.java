@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.cli;
+
+import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.queue.Checkpoint;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static junit.framework.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CLITest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private Path root;
+	private Path work;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("csum-tree");
+		Files.write(root.resolve("a"), "one".getBytes(UTF_8));
+		Files.write(root.resolve("b"), "two".getBytes(UTF_8));
+		work = Files.createTempDirectory("csum-work");
+	}
+
+	@After
+	public void tearDown() {
+		for (Path directory : new Path[] {root, work}) {
+			for (File file : directory.toFile().listFiles()) {
+				file.delete();
+			}
+			directory.toFile().delete();
+		}
+	}
+
+	@Test
+	public void listDirectory_CheckpointWithNoEntries_HeaderWrittenOnce() throws InvalidEntryException, IOException {
+		// What a run leaves if a checkpoint comes due after a problem with its first file
+		File output = work.resolve("listing").toFile();
+		String partial = "# CSum\n# Version 1\n# Algorithm SHA-256\n# Directory \"" + root + "\"\n"
+				+ "# Start 2016.01.02.03.04.05.678\n# Problem with entry\n";
+		Files.write(output.toPath(), partial.getBytes(UTF_8));
+		File checkpointFile = work.resolve("checkpoint").toFile();
+		new Checkpoint(checkpointFile, 0, 0).save(output.length(), 0, null, 0);
+
+		CLI cli = new CLI();
+		cli.setCheckpointPath(checkpointFile.getPath());
+		cli.listDirectory(root.toString(), false, output);
+
+		String listing = new String(Files.readAllBytes(output.toPath()), UTF_8);
+		assertTrue(listing.startsWith(partial));
+		assertEquals(listing.indexOf("# CSum"), listing.lastIndexOf("# CSum"));
+		assertEquals(listing.indexOf("# Start"), listing.lastIndexOf("# Start"));
+		assertTrue(listing.contains("\"./a\"\n"));
+		assertTrue(listing.contains("\"./b\"\n"));
+		assertFalse(checkpointFile.exists());
+	}
+
+	@Test
+	public void lookup_ByPathAndChecksum_WritesEntriesWithLinks() throws InvalidEntryException, IOException {
+		File indexed = writeIndexed();
+		CLI cli = new CLI();
+
+		StringWriter out = new StringWriter();
+		assertTrue(cli.lookup(indexed, false, Arrays.asList("./d/f2", "d/"), out));
+		assertEquals("# Start 2016.01.02.03.04.05.678\n"
+				+ "# Link \"./d/f1\"\n0a0b\t2\t1969.12.31.16.00.00.000\t\"./d/f2\"\n"
+				+ "0a0b\t1\t1969.12.31.16.00.00.000\t\"./d/f1\"\n"
+				+ "# Link \"./d/f1\"\n0a0b\t2\t1969.12.31.16.00.00.000\t\"./d/f2\"\n", out.toString());
+
+		out = new StringWriter();
+		assertTrue(cli.lookup(indexed, true, Arrays.asList("0A0B"), out));
+		assertEquals(4, out.toString().split("\n").length);
+
+		out = new StringWriter();
+		assertFalse(cli.lookup(indexed, false, Arrays.asList("./d/f3"), out));
+	}
+
+	@Test(expected = IOException.class)
+	public void lookup_ChecksumNotHex_Throws() throws InvalidEntryException, IOException {
+		new CLI().lookup(writeIndexed(), true, Arrays.asList("0a0g"), new StringWriter());
+	}
+
+	@Test(expected = IOException.class)
+	public void lookup_ChecksumOddLength_Throws() throws InvalidEntryException, IOException {
+		new CLI().lookup(writeIndexed(), true, Arrays.asList("0a0"), new StringWriter());
+	}
+
+	@Test
+	public void rootPaths_SeveralDirectories_AllListedInOrder() {
+		CLI cli = new CLI();
+		String[] args = cli.parseScanOptions(new String[] {"--root", "/b", "-a", "/a", "/c"});
+
+		assertEquals(Arrays.asList("/a", "/c", "/b"), cli.rootPaths(args));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rootPaths_CompareOption_Throws() {
+		CLI cli = new CLI();
+		cli.rootPaths(cli.parseScanOptions(new String[] {"--root", "/b", "-c", "/a"}));
+	}
+
+	private File writeIndexed() throws InvalidEntryException, IOException {
+		File listing = work.resolve("listing").toFile();
+		String text = "# CSum\n# Version 1\n# Algorithm SHA-256\n# Directory \"/base\"\n"
+				+ "# Start 2016.01.02.03.04.05.678\n"
+				+ "0a0b\t1\t1969.12.31.16.00.00.000\t\"./d/f1\"\n"
+				+ "# Link \"./d/f1\"\n0a0b\t2\t1969.12.31.16.00.00.000\t\"./d/f2\"\n";
+		Files.write(listing.toPath(), text.getBytes(UTF_8));
+		File indexed = work.resolve("indexed").toFile();
+		new CLI().index(listing, indexed);
+		return indexed;
+	}
+}
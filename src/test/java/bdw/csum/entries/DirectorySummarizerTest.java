@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.entries;
+
+import bdw.csum.entry.DirectorySummarizer;
+import bdw.csum.entry.DirectorySummary;
+import bdw.csum.entry.FileEntry;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+public class DirectorySummarizerTest {
+	private FileEntry entry(String pathname, int checksum) {
+		return new FileEntry(new byte[] {(byte) checksum}, 1, new Date(0), pathname);
+	}
+
+	private List<DirectorySummary> summarize(FileEntry... entries) throws NoSuchAlgorithmException {
+		DirectorySummarizer summarizer = new DirectorySummarizer("SHA-256");
+		List<DirectorySummary> summaries = new ArrayList<DirectorySummary>();
+		for (FileEntry entry : entries) {
+			summaries.addAll(summarizer.add(entry));
+		}
+		summaries.addAll(summarizer.finish());
+		return summaries;
+	}
+
+	@Test
+	public void add_LeavingADirectory_SummarizesIt() throws NoSuchAlgorithmException {
+		DirectorySummarizer summarizer = new DirectorySummarizer("SHA-256");
+
+		assertTrue(summarizer.add(entry("a/b/one", 1)).isEmpty());
+		assertTrue(summarizer.add(entry("a/b/two", 2)).isEmpty());
+		List<DirectorySummary> finished = summarizer.add(entry("c/three", 3));
+
+		assertEquals(2, finished.size());
+		assertEquals("./a/b/", finished.get(0).getPathname());
+		assertEquals(2, finished.get(0).getFileCount());
+		assertEquals(2, finished.get(0).getEnd());
+		assertEquals("./a/", finished.get(1).getPathname());
+	}
+
+	@Test
+	public void finish_RootLastCoveringEverything() throws NoSuchAlgorithmException {
+		List<DirectorySummary> summaries = summarize(entry("a/one", 1), entry("two", 2), entry("c/three", 3));
+
+		DirectorySummary root = summaries.get(summaries.size() - 1);
+		assertEquals("./", root.getPathname());
+		assertEquals(3, root.getFileCount());
+		assertEquals(3, root.getEnd());
+	}
+
+	@Test
+	public void finish_NoEntries_NoSummaries() throws NoSuchAlgorithmException {
+		assertTrue(summarize().isEmpty());
+	}
+
+	@Test
+	public void summary_DifferentOrderWithinDirectories_SameChecksum() throws NoSuchAlgorithmException {
+		List<DirectorySummary> one = summarize(entry("a/one", 1), entry("a/two", 2), entry("three", 3));
+		List<DirectorySummary> two = summarize(entry("three", 3), entry("a/two", 2), entry("a/one", 1));
+
+		assertTrue(Arrays.equals(one.get(one.size() - 1).getChecksum(), two.get(two.size() - 1).getChecksum()));
+	}
+
+	@Test
+	public void summary_ChangedFile_ChangesItsDirectoriesOnly() throws NoSuchAlgorithmException {
+		List<DirectorySummary> one = summarize(entry("a/one", 1), entry("b/two", 2));
+		List<DirectorySummary> two = summarize(entry("a/one", 1), entry("b/two", 9));
+
+		// a, b, then the root
+		assertTrue(Arrays.equals(one.get(0).getChecksum(), two.get(0).getChecksum()));
+		assertFalse(Arrays.equals(one.get(1).getChecksum(), two.get(1).getChecksum()));
+		assertFalse(Arrays.equals(one.get(2).getChecksum(), two.get(2).getChecksum()));
+	}
+
+	@Test
+	public void summary_RenamedFile_ChangesChecksum() throws NoSuchAlgorithmException {
+		List<DirectorySummary> one = summarize(entry("a/one", 1));
+		List<DirectorySummary> two = summarize(entry("a/uno", 1));
+
+		assertFalse(Arrays.equals(one.get(0).getChecksum(), two.get(0).getChecksum()));
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.filter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class PathFilterTest {
+	private PathFilter filter(String... rules) {
+		PathFilter filter = new PathFilter();
+		for (String rule : rules) {
+			filter.add(rule);
+		}
+		return filter;
+	}
+
+	@Test
+	public void isExcluded_NoRules_NothingExcluded() {
+		PathFilter filter = filter();
+		assertTrue(filter.isEmpty());
+		assertFalse(filter.isExcluded("a/b", false));
+		assertFalse(filter.isExcluded("a", true));
+	}
+
+	@Test
+	public void isExcluded_NameRule_MatchesAtAnyDepth() {
+		PathFilter filter = filter("node_modules");
+		assertTrue(filter.isExcluded("node_modules", true));
+		assertTrue(filter.isExcluded("a/b/node_modules", true));
+		assertTrue(filter.isExcluded("./a/node_modules", false));
+		assertFalse(filter.isExcluded("a/node_modules2", true));
+		assertFalse(filter.isExcluded("xnode_modules", true));
+	}
+
+	@Test
+	public void isExcluded_PathRule_AnchoredAtRoot() {
+		PathFilter filter = filter("build/classes", "/top");
+		assertTrue(filter.isExcluded("build/classes", true));
+		assertFalse(filter.isExcluded("a/build/classes", true));
+		assertTrue(filter.isExcluded("top", false));
+		assertFalse(filter.isExcluded("a/top", false));
+	}
+
+	@Test
+	public void isExcluded_Wildcards() {
+		PathFilter filter = filter("*.o", "cache?", "[abc]x[!0-9]", "doc/**/*.tmp", "{one,two}.log");
+		assertTrue(filter.isExcluded("src/main.o", false));
+		assertFalse(filter.isExcluded("src/main.oo", false));
+		assertTrue(filter.isExcluded("cache1", true));
+		assertFalse(filter.isExcluded("cache12", true));
+		assertTrue(filter.isExcluded("bxy", false));
+		assertFalse(filter.isExcluded("bx1", false));
+		assertFalse(filter.isExcluded("dx1", false));
+		assertTrue(filter.isExcluded("doc/a.tmp", false));
+		assertTrue(filter.isExcluded("doc/a/b/c.tmp", false));
+		assertFalse(filter.isExcluded("src/doc/a.tmp", false));
+		assertTrue(filter.isExcluded("two.log", false));
+		assertFalse(filter.isExcluded("three.log", false));
+	}
+
+	@Test
+	public void isExcluded_StarDoesNotCrossSlash() {
+		PathFilter filter = filter("a/*.txt");
+		assertTrue(filter.isExcluded("a/b.txt", false));
+		assertFalse(filter.isExcluded("a/b/c.txt", false));
+	}
+
+	@Test
+	public void isExcluded_DirectoryRule_OnlyDirectories() {
+		PathFilter filter = filter("target/");
+		assertTrue(filter.isExcluded("target", true));
+		assertFalse(filter.isExcluded("target", false));
+		assertFalse(filter.isExcludedEither("target"));
+	}
+
+	@Test
+	public void isExcluded_LastRuleWins() {
+		PathFilter filter = filter("*.log", "!keep.log", "regex:.*/very/.*");
+		assertTrue(filter.isExcluded("a.log", false));
+		assertFalse(filter.isExcluded("a/keep.log", false));
+		assertTrue(filter.isExcluded("a/very/keep.log", false));
+		assertTrue(filter.isExcludedEither("b.log"));
+	}
+
+	@Test
+	public void isExcluded_ManyRules_SameAnswers() {
+		PathFilter filter = new PathFilter();
+		for (int index = 0; index < 5000; index++) {
+			filter.add("dir" + index + "/*.dat");
+		}
+		assertTrue(filter.isExcluded("dir4999/x.dat", false));
+		assertTrue(filter.isExcluded("dir0/x.dat", false));
+		assertFalse(filter.isExcluded("dir5000/x.dat", false));
+		assertFalse(filter.isExcluded("dir1/x.txt", false));
+	}
+
+	@Test
+	public void isExcluded_NonAscii() {
+		PathFilter filter = filter("第一*");
+		assertTrue(filter.isExcluded("a/第一个孩子", true));
+		assertFalse(filter.isExcluded("a/第二个孩子", true));
+	}
+
+	@Test
+	public void addAll_SkipsCommentsAndBlankLines() throws IOException {
+		File file = File.createTempFile("csum", ".csumignore");
+		try {
+			Files.write(file.toPath(), "# comment\n\n*.bak\n!important.bak\n".getBytes(Charset.forName("UTF-8")));
+			PathFilter filter = new PathFilter();
+			filter.addAll(file);
+
+			assertEquals(Arrays.asList("*.bak", "!important.bak"), filter.getRules());
+			assertTrue(filter.isExcluded("x.bak", false));
+			assertFalse(filter.isExcluded("important.bak", false));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void add_UnclosedBracket_Rejected() {
+		filter("[abc");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void add_UnclosedBrace_Rejected() {
+		filter("{a,b");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void add_BadRegex_Rejected() {
+		filter("regex:(");
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import bdw.testutils.Utils;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import static junit.framework.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class DigestAlgorithmsTest {
+	private Utils utils;
+
+	@Before
+	public void setUp() {
+		utils = new Utils();
+	}
+
+	/**
+	 * @return length bytes of the pattern 0, 1, ... 250, 0, 1, ... (as used by the BLAKE3 test vectors)
+	 */
+	private byte[] pattern(int length) {
+		byte[] bytes = new byte[length];
+		for (int index = 0; index < length; index++) {
+			bytes[index] = (byte) (index % 251);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Digests the input in uneven pieces, to exercise the buffering
+	 */
+	private byte[] digestInPieces(String algorithm, byte[] input) throws NoSuchAlgorithmException {
+		MessageDigest digest = DigestAlgorithms.newDigest(algorithm);
+		int position = 0;
+		int piece = 1;
+		while (position < input.length) {
+			int length = Math.min(piece, input.length - position);
+			digest.update(input, position, length);
+			position += length;
+			piece = (piece * 7) % 1500 + 1;
+		}
+		return digest.digest();
+	}
+
+	private void assertDigest(String expectedHex, String algorithm, byte[] input) throws NoSuchAlgorithmException, IOException {
+		byte[] expected = utils.makeByteArrayFromHexString(expectedHex);
+		assertTrue(Arrays.equals(expected, DigestAlgorithms.newDigest(algorithm).digest(input)));
+		assertTrue(Arrays.equals(expected, digestInPieces(algorithm, input)));
+	}
+
+	@Test
+	public void blake3_KnownVectors() throws NoSuchAlgorithmException, IOException {
+		assertDigest("af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262", "BLAKE3", pattern(0));
+		assertDigest("d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444", "BLAKE3", pattern(1025));
+		assertDigest("bc3e3d41a1146b069abffad3c0d44860cf664390afce4d9661f7902e7943e085", "BLAKE3", pattern(102400));
+	}
+
+	@Test
+	public void xxh64_KnownVectors() throws NoSuchAlgorithmException, IOException {
+		assertDigest("ef46db3751d8e999", "XXH64", pattern(0));
+		assertDigest("cfd73aedd2d6a39d", "xxh64", pattern(1025));
+		assertDigest("eb1adcdd9e1369a6", "XXH64", pattern(102400));
+	}
+
+	@Test
+	public void crc32c_KnownVectors() throws NoSuchAlgorithmException, IOException {
+		assertDigest("00000000", "CRC32C", pattern(0));
+		assertDigest("c8d03add", "crc32c", pattern(1025));
+	}
+
+	@Test
+	public void newDigest_OtherNames_FromMessageDigest() throws NoSuchAlgorithmException {
+		assertEquals(64, DigestAlgorithms.newDigest("SHA-512").getDigestLength());
+	}
+
+	@Test
+	public void newDigest_SameNameTwice_SeparateDigests() throws NoSuchAlgorithmException {
+		MessageDigest first = DigestAlgorithms.newDigest("SHA-256");
+		first.update((byte) 1);
+		MessageDigest second = DigestAlgorithms.newDigest("sha-256");
+
+		assertNotSame(first, second);
+		assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(), second.digest()));
+	}
+
+	@Test(expected=NoSuchAlgorithmException.class)
+	public void newDigest_UnknownName_Rejected() throws NoSuchAlgorithmException {
+		DigestAlgorithms.newDigest("NOT-A-HASH");
+	}
+
+	@Test
+	public void canonicalName_IsUpperCase() throws NoSuchAlgorithmException {
+		assertEquals("BLAKE3", DigestAlgorithms.canonicalName("blake3"));
+		assertEquals("SHA-256", DigestAlgorithms.canonicalName("sha-256"));
+	}
+}
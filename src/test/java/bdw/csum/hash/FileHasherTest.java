@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import bdw.csum.metrics.Metrics;
+import bdw.testutils.Utils;
+import bdw.util.RateLimiter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import static junit.framework.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class FileHasherTest {
+	private Utils utils;
+
+	@Before
+	public void setUp() {
+		utils = new Utils();
+	}
+
+	@Test
+	public void hash_EmptyFile_GivesEmptySha256() throws NoSuchAlgorithmException, IOException {
+		FileHasher hasher = new FileHasher();
+
+		assertTrue(Arrays.equals(utils.makeByteArrayFromHexString("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855"),
+				hasher.hash(new File("./src/test/resources/dir1/foo.txt"))));
+	}
+
+	@Test
+	public void hash_ReadAndMapped_GiveSameChecksum() throws NoSuchAlgorithmException, IOException {
+		File file = new File("./src/test/resources/dir3/1025.txt");
+		FileHasher reader = new FileHasher(FileHasher.DEFAULT_ALGORITHM, 100, Long.MAX_VALUE);
+		FileHasher mapper = new FileHasher(FileHasher.DEFAULT_ALGORITHM, 100, 0);
+
+		byte[] expected = utils.makeByteArrayFromHexString("594ceba81f2722e6ecc231a7c6e8852c5ee4991acba2527d7c08ab588cac19df");
+		assertTrue(Arrays.equals(expected, reader.hash(file)));
+		assertTrue(Arrays.equals(expected, mapper.hash(file)));
+	}
+
+	@Test
+	public void hash_WithMetrics_RecordsReadAndDigest() throws NoSuchAlgorithmException, IOException {
+		Metrics metrics = new Metrics();
+		FileHasher hasher = new FileHasher(FileHasher.DEFAULT_ALGORITHM, 100, Long.MAX_VALUE);
+		hasher.setMetrics(metrics);
+		hasher.hash(new File("./src/test/resources/dir3/1025.txt"));
+
+		// 11 buffers' worth, and the read that finds the end
+		assertEquals(11, metrics.getTimings(Metrics.Timer.DIGEST));
+		assertEquals(12, metrics.getTimings(Metrics.Timer.READ));
+	}
+
+	@Test
+	public void hash_Stream_SameChecksumWhicheverWayRead() throws NoSuchAlgorithmException, IOException {
+		File file = new File("./src/test/resources/dir3/1025.txt");
+		FileHasher hasher = new FileHasher(FileHasher.DEFAULT_ALGORITHM, 100, Long.MAX_VALUE);
+		byte[] expected = hasher.hash(file);
+
+		// Small enough to read from the stream
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			assertTrue(Arrays.equals(expected, hasher.hash(stream, file.length())));
+		} finally {
+			stream.close();
+		}
+		// Said to be large, so read through the channel
+		stream = new FileInputStream(file);
+		try {
+			assertTrue(Arrays.equals(expected, hasher.hash(stream, FileHasher.STREAM_READ_SIZE)));
+		} finally {
+			stream.close();
+		}
+		// Said to be empty (as if it grew since), but still read to the end
+		stream = new FileInputStream(file);
+		try {
+			assertTrue(Arrays.equals(expected, hasher.hash(stream, 0)));
+		} finally {
+			stream.close();
+		}
+	}
+
+	@Test
+	public void hash_SeveralFiles_BufferIsReset() throws NoSuchAlgorithmException, IOException {
+		FileHasher hasher = new FileHasher(FileHasher.DEFAULT_ALGORITHM, 1000, Long.MAX_VALUE);
+		byte[] first = hasher.hash(new File("./src/test/resources/dir3/1024.txt"));
+		hasher.hash(new File("./src/test/resources/dir3/1023.txt"));
+
+		assertTrue(Arrays.equals(first, hasher.hash(new File("./src/test/resources/dir3/1024.txt"))));
+	}
+
+	@Test
+	public void hash_PartOfAChannel_MatchesOtherFileWithTheSameBytes() throws NoSuchAlgorithmException, IOException {
+		// The first 1019 bytes of these two files are the same; after that they differ
+		FileHasher reader = new FileHasher(FileHasher.DEFAULT_ALGORITHM, 100, Long.MAX_VALUE);
+		FileHasher mapper = new FileHasher(FileHasher.DEFAULT_ALGORITHM, 100, 0);
+		FileInputStream stream1 = new FileInputStream("./src/test/resources/dir3/1023.txt");
+		FileInputStream stream2 = new FileInputStream("./src/test/resources/dir3/1025.txt");
+		try {
+			FileChannel channel1 = stream1.getChannel();
+			FileChannel channel2 = stream2.getChannel();
+			byte[] expected = reader.hash(channel1, 0, 1019);
+
+			assertTrue(Arrays.equals(expected, reader.hash(channel2, 0, 1019)));
+			assertTrue(Arrays.equals(expected, mapper.hash(channel2, 0, 1019)));
+			assertFalse(Arrays.equals(expected, reader.hash(channel2, 0, 1020)));
+			assertEquals(0, channel2.position());
+		} finally {
+			stream1.close();
+			stream2.close();
+		}
+	}
+
+	@Test
+	public void hash_RateLimited_TakesLongerButSameChecksum() throws NoSuchAlgorithmException, IOException {
+		File file = new File("./src/test/resources/dir3/1025.txt");
+		byte[] expected = new FileHasher().hash(file);
+		FileHasher hasher = new FileHasher(FileHasher.DEFAULT_ALGORITHM, 100, 0);
+		hasher.setRateLimiter(new RateLimiter(4096));
+		hasher.getRateLimiter().reserve(4096);
+
+		long start = System.nanoTime();
+		assertTrue(Arrays.equals(expected, hasher.hash(file)));
+		assertTrue(System.nanoTime() - start >= 150000000L);
+	}
+
+	@Test
+	public void hash_FileLargerThanARegion_MappedInPieces() throws NoSuchAlgorithmException, IOException {
+		File file = File.createTempFile("csum", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			byte[] block = new byte[1024 * 1024];
+			for (long written = 0; written < FileHasher.MAP_REGION_SIZE + 12345; written += block.length) {
+				Arrays.fill(block, (byte) written);
+				out.write(block);
+			}
+			out.close();
+
+			FileHasher reader = new FileHasher(FileHasher.DEFAULT_ALGORITHM, 4096, Long.MAX_VALUE);
+			FileHasher mapper = new FileHasher(FileHasher.DEFAULT_ALGORITHM, 4096, 0);
+			assertTrue(Arrays.equals(reader.hash(file), mapper.hash(file)));
+		} finally {
+			file.delete();
+		}
+	}
+}
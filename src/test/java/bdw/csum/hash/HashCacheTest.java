@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import static junit.framework.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class HashCacheTest {
+	private static final byte[] DIGEST = {1, 2, 3, 4};
+
+	private File path;
+
+	@Before
+	public void setUp() throws IOException {
+		path = File.createTempFile("csum", ".cache");
+		path.delete();
+	}
+
+	@After
+	public void tearDown() {
+		path.delete();
+	}
+
+	@Test
+	public void find_AfterStore_ReturnsChecksum() throws IOException {
+		HashCache cache = new HashCache(path, 64);
+		cache.store("(dev=1,ino=2)", "SHA-256", 10, 20, DIGEST);
+
+		assertTrue(Arrays.equals(DIGEST, cache.find("(dev=1,ino=2)", "SHA-256", 10, 20)));
+		assertEquals(1, cache.getHitCount());
+		cache.close();
+	}
+
+	@Test
+	public void find_ChangedSizeTimeOrAlgorithm_Misses() throws IOException {
+		HashCache cache = new HashCache(path, 64);
+		cache.store("(dev=1,ino=2)", "SHA-256", 10, 20, DIGEST);
+
+		assertNull(cache.find("(dev=1,ino=2)", "SHA-256", 11, 20));
+		assertNull(cache.find("(dev=1,ino=2)", "SHA-256", 10, 21));
+		assertNull(cache.find("(dev=1,ino=2)", "MD5", 10, 20));
+		assertNull(cache.find("(dev=1,ino=3)", "SHA-256", 10, 20));
+		assertEquals(4, cache.getMissCount());
+		cache.close();
+	}
+
+	@Test
+	public void find_AfterReopening_ReturnsChecksum() throws IOException {
+		HashCache cache = new HashCache(path, 64);
+		cache.store("(dev=1,ino=2)", "SHA-256", 10, 20, DIGEST);
+		cache.close();
+
+		cache = new HashCache(path, 1024);
+		assertEquals(64, cache.getCapacity());
+		assertTrue(Arrays.equals(DIGEST, cache.find("(dev=1,ino=2)", "SHA-256", 10, 20)));
+		cache.close();
+	}
+
+	@Test
+	public void store_MoreThanCapacity_EvictsButStaysBounded() throws IOException {
+		HashCache cache = new HashCache(path, 16);
+		long length = path.length();
+		for (int index = 0; index < 100; index++) {
+			cache.store("(dev=1,ino=" + index + ")", "SHA-256", index, index, DIGEST);
+		}
+
+		assertEquals(length, path.length());
+		assertEquals(100 - 16, cache.getEvictionCount());
+		assertTrue(Arrays.equals(DIGEST, cache.find("(dev=1,ino=99)", "SHA-256", 99, 99)));
+		cache.close();
+	}
+
+	@Test(expected=IOException.class)
+	public void construct_NotACacheFile_Rejected() throws IOException {
+		new HashCache(new File("./src/test/resources/dir3/1024.txt"), 64);
+	}
+}
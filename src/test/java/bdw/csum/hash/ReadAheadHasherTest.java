@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import bdw.testutils.Utils;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import static junit.framework.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ReadAheadHasherTest {
+	private Utils utils;
+	private ReadAheadHasher hasher;
+
+	@Before
+	public void setUp() throws NoSuchAlgorithmException {
+		utils = new Utils();
+		// Tiny buffers, so that files take many trips around the ring
+		hasher = new ReadAheadHasher(FileHasher.DEFAULT_ALGORITHM, 100, 2);
+	}
+
+	@After
+	public void tearDown() {
+		hasher.close();
+	}
+
+	@Test
+	public void hash_EmptyFile_GivesEmptySha256() throws IOException {
+		assertTrue(Arrays.equals(utils.makeByteArrayFromHexString("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855"),
+				hasher.hash(new File("./src/test/resources/dir1/foo.txt"))));
+	}
+
+	@Test
+	public void hash_SeveralFiles_MatchFileHasher() throws NoSuchAlgorithmException, IOException {
+		FileHasher plain = new FileHasher();
+		for (String name : new String[] {"1023.txt", "1024.txt", "1025.txt", "1024.txt"}) {
+			File file = new File("./src/test/resources/dir3/" + name);
+			assertTrue(name, Arrays.equals(plain.hash(file), hasher.hash(file)));
+		}
+	}
+
+	@Test
+	public void hash_AfterAMissingFile_StillWorks() throws NoSuchAlgorithmException, IOException {
+		try {
+			hasher.hash(new File("./IDontExist"));
+			fail("Expected FileNotFoundException");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+		File file = new File("./src/test/resources/dir3/1025.txt");
+		assertTrue(Arrays.equals(new FileHasher().hash(file), hasher.hash(file)));
+	}
+
+	@Test
+	public void hash_AfterClose_StartsANewReader() throws NoSuchAlgorithmException, IOException {
+		File file = new File("./src/test/resources/dir3/1024.txt");
+		byte[] first = hasher.hash(file);
+		hasher.close();
+
+		assertTrue(Arrays.equals(first, hasher.hash(file)));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void construct_OneBuffer_Rejected() throws NoSuchAlgorithmException {
+		new ReadAheadHasher(FileHasher.DEFAULT_ALGORITHM, 100, 1);
+	}
+}
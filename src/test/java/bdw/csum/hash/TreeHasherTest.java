@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.hash;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import static junit.framework.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class TreeHasherTest {
+	private static final int CHUNK = (int) TreeHasher.MIN_CHUNK_SIZE;
+
+	private ForkJoinPool pool;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		pool = new ForkJoinPool(4);
+		file = File.createTempFile("csum", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdown();
+		file.delete();
+	}
+
+	@Test
+	public void hash_FileNoBiggerThanAChunk_GivesOrdinaryChecksum() throws NoSuchAlgorithmException, IOException {
+		byte[] contents = write(CHUNK);
+		TreeHasher hasher = new TreeHasher(DigestAlgorithms.SHA_256, CHUNK, Long.MAX_VALUE, pool);
+
+		assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(contents), hasher.hash(file.toPath())));
+	}
+
+	@Test
+	public void hash_SeveralChunks_GivesChecksumOfChunkChecksums() throws NoSuchAlgorithmException, IOException {
+		byte[] contents = write(CHUNK * 3 + 1234);
+		MessageDigest chunks = MessageDigest.getInstance("SHA-256");
+		MessageDigest combined = MessageDigest.getInstance("SHA-256");
+		for (int start = 0; start < contents.length; start += CHUNK) {
+			chunks.update(contents, start, Math.min(CHUNK, contents.length - start));
+			combined.update(chunks.digest());
+		}
+		byte[] expected = combined.digest();
+
+		assertTrue(Arrays.equals(expected, new TreeHasher(DigestAlgorithms.SHA_256, CHUNK, Long.MAX_VALUE, pool).hash(file.toPath())));
+		assertTrue(Arrays.equals(expected, new TreeHasher(DigestAlgorithms.SHA_256, CHUNK, 0, pool).hash(file.toPath())));
+	}
+
+	@Test
+	public void hash_DifferentChunkSizes_GiveDifferentChecksums() throws NoSuchAlgorithmException, IOException {
+		write(CHUNK * 4);
+		TreeHasher small = new TreeHasher(DigestAlgorithms.SHA_256, CHUNK, Long.MAX_VALUE, pool);
+		TreeHasher large = new TreeHasher(DigestAlgorithms.SHA_256, CHUNK * 2, Long.MAX_VALUE, pool);
+
+		assertFalse(Arrays.equals(small.hash(file.toPath()), large.hash(file.toPath())));
+	}
+
+	@Test(expected=FileNotFoundException.class)
+	public void hash_MissingFile_Throws() throws NoSuchAlgorithmException, IOException {
+		file.delete();
+		new TreeHasher(DigestAlgorithms.SHA_256, CHUNK, Long.MAX_VALUE, pool).hash(file.toPath());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void construct_TinyChunks_Rejected() throws NoSuchAlgorithmException {
+		new TreeHasher(DigestAlgorithms.SHA_256, 1024, Long.MAX_VALUE, pool);
+	}
+
+	/**
+	 * Fills the temp file with some bytes
+	 */
+	private byte[] write(int length) throws IOException {
+		byte[] contents = new byte[length];
+		for (int index = 0; index < length; index++) {
+			contents[index] = (byte) (index % 251);
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+		return contents;
+	}
+}
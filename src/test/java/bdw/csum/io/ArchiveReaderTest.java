@@ -0,0 +1,280 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.io;
+
+import bdw.testutils.Utils;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Date;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchiveReaderTest {
+	private Utils utils;
+	
+	@Before
+	public void setUp() {
+		utils = new Utils();
+	}
+	
+	@Test
+	public void readHexString_AtEOS_ReturnsEmptyArray() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream(""));
+		
+		assertArrayEquals(new byte[0], r.readHexString());
+	}
+	
+	@Test
+	public void readHexString_WithHexString_ReturnsByteEquivalent() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("3456"));
+		byte[] expected = {0x34, 0x56};
+		
+		assertArrayEquals(expected, r.readHexString());
+		assertEquals(-1, r.read());
+	}
+
+	@Test
+	public void readHexString_WithShortHexString_ReturnsOnlyCompleteBytes() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("345"));
+		byte[] expected = {0x34};
+		
+		assertArrayEquals(expected, r.readHexString());
+		assertEquals('5', r.read());
+	}
+
+	@Test
+	public void readHexString_WithExtremeBytes_ReturnsUncorruptedBytes() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("ff00"));
+		byte[] expected = {-1, 0x00};
+		
+		assertArrayEquals(expected, r.readHexString());
+	}
+
+	@Test
+	public void readHexString_WithLeadingWhitespace_Ignores() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("		  3456"));
+		byte[] expected = {0x34, 0x56};
+		
+		assertArrayEquals(expected, r.readHexString());
+		assertEquals(-1, r.read());
+	}
+
+	@Test
+	public void readHexString_WithTrailingWhitespace_SkipsOverWhitespace() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("3456     8"));
+		byte[] expected = {0x34, 0x56};
+		
+		assertArrayEquals(expected, r.readHexString());
+		assertEquals('8', r.read());
+	}
+
+	@Test
+	public void readPath_WithUnquotedPath_EndsAtEOL() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("on/two/three\nfour five"));
+		
+		assertEquals("on/two/three", r.readPath());
+		assertEquals('\n', r.read());
+	}
+
+
+	@Test
+	public void readPath_WithEmptyPath_ReturnsEmptyString() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("\nfour five"));
+		
+		assertEquals("", r.readPath());
+	}
+
+	@Test
+	public void readPath_WithQuotedPath_TerminatesAtUnquotedQote() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("\"foo\\\"bar\"baz\""));
+		
+		assertEquals("foo\"bar", r.readPath());
+	}
+
+	@Test
+	public void readPath_WithBackslash_PreservesBackslash() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("\"foo\\\\bar\""));
+		
+		assertEquals("foo\\bar", r.readPath());
+	}
+
+	@Test
+	public void readPath_LeadingAndTrainingWhitespace_Ignored() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("		  \"foobar\"		 "));
+		
+		assertEquals("foobar", r.readPath());
+	}
+
+	@Test
+	public void readPath_LeadingWhitespaceWithoutQuotes_Ignored() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("		  foo\\\\bar\"		 "));
+		
+		assertEquals("foo\\bar\"		 ", r.readPath());
+	}
+
+	@Test
+	public void readWord_LeadingAndTrailingWhitespace_Ignores() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("			 hi there"));
+		
+		assertEquals("hi", r.readWord());
+		assertEquals('t', r.read());
+	}
+
+	@Test
+	public void readWord_WordTerminatedByEOL_HonorsEOL() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("			 hith\nere"));
+		
+		assertEquals("hith", r.readWord());
+		assertEquals('\n', r.read());
+	}
+
+	@Test
+	public void readDate_ValidDate_ParsedCorrectly() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("2010.10.10.01.02.03.456"));
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(456);
+		c.set(2010, 9, 10, 01, 02, 03);
+		assertEquals(c.getTime(), r.readDate());
+	}
+
+	@Test
+	public void readDate_WithLeadingAndTrailingSpaces_Skips() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("   2010.10.10.01.02.03.456     5"));
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(456);
+		c.set(2010, 9, 10, 01, 02, 03);
+		assertEquals(c.getTime(), r.readDate());
+		assertEquals('5', r.read());
+	}
+
+	@Test
+	public void readDate_InvalidDateTime_ThrowsExceptionAndResets() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("   2010.ab.10.01.02.03.456     5"));
+		try {
+			Date result = r.readDate();
+			fail("Got this date: " + result);
+		} catch (IOException e) {
+			assertEquals('5', r.read());
+		}
+	}
+
+	@Test
+	public void readDate_FollowedByNewLine_DoesNotConsumerNewLine() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("2010.10.10.01.02.03.456\n"));
+		Date result = r.readDate();
+		assertEquals(utils.makeDate(2010, 10, 10, 01, 02, 03, 456), result);
+		assertEquals('\n', r.read());
+	}
+
+	@Test
+	public void readPath_Utf8AndEscapes_DecodedLikeCSumReader() throws IOException {
+		String text = "\"第一个孩子/a\\\"b\\nc\"\t\n";
+		CSumReader expected = new CSumReader(utils.makeInputStream(text));
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream(text));
+
+		assertEquals(expected.readPath(), r.readPath());
+		assertEquals('\n', r.read());
+	}
+
+	@Test
+	public void readLong_Number_ParsedWithoutWord() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("  1025\t-7 12345678901234567890123"));
+
+		assertEquals(1025, r.readLong());
+		assertEquals(-7, r.readLong());
+		try {
+			r.readLong();
+			fail("Too large");
+		} catch (NumberFormatException e) {
+			// as Long.parseLong() would
+		}
+	}
+
+	@Test
+	public void skipLine_CarriageReturnAndNewLine_SkippedTogether() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("one\r\ntwo\rthree\n"));
+
+		r.skipLine();
+		assertEquals("two", r.readWord());
+		r.skipLine();
+		assertEquals('t', r.peek());
+		r.skipLine();
+		assertEquals(-1, r.read());
+	}
+
+	@Test
+	public void smallBuffer_FieldsAcrossRefills_ReadWhole() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int index = 0; index < 50; index++) {
+			text.append("00ff3456789abcdef0 ").append(index).append(" 2010.10.10.01.02.03.456 \"dir/f\\\"ile ")
+					.append(index).append("\"\ndir/файл ").append(index).append("\n");
+		}
+		CSumReader expected = new CSumReader(utils.makeInputStream(text.toString()));
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream(text.toString()), 23);
+
+		for (int index = 0; index < 50; index++) {
+			assertArrayEquals(expected.readHexString(), r.readHexString());
+			assertEquals(Long.parseLong(expected.readWord()), r.readLong());
+			assertEquals(expected.readDate(), r.readDate());
+			assertEquals(expected.readPath(), r.readPath());
+			assertEquals(expected.read(), r.read());
+			assertEquals(expected.readPath(), r.readPath());
+			assertEquals(expected.read(), r.read());
+		}
+		assertEquals(-1, r.read());
+	}
+
+	@Test
+	public void readToEndOfLine_AcrossRefills_LeavesEndUnread() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream(" Summary 0a0b 40 \"./some/longer/dir/\"\r\nnext"), 23);
+
+		assertEquals(" Summary 0a0b 40 \"./some/longer/dir/\"", r.readToEndOfLine());
+		assertEquals('\r', r.peek());
+		r.skipLine();
+		assertEquals("next", r.readToEndOfLine());
+		assertEquals(-1, r.read());
+	}
+
+	@Test
+	public void readFully_AcrossRefills_ReadsAsIs() throws IOException {
+		ArchiveReader r = new ArchiveReader(utils.makeInputStream("ab\n0123456789012345678901234567890123456789z"), 23);
+		byte[] bytes = new byte[40];
+
+		assertEquals("ab", r.readWord());
+		assertEquals('\n', r.read());
+		r.readFully(bytes, 0, 40);
+		assertEquals("0123456789012345678901234567890123456789", new String(bytes, "UTF-8"));
+		assertEquals('z', r.read());
+		try {
+			r.readFully(bytes, 0, 1);
+			fail("Read past the end");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void constructor_GivenPartOfArray_ReadsOnlyThat() throws IOException {
+		byte[] bytes = utils.makeByteArrayFromString("xx Link \"./a b\"yy");
+		ArchiveReader r = new ArchiveReader(bytes, 2, 13);
+
+		assertEquals("Link", r.readWord());
+		assertEquals("./a b", r.readPath());
+		assertEquals(-1, r.read());
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ParallelGzipInputStreamTest {
+	private static final byte[] TEXT = "# CSum\n# Version 1\n00\t1\t1969.12.31.16.00.00.000\t\"./foo\"\n".getBytes();
+
+	private byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int aByte;
+		while ((aByte = in.read()) >= 0) {
+			out.write(aByte);
+		}
+		return out.toByteArray();
+	}
+
+	private byte[] compress(byte[] data, int blockSize) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, 2, blockSize);
+		gzip.write(data);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void open_NotGzipped_AsItIs() throws IOException {
+		assertArrayEquals(TEXT, readAll(ParallelGzipInputStream.open(new ByteArrayInputStream(TEXT), 2)));
+		assertArrayEquals(new byte[0], readAll(ParallelGzipInputStream.open(new ByteArrayInputStream(new byte[0]), 2)));
+		assertArrayEquals(new byte[] {0x1f}, readAll(ParallelGzipInputStream.open(new ByteArrayInputStream(new byte[] {0x1f}), 2)));
+	}
+
+	@Test
+	public void open_GzippedByGzip_Decompressed() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(TEXT);
+		gzip.close();
+		InputStream in = ParallelGzipInputStream.open(new ByteArrayInputStream(out.toByteArray()), 2);
+
+		assertTrue(in instanceof GZIPInputStream);
+		assertTrue(ParallelGzipInputStream.isDecompressing(in));
+		assertArrayEquals(TEXT, readAll(in));
+	}
+
+	@Test
+	public void read_DamagedMember_Throws() throws IOException {
+		byte[] compressed = compress(TEXT, 10);
+		compressed[compressed.length - 12] ^= 0x40;
+
+		try {
+			readAll(ParallelGzipInputStream.open(new ByteArrayInputStream(compressed), 2));
+			fail("The damage went unnoticed");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("damaged"));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void read_Truncated_Throws() throws IOException {
+		byte[] compressed = compress(TEXT, 10);
+
+		readAll(ParallelGzipInputStream.open(new ByteArrayInputStream(Arrays.copyOf(compressed, compressed.length - 3)), 2));
+	}
+}
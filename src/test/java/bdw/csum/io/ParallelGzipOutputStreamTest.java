@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ParallelGzipOutputStreamTest {
+	private byte[] makeData(int length) {
+		Random random = new Random(length);
+		byte[] data = new byte[length];
+		for (int index = 0; index < length; index++) {
+			// Compressible, but not too
+			data[index] = (byte) ('a' + random.nextInt(8));
+		}
+		return data;
+	}
+
+	private byte[] compress(byte[] data, int threads, int blockSize) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, threads, blockSize);
+		// In pieces that don't line up with the blocks
+		for (int offset = 0; offset < data.length; offset += 777) {
+			gzip.write(data, offset, Math.min(777, data.length - offset));
+		}
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	private byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void write_ManyBlocks_GzipReadsThemAsOne() throws IOException {
+		byte[] data = makeData(100000);
+		byte[] compressed = compress(data, 3, 4096);
+
+		assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+		assertTrue(compressed.length < data.length / 2);
+	}
+
+	@Test
+	public void write_ManyBlocks_ReadBackInParallel() throws IOException {
+		byte[] data = makeData(100000);
+		InputStream in = ParallelGzipInputStream.open(new ByteArrayInputStream(compress(data, 3, 4096)), 3);
+
+		assertTrue(in instanceof ParallelGzipInputStream);
+		assertArrayEquals(data, readAll(in));
+	}
+
+	@Test
+	public void write_ByteAtATimeAndFlushed_ReadBack() throws IOException {
+		byte[] data = makeData(5000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, 2, 1000);
+		for (int index = 0; index < data.length; index++) {
+			gzip.write(data[index]);
+			if (index == 1234) {
+				gzip.flush();
+				// Everything so far can be read already
+				assertEquals(1235, readAll(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))).length);
+			}
+		}
+		gzip.close();
+
+		assertArrayEquals(data, readAll(ParallelGzipInputStream.open(new ByteArrayInputStream(out.toByteArray()), 2)));
+	}
+
+	@Test
+	public void close_NothingWritten_Empty() throws IOException {
+		byte[] compressed = compress(new byte[0], 1, 100);
+
+		assertEquals(0, compressed.length);
+	}
+
+	@Test
+	public void compress_Incompressible_StillFits() throws IOException {
+		byte[] data = new byte[70000];
+		new Random(1).nextBytes(data);
+
+		assertArrayEquals(data, readAll(ParallelGzipInputStream.open(new ByteArrayInputStream(compress(data, 2, 65536)), 2)));
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.metrics;
+
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class MetricsTest {
+	@Test
+	public void record_AddsTimeAndCount() {
+		Metrics metrics = new Metrics();
+		long start = System.nanoTime() - 1000;
+		long now = metrics.record(Metrics.Timer.READ, start);
+
+		assertTrue(now >= start + 1000);
+		assertEquals(now - start, metrics.getNanos(Metrics.Timer.READ));
+		assertEquals(1, metrics.getTimings(Metrics.Timer.READ));
+		assertEquals(0, metrics.getNanos(Metrics.Timer.DIGEST));
+	}
+
+	@Test
+	public void getBound_MostTimeWins() {
+		Metrics metrics = new Metrics();
+		assertEquals("unknown", metrics.getBound());
+		metrics.add(Metrics.Timer.DIGEST, 100);
+		metrics.add(Metrics.Timer.READ, 50);
+		assertEquals("cpu", metrics.getBound());
+		metrics.add(Metrics.Timer.STAT, 60);
+		assertEquals("io", metrics.getBound());
+	}
+
+	@Test
+	public void getProgressLine_ShowsCountsDirectoryAndTimeLeft() {
+		Metrics metrics = new Metrics();
+		metrics.add(Metrics.Counter.FILES, 10);
+		metrics.add(Metrics.Counter.BYTES, 3 * 1048576);
+		metrics.setCurrent("./a/b/c.txt");
+		metrics.setExpectedFiles(20);
+
+		String line = metrics.getProgressLine();
+		assertTrue(line, line.startsWith("# Progress: 10 files, 3.0 MB, "));
+		assertTrue(line, line.contains(", in ./a/b/"));
+		assertTrue(line, line.contains(" left"));
+	}
+
+	@Test
+	public void getProgressLine_NothingExpected_NoTimeLeft() {
+		Metrics metrics = new Metrics();
+		metrics.add(Metrics.Counter.FILES, 10);
+		assertFalse(metrics.getProgressLine().contains(" left"));
+	}
+
+	@Test
+	public void toJson_HasEveryCounterAndTimer() {
+		Metrics metrics = new Metrics();
+		metrics.add(Metrics.Counter.HASHED_FILES, 7);
+		metrics.add(Metrics.Timer.PARSE, 1500000000L);
+
+		String json = metrics.toJson();
+		assertTrue(json, json.startsWith("{\n"));
+		assertTrue(json, json.contains("\"hashedFiles\": 7,"));
+		assertTrue(json, json.contains("\"parse\": {\"count\": 1, \"seconds\": 1.500},"));
+		assertTrue(json, json.contains("\"resolve\": {\"count\": 0, \"seconds\": 0.000}\n"));
+		assertTrue(json, json.contains("\"bound\": \"cpu\"\n}"));
+		for (Metrics.Counter counter : Metrics.Counter.values()) {
+			assertTrue(counter.getLabel(), json.contains("\"" + counter.getLabel() + "\": "));
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.DirectorySummary;
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import static junit.framework.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ArchiveConverterTest {
+	private String text;
+
+	@Before
+	public void setUp() {
+		StringBuilder listing = new StringBuilder();
+		listing.append("# CSum\n# Version 1\n# Algorithm SHA-256\n# Chunked 1048576\n");
+		listing.append("# Start 2016.01.02.03.04.05.678\n");
+		for (int root = 0; root < 2; root++) {
+			listing.append("# Directory \"/mnt/r").append(root).append("\" \"./r").append(root).append("/\"\n");
+			for (int index = 0; index < 30; index++) {
+				if (index % 7 == 6) {
+					listing.append("# Link \"./r").append(root).append("/d/f").append(index - 1).append("\"\n");
+				}
+				listing.append(entry(root, index)).append("\n");
+			}
+			listing.append("# Summary 0a0b 30 \"./r").append(root).append("/\"\n");
+		}
+		listing.append("# Problem with entry\n# Reused 0\n# Hashed 60\n");
+		text = listing.toString();
+	}
+
+	private FileEntry entry(int root, int index) {
+		byte[] checksum = new byte[32];
+		Arrays.fill(checksum, (byte) (index * 7));
+		String name = (index % 5 == 0) ? "tab\there été \"" + index + "\"" : "f" + index;
+		return new FileEntry(checksum, index * 1000L, new Date(-5000L + index * 123456789L),
+				"r" + root + "/d" + (index / 10) + "/" + name);
+	}
+
+	private byte[] toBinary(String listing) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ArchiveConverter.toBinary(new ByteArrayInputStream(listing.getBytes("UTF-8")), out);
+		return out.toByteArray();
+	}
+
+	private String toText(byte[] binary) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Writer writer = new OutputStreamWriter(out, "UTF-8");
+		ArchiveConverter.toText(new ByteArrayInputStream(binary), writer);
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	private List<FileEntry> readAll(ArchiveQueue q) throws InvalidEntryException {
+		List<FileEntry> entries = new ArrayList<FileEntry>();
+		while (!q.isEmpty()) {
+			entries.add(q.dequeue());
+		}
+		return entries;
+	}
+
+	@Test
+	public void toText_OfToBinary_SameAsBefore() throws IOException {
+		byte[] binary = toBinary(text);
+
+		assertEquals(text, toText(binary));
+		assertTrue(binary.length < text.getBytes("UTF-8").length / 2);
+	}
+
+	@Test
+	public void archiveQueue_GivenBinary_ReadsTheSame() throws IOException, InvalidEntryException {
+		ArchiveQueue expected = new ArchiveQueue(new ByteArrayInputStream(text.getBytes("UTF-8")));
+		ArchiveQueue q = new ArchiveQueue(new ByteArrayInputStream(toBinary(text)));
+
+		assertEquals(1, expected.getVersion());
+		assertEquals(2, q.getVersion());
+		assertEquals("SHA-256", q.getAlgorithm());
+		assertEquals(1048576, q.getChunkSize());
+		assertEquals(expected.getStartTime(), q.getStartTime());
+		List<FileEntry> wanted = readAll(expected);
+		List<FileEntry> entries = readAll(q);
+		assertEquals(wanted, entries);
+		for (int index = 0; index < wanted.size(); index++) {
+			assertEquals(wanted.get(index).getLinkedTo(), entries.get(index).getLinkedTo());
+		}
+		assertNotNull(entries.get(6).getLinkedTo());
+		assertEquals(expected.getRoots(), q.getRoots());
+		assertEquals("/mnt/r0", q.getBasePath());
+		DirectorySummary summary = q.getDirectorySummaries().get("./r1/");
+		assertEquals(60, summary.getEnd());
+		assertEquals(30, summary.getFileCount());
+	}
+
+	@Test
+	public void skipEntries_GivenBinary_LeftOut() throws IOException, InvalidEntryException {
+		byte[] binary = toBinary(text);
+		Map<String, DirectorySummary> summaries = ArchiveQueue.readSummaries(new ByteArrayInputStream(binary));
+		ArchiveQueue q = new ArchiveQueue(new ByteArrayInputStream(binary));
+		q.skipEntries(0, summaries.get("./r0/").getEnd());
+
+		assertEquals(entry(1, 0), q.dequeue());
+		assertEquals(29, readAll(q).size());
+	}
+
+	@Test
+	public void write_SmallBlocks_ReadBack() throws IOException, InvalidEntryException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryArchiveWriter writer = new BinaryArchiveWriter(out, 40);
+		writer.writeComment(" Algorithm XXH64");
+		List<FileEntry> wanted = new ArrayList<FileEntry>();
+		for (int index = 0; index < 25; index++) {
+			wanted.add(entry(0, index));
+			writer.write(entry(0, index));
+		}
+		writer.finish();
+
+		ArchiveQueue q = new ArchiveQueue(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals("XXH64", q.getAlgorithm());
+		assertEquals(wanted, readAll(q));
+	}
+
+	@Test
+	public void dequeue_DamagedBlock_Throws() throws IOException {
+		byte[] binary = toBinary(text);
+		binary[binary.length / 2] ^= 0x10;
+
+		try {
+			readAll(new ArchiveQueue(new ByteArrayInputStream(binary)));
+			fail("The damage went unnoticed");
+		} catch (InvalidEntryException e) {
+			assertTrue(e.getCause().getMessage().contains("CRC"));
+		}
+	}
+
+	@Test
+	public void dequeue_Truncated_Throws() throws IOException {
+		byte[] binary = toBinary(text);
+
+		try {
+			ArchiveQueue q = new ArchiveQueue(new ByteArrayInputStream(Arrays.copyOf(binary, binary.length - 1)));
+			while (q.dequeue() != null) {
+			}
+			fail("The missing end went unnoticed");
+		} catch (InvalidEntryException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void toText_GivenText_Throws() throws IOException {
+		toText(text.getBytes("UTF-8"));
+	}
+
+	@Test(expected = IOException.class)
+	public void toBinary_GivenBinary_Throws() throws IOException {
+		toBinary(new String(toBinary(text), "ISO-8859-1"));
+	}
+}
@@ -17,12 +17,18 @@ package bdw.csum.queue;
 
 import bdw.testutils.Utils;
 import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.entry.DirectorySummary;
 import bdw.csum.entry.FileEntry;
 import bdw.csum.io.BuilderUtils;
+import bdw.csum.io.ParallelGzipOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Map;
 import static junit.framework.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
@@ -102,6 +108,36 @@ public class ArchiveQueueTest {
 		assertEquals("2011.08.13.09.14.57.123", b.toString());
 	}
 
+	@Test
+	public void construct_NoAlgorithmComment_AssumesSha256() throws InvalidEntryException, IOException {
+		ArchiveQueue q = new ArchiveQueue(utils.makeInputStream("# Version 1\n00	1	1969.12.31.16.00.00.000	foo"));
+
+		assertEquals("SHA-256", q.getAlgorithm());
+	}
+
+	@Test
+	public void construct_GivenAlgorithmComment_ReturnsTheAlgorithm() throws InvalidEntryException, IOException {
+		ArchiveQueue q = new ArchiveQueue(utils.makeInputStream("# Version 1\n# Algorithm BLAKE3\n00	1	1969.12.31.16.00.00.000	foo"));
+
+		assertEquals("BLAKE3", q.getAlgorithm());
+		assertEquals(standardEntry(), q.dequeue());
+	}
+
+	@Test
+	public void construct_NoChunkedComment_ChunkSizeIsZero() throws InvalidEntryException, IOException {
+		ArchiveQueue q = new ArchiveQueue(utils.makeInputStream("# Version 1\n00	1	1969.12.31.16.00.00.000	foo"));
+
+		assertEquals(0, q.getChunkSize());
+	}
+
+	@Test
+	public void construct_GivenChunkedComment_ReturnsTheChunkSize() throws InvalidEntryException, IOException {
+		ArchiveQueue q = new ArchiveQueue(utils.makeInputStream("# Version 1\n# Chunked 67108864\n00	1	1969.12.31.16.00.00.000	foo"));
+
+		assertEquals(67108864, q.getChunkSize());
+		assertEquals(standardEntry(), q.dequeue());
+	}
+
 	@Test
 	public void dequeue_InterlineBlankLinesAndComments_ReturnsEntriesOK() throws InvalidEntryException, IOException {
 		ArchiveQueue q = new ArchiveQueue(utils.makeInputStream("00	1	1969.12.31.16.00.00.000	foo\n\n\n# This is a comment\n00	1	1969.12.31.16.00.00.000	foo\n      #another comment \n"));
@@ -129,4 +165,88 @@ public class ArchiveQueueTest {
 		assertEquals(expectedEntry, q.dequeue());
 		assertNull(q.dequeue());
 	}
+
+	@Test
+	public void dequeue_SummaryComments_Collected() throws InvalidEntryException, IOException {
+		ArchiveQueue q = new ArchiveQueue(utils.makeInputStream("00	1	1969.12.31.16.00.00.000	foo\n" +
+				"# Summary 0a0b 1 \"./\"\n"));
+
+		assertEquals(standardEntry(), q.dequeue());
+		assertNull(q.dequeue());
+		DirectorySummary summary = q.getDirectorySummaries().get("./");
+		assertEquals(1, summary.getFileCount());
+		assertEquals(1, summary.getEnd());
+		assertEquals(2, summary.getChecksum().length);
+	}
+
+	@Test
+	public void dequeue_SkippedEntries_NotReturned() throws InvalidEntryException, IOException {
+		ArchiveQueue q = new ArchiveQueue(utils.makeInputStream("01	1	1969.12.31.16.00.00.000	one\n" +
+				"02	1	1969.12.31.16.00.00.000	two\n" +
+				"# a comment\n" +
+				"03	1	1969.12.31.16.00.00.000	three\n" +
+				"04	1	1969.12.31.16.00.00.000	four\n"));
+		q.skipEntries(1, 3);
+
+		assertEquals("./one", q.dequeue().getPathname());
+		assertEquals("./four", q.dequeue().getPathname());
+		assertTrue(q.isEmpty());
+	}
+
+	@Test
+	public void dequeue_LinkComment_AppliesToNextEntryOnly() throws InvalidEntryException, IOException {
+		ArchiveQueue q = new ArchiveQueue(utils.makeInputStream("01	1	1969.12.31.16.00.00.000	one\n" +
+				"# Link \"./one\"\n" +
+				"01	1	1969.12.31.16.00.00.000	two\n" +
+				"02	1	1969.12.31.16.00.00.000	three\n"));
+
+		assertNull(q.dequeue().getLinkedTo());
+		assertEquals("./one", q.dequeue().getLinkedTo());
+		assertNull(q.dequeue().getLinkedTo());
+	}
+
+	@Test
+	public void dequeue_SeveralDirectories_RootsCollected() throws InvalidEntryException, IOException {
+		ArchiveQueue q = new ArchiveQueue(utils.makeInputStream("# Directory \"/mnt/a\" \"./a/\"\n" +
+				"01	1	1969.12.31.16.00.00.000	a/one\n" +
+				"# Directory \"/mnt/b\" \"./b/\"\n" +
+				"02	1	1969.12.31.16.00.00.000	b/two\n"));
+
+		assertEquals("./a/one", q.dequeue().getPathname());
+		assertEquals("./b/two", q.dequeue().getPathname());
+		assertEquals("/mnt/a", q.getBasePath());
+		assertEquals(Arrays.asList("./a/", "./b/"), new ArrayList<String>(q.getRoots().keySet()));
+		assertEquals("/mnt/b", q.getRoots().get("./b/"));
+	}
+
+	@Test
+	public void readSummaries_ReturnsAllSummaries() throws InvalidEntryException, IOException {
+		Map<String, DirectorySummary> summaries = ArchiveQueue.readSummaries(utils.makeInputStream(
+				"01	1	1969.12.31.16.00.00.000	a/one\n" +
+				"# Summary 0a 1 \"./a/\"\n" +
+				"02	1	1969.12.31.16.00.00.000	two\n" +
+				"# Summary 0b 2 \"./\"\n"));
+
+		assertEquals(2, summaries.size());
+		assertEquals(1, summaries.get("./a/").getEnd());
+		assertEquals(2, summaries.get("./").getEnd());
+		assertEquals(2, summaries.get("./").getFileCount());
+	}
+
+	@Test
+	public void dequeue_Gzipped_ReadsTheSame() throws InvalidEntryException, IOException {
+		String text = "# Start 2016.01.02.03.04.05.678\n00	1	1969.12.31.16.00.00.000	foo\n# Summary 0a 1 \"./\"\n";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, 2, 16);
+		gzip.write(utils.makeByteArrayFromString(text));
+		gzip.close();
+		ArchiveQueue q = new ArchiveQueue(new ByteArrayInputStream(out.toByteArray()));
+
+		assertTrue(q.isCompressed());
+		assertFalse(new ArchiveQueue(utils.makeInputStream(text)).isCompressed());
+		assertEquals(new ArchiveQueue(utils.makeInputStream(text)).getStartTime(), q.getStartTime());
+		assertEquals(standardEntry(), q.dequeue());
+		assertTrue(q.isEmpty());
+		assertEquals(1, q.getDirectorySummaries().get("./").getEnd());
+	}
 }
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import bdw.testutils.MockQueue;
+import java.io.File;
+import java.util.Date;
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class BaselineTest {
+	private static final byte[] FAKE_CHECKSUM = {0x01, 0x02};
+
+	private Baseline baselineOf(FileEntry entry) throws InvalidEntryException {
+		MockQueue queue = new MockQueue();
+		queue.fakeQueue.add(entry);
+		return new Baseline(queue);
+	}
+
+	@Test
+	public void find_SamePathSizeAndDate_ReturnsEntry() throws InvalidEntryException {
+		FileEntry entry = new FileEntry(FAKE_CHECKSUM, 10, new Date(1000), "a/b");
+		Baseline baseline = baselineOf(entry);
+
+		assertEquals(entry, baseline.find("a/b", 10, new Date(1000)));
+		assertEquals(entry, baseline.find("./a/b", 10, new Date(1000)));
+	}
+
+	@Test
+	public void forRoot_LooksUpUnderLabel() throws InvalidEntryException {
+		FileEntry entry = new FileEntry(FAKE_CHECKSUM, 10, new Date(1000), "home/a/b");
+		Baseline baseline = baselineOf(entry).forRoot("home");
+
+		assertEquals(entry, baseline.find("a/b", 10, new Date(1000)));
+		assertEquals(entry, baseline.find("./a/b", 10, new Date(1000)));
+		assertNull(baseline.find("home/a/b", 10, new Date(1000)));
+	}
+
+	@Test
+	public void find_DifferentSize_ReturnsNull() throws InvalidEntryException {
+		Baseline baseline = baselineOf(new FileEntry(FAKE_CHECKSUM, 10, new Date(1000), "a/b"));
+
+		assertNull(baseline.find("a/b", 11, new Date(1000)));
+	}
+
+	@Test
+	public void find_DifferentDate_ReturnsNull() throws InvalidEntryException {
+		Baseline baseline = baselineOf(new FileEntry(FAKE_CHECKSUM, 10, new Date(1000), "a/b"));
+
+		assertNull(baseline.find("a/b", 10, new Date(1001)));
+	}
+
+	@Test
+	public void find_UnknownPath_ReturnsNull() throws InvalidEntryException {
+		Baseline baseline = baselineOf(new FileEntry(FAKE_CHECKSUM, 10, new Date(1000), "a/b"));
+
+		assertNull(baseline.find("a/c", 10, new Date(1000)));
+	}
+
+	@Test
+	public void fsQueue_UnchangedFile_ReusesChecksum() throws InvalidEntryException {
+		File file = new File("./src/test/resources/dir3/1024.txt");
+		Baseline baseline = baselineOf(new FileEntry(FAKE_CHECKSUM, file.length(), new Date(file.lastModified()), "1024.txt"));
+		FSQueue q = new FSQueue("./src/test/resources/dir3");
+		q.setBaseline(baseline);
+		int reused = 0;
+
+		while (!q.isEmpty()) {
+			FileEntry entry = q.dequeue();
+			if (entry.getPathname().equals("./1024.txt")) {
+				assertEquals(FAKE_CHECKSUM, entry.getChecksum());
+				reused++;
+			} else {
+				assertEquals(32, entry.getChecksum().length);
+			}
+		}
+
+		assertEquals(1, reused);
+		assertEquals(1, q.getReusedCount());
+		assertEquals(2, q.getHashedCount());
+	}
+}
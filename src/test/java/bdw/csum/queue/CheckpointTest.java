@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import java.io.File;
+import java.io.IOException;
+import static junit.framework.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CheckpointTest {
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("csum", ".checkpoint");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void save_ThenLoad_SameLength() throws IOException {
+		Checkpoint checkpoint = new Checkpoint(file, 0, 0);
+		assertFalse(checkpoint.exists());
+
+		checkpoint.save(12345, 10, "./a/b", 0);
+
+		assertTrue(checkpoint.exists());
+		assertEquals(12345, new Checkpoint(file, 0, 0).loadArchiveLength());
+	}
+
+	@Test
+	public void isDue_ByBytes() throws IOException {
+		Checkpoint checkpoint = new Checkpoint(file, 0, 1000);
+
+		assertFalse(checkpoint.isDue(999));
+		assertTrue(checkpoint.isDue(1000));
+		checkpoint.save(1, 1, null, 1000);
+		assertFalse(checkpoint.isDue(1999));
+		assertTrue(checkpoint.isDue(2000));
+	}
+
+	@Test
+	public void isDue_ByTime() throws IOException, InterruptedException {
+		Checkpoint checkpoint = new Checkpoint(file, 20, 0);
+
+		assertFalse(checkpoint.isDue(0));
+		Thread.sleep(30);
+		assertTrue(checkpoint.isDue(0));
+	}
+
+	@Test
+	public void delete_RemovesIt() throws IOException {
+		Checkpoint checkpoint = new Checkpoint(file, 0, 0);
+		checkpoint.save(1, 1, null, 0);
+
+		checkpoint.delete();
+
+		assertFalse(checkpoint.exists());
+	}
+}
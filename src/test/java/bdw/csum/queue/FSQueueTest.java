@@ -17,8 +17,25 @@ package bdw.csum.queue;
 
 import bdw.csum.entry.InvalidEntryException;
 import bdw.csum.entry.FileEntry;
+import bdw.csum.hash.FileHasher;
+import bdw.csum.hash.TreeHasher;
+import bdw.csum.metrics.Metrics;
+import bdw.testutils.Utils;
+import java.io.IOException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import static junit.framework.Assert.*;
 import org.junit.Test;
 
@@ -115,6 +132,373 @@ public class FSQueueTest {
 		assertEquals(0, other);
 	}
 
+	@Test
+	public void dequeue_WithSeveralWorkers_ReturnsSameOrderAsOneWorker() throws InvalidEntryException {
+		FSQueue serial = new FSQueue("./src/test/resources");
+		FSQueue parallel = new FSQueue("./src/test/resources");
+		parallel.setWorkerCount(3);
+		List<FileEntry> expected = new ArrayList<FileEntry>();
+		List<FileEntry> actual = new ArrayList<FileEntry>();
+
+		while (!serial.isEmpty()) {
+			expected.add(serial.dequeue());
+		}
+		while (!parallel.isEmpty()) {
+			actual.add(parallel.dequeue());
+		}
+
+		assertTrue(expected.size() > 3);
+		assertEquals(expected, actual);
+		assertNull(parallel.dequeue());
+	}
+
+	@Test
+	public void dequeue_WithSeveralWorkersAndNonFile_ReturnsNull() throws InvalidEntryException {
+		FSQueue q = new FSQueue("./IDontExist");
+		q.setWorkerCount(2);
+
+		assertTrue(q.isEmpty());
+		assertNull(q.dequeue());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void setWorkerCount_Zero_Rejected() throws InvalidEntryException {
+		FSQueue q = new FSQueue("./src/test/resources/dir1");
+		q.setWorkerCount(0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void setChunkSize_TooSmall_Rejected() throws InvalidEntryException {
+		FSQueue q = new FSQueue("./src/test/resources/dir1");
+		q.setChunkSize(1024);
+	}
+
+	@Test
+	public void dequeue_WithChunkSize_SmallFilesChecksummedWhole() throws InvalidEntryException {
+		FSQueue whole = new FSQueue("./src/test/resources/dir3");
+		FSQueue chunked = new FSQueue("./src/test/resources/dir3");
+		chunked.setChunkSize(TreeHasher.MIN_CHUNK_SIZE);
+
+		while (!whole.isEmpty()) {
+			assertEquals(whole.dequeue(), chunked.dequeue());
+		}
+		assertTrue(chunked.isEmpty());
+	}
+
+	@Test
+	public void dequeue_WithReadAhead_SameEntries() throws InvalidEntryException {
+		FSQueue plain = new FSQueue("./src/test/resources/dir3");
+		FSQueue readAhead = new FSQueue("./src/test/resources/dir3");
+		readAhead.setReadAhead(2);
+
+		while (!plain.isEmpty()) {
+			assertEquals(plain.dequeue(), readAhead.dequeue());
+		}
+		assertTrue(readAhead.isEmpty());
+	}
+
+	@Test
+	public void isEmpty_ReadAheadOnSeveralThreads_ReadersStoppedAtEnd() throws InvalidEntryException, InterruptedException {
+		FSQueue q = new FSQueue("./src/test/resources");
+		q.setReadAhead(2);
+		q.setWorkerCount(3);
+		while (!q.isEmpty()) {
+			q.dequeue();
+		}
+
+		assertEquals(0, waitForReadAheadThreads());
+	}
+
+	@Test
+	public void dequeue_InFlightLimitWithReadAhead_HashersReused() throws InvalidEntryException, IOException, InterruptedException {
+		assertEquals(0, waitForReadAheadThreads());
+		Path root = Files.createTempDirectory("csum-files");
+		try {
+			byte[] contents = new byte[FileHasher.STREAM_READ_SIZE * 2];
+			for (int index = 0; index < 40; index++) {
+				contents[0] = (byte) index;
+				Files.write(root.resolve("f" + index), contents);
+			}
+			FSQueue q = new FSQueue(root.toString());
+			q.setInFlightLimit(2);
+			q.setReadAhead(2);
+			int files = 0;
+			int mostRunning = 0;
+			while (!q.isEmpty()) {
+				q.dequeue();
+				files++;
+				int running = 0;
+				for (Thread thread : Thread.getAllStackTraces().keySet()) {
+					if (thread.getName().equals("csum-read-ahead") && thread.isAlive()) {
+						running++;
+					}
+				}
+				mostRunning = Math.max(mostRunning, running);
+			}
+
+			assertEquals(40, files);
+			assertTrue("" + mostRunning, mostRunning <= 2);
+			assertEquals(0, waitForReadAheadThreads());
+		} finally {
+			for (File file : root.toFile().listFiles()) {
+				file.delete();
+			}
+			Files.delete(root);
+		}
+	}
+
+	/**
+	 * @return The number of read ahead threads still running after they
+	 * have had a few seconds to stop
+	 */
+	static int waitForReadAheadThreads() throws InterruptedException {
+		int running = 0;
+		for (int attempt = 0; attempt < 100; attempt++) {
+			running = 0;
+			for (Thread thread : Thread.getAllStackTraces().keySet()) {
+				if (thread.getName().equals("csum-read-ahead") && thread.isAlive()) {
+					running++;
+				}
+			}
+			if (running == 0) {
+				break;
+			}
+			Thread.sleep(50);
+		}
+		return running;
+	}
+
+	@Test
+	public void dequeue_GroupedByDevice_SameEntriesAndDeviceCounted() throws InvalidEntryException {
+		FSQueue plain = new FSQueue("./src/test/resources/dir3");
+		FSQueue grouped = new FSQueue("./src/test/resources/dir3");
+		grouped.setDeviceWorkerCount(2);
+
+		while (!plain.isEmpty()) {
+			assertEquals(plain.dequeue(), grouped.dequeue());
+		}
+		assertTrue(grouped.isEmpty());
+		assertEquals(1, grouped.getDevices().size());
+		Device device = grouped.getDevices().iterator().next();
+		assertEquals(3, device.getFileCount());
+		assertEquals(1023 + 1024 + 1025, device.getByteCount());
+	}
+
+	@Test
+	public void dequeue_InFlightLimit_SameEntriesThroughFileAccess() throws InvalidEntryException {
+		final AtomicInteger opens = new AtomicInteger();
+		FSQueue plain = new FSQueue("./src/test/resources/dir3");
+		FSQueue concurrent = new FSQueue("./src/test/resources/dir3");
+		concurrent.setInFlightLimit(2);
+		concurrent.setFileAccess(new FileAccess() {
+			@Override
+			public FileInputStream openStream(Path path) throws IOException {
+				opens.incrementAndGet();
+				return super.openStream(path);
+			}
+		});
+
+		while (!plain.isEmpty()) {
+			assertEquals(plain.dequeue(), concurrent.dequeue());
+		}
+		assertTrue(concurrent.isEmpty());
+		assertEquals(3, opens.get());
+	}
+
+	@Test
+	public void dequeue_InFlightLimitWithChunkSize_LargeFileThroughFileAccess() throws InvalidEntryException, IOException {
+		Path root = Files.createTempDirectory("csum-chunked");
+		try {
+			Files.write(root.resolve("large"), new byte[(int) (3 * TreeHasher.MIN_CHUNK_SIZE + 1)]);
+			final AtomicInteger opens = new AtomicInteger();
+			FSQueue plain = new FSQueue(root.toString());
+			plain.setChunkSize(TreeHasher.MIN_CHUNK_SIZE);
+			FSQueue concurrent = new FSQueue(root.toString());
+			concurrent.setChunkSize(TreeHasher.MIN_CHUNK_SIZE);
+			concurrent.setInFlightLimit(2);
+			concurrent.setFileAccess(new FileAccess() {
+				@Override
+				public FileInputStream openStream(Path path) throws IOException {
+					opens.incrementAndGet();
+					return super.openStream(path);
+				}
+			});
+
+			assertEquals(plain.dequeue(), concurrent.dequeue());
+			assertTrue(concurrent.isEmpty());
+			assertEquals(1, opens.get());
+		} finally {
+			for (File file : root.toFile().listFiles()) {
+				file.delete();
+			}
+			Files.delete(root);
+		}
+	}
+
+	@Test
+	public void dequeue_ListingThreads_SameEntries() throws InvalidEntryException {
+		FSQueue plain = new FSQueue("./src/test/resources");
+		FSQueue listed = new FSQueue("./src/test/resources");
+		listed.setListingThreadCount(3);
+		listed.setWorkerCount(2);
+
+		while (!plain.isEmpty()) {
+			assertEquals(plain.dequeue(), listed.dequeue());
+		}
+		assertTrue(listed.isEmpty());
+	}
+
+	@Test
+	public void dequeue_Resumed_CarriesOnFromWhereListingStopped() throws InvalidEntryException, IOException {
+		List<FileEntry> all = new ArrayList<FileEntry>();
+		FSQueue plain = new FSQueue("./src/test/resources");
+		while (!plain.isEmpty()) {
+			all.add(plain.dequeue());
+		}
+		int done = all.size() / 2;
+		StringBuilder partial = new StringBuilder();
+		for (FileEntry entry : all.subList(0, done)) {
+			partial.append(entry.toString()).append("\n");
+		}
+
+		FSQueue resumed = new FSQueue("./src/test/resources");
+		resumed.setResumePoint(ResumePoint.read(new Utils().makeInputStream(partial.toString())));
+
+		for (FileEntry entry : all.subList(done, all.size())) {
+			assertEquals(entry, resumed.dequeue());
+		}
+		assertTrue(resumed.isEmpty());
+	}
+
+	@Test
+	public void dequeue_HardLinks_FileReadOnce() throws InvalidEntryException, IOException {
+		Path root = Files.createTempDirectory("csum-links");
+		try {
+			Files.write(root.resolve("a"), "linked".getBytes(Charset.forName("UTF-8")));
+			Files.createLink(root.resolve("b"), root.resolve("a"));
+			Files.createLink(root.resolve("c"), root.resolve("a"));
+			Files.write(root.resolve("d"), "alone".getBytes(Charset.forName("UTF-8")));
+
+			FSQueue q = new FSQueue(root.toString());
+			q.setHardLinks(true);
+			List<FileEntry> entries = new ArrayList<FileEntry>();
+			while (!q.isEmpty()) {
+				entries.add(q.dequeue());
+			}
+
+			assertEquals(4, entries.size());
+			assertEquals(2, q.getHashedCount());
+			assertEquals(2, q.getLinkedCount());
+			// The first link listed is read; the others point to it.
+			FileEntry first = null;
+			List<String> linked = new ArrayList<String>();
+			for (FileEntry entry : entries) {
+				if (entry.getPathname().equals("./d")) {
+					assertNull(entry.getLinkedTo());
+				} else if (first == null) {
+					assertNull(entry.getLinkedTo());
+					first = entry;
+				} else {
+					linked.add(entry.getLinkedTo());
+					assertTrue(Arrays.equals(first.getChecksum(), entry.getChecksum()));
+				}
+			}
+			assertEquals(Arrays.asList(first.getPathname(), first.getPathname()), linked);
+		} finally {
+			for (File file : root.toFile().listFiles()) {
+				file.delete();
+			}
+			Files.delete(root);
+		}
+	}
+
+	@Test
+	public void dequeue_HardLinksOnSeveralThreads_LinksPointBackAndEachFileReadOnce() throws InvalidEntryException, IOException {
+		Path root = Files.createTempDirectory("csum-links");
+		try {
+			for (String directory : new String[] {"a", "b", "c"}) {
+				Files.createDirectory(root.resolve(directory));
+			}
+			for (int index = 0; index < 30; index++) {
+				Path file = root.resolve("a").resolve("f" + index);
+				Files.write(file, ("file " + index).getBytes(Charset.forName("UTF-8")));
+				// Listed in a different order in each directory
+				Files.createLink(root.resolve("b").resolve("g" + (29 - index)), file);
+				Files.createLink(root.resolve("c").resolve("h" + ((index * 7) % 30)), file);
+			}
+
+			for (int setup = 0; setup < 3; setup++) {
+				final Map<Object, AtomicInteger> opens = new ConcurrentHashMap<Object, AtomicInteger>();
+				FSQueue q = new FSQueue(root.toString());
+				q.setHardLinks(true);
+				if (setup == 0) {
+					q.setWorkerCount(4);
+				} else if (setup == 1) {
+					q.setInFlightLimit(8);
+				} else {
+					q.setDeviceWorkerCount(3);
+				}
+				q.setFileAccess(new FileAccess() {
+					@Override
+					public FileInputStream openStream(Path path) throws IOException {
+						Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+						opens.putIfAbsent(key, new AtomicInteger());
+						opens.get(key).incrementAndGet();
+						try {
+							// Long enough for the other links to come along meanwhile
+							Thread.sleep(2);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						return super.openStream(path);
+					}
+				});
+
+				Set<String> listed = new HashSet<String>();
+				while (!q.isEmpty()) {
+					FileEntry entry = q.dequeue();
+					if (entry.getLinkedTo() != null) {
+						assertTrue(entry.getLinkedTo(), listed.contains(entry.getLinkedTo()));
+					}
+					listed.add(entry.getPathname());
+				}
+				assertEquals(90, listed.size());
+				assertEquals(30, q.getHashedCount());
+				assertEquals(60, q.getLinkedCount());
+				assertEquals(30, opens.size());
+				for (AtomicInteger count : opens.values()) {
+					assertEquals(1, count.get());
+				}
+			}
+		} finally {
+			for (String directory : new String[] {"a", "b", "c"}) {
+				for (File file : root.resolve(directory).toFile().listFiles()) {
+					file.delete();
+				}
+				Files.delete(root.resolve(directory));
+			}
+			Files.delete(root);
+		}
+	}
+
+	@Test
+	public void dequeue_WithMetrics_CountsAndTimes() throws InvalidEntryException {
+		Metrics metrics = new Metrics();
+		FSQueue q = new FSQueue("./src/test/resources/dir3");
+		q.setMetrics(metrics);
+		while (!q.isEmpty()) {
+			q.dequeue();
+		}
+
+		assertEquals(3, metrics.getCount(Metrics.Counter.FILES));
+		assertEquals(3, metrics.getCount(Metrics.Counter.HASHED_FILES));
+		assertEquals(1023 + 1024 + 1025, metrics.getCount(Metrics.Counter.HASHED_BYTES));
+		assertEquals(1, metrics.getCount(Metrics.Counter.DIRECTORIES));
+		assertEquals(3, metrics.getTimings(Metrics.Timer.STAT));
+		assertTrue(metrics.getTimings(Metrics.Timer.DIGEST) >= 3);
+		assertTrue(metrics.getCurrent().startsWith("./10"));
+	}
+
 	// this is a bugfix.  not sure why this was failing
 //	@Test
 //	public void dequeue_strangeFilename_ParsedOK() throws InvalidEntry {
@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.DirectorySummarizer;
+import bdw.csum.entry.DirectorySummary;
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import static junit.framework.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class IndexedArchiveTest {
+	private static final int DIRECTORIES = 7;
+	private static final int FILES = 5000;
+
+	private File directory;
+	private File indexed;
+	private List<FileEntry> entries;
+	private String text;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("csum").toFile();
+		indexed = new File(directory, "indexed.listing");
+
+		// in the order a walk might list them: directories together, but not sorted
+		entries = new ArrayList<FileEntry>();
+		for (int dir = DIRECTORIES - 1; dir >= 0; dir--) {
+			for (int sub = 2; sub >= 0; sub--) {
+				for (int index = FILES - 1; index >= 0; index--) {
+					if ((index % DIRECTORIES == dir) && (index % 3 == sub)) {
+						entries.add(entry(index));
+					}
+				}
+			}
+		}
+		entries.get(10).setLinkedTo(entries.get(9).getPathname());
+
+		StringWriter writer = new StringWriter();
+		ArchiveWriter archive = new ArchiveWriter(writer, null);
+		archive.writeHeader("SHA-256", 0, "/base", new Date(1451736245678L), null);
+		for (FileEntry entry : entries) {
+			archive.write(entry);
+		}
+		archive.writeCount(ArchiveQueue.HASHED_COMMENT, entries.size());
+		archive.finish();
+		text = writer.toString();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private static FileEntry entry(int index) {
+		// every checksum is shared by 5 files, in different directories
+		int value = index % 1000;
+		byte[] checksum = {(byte) (value >> 8), (byte) value, (byte) 0x80, 0, 0, 0, 1, (byte) (value * 7)};
+		return new FileEntry(checksum, index, new Date(1000L * index), "d" + (index % DIRECTORIES) + "/s" + (index % 3) + "/file" + index);
+	}
+
+	private long writeIndexed(int runSize) throws InvalidEntryException, IOException {
+		ArchiveQueue source = new ArchiveQueue(new ByteArrayInputStream(text.getBytes("UTF-8")));
+		IndexedArchiveWriter writer = new IndexedArchiveWriter(indexed);
+		writer.setRunSize(runSize);
+		return writer.write(source, source.getRoots());
+	}
+
+	@Test
+	public void write_AnyRunSize_SortedWithSameSummaries() throws InvalidEntryException, IOException, NoSuchAlgorithmException {
+		DirectorySummarizer summarizer = new DirectorySummarizer("SHA-256");
+		List<DirectorySummary> expected = new ArrayList<DirectorySummary>();
+		for (FileEntry entry : entries) {
+			expected.addAll(summarizer.add(entry));
+		}
+		expected.addAll(summarizer.finish());
+		List<FileEntry> sorted = new ArrayList<FileEntry>(entries);
+		Collections.sort(sorted, new Comparator<FileEntry>() {
+			@Override
+			public int compare(FileEntry one, FileEntry other) {
+				return one.getPathname().compareTo(other.getPathname());
+			}
+		});
+
+		for (int runSize : new int[] {700, FILES, IndexedArchiveWriter.DEFAULT_RUN_SIZE}) {
+			assertEquals(FILES, writeIndexed(runSize));
+			assertEquals(Arrays.asList("indexed.listing"), Arrays.asList(directory.list()));
+
+			InputStream input = new FileInputStream(indexed);
+			try {
+				ArchiveQueue q = new ArchiveQueue(input);
+				assertEquals(2, q.getVersion());
+				assertEquals("/base", q.getBasePath());
+				assertEquals(new Date(1451736245678L), q.getStartTime());
+				for (FileEntry wanted : sorted) {
+					FileEntry entry = q.dequeue();
+					assertEquals(wanted, entry);
+					assertEquals(wanted.getLinkedTo(), entry.getLinkedTo());
+				}
+				assertNull(q.dequeue());
+
+				Map<String, DirectorySummary> summaries = q.getDirectorySummaries();
+				assertEquals(expected.size(), summaries.size());
+				for (DirectorySummary summary : expected) {
+					DirectorySummary read = summaries.get(summary.getPathname());
+					assertTrue(Arrays.equals(summary.getChecksum(), read.getChecksum()));
+					assertEquals(summary.getFileCount(), read.getFileCount());
+				}
+			} finally {
+				input.close();
+			}
+		}
+	}
+
+	@Test
+	public void findPath_EveryEntry_Found() throws InvalidEntryException, IOException {
+		writeIndexed(700);
+		IndexedArchive archive = new IndexedArchive(indexed);
+		try {
+			assertEquals(FILES, archive.getEntryCount());
+			assertEquals("SHA-256", archive.getAlgorithm());
+			for (FileEntry wanted : entries) {
+				FileEntry entry = archive.findPath(wanted.getPathname());
+				assertEquals(wanted, entry);
+				assertEquals(wanted.getLinkedTo(), entry.getLinkedTo());
+			}
+		} finally {
+			archive.close();
+		}
+	}
+
+	@Test
+	public void findPath_NotThere_Null() throws InvalidEntryException, IOException {
+		writeIndexed(700);
+		IndexedArchive archive = new IndexedArchive(indexed);
+		try {
+			assertNull(archive.findPath("./a"));
+			assertNull(archive.findPath("./d3/s1/file1"));
+			assertNull(archive.findPath("./d3/s1/file31x"));
+			assertNull(archive.findPath("./z"));
+		} finally {
+			archive.close();
+		}
+	}
+
+	@Test
+	public void findUnder_Directory_AllOfItsEntriesSorted() throws InvalidEntryException, IOException {
+		writeIndexed(700);
+		IndexedArchive archive = new IndexedArchive(indexed);
+		try {
+			List<FileEntry> found = archive.findUnder("./d2/s1/");
+			int count = 0;
+			for (FileEntry entry : entries) {
+				if (entry.getPathname().startsWith("./d2/s1/")) {
+					count++;
+				}
+			}
+			assertEquals(count, found.size());
+			for (int index = 0; index < found.size(); index++) {
+				assertTrue(found.get(index).getPathname().startsWith("./d2/s1/"));
+				if (index > 0) {
+					assertTrue(found.get(index - 1).getPathname().compareTo(found.get(index).getPathname()) < 0);
+				}
+			}
+			assertEquals(FILES, archive.findUnder("./").size());
+			assertTrue(archive.findUnder("./d9/").isEmpty());
+		} finally {
+			archive.close();
+		}
+	}
+
+	@Test
+	public void findChecksum_Shared_AllFilesWithIt() throws InvalidEntryException, IOException {
+		writeIndexed(700);
+		IndexedArchive archive = new IndexedArchive(indexed);
+		try {
+			List<FileEntry> found = archive.findChecksum(entry(123).getChecksum());
+			List<String> pathnames = new ArrayList<String>();
+			for (FileEntry entry : found) {
+				pathnames.add(entry.getPathname());
+			}
+			Collections.sort(pathnames);
+			assertEquals(Arrays.asList("./d0/s1/file4123", "./d1/s0/file3123", "./d2/s2/file2123",
+					"./d3/s1/file1123", "./d4/s0/file123"), pathnames);
+
+			byte[] other = entry(123).getChecksum();
+			other[7]++;
+			assertTrue(archive.findChecksum(other).isEmpty());
+		} finally {
+			archive.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void constructor_NotIndexed_Throws() throws InvalidEntryException, IOException {
+		Files.write(indexed.toPath(), text.getBytes("UTF-8"));
+		new IndexedArchive(indexed);
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.FileEntry;
+import java.util.Date;
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class LinkTableTest {
+	@Test
+	public void claim_LaterLinks_GetFirstUntilAllLinksSeen() {
+		LinkTable table = new LinkTable(10);
+		LinkTable.Link first = new LinkTable.Link();
+		assertNull(table.claim(1, 100, 3, first));
+		assertEquals(1, table.size());
+
+		assertSame(first, table.claim(1, 100, 3, new LinkTable.Link()));
+		assertSame(first, table.claim(1, 100, 3, new LinkTable.Link()));
+		assertEquals(0, table.size());
+		assertNull(table.claim(1, 100, 3, new LinkTable.Link()));
+	}
+
+	@Test
+	public void claim_BeforeEntryBuilt_EntrySharedOnceSet() {
+		LinkTable table = new LinkTable(10);
+		LinkTable.Link first = new LinkTable.Link();
+		table.claim(1, 100, 2, first);
+		LinkTable.Link found = table.claim(1, 100, 2, new LinkTable.Link());
+		assertNull(found.getEntry());
+
+		FileEntry entry = new FileEntry(new byte[] {1, 2}, 1, new Date(0), "a");
+		first.setEntry(entry);
+		assertSame(entry, found.getEntry());
+	}
+
+	@Test
+	public void claim_SameInodeOtherDevice_NotFound() {
+		LinkTable table = new LinkTable(10);
+		table.claim(1, 100, 2, new LinkTable.Link());
+		assertNull(table.claim(2, 100, 2, new LinkTable.Link()));
+		assertEquals(2, table.size());
+	}
+
+	@Test
+	public void claim_SingleLink_NotKept() {
+		LinkTable table = new LinkTable(10);
+		assertNull(table.claim(1, 100, 1, new LinkTable.Link()));
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void claim_Full_StopsTaking() {
+		LinkTable table = new LinkTable(2);
+		table.claim(1, 1, 2, new LinkTable.Link());
+		table.claim(1, 2, 2, new LinkTable.Link());
+		table.claim(1, 3, 2, new LinkTable.Link());
+		assertEquals(2, table.size());
+		assertNull(table.claim(1, 3, 2, new LinkTable.Link()));
+	}
+
+	@Test
+	public void claim_ManyFiles_AllFoundThroughGrowthAndRemoval() {
+		LinkTable table = new LinkTable(LinkTable.DEFAULT_MAX_SIZE);
+		LinkTable.Link[] links = new LinkTable.Link[20000];
+		for (int index = 0; index < links.length; index++) {
+			links[index] = new LinkTable.Link();
+			// Inodes a power of two apart, so many share a home slot
+			table.claim(index % 3, (long) index << 20, 3, links[index]);
+		}
+		assertEquals(links.length, table.size());
+
+		for (int index = 0; index < links.length; index += 2) {
+			assertSame(links[index], table.claim(index % 3, (long) index << 20, 3, new LinkTable.Link()));
+			assertSame(links[index], table.claim(index % 3, (long) index << 20, 3, new LinkTable.Link()));
+		}
+		assertEquals(links.length / 2, table.size());
+		for (int index = 1; index < links.length; index += 2) {
+			assertSame(links[index], table.claim(index % 3, (long) index << 20, 3, new LinkTable.Link()));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void construct_NoRoom_Rejected() {
+		new LinkTable(0);
+	}
+}
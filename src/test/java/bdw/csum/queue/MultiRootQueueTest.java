@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.DirectorySummarizer;
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.hash.DigestAlgorithms;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class MultiRootQueueTest {
+	private MultiRootQueue queueOf(String... paths) throws InvalidEntryException {
+		List<FSQueue> scans = new ArrayList<FSQueue>();
+		for (String path : paths) {
+			scans.add(new FSQueue(path));
+		}
+		return new MultiRootQueue(MultiRootQueue.makeLabels(Arrays.asList(paths)), scans);
+	}
+
+	private List<String> pathnames(EntryQueue queue) throws InvalidEntryException {
+		List<String> pathnames = new ArrayList<String>();
+		while (!queue.isEmpty()) {
+			pathnames.add(queue.dequeue().getPathname());
+		}
+		return pathnames;
+	}
+
+	@Test
+	public void makeLabels_LastNames_DuplicatesNumbered() {
+		assertEquals(Arrays.asList("data", "home", "data-2", "root"),
+				MultiRootQueue.makeLabels(Arrays.asList("/mnt/data", "/home/", "/backup/data", "/")));
+	}
+
+	@Test
+	public void dequeue_SeveralRoots_EachTogetherInOrderUnderLabel() throws InvalidEntryException {
+		MultiRootQueue queue = queueOf("./src/test/resources/dir3", "./src/test/resources/dir1",
+				"./src/test/resources/weirdFiles");
+		List<String> pathnames = pathnames(queue);
+
+		assertEquals(5, pathnames.size());
+		for (String pathname : pathnames.subList(0, 3)) {
+			assertTrue(pathname, pathname.startsWith("./dir3/"));
+		}
+		assertEquals(Arrays.asList("./dir1/foo.txt", "./weirdFiles/Another file"), pathnames.subList(3, 5));
+		assertEquals(3, queue.getCurrentRoot());
+	}
+
+	@Test
+	public void dequeue_MissingRoot_Skipped() throws InvalidEntryException {
+		MultiRootQueue queue = queueOf("./IDontExist", "./src/test/resources/dir1");
+
+		assertEquals(Arrays.asList("./dir1/foo.txt"), pathnames(queue));
+	}
+
+	@Test
+	public void dequeue_SameChecksumsAsSeparateScans() throws InvalidEntryException {
+		MultiRootQueue queue = queueOf("./src/test/resources/dir1", "./src/test/resources/dir3");
+		List<FileEntry> merged = new ArrayList<FileEntry>();
+		while (!queue.isEmpty()) {
+			merged.add(queue.dequeue());
+		}
+
+		FSQueue separate = new FSQueue("./src/test/resources/dir3");
+		for (FileEntry entry : merged.subList(1, merged.size())) {
+			FileEntry expected = separate.dequeue();
+			assertEquals("./dir3/" + expected.getPathname().substring(2), entry.getPathname());
+			assertTrue(Arrays.equals(expected.getChecksum(), entry.getChecksum()));
+		}
+	}
+
+	@Test
+	public void listing_ReadsBackWithRoots() throws InvalidEntryException, IOException, NoSuchAlgorithmException {
+		MultiRootQueue queue = queueOf("./src/test/resources/dir1", "./src/test/resources/weirdFiles");
+		StringWriter writer = new StringWriter();
+		ArchiveWriter archive = new ArchiveWriter(writer, new DirectorySummarizer(DigestAlgorithms.SHA_256));
+		archive.writeHeader(queue.getAlgorithm(), 0, null, queue.getStartTime(), null);
+		int root = -1;
+		while (!queue.isEmpty()) {
+			for (; root < queue.getCurrentRoot(); root++) {
+				archive.startRoot(queue.getScan(root + 1).getBasePath(), queue.getLabel(root + 1));
+			}
+			archive.write(queue.dequeue());
+		}
+		archive.finish();
+
+		ArchiveQueue archived = new ArchiveQueue(new ByteArrayInputStream(writer.toString().getBytes(Charset.forName("UTF-8"))));
+		assertEquals(Arrays.asList("./dir1/foo.txt", "./weirdFiles/Another file"), pathnames(archived));
+		assertEquals(Arrays.asList("./dir1/", "./weirdFiles/"), new ArrayList<String>(archived.getRoots().keySet()));
+		assertEquals(2, archived.getDirectorySummaries().get("./").getFileCount());
+	}
+}
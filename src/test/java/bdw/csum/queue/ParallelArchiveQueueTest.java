@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import bdw.testutils.Utils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import static junit.framework.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ParallelArchiveQueueTest {
+	private Utils utils;
+	private File listing;
+
+	@Before
+	public void setUp() throws IOException {
+		utils = new Utils();
+		StringBuilder text = new StringBuilder();
+		text.append("# Start 2016.01.02.03.04.05.678\n# Algorithm SHA-512\n# Chunked 1048576\n");
+		for (int root = 0; root < 2; root++) {
+			text.append("# Directory \"/mnt/r").append(root).append("\" \"./r").append(root).append("/\"\n");
+			for (int index = 0; index < 40; index++) {
+				if (index % 3 == 1) {
+					text.append("# Link \"./r").append(root).append("/f").append(index - 1).append("\"\n");
+				}
+				text.append(String.format("%02x\t%d\t1969.12.31.16.00.00.%03d\tr%d/f%d\n", index, index, index, root, index));
+			}
+			text.append("# Summary 0a0b 40 \"./r").append(root).append("/\"\n");
+		}
+		text.append("# Reused 0\n# Hashed 80\n");
+
+		listing = File.createTempFile("csum", ".listing");
+		OutputStream out = new FileOutputStream(listing);
+		try {
+			out.write(utils.makeByteArrayFromString(text.toString()));
+		} finally {
+			out.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		listing.delete();
+	}
+
+	@Test
+	public void dequeue_AnyPieceSize_SameAsArchiveQueue() throws InvalidEntryException, IOException {
+		for (long pieceSize : new long[] {1, 7, 50, 333, 1 << 20}) {
+			ArchiveQueue expected = new ArchiveQueue(utils.makeInputStream(readListing()));
+			ParallelArchiveQueue q = new ParallelArchiveQueue(listing, 3, pieceSize);
+
+			assertEquals(expected.getStartTime(), q.getStartTime());
+			assertEquals("SHA-512", q.getAlgorithm());
+			assertEquals(1048576, q.getChunkSize());
+			assertEquals("/mnt/r0", q.getBasePath());
+			while (!expected.isEmpty()) {
+				assertFalse(q.isEmpty());
+				FileEntry entry = q.dequeue();
+				FileEntry wanted = expected.dequeue();
+				assertEquals(wanted, entry);
+				assertEquals(wanted.getLinkedTo(), entry.getLinkedTo());
+			}
+			assertTrue(q.isEmpty());
+			assertNull(q.dequeue());
+			assertEquals(Arrays.asList("./r0/", "./r1/"), new ArrayList<String>(q.getRoots().keySet()));
+		}
+	}
+
+	@Test
+	public void split_SmallPieces_EndAtLinesButNotAfterLinks() throws IOException {
+		String text = readListing();
+		RandomAccessFile file = new RandomAccessFile(listing, "r");
+		try {
+			long[] bounds = ParallelArchiveQueue.split(file.getChannel(), 1);
+			assertTrue(bounds.length > 40);
+			assertEquals(0, bounds[0]);
+			assertEquals(text.length(), bounds[bounds.length - 1]);
+			for (int index = 1; index < bounds.length - 1; index++) {
+				int start = (int) bounds[index];
+				assertEquals('\n', text.charAt(start - 1));
+				assertFalse(text.startsWith("# Link", text.lastIndexOf('\n', start - 2) + 1));
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test
+	public void skipEntries_RangeAcrossPieces_LeftOut() throws InvalidEntryException, IOException {
+		ParallelArchiveQueue q = new ParallelArchiveQueue(listing, 2, 100);
+		q.skipEntries(1, 45);
+
+		assertEquals("./r0/f0", q.dequeue().getPathname());
+		assertEquals("./r1/f5", q.dequeue().getPathname());
+	}
+
+	@Test(expected = InvalidEntryException.class)
+	public void dequeue_BadEntryInLaterPiece_Throws() throws InvalidEntryException, IOException {
+		OutputStream out = new FileOutputStream(listing, true);
+		try {
+			out.write(utils.makeByteArrayFromString("00\tnot-a-size\t1969.12.31.16.00.00.000\tbad\n"));
+		} finally {
+			out.close();
+		}
+		ParallelArchiveQueue q = new ParallelArchiveQueue(listing, 2, 100);
+
+		while (q.dequeue() != null) {
+		}
+	}
+
+	@Test
+	public void constructor_EmptyFile_NoEntries() throws InvalidEntryException, IOException {
+		File empty = File.createTempFile("csum", ".listing");
+		try {
+			ParallelArchiveQueue q = new ParallelArchiveQueue(empty, 2);
+			assertTrue(q.isEmpty());
+			assertEquals(1, q.getPieceCount());
+		} finally {
+			empty.delete();
+		}
+	}
+
+	private String readListing() throws IOException {
+		return new String(Files.readAllBytes(listing.toPath()), "UTF-8");
+	}
+}
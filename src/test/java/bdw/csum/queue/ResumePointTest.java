@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.entry.InvalidEntryException;
+import bdw.testutils.Utils;
+import java.io.IOException;
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ResumePointTest {
+	private final Utils utils = new Utils();
+
+	private ResumePoint read(String archive) throws InvalidEntryException, IOException {
+		return ResumePoint.read(utils.makeInputStream("# Algorithm XXH64\n" + archive));
+	}
+
+	@Test
+	public void read_LeftDirectory_Finished() throws InvalidEntryException, IOException {
+		ResumePoint point = read("01	1	1969.12.31.16.00.00.000	a/b/one\n" +
+				"02	1	1969.12.31.16.00.00.000	a/two\n" +
+				"03	1	1969.12.31.16.00.00.000	c/three\n");
+
+		assertTrue(point.isDirectoryFinished("a/"));
+		assertTrue(point.isDirectoryFinished("a/b/"));
+		assertFalse(point.isDirectoryFinished("c/"));
+		assertFalse(point.isDirectoryFinished(""));
+	}
+
+	@Test
+	public void read_FilesInOpenDirectory_Listed() throws InvalidEntryException, IOException {
+		ResumePoint point = read("01	1	1969.12.31.16.00.00.000	a/one\n" +
+				"02	1	1969.12.31.16.00.00.000	c/two\n" +
+				"03	1	1969.12.31.16.00.00.000	c/three\n");
+
+		assertTrue(point.isFileListed("c/two"));
+		assertTrue(point.isFileListed("c/three"));
+		assertFalse(point.isFileListed("c/four"));
+		// Forgotten, since the whole directory is finished
+		assertFalse(point.isFileListed("a/one"));
+	}
+
+	@Test
+	public void read_TakesAlgorithmCountAndPosition() throws InvalidEntryException, IOException {
+		ResumePoint point = read("01	1	1969.12.31.16.00.00.000	a/one\n" +
+				"02	1	1969.12.31.16.00.00.000	c/two\n");
+
+		assertEquals("XXH64", point.getAlgorithm());
+		assertEquals(2, point.getEntryCount());
+		assertEquals("./c/two", point.getLastPathname());
+	}
+
+	@Test
+	public void read_Empty_NothingFinished() throws InvalidEntryException, IOException {
+		ResumePoint point = read("");
+
+		assertEquals(0, point.getEntryCount());
+		assertNull(point.getLastPathname());
+		assertFalse(point.isDirectoryFinished(""));
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import static junit.framework.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ThrottleTest {
+	private File control;
+	private Throttle throttle;
+
+	@Before
+	public void setUp() throws IOException {
+		control = File.createTempFile("csum", ".throttle");
+		control.delete();
+		throttle = new Throttle(1000, 10);
+	}
+
+	@After
+	public void tearDown() {
+		throttle.close();
+		control.delete();
+	}
+
+	@Test
+	public void watch_NoControlFile_KeepsTheGivenCeilings() {
+		throttle.watch(control);
+
+		assertEquals(1000.0, throttle.getByteLimiter().getRate());
+		assertEquals(10.0, throttle.getFileLimiter().getRate());
+	}
+
+	@Test
+	public void watch_ControlFile_TakesItsCeilings() throws IOException {
+		write("bytes-per-second = 20M\nfiles-per-second = 500\n");
+		throttle.watch(control);
+
+		assertEquals(20.0 * 1024 * 1024, throttle.getByteLimiter().getRate());
+		assertEquals(500.0, throttle.getFileLimiter().getRate());
+	}
+
+	@Test
+	public void checkControlFile_Changed_TakesNewCeilings() throws IOException {
+		write("bytes-per-second = 20M\n");
+		throttle.watch(control);
+		write("files-per-second = 5\n");
+		control.setLastModified(control.lastModified() + 2000);
+		throttle.checkControlFile();
+
+		assertEquals(0.0, throttle.getByteLimiter().getRate());
+		assertEquals(5.0, throttle.getFileLimiter().getRate());
+	}
+
+	@Test
+	public void checkControlFile_Garbage_KeepsOldCeilings() throws IOException {
+		write("bytes-per-second = lots\n");
+		throttle.watch(control);
+
+		assertEquals(1000.0, throttle.getByteLimiter().getRate());
+	}
+
+	@Test
+	public void dequeue_Throttled_StillReturnsEverything() throws Exception {
+		FSQueue q = new FSQueue("./src/test/resources/dir3");
+		q.setThrottle(new Throttle(1024 * 1024, 1000));
+		int count = 0;
+		while (!q.isEmpty()) {
+			q.dequeue();
+			count++;
+		}
+
+		assertEquals(3, count);
+	}
+
+	private void write(String text) throws IOException {
+		FileOutputStream out = new FileOutputStream(control);
+		try {
+			out.write(text.getBytes(Charset.forName("UTF-8")));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.queue;
+
+import bdw.csum.filter.PathFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class TreeWalkerTest {
+	@Test
+	public void next_NestedFile_HasRelativePathAndAttributes() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources/dir2"));
+
+		WalkEntry entry = walker.next();
+		assertEquals("第一个孩子/   b    \" \\ !@#$/foo.txt", entry.getRelativePath());
+		assertTrue(entry.getAttributes().isRegularFile());
+		assertNull(walker.next());
+		assertTrue(walker.isDone());
+	}
+
+	@Test
+	public void next_FilesOfKnownSize_SizesFromAttributes() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources/dir3"));
+		long total = 0;
+
+		WalkEntry entry = walker.next();
+		while (entry != null) {
+			total += entry.getAttributes().size();
+			entry = walker.next();
+		}
+
+		assertEquals(1023 + 1024 + 1025, total);
+	}
+
+	@Test
+	public void next_NotADirectory_ReturnsNull() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources/dir1/foo.txt"));
+
+		assertTrue(walker.isDone());
+		assertNull(walker.next());
+	}
+
+	@Test
+	public void next_IgnoringMacFiles_SkipsThem() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources/weirdFiles"));
+		walker.setIgnoreSpecialMacFiles(true);
+
+		assertEquals("Another file", walker.next().getRelativePath());
+		assertNull(walker.next());
+	}
+
+	@Test
+	public void next_InodeOrder_FilesSortedByInode() throws IOException {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources/dir3"));
+		walker.setInodeOrder(TreeWalker.InodeOrder.ALWAYS);
+		long lastInode = -1;
+		int count = 0;
+
+		WalkEntry entry = walker.next();
+		while (entry != null) {
+			long inode = ((Number) Files.getAttribute(entry.getPath(), "unix:ino")).longValue();
+			assertTrue(inode > lastInode);
+			lastInode = inode;
+			count++;
+			entry = walker.next();
+		}
+
+		assertEquals(3, count);
+	}
+
+	@Test
+	public void next_InodeOrder_StillDescendsIntoDirectories() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources/dir2"));
+		walker.setInodeOrder(TreeWalker.InodeOrder.ALWAYS);
+
+		assertEquals("第一个孩子/   b    \" \\ !@#$/foo.txt", walker.next().getRelativePath());
+		assertNull(walker.next());
+	}
+
+	@Test
+	public void next_TrackingDevices_EntriesShareOneDevice() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources/dir2"));
+		walker.setTrackDevices(true);
+
+		WalkEntry entry = walker.next();
+		assertNotNull(entry.getDevice());
+		assertEquals(1, walker.getDevices().size());
+		assertSame(entry.getDevice(), walker.getDevices().iterator().next());
+	}
+
+	@Test
+	public void next_NotTrackingDevices_NoDevice() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources/dir2"));
+
+		assertNull(walker.next().getDevice());
+		assertTrue(walker.getDevices().isEmpty());
+	}
+
+	@Test
+	public void next_ListingPool_SameOrderAsOneAtATime() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources"));
+		walker.setListingPool(new ForkJoinPool(4), TreeWalker.DEFAULT_LISTING_AHEAD);
+
+		assertEquals(walkAll(new TreeWalker(Paths.get("./src/test/resources"))), walkAll(walker));
+	}
+
+	@Test
+	public void next_ListingPoolBarelyAhead_SameOrderAsOneAtATime() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources"));
+		walker.setListingPool(new ForkJoinPool(4), 1);
+
+		assertEquals(walkAll(new TreeWalker(Paths.get("./src/test/resources"))), walkAll(walker));
+	}
+
+	@Test
+	public void next_ListingPoolInodeOrder_SameOrderAsOneAtATime() {
+		TreeWalker plain = new TreeWalker(Paths.get("./src/test/resources"));
+		plain.setInodeOrder(TreeWalker.InodeOrder.ALWAYS);
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources"));
+		walker.setInodeOrder(TreeWalker.InodeOrder.ALWAYS);
+		walker.setListingPool(new ForkJoinPool(4), TreeWalker.DEFAULT_LISTING_AHEAD);
+
+		assertEquals(walkAll(plain), walkAll(walker));
+	}
+
+	@Test
+	public void next_ListingPoolTrackingDevices_EntriesHaveDevice() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources/dir2"));
+		walker.setTrackDevices(true);
+		walker.setListingPool(new ForkJoinPool(2), TreeWalker.DEFAULT_LISTING_AHEAD);
+
+		WalkEntry entry = walker.next();
+		assertSame(entry.getDevice(), walker.getDevices().iterator().next());
+		assertNull(walker.next());
+		assertTrue(walker.isDone());
+	}
+
+	@Test
+	public void next_FilteredDirectory_NeverListed() {
+		final List<String> listed = new ArrayList<String>();
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources/dir2"));
+		walker.setFileAccess(new FileAccess() {
+			@Override
+			public DirectoryStream<Path> newDirectoryStream(Path directory) throws IOException {
+				listed.add(directory.getFileName().toString());
+				return super.newDirectoryStream(directory);
+			}
+		});
+		PathFilter filter = new PathFilter();
+		filter.add("第一个孩子/");
+		walker.setFilter(filter);
+
+		assertTrue(walkAll(walker).isEmpty());
+		assertEquals(1, listed.size());
+	}
+
+	@Test
+	public void next_FilteredFiles_LeftOut() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources/dir3"));
+		walker.setListingPool(new ForkJoinPool(2), TreeWalker.DEFAULT_LISTING_AHEAD);
+		PathFilter filter = new PathFilter();
+		filter.add("102[34].txt");
+		walker.setFilter(filter);
+
+		assertEquals(Arrays.asList("1025.txt"), walkAll(walker));
+	}
+
+	@Test
+	public void next_ConcurrentStat_SameOrderAsOneAtATime() {
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources"));
+		walker.setConcurrentStat(Executors.newFixedThreadPool(4), new Semaphore(4), 4);
+
+		assertEquals(walkAll(new TreeWalker(Paths.get("./src/test/resources"))), walkAll(walker));
+	}
+
+	@Test
+	public void next_ConcurrentStatInodeOrder_SameOrderAsOneAtATime() {
+		TreeWalker plain = new TreeWalker(Paths.get("./src/test/resources"));
+		plain.setInodeOrder(TreeWalker.InodeOrder.ALWAYS);
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources"));
+		walker.setInodeOrder(TreeWalker.InodeOrder.ALWAYS);
+		walker.setConcurrentStat(Executors.newFixedThreadPool(4), new Semaphore(4), 4);
+
+		assertEquals(walkAll(plain), walkAll(walker));
+	}
+
+	@Test
+	public void next_ConcurrentStat_SubdirectoriesListedAheadUnderLimit() {
+		final Thread walking = Thread.currentThread();
+		final Semaphore limit = new Semaphore(1);
+		final List<String> listedByWalk = new ArrayList<String>();
+		final AtomicInteger listedOutsideLimit = new AtomicInteger();
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources"));
+		walker.setFileAccess(new FileAccess() {
+			@Override
+			public DirectoryStream<Path> newDirectoryStream(Path directory) throws IOException {
+				if (Thread.currentThread() == walking) {
+					listedByWalk.add(directory.getFileName().toString());
+				} else if (limit.availablePermits() != 0) {
+					listedOutsideLimit.incrementAndGet();
+				}
+				return super.newDirectoryStream(directory);
+			}
+		});
+		walker.setConcurrentStat(Executors.newFixedThreadPool(2), limit, 4);
+
+		assertEquals(walkAll(new TreeWalker(Paths.get("./src/test/resources"))), walkAll(walker));
+		assertEquals(Arrays.asList("resources"), listedByWalk);
+		assertEquals(0, listedOutsideLimit.get());
+	}
+
+	@Test
+	public void next_ListingPoolWithLimit_ListingsTakeTheLimit() {
+		final Semaphore limit = new Semaphore(1);
+		final AtomicInteger listed = new AtomicInteger();
+		final AtomicInteger listedOutsideLimit = new AtomicInteger();
+		TreeWalker walker = new TreeWalker(Paths.get("./src/test/resources"));
+		walker.setFileAccess(new FileAccess() {
+			@Override
+			public DirectoryStream<Path> newDirectoryStream(Path directory) throws IOException {
+				listed.incrementAndGet();
+				if (limit.availablePermits() != 0) {
+					listedOutsideLimit.incrementAndGet();
+				}
+				return super.newDirectoryStream(directory);
+			}
+		});
+		walker.setConcurrentStat(Executors.newFixedThreadPool(2), limit, 4);
+		walker.setListingPool(new ForkJoinPool(4), TreeWalker.DEFAULT_LISTING_AHEAD);
+
+		assertEquals(walkAll(new TreeWalker(Paths.get("./src/test/resources"))), walkAll(walker));
+		assertTrue(listed.get() > 1);
+		assertEquals(0, listedOutsideLimit.get());
+	}
+
+	/**
+	 * @param walker A walker
+	 * @return The relative paths of everything it walks, in order
+	 */
+	private List<String> walkAll(TreeWalker walker) {
+		List<String> paths = new ArrayList<String>();
+		WalkEntry entry = walker.next();
+		while (entry != null) {
+			paths.add(entry.getRelativePath());
+			entry = walker.next();
+		}
+		return paths;
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bdw.csum.watch;
+
+import bdw.csum.entry.FileEntry;
+import bdw.csum.entry.InvalidEntryException;
+import bdw.csum.hash.DigestAlgorithms;
+import bdw.csum.queue.ArchiveQueue;
+import bdw.csum.queue.FSQueue;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static junit.framework.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class TreeWatcherTest {
+	private Path root;
+	private TreeWatcher watcher;
+
+	@Before
+	public void setUp() throws IOException, NoSuchAlgorithmException, InvalidEntryException {
+		root = Files.createTempDirectory("csum-watch");
+		write("one", "one");
+		write("a/two", "two");
+		write("a/b/three", "three");
+
+		watcher = new TreeWatcher(root, DigestAlgorithms.SHA_256, 0);
+		watcher.register();
+		watcher.load(new FSQueue(root.toString()));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		watcher.close();
+		delete(root.toFile());
+	}
+
+	private void write(String pathname, String contents) throws IOException {
+		Path file = root.resolve(pathname);
+		Files.createDirectories(file.getParent());
+		Files.write(file, contents.getBytes(Charset.forName("UTF-8")));
+	}
+
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Applies changes until none have been reported for a while.
+	 */
+	private void settle() throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while (watcher.poll(500, TimeUnit.MILLISECONDS) && (System.currentTimeMillis() < end)) {
+			watcher.applyChanges();
+		}
+		watcher.applyChanges();
+	}
+
+	@Test
+	public void load_ListsTree() {
+		assertEquals(Arrays.asList("./a/b/three", "./a/two", "./one"), new ArrayList<String>(watcher.getEntries().keySet()));
+		assertEquals(0, watcher.getHashedCount());
+	}
+
+	@Test
+	public void applyChanges_Modified_ChecksummedAgain() throws IOException, InterruptedException {
+		byte[] before = watcher.getEntries().get("./a/two").getChecksum();
+		write("a/two", "changed");
+		settle();
+
+		assertFalse(Arrays.equals(before, watcher.getEntries().get("./a/two").getChecksum()));
+		assertEquals(7, watcher.getEntries().get("./a/two").getFileSize());
+		assertEquals(3, watcher.getEntries().size());
+	}
+
+	@Test
+	public void applyChanges_Deleted_Dropped() throws IOException, InterruptedException {
+		Files.delete(root.resolve("one"));
+		delete(root.resolve("a/b").toFile());
+		settle();
+
+		assertEquals(Arrays.asList("./a/two"), new ArrayList<String>(watcher.getEntries().keySet()));
+		assertEquals(2, watcher.getRemovedCount());
+	}
+
+	@Test
+	public void applyChanges_NewDirectory_ListedAndWatched() throws IOException, InterruptedException {
+		write("c/d/four", "four");
+		settle();
+		assertTrue(watcher.getEntries().containsKey("./c/d/four"));
+
+		write("c/d/five", "five");
+		settle();
+		assertTrue(watcher.getEntries().containsKey("./c/d/five"));
+	}
+
+	@Test
+	public void applyChanges_Unchanged_NothingDone() throws InterruptedException {
+		settle();
+		assertFalse(watcher.applyChanges());
+		assertEquals(0, watcher.getHashedCount());
+	}
+
+	@Test
+	public void write_ReadsBackAsArchive() throws IOException, InterruptedException, InvalidEntryException {
+		write("a/two", "changed");
+		settle();
+		File output = File.createTempFile("csum", ".listing");
+		try {
+			watcher.write(output);
+
+			List<FileEntry> entries = new ArrayList<FileEntry>();
+			InputStream input = new FileInputStream(output);
+			try {
+				ArchiveQueue archive = new ArchiveQueue(input);
+				while (!archive.isEmpty()) {
+					entries.add(archive.dequeue());
+				}
+				assertEquals(DigestAlgorithms.SHA_256, archive.getAlgorithm());
+				assertTrue(archive.getDirectorySummaries().containsKey("./a/"));
+			} finally {
+				input.close();
+			}
+			assertEquals(new ArrayList<FileEntry>(watcher.getEntries().values()), entries);
+			assertFalse(new File(output.getPath() + ".tmp").exists());
+		} finally {
+			output.delete();
+		}
+	}
+}
@@ -27,6 +27,14 @@ import java.util.List;
 public class MockQueue extends EntryQueue {
 
 	public List<FileEntry> fakeQueue = new ArrayList<FileEntry>();
+
+	public void setAlgorithm(String name) {
+		algorithm = name;
+	}
+
+	public void setChunkSize(long size) {
+		chunkSize = size;
+	}
 	
 	@Override
 	public FileEntry dequeue() throws InvalidEntryException {
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2011-2016 柏大衛
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bdw.util;
+
+import static junit.framework.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class RateLimiterTest {
+
+	@Test
+	public void noLimitNeverWaits() {
+		RateLimiter limiter = new RateLimiter();
+		assertEquals(0, limiter.reserve(Long.MAX_VALUE / 2));
+		assertEquals(0, limiter.reserve(Long.MAX_VALUE / 2));
+	}
+
+	@Test
+	public void fullBucketDoesNotWait() {
+		RateLimiter limiter = new RateLimiter(1000);
+		assertEquals(0, limiter.reserve(1000));
+	}
+
+	@Test
+	public void debtIsPaidForAtTheRate() {
+		RateLimiter limiter = new RateLimiter(1000);
+		limiter.reserve(1000);
+
+		long wait = limiter.reserve(500);
+		// Half a second, give or take the time that passed between calls
+		assertTrue(wait > 400000000L);
+		assertTrue(wait <= 500000000L);
+	}
+
+	@Test
+	public void acquireSleepsOffTheDebt() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(10000);
+		long start = System.nanoTime();
+		limiter.acquire(10000);
+		limiter.acquire(2000);
+
+		assertTrue(System.nanoTime() - start >= 150000000L);
+	}
+
+	@Test
+	public void removingTheLimitStopsWaits() {
+		RateLimiter limiter = new RateLimiter(1000);
+		limiter.reserve(5000);
+		limiter.setRate(0);
+
+		assertEquals(0, limiter.reserve(5000));
+		assertEquals(0.0, limiter.getRate());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void negativeRateRejected() {
+		new RateLimiter(-1);
+	}
+}